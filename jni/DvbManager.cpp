@@ -307,7 +307,15 @@ void DvbManager::resetExceptFe() {
 }
 
 int DvbManager::readTsStream(JNIEnv *env, jobject thiz,
-        uint8_t *tsBuffer, int tsBufferSize, int timeout_ms) {
+        uint8_t *tsBuffer, int tsBufferSize, int timeout_ms, int wakeUpFd) {
+    int result = pollTsStream(env, thiz, timeout_ms, wakeUpFd);
+    if (result <= 0) {
+        return result;
+    }
+    return readPolledTsStream(tsBuffer, tsBufferSize);
+}
+
+int DvbManager::pollTsStream(JNIEnv *env, jobject thiz, int timeout_ms, int wakeUpFd) {
     if (!mFeHasLock) {
         usleep(DVB_ERROR_RETRY_INTERVAL_MS);
         return -1;
@@ -317,11 +325,27 @@ int DvbManager::readTsStream(JNIEnv *env, jobject thiz,
         openDvbDvr(env, thiz);
     }
 
-    struct pollfd pollFd;
-    pollFd.fd = mDvrFd;
-    pollFd.events = POLLIN|POLLPRI|POLLERR;
-    pollFd.revents = 0;
-    int poll_result = poll(&pollFd, NUM_POLLFDS, timeout_ms);
+    // The wake-up fd is polled together so that the caller can be woken up before the DVR
+    // device has data.
+    struct pollfd pollFds[2];
+    pollFds[0].fd = mDvrFd;
+    pollFds[0].events = POLLIN|POLLPRI|POLLERR;
+    pollFds[0].revents = 0;
+    pollFds[1].fd = wakeUpFd;
+    pollFds[1].events = POLLIN;
+    pollFds[1].revents = 0;
+    int poll_result = poll(pollFds, wakeUpFd >= 0 ? 2 : 1, timeout_ms);
+    struct pollfd &pollFd = pollFds[0];
+    if (poll_result == -1 && errno == EINTR) {
+        return 0;
+    }
+    if (poll_result > 0 && (pollFds[1].revents & POLLIN)) {
+        uint8_t wakeUpBuffer[WAKE_UP_BUFFER_SIZE];
+        read(wakeUpFd, wakeUpBuffer, sizeof(wakeUpBuffer));
+        if (!(pollFd.revents & (POLLIN|POLLPRI))) {
+            return 0;
+        }
+    }
     if (poll_result == 0) {
         return 0;
     } else if (poll_result == -1 || pollFd.revents & POLLERR) {
@@ -331,6 +355,10 @@ int DvbManager::readTsStream(JNIEnv *env, jobject thiz,
         usleep(DVB_ERROR_RETRY_INTERVAL_MS);
         return -1;
     }
+    return 1;
+}
+
+int DvbManager::readPolledTsStream(uint8_t *tsBuffer, int tsBufferSize) {
     return read(mDvrFd, tsBuffer, tsBufferSize);
 }
 
@@ -31,6 +31,7 @@ class DvbManager {
     static const int DVB_TUNE_STOP_DELAY_MS = 100 * 1000;
     static const int FE_POLL_TIMEOUT_MS = 100;
     static const int PAT_PID = 0;
+    static const int WAKE_UP_BUFFER_SIZE = 16;
 
     static const int FILTER_TYPE_OTHER =
             com_android_tv_tuner_TunerHal_FILTER_TYPE_OTHER;
@@ -61,7 +62,12 @@ public:
             const int frequency, const char *modulationStr, int timeout_ms);
     int stopTune();
     int readTsStream(JNIEnv *env, jobject thiz,
-            uint8_t *tsBuffer, int tsBufferSize, int timeout_ms);
+            uint8_t *tsBuffer, int tsBufferSize, int timeout_ms, int wakeUpFd = -1);
+    // Waits until the DVR device has data. Returns a positive value if the data is ready to be
+    // read by readPolledTsStream(), 0 on timeout or wake-up, and -1 on an error.
+    int pollTsStream(JNIEnv *env, jobject thiz, int timeout_ms, int wakeUpFd);
+    // Reads from the DVR device without making any JNI calls, after pollTsStream() succeeds.
+    int readPolledTsStream(uint8_t *tsBuffer, int tsBufferSize);
     int startTsPidFilter(JNIEnv *env, jobject thiz, int pid, int filterType);
     void closeAllDvbPidFilter();
     void setHasPendingTune(bool hasPendingTune);
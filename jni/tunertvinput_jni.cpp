@@ -109,14 +109,8 @@ Java_com_android_tv_tuner_TunerHal_nativeAddPidFilter
     }
 }
 
-/*
- * Class:     com_android_tv_tuner_TunerHal
- * Method:    nativeWriteInBuffer
- * Signature: (J[BI)I
- */
-JNIEXPORT jint JNICALL
-Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
-(JNIEnv *env, jobject thiz, jlong deviceId, jbyteArray javaBuffer, jint javaBufferSize) {
+static jint readTsStream(JNIEnv *env, jobject thiz, jlong deviceId, jbyteArray javaBuffer,
+        jint javaBufferSize, int timeout_ms, int wakeUpFd) {
     uint8_t tsBuffer[TS_PAYLOAD_SIZE];
     std::map<jlong, DvbManager *>::iterator it = sDvbManagers.find(deviceId);
     if (it == sDvbManagers.end()) {
@@ -128,7 +122,8 @@ Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
     javaBufferSize = (javaBufferSize / TS_PACKET_SIZE) * TS_PACKET_SIZE;
     int readBufferSize = (javaBufferSize < TS_PAYLOAD_SIZE) ? javaBufferSize : TS_PAYLOAD_SIZE;
 
-    int dataSize = dvbManager->readTsStream(env, thiz, tsBuffer, readBufferSize, READ_TIMEOUT_MS);
+    int dataSize = dvbManager->readTsStream(env, thiz, tsBuffer, readBufferSize, timeout_ms,
+            wakeUpFd);
     if (dataSize == 0) {
         ALOGD("No data to read DVR");
         return 0;
@@ -142,6 +137,78 @@ Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
     return dataSize;
 }
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeWriteInBuffer
+ * Signature: (J[BI)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
+(JNIEnv *env, jobject thiz, jlong deviceId, jbyteArray javaBuffer, jint javaBufferSize) {
+    return readTsStream(env, thiz, deviceId, javaBuffer, javaBufferSize, READ_TIMEOUT_MS, -1);
+}
+
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeReadTsStream
+ * Signature: (J[BIII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_TunerHal_nativeReadTsStream
+(JNIEnv *env, jobject thiz, jlong deviceId, jbyteArray javaBuffer, jint javaBufferSize,
+        jint timeoutMs, jint wakeUpFd) {
+    return readTsStream(env, thiz, deviceId, javaBuffer, javaBufferSize, timeoutMs, wakeUpFd);
+}
+
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeReadTsStreamToBuffer
+ * Signature: (JLjava/nio/ByteBuffer;[BIIII)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_android_tv_tuner_TunerHal_nativeReadTsStreamToBuffer
+(JNIEnv *env, jobject thiz, jlong deviceId, jobject directBuffer, jbyteArray javaBuffer,
+        jint offset, jint length, jint timeoutMs, jint wakeUpFd) {
+    std::map<jlong, DvbManager *>::iterator it = sDvbManagers.find(deviceId);
+    if (it == sDvbManagers.end()) {
+        return -1;
+    }
+    DvbManager *dvbManager = it->second;
+
+    // Always read multiple of TS_PACKET_SIZE
+    length = (length / TS_PACKET_SIZE) * TS_PACKET_SIZE;
+    if (length <= 0) {
+        return 0;
+    }
+    int pollResult = dvbManager->pollTsStream(env, thiz, timeoutMs, wakeUpFd);
+    if (pollResult <= 0) {
+        return pollResult;
+    }
+
+    // Reads straight into the destination memory. The array is pinned only for the read() call
+    // which doesn't block after a successful poll, and no JNI calls are made in between.
+    int dataSize;
+    if (directBuffer != NULL) {
+        uint8_t *address = (uint8_t *) env->GetDirectBufferAddress(directBuffer);
+        if (address == NULL) {
+            return -1;
+        }
+        dataSize = dvbManager->readPolledTsStream(address + offset, length);
+    } else {
+        uint8_t *elements = (uint8_t *) env->GetPrimitiveArrayCritical(javaBuffer, NULL);
+        if (elements == NULL) {
+            return -1;
+        }
+        dataSize = dvbManager->readPolledTsStream(elements + offset, length);
+        env->ReleasePrimitiveArrayCritical(javaBuffer, elements, 0);
+    }
+    if (dataSize < 0) {
+        return -1;
+    }
+    sTotalBytesFetched += dataSize;
+    return dataSize;
+}
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
@@ -73,6 +73,22 @@ JNIEXPORT void JNICALL Java_com_android_tv_tuner_TunerHal_nativeStopTune
 JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
   (JNIEnv *, jobject, jlong, jbyteArray, jint);
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeReadTsStream
+ * Signature: (J[BIII)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeReadTsStream
+  (JNIEnv *, jobject, jlong, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeReadTsStreamToBuffer
+ * Signature: (JLjava/nio/ByteBuffer;[BIIII)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeReadTsStreamToBuffer
+  (JNIEnv *, jobject, jlong, jobject, jbyteArray, jint, jint, jint, jint);
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
@@ -130,6 +130,7 @@ import com.android.tv.ui.sidepanel.MultiAudioFragment;
 import com.android.tv.ui.sidepanel.SettingsFragment;
 import com.android.tv.ui.sidepanel.SideFragment;
 import com.android.tv.util.AccountHelper;
+import com.android.tv.util.AsyncDbTask;
 import com.android.tv.util.CaptionSettings;
 import com.android.tv.util.Debug;
 import com.android.tv.util.DurationTimer;
@@ -146,6 +147,8 @@ import com.android.tv.util.TvTrackInfoUtils;
 import com.android.tv.util.Utils;
 import com.android.tv.util.ViewCache;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayDeque;
@@ -2209,6 +2212,12 @@ public class MainActivity extends Activity implements AudioManager.OnAudioFocusC
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        AsyncDbTask.dump(writer);
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (SystemProperties.LOG_KEYEVENT.getValue()) {
@@ -1166,6 +1166,11 @@ public class TimeShiftManager {
                 super(contentResolver, mChannel.getId(), period);
             }
 
+            @Override
+            protected int getPriority() {
+                return PRIORITY_CURRENT_PROGRAM;
+            }
+
             @Override
             protected void onPostExecute(List<Program> programs) {
                 if (DEBUG) {
@@ -25,20 +25,42 @@ import com.android.tv.dvr.data.RecordedProgram;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A utility class to parse and store data from the
  * {@link android.media.tv.TvContract.Programs#COLUMN_INTERNAL_PROVIDER_DATA} field in the
  * {@link android.media.tv.TvContract.Programs}.
+ *
+ * <p>The data is stored in a compact binary format, which is decoded without reflection, since
+ * it is decoded for every program loaded from the DB. The format is as follows:
+ * <pre>
+ *   magic (4 bytes) | version (1 byte) | series ID (string) | critic scores (list)
+ *   string: varint (length in UTF-8 + 1, 0 for null) | UTF-8 bytes
+ *   list: varint (size + 1, 0 for null) | items
+ *   critic score: source (string) | score (string) | logo URL (string)
+ * </pre>
+ * Newer versions may only append fields, so that the fields above can be read by any version.
+ * Data of the current version which has any byte left after the fields above is rejected, since
+ * it is not what this class wrote.
+ * The data written by the older versions with {@link java.io.ObjectOutputStream} is still read.
  */
 public final class InternalDataUtils {
     private static final boolean DEBUG = false;
     private static final String TAG = "InternalDataUtils";
 
+    /**
+     * The first bytes of the compact format, which are different from the first bytes of the
+     * legacy format, i.e. {@link java.io.ObjectStreamConstants#STREAM_MAGIC}.
+     */
+    private static final byte[] COMPACT_FORMAT_MAGIC = {'T', 'v', 'I', 'p'};
+    private static final byte COMPACT_FORMAT_VERSION = 1;
+
     private InternalDataUtils() {
         //do nothing
     }
@@ -55,15 +77,19 @@ public final class InternalDataUtils {
         if (bytes == null || bytes.length == 0) {
             return;
         }
-        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
-            builder.setSeriesId((String) in.readObject());
-            builder.setCriticScores((List<CriticScore>) in.readObject());
-        } catch (NullPointerException e) {
-            Log.e(TAG, "no bytes to deserialize");
+        if (!isCompactFormat(bytes)) {
+            deserializeLegacyInternalProviderData(bytes, builder);
+            return;
+        }
+        try {
+            CompactReader reader = new CompactReader(bytes);
+            String seriesId = reader.readString();
+            List<CriticScore> criticScores = reader.readCriticScores();
+            reader.checkEnd();
+            builder.setSeriesId(seriesId);
+            builder.setCriticScores(criticScores);
         } catch (IOException e) {
-            Log.e(TAG, "Could not deserialize internal provider contents");
-        } catch (ClassNotFoundException e) {
-            Log.e(TAG, "class not found in internal provider contents");
+            Log.e(TAG, "Could not decode internal provider contents");
         }
     }
 
@@ -75,18 +101,10 @@ public final class InternalDataUtils {
      */
     @Nullable
     public static byte[] serializeInternalProviderData(Program program) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            if (!TextUtils.isEmpty(program.getSeriesId()) || program.getCriticScores() != null) {
-                out.writeObject(program.getSeriesId());
-                out.writeObject(program.getCriticScores());
-                return bos.toByteArray();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not serialize internal provider contents for program: "
-                    + program.getTitle());
+        if (TextUtils.isEmpty(program.getSeriesId()) && program.getCriticScores() == null) {
+            return null;
         }
-        return null;
+        return encode(program.getSeriesId(), program.getCriticScores());
     }
 
     /**
@@ -102,6 +120,97 @@ public final class InternalDataUtils {
         if (bytes == null || bytes.length == 0) {
             return;
         }
+        if (!isCompactFormat(bytes)) {
+            deserializeLegacyInternalProviderData(bytes, builder);
+            return;
+        }
+        try {
+            CompactReader reader = new CompactReader(bytes);
+            String seriesId = reader.readString();
+            // Not used by RecordedProgram, but read to check that the whole data is consumed.
+            reader.readCriticScores();
+            reader.checkEnd();
+            builder.setSeriesId(seriesId);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode internal provider contents");
+        }
+    }
+
+    /**
+     * Serializes relevant objects in {@link android.media.tv.TvContract.Programs} to byte array.
+     * @return the serialized byte array
+     */
+    public static byte[] serializeInternalProviderData(RecordedProgram program) {
+        if (TextUtils.isEmpty(program.getSeriesId())) {
+            return null;
+        }
+        return encode(program.getSeriesId(), null);
+    }
+
+    private static boolean isCompactFormat(byte[] bytes) {
+        if (bytes.length < COMPACT_FORMAT_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < COMPACT_FORMAT_MAGIC.length; ++i) {
+            if (bytes[i] != COMPACT_FORMAT_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String seriesId, List<CriticScore> criticScores) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(COMPACT_FORMAT_MAGIC, 0, COMPACT_FORMAT_MAGIC.length);
+        out.write(COMPACT_FORMAT_VERSION);
+        writeString(out, seriesId);
+        if (criticScores == null) {
+            writeVarint(out, 0);
+        } else {
+            writeVarint(out, criticScores.size() + 1);
+            for (CriticScore criticScore : criticScores) {
+                writeString(out, criticScore.source);
+                writeString(out, criticScore.score);
+                writeString(out, criticScore.logoUrl);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void deserializeLegacyInternalProviderData(byte[] bytes,
+            Program.Builder builder) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            builder.setSeriesId((String) in.readObject());
+            builder.setCriticScores((List<CriticScore>) in.readObject());
+        } catch (NullPointerException e) {
+            Log.e(TAG, "no bytes to deserialize");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not deserialize internal provider contents");
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "class not found in internal provider contents");
+        }
+    }
+
+    private static void deserializeLegacyInternalProviderData(byte[] bytes,
+            RecordedProgram.Builder builder) {
         try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
             builder.setSeriesId((String) in.readObject());
         } catch (NullPointerException e) {
@@ -114,20 +223,75 @@ public final class InternalDataUtils {
     }
 
     /**
-     * Serializes relevant objects in {@link android.media.tv.TvContract.Programs} to byte array.
-     * @return the serialized byte array
+     * Reads the fields of the compact format in order.
      */
-    public static byte[] serializeInternalProviderData(RecordedProgram program) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            if (!TextUtils.isEmpty(program.getSeriesId())) {
-                out.writeObject(program.getSeriesId());
-                return bos.toByteArray();
+    private static final class CompactReader {
+        private final byte[] mBytes;
+        private final int mVersion;
+        private int mPosition;
+
+        CompactReader(byte[] bytes) throws IOException {
+            mBytes = bytes;
+            // Skips the magic. Any version can be read, since newer versions only append fields.
+            mPosition = COMPACT_FORMAT_MAGIC.length;
+            if (mPosition >= mBytes.length) {
+                throw new EOFException();
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not serialize internal provider contents for program: "
-                    + program.getTitle());
+            mVersion = mBytes[mPosition++];
+            if (mVersion < 1) {
+                throw new IOException("Invalid version " + mVersion);
+            }
+        }
+
+        /**
+         * Checks that the whole data is read. The fields appended by newer versions are left.
+         */
+        void checkEnd() throws IOException {
+            if (mVersion <= COMPACT_FORMAT_VERSION && mPosition != mBytes.length) {
+                throw new IOException((mBytes.length - mPosition) + " bytes left");
+            }
+        }
+
+        String readString() throws IOException {
+            int length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > mBytes.length - mPosition) {
+                throw new EOFException();
+            }
+            String value = new String(mBytes, mPosition, length, StandardCharsets.UTF_8);
+            mPosition += length;
+            return value;
+        }
+
+        List<CriticScore> readCriticScores() throws IOException {
+            int size = readVarint() - 1;
+            if (size < 0) {
+                return null;
+            }
+            // Each critic score takes 3 bytes at least.
+            List<CriticScore> criticScores =
+                    new ArrayList<>(Math.min(size, (mBytes.length - mPosition) / 3));
+            for (int i = 0; i < size; ++i) {
+                criticScores.add(new CriticScore(readString(), readString(), readString()));
+            }
+            return criticScores;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (mPosition >= mBytes.length) {
+                    throw new EOFException();
+                }
+                byte b = mBytes[mPosition++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
         }
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -27,6 +27,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.ArraySet;
 import android.util.Log;
@@ -69,6 +70,12 @@ public class ProgramDataManager implements MemoryManageable {
     static final long PROGRAM_GUIDE_SNAP_TIME_MS = TimeUnit.MINUTES.toMillis(30);
     @VisibleForTesting
     static final long PROGRAM_GUIDE_MAX_TIME_RANGE = TimeUnit.DAYS.toMillis(2);
+    // Once the program guide gives its window, the programs are loaded by slabs of
+    // PROGRAM_GUIDE_CHANNEL_BLOCK_SIZE channels and PROGRAM_GUIDE_SLAB_DURATION_MS.
+    private static final int PROGRAM_GUIDE_CHANNEL_BLOCK_SIZE = 8;
+    @VisibleForTesting
+    static final long PROGRAM_GUIDE_SLAB_DURATION_MS = TimeUnit.HOURS.toMillis(3);
+    private static final int PROGRAM_GUIDE_MAX_CACHED_PROGRAM_COUNT = 3000;
 
     // TODO: Use TvContract constants, once they become public.
     private static final String PARAM_START_TIME = "start_time";
@@ -101,6 +108,10 @@ public class ProgramDataManager implements MemoryManageable {
     private long mLastPrefetchTaskRunMs;
     private ProgramsPrefetchTask mProgramsPrefetchTask;
     private Map<Long, ArrayList<Program>> mChannelIdProgramCache = new HashMap<>();
+    // Not null if the programs are loaded by slabs around the window of the program guide,
+    // instead of being prefetched for all the channels.
+    private ProgramSlabCache mSlabCache;
+    private ProgramSlabLoadTask mSlabLoadTask;
 
     // Any program that ends prior to this time will be removed from the cache
     // when a channel's current program is updated.
@@ -234,6 +245,13 @@ public class ProgramDataManager implements MemoryManageable {
          * This would be called only if fetched data is around the selected program.
          **/
         void onProgramUpdated();
+
+        /**
+         * Called when the programs of a channel which are returned by {@link #getPrograms} are
+         * changed. Only the programs which overlap the given time range are changed, and the
+         * others are the same as before.
+         */
+        void onChannelProgramsUpdated(long channelId, long startUtcMillis, long endUtcMillis);
     }
 
     /**
@@ -266,6 +284,7 @@ public class ProgramDataManager implements MemoryManageable {
         } else {
             mPrefetchEnabled = false;
             cancelPrefetchTask();
+            mSlabCache = null;
             mChannelIdProgramCache.clear();
             mHandler.removeMessages(MSG_UPDATE_PREFETCH_PROGRAM);
         }
@@ -380,6 +399,7 @@ public class ProgramDataManager implements MemoryManageable {
         if (cachedPrograms == null) {
             return;
         }
+        List<Program> oldPrograms = new ArrayList<>(cachedPrograms);
         ListIterator<Program> i = cachedPrograms.listIterator();
         while (i.hasNext()) {
             Program cachedProgram = i.next();
@@ -419,6 +439,7 @@ public class ProgramDataManager implements MemoryManageable {
             cachedPrograms.add(currentProgram);
         }
         mChannelIdProgramCache.put(channelId, cachedPrograms);
+        notifyChannelProgramsUpdatedIfChanged(channelId, oldPrograms, cachedPrograms);
     }
 
     private void handleUpdateCurrentPrograms() {
@@ -448,6 +469,11 @@ public class ProgramDataManager implements MemoryManageable {
             mSuccess = false;
         }
 
+        @Override
+        protected int getPriority() {
+            return PRIORITY_PREFETCH;
+        }
+
         @Override
         protected Map<Long, ArrayList<Program>> doInBackground(Void... params) {
             Map<Long, ArrayList<Program>> programMap = new HashMap<>();
@@ -520,8 +546,20 @@ public class ProgramDataManager implements MemoryManageable {
             }
             long nextMessageDelayedTime;
             if (mSuccess) {
+                Map<Long, ArrayList<Program>> oldPrograms = mChannelIdProgramCache;
                 mChannelIdProgramCache = programs;
-                notifyProgramUpdated();
+                if (oldPrograms.isEmpty()) {
+                    notifyProgramUpdated();
+                } else {
+                    // Notifies only the changes, so that the program guide doesn't need to
+                    // rebuild the rows of all the channels whenever a program is changed.
+                    Set<Long> channelIds = new HashSet<>(oldPrograms.keySet());
+                    channelIds.addAll(programs.keySet());
+                    for (Long channelId : channelIds) {
+                        notifyChannelProgramsUpdatedIfChanged(channelId,
+                                oldPrograms.get(channelId), programs.get(channelId));
+                    }
+                }
                 long currentTime = mClock.currentTimeMillis();
                 mLastPrefetchTaskRunMs = currentTime;
                 nextMessageDelayedTime =
@@ -543,6 +581,141 @@ public class ProgramDataManager implements MemoryManageable {
         }
     }
 
+    /**
+     * Notifies the time range of the programs which are different between {@code oldPrograms}
+     * and {@code newPrograms} of a channel, if any.
+     */
+    private void notifyChannelProgramsUpdatedIfChanged(long channelId,
+            @Nullable List<Program> oldPrograms, @Nullable List<Program> newPrograms) {
+        if (oldPrograms == null) {
+            oldPrograms = Collections.emptyList();
+        }
+        if (newPrograms == null) {
+            newPrograms = Collections.emptyList();
+        }
+        int oldSize = oldPrograms.size();
+        int newSize = newPrograms.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && oldPrograms.get(start).equals(newPrograms.get(start))) {
+            ++start;
+        }
+        if (start == oldSize && start == newSize) {
+            return;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && oldPrograms.get(oldEnd - 1).equals(newPrograms.get(newEnd - 1))) {
+            --oldEnd;
+            --newEnd;
+        }
+        long startUtcMillis = Long.MAX_VALUE;
+        long endUtcMillis = Long.MIN_VALUE;
+        if (oldEnd > start) {
+            startUtcMillis = oldPrograms.get(start).getStartTimeUtcMillis();
+            endUtcMillis = oldPrograms.get(oldEnd - 1).getEndTimeUtcMillis();
+        }
+        if (newEnd > start) {
+            startUtcMillis = Math.min(startUtcMillis,
+                    newPrograms.get(start).getStartTimeUtcMillis());
+            endUtcMillis = Math.max(endUtcMillis,
+                    newPrograms.get(newEnd - 1).getEndTimeUtcMillis());
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Programs are updated for channel " + channelId + ": "
+                    + Utils.toTimeString(startUtcMillis) + "-" + Utils.toTimeString(endUtcMillis));
+        }
+        for (Listener listener : mListeners) {
+            listener.onChannelProgramsUpdated(channelId, startUtcMillis, endUtcMillis);
+        }
+    }
+
+    private class ProgramSlabLoadTask
+            extends AsyncDbTask<Void, Void, Map<Long, List<Program>>> {
+        private final ProgramSlabCache mCache;
+        private final ProgramSlabCache.Slab mSlab;
+        private final Set<Long> mChannelIds;
+
+        ProgramSlabLoadTask(ProgramSlabCache cache, ProgramSlabCache.Slab slab) {
+            mCache = cache;
+            mSlab = slab;
+            mChannelIds = new HashSet<>(cache.getChannelIds(slab.blockIndex));
+        }
+
+        @Override
+        protected int getPriority() {
+            // The user is waiting for the visible slabs.
+            return mSlab.isVisible() ? PRIORITY_INTERACTIVE : PRIORITY_PREFETCH;
+        }
+
+        @Override
+        protected Map<Long, List<Program>> doInBackground(Void... params) {
+            if (DEBUG) Log.d(TAG, "Starts loading " + mSlab);
+            Uri uri = Programs.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_START_TIME, String.valueOf(mSlab.startUtcMillis))
+                    .appendQueryParameter(PARAM_END_TIME, String.valueOf(mSlab.endUtcMillis))
+                    .build();
+            StringBuilder selection = new StringBuilder(Programs.COLUMN_CHANNEL_ID + " IN (");
+            String[] selectionArgs = new String[mChannelIds.size()];
+            int i = 0;
+            for (long channelId : mChannelIds) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i++] = String.valueOf(channelId);
+            }
+            selection.append(")");
+            Map<Long, List<Program>> programMap = new HashMap<>();
+            Program lastReadProgram = null;
+            try (Cursor c = mContentResolver.query(uri, Program.PROJECTION, selection.toString(),
+                    selectionArgs, SORT_BY_TIME)) {
+                if (c == null) {
+                    return null;
+                }
+                while (c.moveToNext()) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    Program program = Program.fromCursor(c);
+                    if (!mChannelIds.contains(program.getChannelId())
+                            || Program.isDuplicate(program, lastReadProgram)) {
+                        continue;
+                    }
+                    lastReadProgram = program;
+                    List<Program> programs = programMap.get(program.getChannelId());
+                    if (programs == null) {
+                        programs = new ArrayList<>();
+                        programMap.put(program.getChannelId(), programs);
+                    }
+                    programs.add(program);
+                }
+            } catch (IllegalStateException | SecurityException e) {
+                Log.w(TAG, "Failed to load " + mSlab, e);
+                return null;
+            }
+            return programMap;
+        }
+
+        @Override
+        protected void onPostExecute(Map<Long, List<Program>> programs) {
+            mSlabLoadTask = null;
+            if (mCache != mSlabCache) {
+                return;
+            }
+            if (programs == null) {
+                mCache.onSlabLoadFailed(mSlab);
+                return;
+            }
+            List<ProgramSlabCache.Slab> updatedSlabs = mCache.onSlabLoaded(mSlab, programs);
+            updatedSlabs.add(mSlab);
+            updateBlocks(updatedSlabs);
+            if (DEBUG) {
+                Log.d(TAG, "Loaded " + mSlab + ", " + mCache.getProgramCount()
+                        + " programs are cached");
+            }
+            startNextSlabLoadTask();
+        }
+    }
+
     private class ProgramsUpdateTask extends AsyncDbTask.AsyncQueryTask<List<Program>> {
         public ProgramsUpdateTask(ContentResolver contentResolver, long time) {
             super(contentResolver, Programs.CONTENT_URI.buildUpon()
@@ -551,6 +724,11 @@ public class ProgramDataManager implements MemoryManageable {
                     Program.PROJECTION, null, null, SORT_BY_TIME);
         }
 
+        @Override
+        protected int getPriority() {
+            return PRIORITY_CURRENT_PROGRAM;
+        }
+
         @Override
         public List<Program> onQuery(Cursor c) {
             final List<Program> programs = new ArrayList<>();
@@ -609,6 +787,11 @@ public class ProgramDataManager implements MemoryManageable {
             mChannelId = channelId;
         }
 
+        @Override
+        protected int getPriority() {
+            return PRIORITY_CURRENT_PROGRAM;
+        }
+
         @Override
         public Program onQuery(Cursor c) {
             Program program = null;
@@ -654,7 +837,7 @@ public class ProgramDataManager implements MemoryManageable {
                     if (isProgramUpdatePaused()) {
                         return;
                     }
-                    if (mProgramsPrefetchTask != null) {
+                    if (mProgramsPrefetchTask != null || mSlabLoadTask != null) {
                         mHandler.sendEmptyMessageDelayed(msg.what, mProgramPrefetchUpdateWaitMs);
                         return;
                     }
@@ -662,6 +845,8 @@ public class ProgramDataManager implements MemoryManageable {
                             - mClock.currentTimeMillis();
                     if (delayMillis > 0) {
                         mHandler.sendEmptyMessageDelayed(MSG_UPDATE_PREFETCH_PROGRAM, delayMillis);
+                    } else if (mSlabCache != null) {
+                        reloadSlabs();
                     } else {
                         mProgramsPrefetchTask = new ProgramsPrefetchTask();
                         mProgramsPrefetchTask.executeOnDbThread();
@@ -715,6 +900,116 @@ public class ProgramDataManager implements MemoryManageable {
         mPrefetchTimeRangeStartMs = startTimeMs;
     }
 
+    /**
+     * Sets the window which the program guide shows. Once it's called, only the programs around
+     * the window are loaded, instead of the programs of all the channels, and
+     * {@link #getPrograms} returns the programs which are loaded so far. The changes are notified
+     * by {@link Listener#onChannelProgramsUpdated}.
+     *
+     * <p> Prefetch should be enabled to call it.
+     *
+     * @param channelIds the IDs of the channels in the order of the program guide.
+     * @param firstChannelIndex the index of the first visible channel in {@code channelIds}.
+     * @param lastChannelIndex the index of the last visible channel in {@code channelIds}.
+     * @param fromUtcMillis the start time of the visible time range.
+     * @param toUtcMillis the end time of the visible time range.
+     */
+    public void setProgramGuideWindow(List<Long> channelIds, int firstChannelIndex,
+            int lastChannelIndex, long fromUtcMillis, long toUtcMillis) {
+        if (!SoftPreconditions.checkState(mPrefetchEnabled, TAG, "Prefetch is disabled.")) {
+            return;
+        }
+        boolean lineupChanged = mSlabCache == null
+                || !mSlabCache.getChannelIds().equals(channelIds);
+        if (lineupChanged) {
+            if (DEBUG) Log.d(TAG, "Starts loading programs by slabs for " + channelIds.size()
+                    + " channels");
+            cancelPrefetchTask();
+            mSlabCache = new ProgramSlabCache(channelIds, PROGRAM_GUIDE_CHANNEL_BLOCK_SIZE,
+                    PROGRAM_GUIDE_SLAB_DURATION_MS, PROGRAM_GUIDE_MAX_CACHED_PROGRAM_COUNT);
+        }
+        long minUtcMillis = Utils.floorTime(mClock.currentTimeMillis() - PROGRAM_GUIDE_SNAP_TIME_MS,
+                PROGRAM_GUIDE_SNAP_TIME_MS);
+        mSlabCache.setWindow(firstChannelIndex, lastChannelIndex, fromUtcMillis, toUtcMillis,
+                Math.max(minUtcMillis, mPrefetchTimeRangeStartMs),
+                minUtcMillis + PROGRAM_GUIDE_MAX_TIME_RANGE);
+        if (lineupChanged) {
+            // Drops the programs which were loaded for the other channels. The programs of the
+            // channels around the window are kept until their slabs are loaded.
+            for (Long channelId : new ArrayList<>(mChannelIdProgramCache.keySet())) {
+                int blockIndex = mSlabCache.getBlockIndex(channelId);
+                if (blockIndex < 0 || !mSlabCache.isBlockInWindow(blockIndex)) {
+                    notifyChannelProgramsUpdatedIfChanged(channelId,
+                            mChannelIdProgramCache.remove(channelId), null);
+                }
+            }
+        }
+        startNextSlabLoadTask();
+    }
+
+    /**
+     * Clears the window set by {@link #setProgramGuideWindow}, e.g. when the program guide is
+     * hidden, and goes back to prefetching the programs of all the channels.
+     *
+     * <p> Prefetch should be enabled to call it.
+     */
+    public void clearProgramGuideWindow() {
+        if (mSlabCache == null) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Stops loading programs by slabs");
+        cancelSlabLoadTask();
+        mSlabCache = null;
+        if (mPrefetchEnabled) {
+            // The cache only has the programs around the last window. Fetch all the programs
+            // right away.
+            mLastPrefetchTaskRunMs = 0;
+            mHandler.removeMessages(MSG_UPDATE_PREFETCH_PROGRAM);
+            mHandler.sendEmptyMessage(MSG_UPDATE_PREFETCH_PROGRAM);
+        }
+    }
+
+    private void reloadSlabs() {
+        mLastPrefetchTaskRunMs = mClock.currentTimeMillis();
+        updateBlocks(mSlabCache.invalidate());
+        startNextSlabLoadTask();
+        if (!mHandler.hasMessages(MSG_UPDATE_PREFETCH_PROGRAM)) {
+            long currentTime = mClock.currentTimeMillis();
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_PREFETCH_PROGRAM,
+                    Utils.floorTime(currentTime + PROGRAM_GUIDE_SNAP_TIME_MS,
+                            PROGRAM_GUIDE_SNAP_TIME_MS) - currentTime);
+        }
+    }
+
+    private void startNextSlabLoadTask() {
+        if (mSlabLoadTask != null) {
+            return;
+        }
+        ProgramSlabCache.Slab slab = mSlabCache.startLoadingNextSlab();
+        if (slab != null) {
+            mSlabLoadTask = new ProgramSlabLoadTask(mSlabCache, slab);
+            mSlabLoadTask.executeOnDbThread();
+        }
+    }
+
+    /**
+     * Updates the programs of the channels in the blocks of the slabs, from the loaded slabs.
+     */
+    private void updateBlocks(List<ProgramSlabCache.Slab> slabs) {
+        Set<Integer> blockIndices = new HashSet<>();
+        for (ProgramSlabCache.Slab slab : slabs) {
+            if (blockIndices.add(slab.blockIndex)) {
+                for (long channelId : mSlabCache.getChannelIds(slab.blockIndex)) {
+                    ArrayList<Program> programs = mSlabCache.getPrograms(channelId);
+                    ArrayList<Program> oldPrograms = programs.isEmpty()
+                            ? mChannelIdProgramCache.remove(channelId)
+                            : mChannelIdProgramCache.put(channelId, programs);
+                    notifyChannelProgramsUpdatedIfChanged(channelId, oldPrograms, programs);
+                }
+            }
+        }
+    }
+
     private void clearTask(LongSparseArray<UpdateCurrentProgramForChannelTask> tasks) {
         for (int i = 0; i < tasks.size(); i++) {
             tasks.valueAt(i).cancel(true);
@@ -727,6 +1022,15 @@ public class ProgramDataManager implements MemoryManageable {
             mProgramsPrefetchTask.cancel(true);
             mProgramsPrefetchTask = null;
         }
+        cancelSlabLoadTask();
+    }
+
+    private void cancelSlabLoadTask() {
+        if (mSlabLoadTask != null) {
+            mSlabLoadTask.cancel(true);
+            mSlabLoadTask.mCache.onSlabLoadFailed(mSlabLoadTask.mSlab);
+            mSlabLoadTask = null;
+        }
     }
 
     // Create dummy program which indicates data isn't loaded yet so DB query is required.
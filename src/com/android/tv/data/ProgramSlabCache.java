@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the programs for the program guide, which are loaded by slabs.
+ *
+ * <p>A slab is the programs of a block of the consecutive channels in the lineup, in a time
+ * range. Only the slabs around the window which the program guide shows are loaded, in the order
+ * of the distance from the window. The slabs ahead in the scroll direction are loaded earlier
+ * than the others in the same distance. If the number of the cached programs exceeds the budget,
+ * the least recently used slabs out of the window are evicted.
+ */
+@MainThread
+final class ProgramSlabCache {
+    /**
+     * The programs of a block of channels in a time range.
+     */
+    static final class Slab {
+        final int blockIndex;
+        final long startUtcMillis;
+        final long endUtcMillis;
+        private final long mKey;
+        private Map<Long, List<Program>> mPrograms;
+        private int mProgramCount;
+        private boolean mStale;
+        // The distance from the window, which is valid only while the slab is in the window.
+        private int mDistance;
+
+        private Slab(int blockIndex, long slabIndex, long slabDurationMs) {
+            this.blockIndex = blockIndex;
+            startUtcMillis = slabIndex * slabDurationMs;
+            endUtcMillis = startUtcMillis + slabDurationMs;
+            mKey = getKey(blockIndex, slabIndex);
+        }
+
+        /**
+         * Returns {@code true} if the slab is shown by the program guide.
+         */
+        boolean isVisible() {
+            return mDistance == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Slab{block=" + blockIndex + ", start=" + startUtcMillis + ", end="
+                    + endUtcMillis + ", programs=" + mProgramCount + ", stale=" + mStale + "}";
+        }
+    }
+
+    private final List<Long> mChannelIds;
+    private final Map<Long, Integer> mChannelIdToIndex = new HashMap<>();
+    private final int mBlockSize;
+    private final long mSlabDurationMs;
+    private final int mMaxProgramCount;
+    // Access ordered, so that the least recently used slab comes first.
+    private final LinkedHashMap<Long, Slab> mLoadedSlabs = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Slab> mWindowSlabs = new ArrayList<>();
+    private final Set<Long> mWindowKeys = new HashSet<>();
+    private final Set<Integer> mWindowBlocks = new HashSet<>();
+    private Slab mLoadingSlab;
+    private int mProgramCount;
+    private boolean mHasWindow;
+    private int mLastFirstBlock;
+    private long mLastFromUtcMillis;
+
+    /**
+     * Creates a cache for the lineup.
+     *
+     * @param channelIds the IDs of the channels in the order of the program guide.
+     * @param blockSize the number of the channels in a slab.
+     * @param slabDurationMs the duration of the time range of a slab.
+     * @param maxProgramCount the number of the programs to keep, unless they are in the window.
+     */
+    ProgramSlabCache(List<Long> channelIds, int blockSize, long slabDurationMs,
+            int maxProgramCount) {
+        mChannelIds = Collections.unmodifiableList(new ArrayList<>(channelIds));
+        for (int i = 0; i < mChannelIds.size(); ++i) {
+            mChannelIdToIndex.put(mChannelIds.get(i), i);
+        }
+        mBlockSize = blockSize;
+        mSlabDurationMs = slabDurationMs;
+        mMaxProgramCount = maxProgramCount;
+    }
+
+    /**
+     * Returns the IDs of the channels in the lineup.
+     */
+    List<Long> getChannelIds() {
+        return mChannelIds;
+    }
+
+    /**
+     * Returns the IDs of the channels in the block.
+     */
+    List<Long> getChannelIds(int blockIndex) {
+        int start = blockIndex * mBlockSize;
+        return mChannelIds.subList(start, Math.min(start + mBlockSize, mChannelIds.size()));
+    }
+
+    /**
+     * Returns the block of the channel, or -1 if the channel isn't in the lineup.
+     */
+    int getBlockIndex(long channelId) {
+        Integer index = mChannelIdToIndex.get(channelId);
+        return index == null ? -1 : index / mBlockSize;
+    }
+
+    /**
+     * Returns {@code true} if the block has a slab in the window.
+     */
+    boolean isBlockInWindow(int blockIndex) {
+        return mWindowBlocks.contains(blockIndex);
+    }
+
+    /**
+     * Returns the number of the programs in the loaded slabs.
+     */
+    int getProgramCount() {
+        return mProgramCount;
+    }
+
+    /**
+     * Sets the window which the program guide shows. The slabs around the window are queued to
+     * be loaded, and the loaded ones are marked as recently used.
+     *
+     * @param firstChannelIndex the index of the first visible channel in the lineup.
+     * @param lastChannelIndex the index of the last visible channel in the lineup.
+     * @param fromUtcMillis the start time of the visible time range.
+     * @param toUtcMillis the end time of the visible time range.
+     * @param minUtcMillis the start time of the programs to be loaded.
+     * @param maxUtcMillis the end time of the programs to be loaded.
+     */
+    void setWindow(int firstChannelIndex, int lastChannelIndex, long fromUtcMillis,
+            long toUtcMillis, long minUtcMillis, long maxUtcMillis) {
+        mWindowSlabs.clear();
+        mWindowKeys.clear();
+        mWindowBlocks.clear();
+        if (mChannelIds.isEmpty() || toUtcMillis <= fromUtcMillis
+                || maxUtcMillis <= minUtcMillis) {
+            return;
+        }
+        int lastBlockIndex = (mChannelIds.size() - 1) / mBlockSize;
+        int firstBlock = clamp(firstChannelIndex / mBlockSize, 0, lastBlockIndex);
+        int lastBlock = clamp(lastChannelIndex / mBlockSize, firstBlock, lastBlockIndex);
+        long minSlab = minUtcMillis / mSlabDurationMs;
+        long maxSlab = (maxUtcMillis - 1) / mSlabDurationMs;
+        long firstSlab = clamp(fromUtcMillis / mSlabDurationMs, minSlab, maxSlab);
+        long lastSlab = clamp((toUtcMillis - 1) / mSlabDurationMs, firstSlab, maxSlab);
+        int blockDirection = mHasWindow ? Integer.signum(firstBlock - mLastFirstBlock) : 0;
+        int slabDirection = mHasWindow ? Long.signum(fromUtcMillis - mLastFromUtcMillis) : 0;
+        mHasWindow = true;
+        mLastFirstBlock = firstBlock;
+        mLastFromUtcMillis = fromUtcMillis;
+
+        // Loads one more slab around the window, and one more ahead in the scroll direction.
+        int startBlock = Math.max(firstBlock - (blockDirection < 0 ? 2 : 1), 0);
+        int endBlock = Math.min(lastBlock + (blockDirection > 0 ? 2 : 1), lastBlockIndex);
+        long startSlab = Math.max(firstSlab - (slabDirection < 0 ? 2 : 1), minSlab);
+        long endSlab = Math.min(lastSlab + (slabDirection > 0 ? 2 : 1), maxSlab);
+        final Map<Slab, Boolean> aheadMap = new HashMap<>();
+        for (int block = startBlock; block <= endBlock; ++block) {
+            for (long slabIndex = startSlab; slabIndex <= endSlab; ++slabIndex) {
+                long key = getKey(block, slabIndex);
+                Slab slab = mLoadedSlabs.get(key);
+                if (slab == null) {
+                    slab = mLoadingSlab != null && mLoadingSlab.mKey == key ? mLoadingSlab
+                            : new Slab(block, slabIndex, mSlabDurationMs);
+                }
+                int blockDistance = getDistance(block, firstBlock, lastBlock);
+                int slabDistance = getDistance(slabIndex, firstSlab, lastSlab);
+                slab.mDistance = Math.max(blockDistance, slabDistance);
+                aheadMap.put(slab, (blockDirection != 0 && blockDistance != 0
+                        && Integer.signum(block - firstBlock) == blockDirection)
+                        || (slabDirection != 0 && slabDistance != 0
+                        && Long.signum(slabIndex - firstSlab) == slabDirection));
+                mWindowSlabs.add(slab);
+                mWindowKeys.add(key);
+                mWindowBlocks.add(block);
+            }
+        }
+        Collections.sort(mWindowSlabs, new Comparator<Slab>() {
+            @Override
+            public int compare(Slab lhs, Slab rhs) {
+                if (lhs.mDistance != rhs.mDistance) {
+                    return Integer.compare(lhs.mDistance, rhs.mDistance);
+                }
+                return Boolean.compare(aheadMap.get(rhs), aheadMap.get(lhs));
+            }
+        });
+    }
+
+    /**
+     * Returns the next slab to load, or {@code null} if all the slabs in the window are loaded
+     * and up to date. The slab is being loaded until {@link #onSlabLoaded} or
+     * {@link #onSlabLoadFailed} is called.
+     */
+    @Nullable
+    Slab startLoadingNextSlab() {
+        if (mLoadingSlab != null) {
+            return null;
+        }
+        for (Slab slab : mWindowSlabs) {
+            if (slab.mPrograms == null || slab.mStale) {
+                mLoadingSlab = slab;
+                return slab;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the loaded programs of the slab, and evicts the least recently used slabs if the
+     * cache exceeds the budget.
+     *
+     * @param programs the programs of each channel in the block, sorted by the start time.
+     * @return the evicted slabs.
+     */
+    List<Slab> onSlabLoaded(Slab slab, Map<Long, List<Program>> programs) {
+        if (mLoadingSlab == slab) {
+            mLoadingSlab = null;
+        }
+        int programCount = 0;
+        for (List<Program> channelPrograms : programs.values()) {
+            programCount += channelPrograms.size();
+        }
+        mProgramCount += programCount - slab.mProgramCount;
+        slab.mPrograms = programs;
+        slab.mProgramCount = programCount;
+        slab.mStale = false;
+        mLoadedSlabs.put(slab.mKey, slab);
+
+        List<Slab> evictedSlabs = new ArrayList<>();
+        Iterator<Slab> iterator = mLoadedSlabs.values().iterator();
+        while (mProgramCount > mMaxProgramCount && iterator.hasNext()) {
+            Slab candidate = iterator.next();
+            if (!mWindowKeys.contains(candidate.mKey)) {
+                iterator.remove();
+                clearSlab(candidate);
+                evictedSlabs.add(candidate);
+            }
+        }
+        return evictedSlabs;
+    }
+
+    /**
+     * Gives up loading the slab. It'll be loaded again by the next {@link #setWindow}.
+     */
+    void onSlabLoadFailed(Slab slab) {
+        if (mLoadingSlab == slab) {
+            mLoadingSlab = null;
+        }
+    }
+
+    /**
+     * Marks the loaded slabs in the window stale to be loaded again, and evicts the others.
+     *
+     * @return the evicted slabs.
+     */
+    List<Slab> invalidate() {
+        List<Slab> evictedSlabs = new ArrayList<>();
+        Iterator<Slab> iterator = mLoadedSlabs.values().iterator();
+        while (iterator.hasNext()) {
+            Slab slab = iterator.next();
+            if (mWindowKeys.contains(slab.mKey)) {
+                slab.mStale = true;
+            } else {
+                iterator.remove();
+                clearSlab(slab);
+                evictedSlabs.add(slab);
+            }
+        }
+        return evictedSlabs;
+    }
+
+    /**
+     * Returns {@code true} if any slab of the block is loaded.
+     */
+    @VisibleForTesting
+    boolean hasLoadedSlab(int blockIndex) {
+        for (Slab slab : mLoadedSlabs.values()) {
+            if (slab.blockIndex == blockIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the programs of the channel in the loaded slabs, sorted by the start time.
+     */
+    ArrayList<Program> getPrograms(long channelId) {
+        int blockIndex = getBlockIndex(channelId);
+        List<Slab> slabs = new ArrayList<>();
+        for (Slab slab : mLoadedSlabs.values()) {
+            if (slab.blockIndex == blockIndex) {
+                slabs.add(slab);
+            }
+        }
+        Collections.sort(slabs, new Comparator<Slab>() {
+            @Override
+            public int compare(Slab lhs, Slab rhs) {
+                return Long.compare(lhs.startUtcMillis, rhs.startUtcMillis);
+            }
+        });
+        ArrayList<Program> programs = new ArrayList<>();
+        for (Slab slab : slabs) {
+            List<Program> slabPrograms = slab.mPrograms.get(channelId);
+            if (slabPrograms == null) {
+                continue;
+            }
+            for (Program program : slabPrograms) {
+                // A program across the boundary of the slabs is in both of them.
+                if (!programs.isEmpty() && program.getStartTimeUtcMillis()
+                        <= programs.get(programs.size() - 1).getStartTimeUtcMillis()) {
+                    continue;
+                }
+                programs.add(program);
+            }
+        }
+        return programs;
+    }
+
+    private void clearSlab(Slab slab) {
+        mProgramCount -= slab.mProgramCount;
+        slab.mPrograms = null;
+        slab.mProgramCount = 0;
+        slab.mStale = false;
+    }
+
+    private static long getKey(int blockIndex, long slabIndex) {
+        return ((long) blockIndex << 32) | (slabIndex & 0xffffffffL);
+    }
+
+    private static int getDistance(long index, long first, long last) {
+        return (int) (index < first ? first - index : (index > last ? index - last : 0));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
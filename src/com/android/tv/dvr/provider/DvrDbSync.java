@@ -54,11 +54,10 @@ import java.util.Set;
 /**
  * A class to synchronizes DVR DB with TvProvider.
  *
- * <p>The current implementation of AsyncDbTask allows only one task to run at a time, and all the
- * other tasks are blocked until the current one finishes. As this class performs the low priority
- * jobs which take long time, it should not block others if possible. For this reason, only one
- * program is queried at a time and others are queued and will be executed on the other
- * AsyncDbTask's after the current one finishes to minimize the execution time of one AsyncDbTask.
+ * <p>As this class performs the low priority jobs which take long time, the queries run in the
+ * lane of {@link com.android.tv.util.AsyncDbTask#PRIORITY_BACKGROUND}, which doesn't block the
+ * foreground ones. Still, only one program is queried at a time and the others are queued, so that
+ * the program IDs of the queue can be deduplicated until they are queried.
  */
 @MainThread
 @TargetApi(Build.VERSION_CODES.N)
@@ -353,6 +352,11 @@ public class DvrDbSync {
             mProgramId = programId;
         }
 
+        @Override
+        protected int getPriority() {
+            return PRIORITY_BACKGROUND;
+        }
+
         @Override
         protected void onCancelled(Program program) {
             if (mQueryProgramTask == this) {
@@ -273,6 +273,9 @@ public class ProgramGuide implements ProgramGrid.ChildFocusListener {
         mGrid.setOnChildSelectedListener(new OnChildSelectedListener() {
             @Override
             public void onChildSelected(ViewGroup parent, View view, int position, long id) {
+                if (position != RecyclerView.NO_POSITION) {
+                    updateVisibleChannelRange(position);
+                }
                 if (mIsDuringResetRowSelection) {
                     // Ignore if it's during the first resetRowSelection, because onChildSelected
                     // will be called again when rows are bound to the program table. if selectRow
@@ -738,6 +741,13 @@ public class ProgramGuide implements ProgramGrid.ChildFocusListener {
         mIsDuringResetRowSelection = false;
     }
 
+    private void updateVisibleChannelRange(int selectedPosition) {
+        int firstChannelIndex = Math.max(selectedPosition - mSelectionRow, 0);
+        int visibleRowCount = Math.max(mGrid.getHeight() / mRowHeight, mSelectionRow + 1);
+        mProgramManager.setVisibleChannelRange(firstChannelIndex,
+                firstChannelIndex + visibleRowCount - 1);
+    }
+
     private void selectRow(View row) {
         if (row == null || row == mSelectedRow) {
             return;
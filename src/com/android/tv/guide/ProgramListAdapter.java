@@ -65,6 +65,25 @@ public class ProgramListAdapter extends RecyclerView.Adapter<ProgramListAdapter.
         }
     }
 
+    /**
+     * Notifies that the {@code removedCount} entries from {@code positionStart} are replaced
+     * with the {@code insertedCount} entries. The views of the other entries are kept as they
+     * are.
+     */
+    public void notifyTableEntriesChanged(int positionStart, int removedCount,
+            int insertedCount) {
+        int changedCount = Math.min(removedCount, insertedCount);
+        if (changedCount > 0) {
+            // Rebinds the views in place, instead of cross-fading them.
+            notifyItemRangeChanged(positionStart, changedCount, Boolean.TRUE);
+        }
+        if (removedCount > changedCount) {
+            notifyItemRangeRemoved(positionStart + changedCount, removedCount - changedCount);
+        } else if (insertedCount > changedCount) {
+            notifyItemRangeInserted(positionStart + changedCount, insertedCount - changedCount);
+        }
+    }
+
     public ProgramManager getProgramManager() {
         return mProgramManager;
     }
@@ -37,6 +37,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -181,6 +182,14 @@ public class ProgramManager {
     private List<Channel> mFilteredChannels = mChannels;
     private boolean mChannelDataLoaded;
 
+    // The range of mFilteredChannels which the program guide shows, or -1 if unknown.
+    private int mFirstVisibleChannelIndex = -1;
+    private int mLastVisibleChannelIndex = -1;
+    // The IDs of mWindowChannels, which is the last mFilteredChannels given to
+    // ProgramDataManager as the lineup.
+    private List<Channel> mWindowChannels;
+    private final List<Long> mWindowChannelIds = new ArrayList<>();
+
     private final Set<Listener> mListeners = new ArraySet<>();
     private final Set<TableEntriesUpdatedListener> mTableEntriesUpdatedListeners = new ArraySet<>();
 
@@ -224,6 +233,12 @@ public class ProgramManager {
                 public void onProgramUpdated() {
                     updateTableEntries(true);
                 }
+
+                @Override
+                public void onChannelProgramsUpdated(long channelId, long startUtcMillis,
+                        long endUtcMillis) {
+                    updateTableEntries(channelId, startUtcMillis, endUtcMillis);
+                }
             };
 
     private final DvrDataManager.ScheduledRecordingListener mScheduledRecordingListener =
@@ -309,6 +324,9 @@ public class ProgramManager {
                         mOnConflictStateChangeListener);
             }
         } else {
+            mFirstVisibleChannelIndex = -1;
+            mLastVisibleChannelIndex = -1;
+            mProgramDataManager.clearProgramGuideWindow();
             mChannelDataManager.removeListener(mChannelDataManagerListener);
             mProgramDataManager.removeListener(mProgramDataManagerListener);
             if (mDvrDataManager != null) {
@@ -483,27 +501,97 @@ public class ProgramManager {
                 mEndUtcMillis = lastEntry.entryEndUtcMillis;
             }
         }
-        if (mEndUtcMillis > mStartUtcMillis) {
-            for (Channel channel : mChannels) {
-                long channelId = channel.getId();
-                List<TableEntry> entries = mChannelIdEntriesMap.get(channelId);
-                if (entries.isEmpty()) {
-                    entries.add(new TableEntry(channelId, mStartUtcMillis, mEndUtcMillis));
-                } else {
-                    TableEntry lastEntry = entries.get(entries.size() - 1);
-                    if (mEndUtcMillis > lastEntry.entryEndUtcMillis) {
-                        entries.add(new TableEntry(channelId, lastEntry.entryEndUtcMillis,
-                                mEndUtcMillis));
-                    } else if (lastEntry.entryEndUtcMillis == Long.MAX_VALUE) {
-                        entries.remove(entries.size() - 1);
-                        entries.add(new TableEntry(lastEntry.channelId, lastEntry.program,
-                                lastEntry.scheduledRecording,
-                                lastEntry.entryStartUtcMillis, mEndUtcMillis,
-                                lastEntry.mIsBlocked));
-                    }
-                }
+        for (Channel channel : mChannels) {
+            long channelId = channel.getId();
+            fillEntriesToEndTime(channelId, mChannelIdEntriesMap.get(channelId));
+        }
+    }
+
+    /**
+     * Updates the table entries of a channel whose programs are changed in the given time range,
+     * and notifies the changed entries only. The table entries of the other channels are kept
+     * as they are.
+     */
+    private void updateTableEntries(long channelId, long startUtcMillis, long endUtcMillis) {
+        List<TableEntry> oldEntries = mChannelIdEntriesMap.get(channelId);
+        if (oldEntries == null || endUtcMillis <= mStartUtcMillis) {
+            // The channel isn't in the table, or the changed programs are not shown.
+            return;
+        }
+        List<TableEntry> entries = createProgramEntries(channelId,
+                mTvInputManagerHelper.getParentalControlSettings().isParentalControlsEnabled());
+        if (!entries.isEmpty()) {
+            TableEntry lastEntry = entries.get(entries.size() - 1);
+            if (mEndUtcMillis < lastEntry.entryEndUtcMillis
+                    && lastEntry.entryEndUtcMillis != Long.MAX_VALUE) {
+                // The end time of the table is extended, so all the rows need to be extended.
+                updateTableEntries(false);
+                return;
             }
         }
+        fillEntriesToEndTime(channelId, entries);
+
+        // Keeps the unchanged entries at the both ends, so that their views are not rebound.
+        int oldSize = oldEntries.size();
+        int newSize = entries.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && isSameEntry(oldEntries.get(start), entries.get(start))) {
+            entries.set(start, oldEntries.get(start));
+            ++start;
+        }
+        if (start == oldSize && start == newSize) {
+            return;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && isSameEntry(oldEntries.get(oldEnd - 1), entries.get(newEnd - 1))) {
+            entries.set(newEnd - 1, oldEntries.get(oldEnd - 1));
+            --oldEnd;
+            --newEnd;
+        }
+        mChannelIdEntriesMap.put(channelId, entries);
+        if (DEBUG) {
+            Log.d(TAG, "Table entries are updated for channel " + channelId + ": position="
+                    + start + ", removed=" + (oldEnd - start) + ", inserted="
+                    + (newEnd - start));
+        }
+        // Genre filters are built from the current programs, which are not changed by this.
+        notifyTableEntriesChanged(channelId, start, oldEnd - start, newEnd - start);
+    }
+
+    /**
+     * Adds a gap or extends the last entry, so that the entries end at {@code mEndUtcMillis}.
+     */
+    private void fillEntriesToEndTime(long channelId, List<TableEntry> entries) {
+        if (mEndUtcMillis <= mStartUtcMillis) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            entries.add(new TableEntry(channelId, mStartUtcMillis, mEndUtcMillis));
+        } else {
+            TableEntry lastEntry = entries.get(entries.size() - 1);
+            if (mEndUtcMillis > lastEntry.entryEndUtcMillis) {
+                entries.add(new TableEntry(channelId, lastEntry.entryEndUtcMillis,
+                        mEndUtcMillis));
+            } else if (lastEntry.entryEndUtcMillis == Long.MAX_VALUE) {
+                entries.remove(entries.size() - 1);
+                entries.add(new TableEntry(lastEntry.channelId, lastEntry.program,
+                        lastEntry.scheduledRecording,
+                        lastEntry.entryStartUtcMillis, mEndUtcMillis,
+                        lastEntry.mIsBlocked));
+            }
+        }
+    }
+
+    private static boolean isSameEntry(TableEntry entry, TableEntry other) {
+        return entry.channelId == other.channelId
+                && entry.entryStartUtcMillis == other.entryStartUtcMillis
+                && entry.entryEndUtcMillis == other.entryEndUtcMillis
+                && entry.mIsBlocked == other.mIsBlocked
+                && entry.scheduledRecording == other.scheduledRecording
+                && Objects.equals(entry.program, other.program);
     }
 
     private void notifyGenresUpdated() {
@@ -536,6 +624,13 @@ public class ProgramManager {
         }
     }
 
+    private void notifyTableEntriesChanged(long channelId, int positionStart, int removedCount,
+            int insertedCount) {
+        for (TableEntryChangedListener listener : mTableEntryChangedListeners) {
+            listener.onTableEntriesChanged(channelId, positionStart, removedCount, insertedCount);
+        }
+    }
+
     private void updateEntry(TableEntry old, TableEntry newEntry) {
         List<TableEntry> entries = mChannelIdEntriesMap.get(old.channelId);
         int index = entries.indexOf(old);
@@ -599,9 +694,39 @@ public class ProgramManager {
             mFromUtcMillis = fromUtcMillis;
             mToUtcMillis = toUtcMillis;
             notifyTimeRangeUpdated();
+            updateProgramGuideWindow();
+        }
+    }
+
+    /**
+     * Sets the range of the channel indices which the program guide shows, so that the programs
+     * around them are loaded first.
+     */
+    public void setVisibleChannelRange(int firstChannelIndex, int lastChannelIndex) {
+        if (mFirstVisibleChannelIndex != firstChannelIndex
+                || mLastVisibleChannelIndex != lastChannelIndex
+                || mWindowChannels != mFilteredChannels) {
+            mFirstVisibleChannelIndex = firstChannelIndex;
+            mLastVisibleChannelIndex = lastChannelIndex;
+            updateProgramGuideWindow();
         }
     }
 
+    private void updateProgramGuideWindow() {
+        if (mFirstVisibleChannelIndex < 0 || mToUtcMillis <= mFromUtcMillis) {
+            return;
+        }
+        if (mWindowChannels != mFilteredChannels) {
+            mWindowChannels = mFilteredChannels;
+            mWindowChannelIds.clear();
+            for (Channel channel : mFilteredChannels) {
+                mWindowChannelIds.add(channel.getId());
+            }
+        }
+        mProgramDataManager.setProgramGuideWindow(mWindowChannelIds, mFirstVisibleChannelIndex,
+                mLastVisibleChannelIndex, mFromUtcMillis, mToUtcMillis);
+    }
+
     /**
      * Returns the number of the currently managed channels.
      */
@@ -712,6 +837,14 @@ public class ProgramManager {
 
     public interface TableEntryChangedListener {
         void onTableEntryChanged(TableEntry entry);
+
+        /**
+         * Called when the table entries of a channel are changed. The {@code removedCount}
+         * entries from {@code positionStart} are replaced with the {@code insertedCount} entries,
+         * and the other entries of the channel are the same as before.
+         */
+        void onTableEntriesChanged(long channelId, int positionStart, int removedCount,
+                int insertedCount);
     }
 
     public static class ListenerAdapter implements Listener {
@@ -243,6 +243,23 @@ public class ProgramTableAdapter extends RecyclerView.Adapter<ProgramTableAdapte
         notifyItemChanged(channelIndex, true);
     }
 
+    @Override
+    public void onTableEntriesChanged(long channelId, int positionStart, int removedCount,
+            int insertedCount) {
+        int channelIndex = mProgramManager.getChannelIndex(channelId);
+        if (DEBUG) {
+            Log.d(TAG, "update(" + channelIndex + ", " + positionStart + ", " + removedCount
+                    + ", " + insertedCount + ")");
+        }
+        if (channelIndex < 0) {
+            // The channel is filtered out by the genre.
+            return;
+        }
+        mProgramListAdapters.get(channelIndex).notifyTableEntriesChanged(positionStart,
+                removedCount, insertedCount);
+        notifyItemChanged(channelIndex, true);
+    }
+
     // TODO: make it static
     public class ProgramRowHolder extends RecyclerView.ViewHolder
             implements ProgramRow.ChildFocusListener {
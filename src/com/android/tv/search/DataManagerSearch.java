@@ -23,32 +23,26 @@ import android.media.tv.TvContract;
 import android.media.tv.TvContract.Programs;
 import android.media.tv.TvInputManager;
 import android.os.SystemClock;
-import android.support.annotation.MainThread;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.tv.ApplicationSingletons;
-import com.android.tv.TvApplication;
-import com.android.tv.data.Channel;
 import com.android.tv.data.ChannelDataManager;
 import com.android.tv.data.Program;
 import com.android.tv.data.ProgramDataManager;
 import com.android.tv.search.LocalSearchProvider.SearchResult;
-import com.android.tv.util.MainThreadExecutor;
 import com.android.tv.util.Utils;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 /**
  * An implementation of {@link SearchInterface} to search query from {@link ChannelDataManager}
  * and {@link ProgramDataManager}.
+ *
+ * <p>The query is looked up in {@link SearchIndex}, which follows the data managers, so that the
+ * search doesn't need to wait for the main thread.
  */
 public class DataManagerSearch implements SearchInterface {
     private static final String TAG = "TvProviderSearch";
@@ -56,42 +50,18 @@ public class DataManagerSearch implements SearchInterface {
 
     private final Context mContext;
     private final TvInputManager mTvInputManager;
-    private final ChannelDataManager mChannelDataManager;
-    private final ProgramDataManager mProgramDataManager;
+    private final SearchIndex mSearchIndex;
 
     DataManagerSearch(Context context) {
         mContext = context;
         mTvInputManager = (TvInputManager) context.getSystemService(Context.TV_INPUT_SERVICE);
-        ApplicationSingletons appSingletons = TvApplication.getSingletons(context);
-        mChannelDataManager = appSingletons.getChannelDataManager();
-        mProgramDataManager = appSingletons.getProgramDataManager();
+        mSearchIndex = SearchIndex.getInstance(context);
     }
 
     @Override
-    public List<SearchResult> search(final String query, final int limit, final int action) {
-        Future<List<SearchResult>> future = MainThreadExecutor.getInstance()
-                .submit(new Callable<List<SearchResult>>() {
-                    @Override
-                    public List<SearchResult> call() throws Exception {
-                        return searchFromDataManagers(query, limit, action);
-                    }
-                });
-
-        try {
-            return future.get();
-        } catch (InterruptedException e) {
-            Thread.interrupted();
-            return Collections.EMPTY_LIST;
-        } catch (ExecutionException e) {
-            Log.w(TAG, "Error searching for " + query, e);
-            return Collections.EMPTY_LIST;
-        }
-    }
-
-    @MainThread
-    private List<SearchResult> searchFromDataManagers(String query, int limit, int action) {
+    public List<SearchResult> search(String query, int limit, int action) {
         List<SearchResult> results = new ArrayList<>();
-        if (!mChannelDataManager.isDbLoadFinished()) {
+        if (!mSearchIndex.isChannelsLoaded()) {
             return results;
         }
         if (action == ACTION_TYPE_SWITCH_CHANNEL
@@ -102,43 +72,23 @@ public class DataManagerSearch implements SearchInterface {
         if (DEBUG) Log.d(TAG, "Searching channels: '" + query + "'");
         long time = SystemClock.elapsedRealtime();
         Set<Long> channelsFound = new HashSet<>();
-        List<Channel> channelList = mChannelDataManager.getBrowsableChannelList();
-        query = query.toLowerCase();
+        boolean limitReached = false;
         if (TextUtils.isDigitsOnly(query)) {
-            for (Channel channel : channelList) {
-                if (channelsFound.contains(channel.getId())) {
-                    continue;
-                }
-                if (contains(channel.getDisplayNumber(), query)) {
-                    addResult(results, channelsFound, channel, null);
-                }
-                if (results.size() >= limit) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Found " + results.size() + " channels. Elapsed time for" +
-                                " searching channels: " + (SystemClock.elapsedRealtime() - time) +
-                                "(msec)");
-                    }
-                    return results;
-                }
-            }
+            limitReached = addResults(results, channelsFound,
+                    mSearchIndex.search(query, SearchIndex.FIELD_CHANNEL_NUMBER), false, limit);
             // TODO: recently watched channels may have higher priority.
         }
-        for (Channel channel : channelList) {
-            if (channelsFound.contains(channel.getId())) {
-                continue;
-            }
-            if (contains(channel.getDisplayName(), query)
-                    || contains(channel.getDescription(), query)) {
-                addResult(results, channelsFound, channel, null);
-            }
-            if (results.size() >= limit) {
-                if (DEBUG) {
-                    Log.d(TAG, "Found " + results.size() + " channels. Elapsed time for" +
-                            " searching channels: " + (SystemClock.elapsedRealtime() - time) +
-                            "(msec)");
-                }
-                return results;
+        if (!limitReached) {
+            limitReached = addResults(results, channelsFound,
+                    mSearchIndex.search(query, SearchIndex.FIELD_CHANNEL_NAME), false, limit);
+        }
+        if (limitReached) {
+            if (DEBUG) {
+                Log.d(TAG, "Found " + results.size() + " channels. Elapsed time for" +
+                        " searching channels: " + (SystemClock.elapsedRealtime() - time) +
+                        "(msec)");
             }
+            return results;
         }
         if (DEBUG) {
             Log.d(TAG, "Found " + results.size() + " channels. Elapsed time for" +
@@ -147,47 +97,11 @@ public class DataManagerSearch implements SearchInterface {
         int channelResult = results.size();
         if (DEBUG) Log.d(TAG, "Searching programs: '" + query + "'");
         time = SystemClock.elapsedRealtime();
-        for (Channel channel : channelList) {
-            if (channelsFound.contains(channel.getId())) {
-                continue;
-            }
-            Program program = mProgramDataManager.getCurrentProgram(channel.getId());
-            if (program == null) {
-                continue;
-            }
-            if (contains(program.getTitle(), query)
-                    && !isRatingBlocked(program.getContentRatings())) {
-                addResult(results, channelsFound, channel, program);
-            }
-            if (results.size() >= limit) {
-                if (DEBUG) {
-                    Log.d(TAG, "Found " + (results.size() - channelResult) + " programs. Elapsed" +
-                            " time for searching programs: " +
-                            (SystemClock.elapsedRealtime() - time) + "(msec)");
-                }
-                return results;
-            }
-        }
-        for (Channel channel : channelList) {
-            if (channelsFound.contains(channel.getId())) {
-                continue;
-            }
-            Program program = mProgramDataManager.getCurrentProgram(channel.getId());
-            if (program == null) {
-                continue;
-            }
-            if (contains(program.getDescription(), query)
-                    && !isRatingBlocked(program.getContentRatings())) {
-                addResult(results, channelsFound, channel, program);
-            }
-            if (results.size() >= limit) {
-                if (DEBUG) {
-                    Log.d(TAG, "Found " + (results.size() - channelResult) + " programs. Elapsed" +
-                            " time for searching programs: " +
-                            (SystemClock.elapsedRealtime() - time) + "(msec)");
-                }
-                return results;
-            }
+        if (!addResults(results, channelsFound,
+                mSearchIndex.search(query, SearchIndex.FIELD_PROGRAM_TITLE), true, limit)) {
+            addResults(results, channelsFound,
+                    mSearchIndex.search(query, SearchIndex.FIELD_PROGRAM_DESCRIPTION), true,
+                    limit);
         }
         if (DEBUG) {
             Log.d(TAG, "Found " + (results.size() - channelResult) + " programs. Elapsed time for" +
@@ -196,31 +110,48 @@ public class DataManagerSearch implements SearchInterface {
         return results;
     }
 
-    // It assumes that query is already lower cases.
-    private boolean contains(String string, String query) {
-        return string != null && string.toLowerCase().contains(query);
-    }
-
     /**
-     * If query is matched to channel, {@code program} should be null.
+     * Adds the results of {@code entries} which haven't been found yet.
+     *
+     * @param programMatched {@code true} if the query is matched to the programs of the entries.
+     *                       Then the entries whose program is blocked are skipped.
+     * @return {@code true} if {@code results} has reached {@code limit}.
      */
-    private void addResult(List<SearchResult> results, Set<Long> channelsFound, Channel channel,
-            Program program) {
-        if (program == null) {
-            program = mProgramDataManager.getCurrentProgram(channel.getId());
+    private boolean addResults(List<SearchResult> results, Set<Long> channelsFound,
+            List<SearchIndex.ChannelEntry> entries, boolean programMatched, int limit) {
+        for (SearchIndex.ChannelEntry entry : entries) {
+            if (results.size() >= limit) {
+                break;
+            }
+            if (channelsFound.contains(entry.channelId)) {
+                continue;
+            }
+            Program program = entry.program;
             if (program != null && isRatingBlocked(program.getContentRatings())) {
+                if (programMatched) {
+                    continue;
+                }
                 program = null;
             }
+            addResult(results, channelsFound, entry, program);
         }
+        return results.size() >= limit;
+    }
 
+    /**
+     * If query is matched to channel and the current program is blocked, {@code program} should
+     * be null.
+     */
+    private void addResult(List<SearchResult> results, Set<Long> channelsFound,
+            SearchIndex.ChannelEntry channel, Program program) {
         SearchResult result = new SearchResult();
 
-        long channelId = channel.getId();
+        long channelId = channel.channelId;
         result.channelId = channelId;
-        result.channelNumber = channel.getDisplayNumber();
+        result.channelNumber = channel.displayNumber;
         if (program == null) {
-            result.title = channel.getDisplayName();
-            result.description = channel.getDescription();
+            result.title = channel.displayName;
+            result.description = channel.description;
             result.imageUri = TvContract.buildChannelLogoUri(channelId).toString();
             result.intentAction = Intent.ACTION_VIEW;
             result.intentData = buildIntentData(channelId);
@@ -229,8 +160,8 @@ public class DataManagerSearch implements SearchInterface {
             result.progressPercentage = LocalSearchProvider.PROGRESS_PERCENTAGE_HIDE;
         } else {
             result.title = program.getTitle();
-            result.description = buildProgramDescription(channel.getDisplayNumber(),
-                    channel.getDisplayName(), program.getStartTimeUtcMillis(),
+            result.description = buildProgramDescription(channel.displayNumber,
+                    channel.displayName, program.getStartTimeUtcMillis(),
                     program.getEndTimeUtcMillis());
             result.imageUri = program.getPosterArtUri();
             result.intentAction = Intent.ACTION_VIEW;
@@ -247,7 +178,7 @@ public class DataManagerSearch implements SearchInterface {
             Log.d(TAG, "Add a result : channel=" + channel + " program=" + program);
         }
         results.add(result);
-        channelsFound.add(channel.getId());
+        channelsFound.add(channelId);
     }
 
     private String buildProgramDescription(String channelNumber, String channelName,
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.search;
+
+import android.content.Context;
+import android.support.annotation.MainThread;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tv.ApplicationSingletons;
+import com.android.tv.TvApplication;
+import com.android.tv.data.Channel;
+import com.android.tv.data.ChannelDataManager;
+import com.android.tv.data.OnCurrentProgramUpdatedListener;
+import com.android.tv.data.Program;
+import com.android.tv.data.ProgramDataManager;
+import com.android.tv.util.MainThreadExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An in-memory inverted index of the browsable channels and their current programs.
+ *
+ * <p>The index is updated on the main thread from the events of {@link ChannelDataManager} and
+ * {@link ProgramDataManager}, and can be queried from any thread, e.g. the binder thread of {@link LocalSearchProvider}. Texts are split into lower
+ * case tokens, and a query matches a field if every token of the query is a prefix of a token
+ * of the field.
+ */
+class SearchIndex {
+    private static final String TAG = "SearchIndex";
+    private static final boolean DEBUG = false;
+
+    /**
+     * The display number of a channel.
+     */
+    static final int FIELD_CHANNEL_NUMBER = 0;
+    /**
+     * The display name and the description of a channel.
+     */
+    static final int FIELD_CHANNEL_NAME = 1;
+    /**
+     * The title of the current program of a channel.
+     */
+    static final int FIELD_PROGRAM_TITLE = 2;
+    /**
+     * The description of the current program of a channel.
+     */
+    static final int FIELD_PROGRAM_DESCRIPTION = 3;
+    private static final int FIELD_COUNT = 4;
+
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    private static SearchIndex sInstance;
+
+    private final Object mLock = new Object();
+    // @GuardedBy("mLock")
+    private final Map<Long, ChannelEntry> mChannelEntries = new HashMap<>();
+    // @GuardedBy("mLock")
+    private final List<TreeMap<String, Set<Long>>> mFieldIndexes = new ArrayList<>();
+    // @GuardedBy("mLock")
+    private boolean mChannelsLoaded;
+
+    private volatile boolean mStarted;
+    private ChannelDataManager mChannelDataManager;
+    private ProgramDataManager mProgramDataManager;
+
+    private final ChannelDataManager.Listener mChannelDataManagerListener =
+            new ChannelDataManager.Listener() {
+                @Override
+                public void onLoadFinished() {
+                    updateChannelsFromDataManagers();
+                }
+
+                @Override
+                public void onChannelListUpdated() {
+                    updateChannelsFromDataManagers();
+                }
+
+                @Override
+                public void onChannelBrowsableChanged() {
+                    updateChannelsFromDataManagers();
+                }
+            };
+
+    private final OnCurrentProgramUpdatedListener mOnCurrentProgramUpdatedListener =
+            new OnCurrentProgramUpdatedListener() {
+                @Override
+                public void onCurrentProgramUpdated(long channelId, Program program) {
+                    updateProgram(channelId, program);
+                }
+            };
+
+    /**
+     * Returns the application wide instance of the index. The index starts following the data
+     * managers on the first call, which creates the application singletons if they don't exist
+     * yet, i.e. the data managers start loading the channels and the programs. The first call
+     * from a thread other than the main thread, e.g. the binder thread of
+     * {@link LocalSearchProvider}, blocks until the main thread has attached the index, which can
+     * take as long as the main thread is busy. The searches which don't need the data managers,
+     * e.g. {@link TvProviderSearch}, shouldn't call this.
+     */
+    static SearchIndex getInstance(final Context context) {
+        final SearchIndex index;
+        synchronized (SearchIndex.class) {
+            if (sInstance == null) {
+                sInstance = new SearchIndex();
+            }
+            index = sInstance;
+        }
+        if (index.mStarted) {
+            return index;
+        }
+        try {
+            MainThreadExecutor.getInstance().submit(new Runnable() {
+                @Override
+                public void run() {
+                    index.start(TvApplication.getSingletons(context));
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to start the search index", e);
+        }
+        return index;
+    }
+
+    @VisibleForTesting
+    SearchIndex() {
+        for (int i = 0; i < FIELD_COUNT; ++i) {
+            mFieldIndexes.add(new TreeMap<String, Set<Long>>());
+        }
+    }
+
+    @MainThread
+    private void start(ApplicationSingletons appSingletons) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mChannelDataManager = appSingletons.getChannelDataManager();
+        mProgramDataManager = appSingletons.getProgramDataManager();
+        mChannelDataManager.addListener(mChannelDataManagerListener);
+        mProgramDataManager.addOnCurrentProgramUpdatedListener(Channel.INVALID_ID,
+                mOnCurrentProgramUpdatedListener);
+        if (mChannelDataManager.isDbLoadFinished()) {
+            updateChannelsFromDataManagers();
+        }
+    }
+
+    @MainThread
+    private void updateChannelsFromDataManagers() {
+        long time = System.currentTimeMillis();
+        List<Channel> channels = mChannelDataManager.getBrowsableChannelList();
+        updateChannels(channels);
+        for (Channel channel : channels) {
+            updateProgram(channel.getId(), mProgramDataManager.getCurrentProgram(channel.getId()));
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Indexed " + channels.size() + " channels in "
+                    + (System.currentTimeMillis() - time) + "ms");
+        }
+    }
+
+    /**
+     * Replaces the indexed channels with {@code channels} in the given order. Only the channels
+     * whose number, name or description has changed are tokenized again, and the current
+     * programs of the remaining channels are kept.
+     */
+    void updateChannels(List<Channel> channels) {
+        synchronized (mLock) {
+            Map<Long, ChannelEntry> oldEntries = new HashMap<>(mChannelEntries);
+            mChannelEntries.clear();
+            int position = 0;
+            for (Channel channel : channels) {
+                long channelId = channel.getId();
+                ChannelEntry oldEntry = oldEntries.remove(channelId);
+                ChannelEntry entry;
+                if (oldEntry != null && oldEntry.hasSameChannelInfo(channel)) {
+                    entry = new ChannelEntry(oldEntry, position, oldEntry.program,
+                            oldEntry.tokens[FIELD_PROGRAM_TITLE],
+                            oldEntry.tokens[FIELD_PROGRAM_DESCRIPTION]);
+                } else {
+                    entry = new ChannelEntry(channel, position, oldEntry);
+                    if (oldEntry != null) {
+                        removeTokensLocked(channelId, oldEntry, FIELD_CHANNEL_NUMBER);
+                        removeTokensLocked(channelId, oldEntry, FIELD_CHANNEL_NAME);
+                    }
+                    addTokensLocked(channelId, entry, FIELD_CHANNEL_NUMBER);
+                    addTokensLocked(channelId, entry, FIELD_CHANNEL_NAME);
+                }
+                mChannelEntries.put(channelId, entry);
+                ++position;
+            }
+            for (ChannelEntry oldEntry : oldEntries.values()) {
+                for (int field = 0; field < FIELD_COUNT; ++field) {
+                    removeTokensLocked(oldEntry.channelId, oldEntry, field);
+                }
+            }
+            mChannelsLoaded = true;
+        }
+    }
+
+    /**
+     * Updates the current program of a channel. It's ignored if the channel is not indexed.
+     */
+    void updateProgram(long channelId, Program program) {
+        synchronized (mLock) {
+            ChannelEntry oldEntry = mChannelEntries.get(channelId);
+            if (oldEntry == null || oldEntry.program == program) {
+                return;
+            }
+            String title = program == null ? null : program.getTitle();
+            String description = program == null ? null : program.getDescription();
+            String[] titleTokens = oldEntry.tokens[FIELD_PROGRAM_TITLE];
+            String[] descriptionTokens = oldEntry.tokens[FIELD_PROGRAM_DESCRIPTION];
+            boolean titleChanged = oldEntry.program == null
+                    || !TextUtils.equals(oldEntry.program.getTitle(), title);
+            boolean descriptionChanged = oldEntry.program == null
+                    || !TextUtils.equals(oldEntry.program.getDescription(), description);
+            if (titleChanged) {
+                removeTokensLocked(channelId, oldEntry, FIELD_PROGRAM_TITLE);
+                titleTokens = tokenize(title);
+            }
+            if (descriptionChanged) {
+                removeTokensLocked(channelId, oldEntry, FIELD_PROGRAM_DESCRIPTION);
+                descriptionTokens = tokenize(description);
+            }
+            ChannelEntry entry = new ChannelEntry(oldEntry, oldEntry.position, program,
+                    titleTokens, descriptionTokens);
+            if (titleChanged) {
+                addTokensLocked(channelId, entry, FIELD_PROGRAM_TITLE);
+            }
+            if (descriptionChanged) {
+                addTokensLocked(channelId, entry, FIELD_PROGRAM_DESCRIPTION);
+            }
+            mChannelEntries.put(channelId, entry);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the channel list has been indexed at least once.
+     */
+    boolean isChannelsLoaded() {
+        synchronized (mLock) {
+            return mChannelsLoaded;
+        }
+    }
+
+    /**
+     * Returns the channels whose {@code field} matches {@code query}, in the channel list order.
+     *
+     * @param field One of {@link #FIELD_CHANNEL_NUMBER}, {@link #FIELD_CHANNEL_NAME},
+     *              {@link #FIELD_PROGRAM_TITLE} or {@link #FIELD_PROGRAM_DESCRIPTION}.
+     */
+    List<ChannelEntry> search(String query, int field) {
+        String[] queryTokens = tokenize(query);
+        if (queryTokens.length == 0) {
+            return Collections.emptyList();
+        }
+        List<ChannelEntry> results = new ArrayList<>();
+        synchronized (mLock) {
+            Set<Long> channelIds = find(mFieldIndexes.get(field), queryTokens);
+            for (Long channelId : channelIds) {
+                results.add(mChannelEntries.get(channelId));
+            }
+        }
+        Collections.sort(results, new Comparator<ChannelEntry>() {
+            @Override
+            public int compare(ChannelEntry lhs, ChannelEntry rhs) {
+                return Integer.compare(lhs.position, rhs.position);
+            }
+        });
+        return results;
+    }
+
+    // Returns the IDs which have a token starting with each of the query tokens.
+    private static <T> Set<T> find(TreeMap<String, Set<T>> index, String[] queryTokens) {
+        Set<T> results = null;
+        for (String queryToken : queryTokens) {
+            Set<T> ids = new HashSet<>();
+            for (Set<T> tokenIds : index.subMap(queryToken, true,
+                    queryToken + Character.MAX_VALUE, false).values()) {
+                ids.addAll(tokenIds);
+            }
+            if (results == null) {
+                results = ids;
+            } else {
+                results.retainAll(ids);
+            }
+            if (results.isEmpty()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private void addTokensLocked(long channelId, ChannelEntry entry, int field) {
+        TreeMap<String, Set<Long>> index = mFieldIndexes.get(field);
+        for (String token : entry.tokens[field]) {
+            Set<Long> channelIds = index.get(token);
+            if (channelIds == null) {
+                channelIds = new HashSet<>();
+                index.put(token, channelIds);
+            }
+            channelIds.add(channelId);
+        }
+    }
+
+    private void removeTokensLocked(long channelId, ChannelEntry entry, int field) {
+        removeTokens(mFieldIndexes.get(field), Arrays.asList(entry.tokens[field]), channelId);
+    }
+
+    private static <T> void removeTokens(TreeMap<String, Set<T>> index, List<String> tokens,
+            T id) {
+        for (String token : tokens) {
+            Set<T> ids = index.get(token);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                index.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Splits {@code text} into distinct lower case tokens of letters and digits.
+     */
+    @VisibleForTesting
+    static String[] tokenize(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return EMPTY_TOKENS;
+        }
+        Set<String> tokens = new LinkedHashSet<>();
+        String lowerCaseText = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lowerCaseText.length(); ++i) {
+            if (i < lowerCaseText.length() && Character.isLetterOrDigit(lowerCaseText.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(lowerCaseText.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    // Tokens of a channel number such as "7-1" also include the number without the separators so
+    // that "71" matches it.
+    private static String[] tokenizeChannelNumber(String displayNumber) {
+        String[] tokens = tokenize(displayNumber);
+        if (tokens.length <= 1) {
+            return tokens;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            sb.append(token);
+        }
+        String[] result = Arrays.copyOf(tokens, tokens.length + 1);
+        result[tokens.length] = sb.toString();
+        return result;
+    }
+
+    private static String[] concat(String[] lhs, String[] rhs) {
+        Set<String> tokens = new LinkedHashSet<>(Arrays.asList(lhs));
+        tokens.addAll(Arrays.asList(rhs));
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * An immutable snapshot of an indexed channel and its current program.
+     */
+    static final class ChannelEntry {
+        final long channelId;
+        final String displayNumber;
+        final String displayName;
+        final String description;
+        /**
+         * The position of the channel in the browsable channel list.
+         */
+        final int position;
+        /**
+         * The current program of the channel, or {@code null} if it's unknown.
+         */
+        final Program program;
+        private final String[][] tokens = new String[FIELD_COUNT][];
+
+        // Keeps the program of the old entry if any.
+        private ChannelEntry(Channel channel, int position, ChannelEntry oldEntry) {
+            channelId = channel.getId();
+            displayNumber = channel.getDisplayNumber();
+            displayName = channel.getDisplayName();
+            description = channel.getDescription();
+            this.position = position;
+            tokens[FIELD_CHANNEL_NUMBER] = tokenizeChannelNumber(displayNumber);
+            tokens[FIELD_CHANNEL_NAME] = concat(tokenize(displayName), tokenize(description));
+            if (oldEntry == null) {
+                program = null;
+                tokens[FIELD_PROGRAM_TITLE] = EMPTY_TOKENS;
+                tokens[FIELD_PROGRAM_DESCRIPTION] = EMPTY_TOKENS;
+            } else {
+                program = oldEntry.program;
+                tokens[FIELD_PROGRAM_TITLE] = oldEntry.tokens[FIELD_PROGRAM_TITLE];
+                tokens[FIELD_PROGRAM_DESCRIPTION] = oldEntry.tokens[FIELD_PROGRAM_DESCRIPTION];
+            }
+        }
+
+        private ChannelEntry(ChannelEntry channelEntry, int position, Program program,
+                String[] titleTokens, String[] descriptionTokens) {
+            channelId = channelEntry.channelId;
+            displayNumber = channelEntry.displayNumber;
+            displayName = channelEntry.displayName;
+            description = channelEntry.description;
+            this.position = position;
+            this.program = program;
+            tokens[FIELD_CHANNEL_NUMBER] = channelEntry.tokens[FIELD_CHANNEL_NUMBER];
+            tokens[FIELD_CHANNEL_NAME] = channelEntry.tokens[FIELD_CHANNEL_NAME];
+            tokens[FIELD_PROGRAM_TITLE] = titleTokens;
+            tokens[FIELD_PROGRAM_DESCRIPTION] = descriptionTokens;
+        }
+
+        private boolean hasSameChannelInfo(Channel channel) {
+            return TextUtils.equals(displayNumber, channel.getDisplayNumber())
+                    && TextUtils.equals(displayName, channel.getDisplayName())
+                    && TextUtils.equals(description, channel.getDescription());
+        }
+
+        @Override
+        public String toString() {
+            return "ChannelEntry{channelId=" + channelId + ", displayNumber=" + displayNumber
+                    + ", displayName=" + displayName + ", position=" + position
+                    + ", program=" + program + "}";
+        }
+    }
+}
@@ -58,6 +58,9 @@ public class TvProviderSearch implements SearchInterface {
     private static final String TAG = "TvProviderSearch";
     private static final boolean DEBUG = false;
 
+    // The number of the program candidates whose channels are checked in a query.
+    private static final int PROGRAM_CHANNEL_BATCH_SIZE = 50;
+
     private static final int NO_LIMIT = 0;
 
     private final Context mContext;
@@ -167,7 +170,7 @@ public class TvProviderSearch implements SearchInterface {
             results.addAll(searchChannels(query, new String[] { Channels.COLUMN_DISPLAY_NUMBER },
                     null, channels, NO_LIMIT));
             if (results.size() > 1) {
-                Collections.sort(results, new ChannelComparatorWithSameDisplayNumber());
+                Collections.sort(results, new ChannelComparatorWithSameDisplayNumber(results));
             }
         }
         if (results.size() < limit) {
@@ -344,12 +347,13 @@ public class TvProviderSearch implements SearchInterface {
         insertSelectionArgumentStrings(selectionArgs, 2, query, columnForExactMatching,
                 columnForPartialMatching);
 
+        // The channels of the candidates are checked in batches, until enough programs are found.
         List<SearchResult> searchResults = new ArrayList<>();
-
+        List<SearchResult> candidates = new ArrayList<>();
+        List<long[]> candidateTimes = new ArrayList<>();
         try (Cursor c = mContentResolver.query(Programs.CONTENT_URI, projection, selection,
                 selectionArgs, null)) {
             if (c != null) {
-                int count = 0;
                 while (c.moveToNext()) {
                     long id = c.getLong(0);
                     // Filter out the program whose channel is already searched.
@@ -357,53 +361,42 @@ public class TvProviderSearch implements SearchInterface {
                         continue;
                     }
                     channelsFound.add(id);
-
-                    // Don't know whether the channel is searchable or not.
-                    String[] channelProjection = {
-                            Channels._ID,
-                            Channels.COLUMN_DISPLAY_NUMBER,
-                            Channels.COLUMN_DISPLAY_NAME
-                    };
-                    sb = new StringBuilder();
-                    sb.append(Channels._ID).append("=? AND ")
-                            .append(Channels.COLUMN_BROWSABLE).append("=1 AND ")
-                            .append(Channels.COLUMN_SEARCHABLE).append("=1");
-                    if (mTvInputManager.isParentalControlsEnabled()) {
-                        sb.append(" AND ").append(Channels.COLUMN_LOCKED).append("=0");
+                    if (isRatingBlocked(c.getString(3))) {
+                        continue;
                     }
-                    String selectionChannel = sb.toString();
-                    try (Cursor cChannel = mContentResolver.query(Channels.CONTENT_URI,
-                            channelProjection, selectionChannel,
-                            new String[] { String.valueOf(id) }, null)) {
-                        if (cChannel != null && cChannel.moveToNext()
-                                && !isRatingBlocked(c.getString(3))) {
-                            long startUtcMillis = c.getLong(6);
-                            long endUtcMillis = c.getLong(7);
-                            SearchResult result = new SearchResult();
-                            result.channelId = c.getLong(0);
-                            result.title = c.getString(1);
-                            result.description = buildProgramDescription(cChannel.getString(1),
-                                    cChannel.getString(2), startUtcMillis, endUtcMillis);
-                            result.imageUri = c.getString(2);
-                            result.intentAction = Intent.ACTION_VIEW;
-                            result.intentData = buildIntentData(id);
-                            result.contentType = Programs.CONTENT_ITEM_TYPE;
-                            result.isLive = true;
-                            result.videoWidth = c.getInt(4);
-                            result.videoHeight = c.getInt(5);
-                            result.duration = endUtcMillis - startUtcMillis;
-                            result.progressPercentage = getProgressPercentage(startUtcMillis,
-                                    endUtcMillis);
-                            searchResults.add(result);
-
-                            if (limit != NO_LIMIT && ++count >= limit) {
-                                break;
-                            }
+
+                    long startUtcMillis = c.getLong(6);
+                    long endUtcMillis = c.getLong(7);
+                    SearchResult result = new SearchResult();
+                    result.channelId = id;
+                    result.title = c.getString(1);
+                    result.imageUri = c.getString(2);
+                    result.intentAction = Intent.ACTION_VIEW;
+                    result.intentData = buildIntentData(id);
+                    result.contentType = Programs.CONTENT_ITEM_TYPE;
+                    result.isLive = true;
+                    result.videoWidth = c.getInt(4);
+                    result.videoHeight = c.getInt(5);
+                    result.duration = endUtcMillis - startUtcMillis;
+                    result.progressPercentage = getProgressPercentage(startUtcMillis,
+                            endUtcMillis);
+                    candidates.add(result);
+                    candidateTimes.add(new long[] { startUtcMillis, endUtcMillis });
+                    if (candidates.size() >= PROGRAM_CHANNEL_BATCH_SIZE) {
+                        addProgramsOfSearchableChannels(candidates, candidateTimes,
+                                searchResults, limit);
+                        candidates.clear();
+                        candidateTimes.clear();
+                        if (limit != NO_LIMIT && searchResults.size() >= limit) {
+                            break;
                         }
                     }
                 }
             }
         }
+        if (!candidates.isEmpty()) {
+            addProgramsOfSearchableChannels(candidates, candidateTimes, searchResults, limit);
+        }
         if (DEBUG) {
             Log.d(TAG, "Found " + searchResults.size() + " programs. Elapsed time for searching" +
                     " programs: " + (SystemClock.elapsedRealtime() - time) + "(msec)");
@@ -411,6 +404,59 @@ public class TvProviderSearch implements SearchInterface {
         return searchResults;
     }
 
+    /**
+     * Adds the program candidates whose channels are searchable to {@code searchResults} until
+     * it has {@code limit} results. The channels are checked in one query.
+     */
+    @WorkerThread
+    private void addProgramsOfSearchableChannels(List<SearchResult> candidates,
+            List<long[]> candidateTimes, List<SearchResult> searchResults, int limit) {
+        // Don't know whether the channels are searchable or not.
+        String[] channelProjection = {
+                Channels._ID,
+                Channels.COLUMN_DISPLAY_NUMBER,
+                Channels.COLUMN_DISPLAY_NAME
+        };
+        StringBuilder sb = new StringBuilder();
+        sb.append(Channels.COLUMN_BROWSABLE).append("=1 AND ")
+                .append(Channels.COLUMN_SEARCHABLE).append("=1");
+        if (mTvInputManager.isParentalControlsEnabled()) {
+            sb.append(" AND ").append(Channels.COLUMN_LOCKED).append("=0");
+        }
+        sb.append(" AND ").append(Channels._ID).append(" IN (");
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(candidates.get(i).channelId);
+        }
+        sb.append(")");
+        Map<Long, String[]> channelInfoMap = new HashMap<>();
+        try (Cursor c = mContentResolver.query(Channels.CONTENT_URI, channelProjection,
+                sb.toString(), null, null)) {
+            if (c != null) {
+                while (c.moveToNext()) {
+                    channelInfoMap.put(c.getLong(0),
+                            new String[] { c.getString(1), c.getString(2) });
+                }
+            }
+        }
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (limit != NO_LIMIT && searchResults.size() >= limit) {
+                return;
+            }
+            SearchResult result = candidates.get(i);
+            String[] channelInfo = channelInfoMap.get(result.channelId);
+            if (channelInfo == null) {
+                continue;
+            }
+            long[] times = candidateTimes.get(i);
+            result.description = buildProgramDescription(channelInfo[0], channelInfo[1],
+                    times[0], times[1]);
+            searchResults.add(result);
+        }
+    }
+
     private String buildIntentData(long channelId) {
         return TvContract.buildChannelUri(channelId).toString();
     }
@@ -495,41 +541,49 @@ public class TvProviderSearch implements SearchInterface {
     private class ChannelComparatorWithSameDisplayNumber implements Comparator<SearchResult> {
         private final Map<Long, Long> mMaxWatchStartTimeMap = new HashMap<>();
 
+        /**
+         * Loads the last watch start times of the channels of {@code results} in one query.
+         */
+        ChannelComparatorWithSameDisplayNumber(List<SearchResult> results) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(WatchedPrograms.COLUMN_CHANNEL_ID).append(" IN (");
+            for (int i = 0; i < results.size(); ++i) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(results.get(i).channelId);
+                mMaxWatchStartTimeMap.put(results.get(i).channelId, -1L);
+            }
+            sb.append(")");
+            String[] projections = new String[] {
+                    WatchedPrograms.COLUMN_CHANNEL_ID,
+                    WatchedPrograms.COLUMN_START_TIME_UTC_MILLIS
+            };
+            try (Cursor c = mContentResolver.query(WatchedPrograms.CONTENT_URI, projections,
+                    sb.toString(), null, null)) {
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        long channelId = c.getLong(0);
+                        long watchStartTime = c.getLong(1);
+                        Long maxWatchStartTime = mMaxWatchStartTimeMap.get(channelId);
+                        if (maxWatchStartTime == null || watchStartTime > maxWatchStartTime) {
+                            mMaxWatchStartTimeMap.put(channelId, watchStartTime);
+                        }
+                    }
+                }
+            }
+        }
+
         @Override
         public int compare(SearchResult lhs, SearchResult rhs) {
             // Show recently watched channel first
             Long lhsMaxWatchStartTime = mMaxWatchStartTimeMap.get(lhs.channelId);
-            if (lhsMaxWatchStartTime == null) {
-                lhsMaxWatchStartTime = getMaxWatchStartTime(lhs.channelId);
-                mMaxWatchStartTimeMap.put(lhs.channelId, lhsMaxWatchStartTime);
-            }
             Long rhsMaxWatchStartTime = mMaxWatchStartTimeMap.get(rhs.channelId);
-            if (rhsMaxWatchStartTime == null) {
-                rhsMaxWatchStartTime = getMaxWatchStartTime(rhs.channelId);
-                mMaxWatchStartTimeMap.put(rhs.channelId, rhsMaxWatchStartTime);
-            }
             if (!Objects.equals(lhsMaxWatchStartTime, rhsMaxWatchStartTime)) {
                 return Long.compare(rhsMaxWatchStartTime, lhsMaxWatchStartTime);
             }
             // Show recently added channel first if there's no watch history.
             return Long.compare(rhs.channelId, lhs.channelId);
         }
-
-        private long getMaxWatchStartTime(long channelId) {
-            Uri uri = WatchedPrograms.CONTENT_URI;
-            String[] projections = new String[] {
-                    "MAX(" + WatchedPrograms.COLUMN_START_TIME_UTC_MILLIS
-                    + ") AS max_watch_start_time"
-            };
-            String selection = WatchedPrograms.COLUMN_CHANNEL_ID + "=?";
-            String[] selectionArgs = new String[] { Long.toString(channelId) };
-            try (Cursor c = mContentResolver.query(uri, projections, selection, selectionArgs,
-                    null)) {
-                if (c != null && c.moveToNext()) {
-                    return c.getLong(0);
-                }
-            }
-            return -1;
-        }
     }
 }
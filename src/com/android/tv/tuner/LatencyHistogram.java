@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, whose buckets are powers of two. Latencies can be
+ * added and the percentiles can be read from different threads without locking.
+ */
+public class LatencyHistogram {
+    // Bucket i holds latencies in [2^(i-1), 2^i) microseconds, and bucket 0 holds 0.
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * Adds a latency.
+     */
+    public void add(long latencyUs) {
+        if (latencyUs < 0) {
+            latencyUs = 0;
+        }
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(latencyUs), BUCKET_COUNT - 1);
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        long max;
+        while (latencyUs > (max = mMaxUs.get()) && !mMaxUs.compareAndSet(max, latencyUs)) { }
+    }
+
+    /**
+     * Returns the number of the added latencies.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the largest added latency.
+     */
+    public long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    /**
+     * Returns an upper bound of the given percentile of the added latencies, which is at most
+     * twice of the exact value, or {@code 0} if no latency is added.
+     *
+     * @param percentile the percentile in [0, 100]
+     */
+    public long getPercentileUs(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            accumulated += buckets[i];
+            if (accumulated >= rank && buckets[i] > 0) {
+                // The upper bound of the bucket, which is not larger than the max.
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, getMaxUs());
+            }
+        }
+        return getMaxUs();
+    }
+
+    /**
+     * Removes all the added latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mMaxUs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", p50=" + getPercentileUs(50) + "us, p90="
+                + getPercentileUs(90) + "us, p99=" + getPercentileUs(99) + "us, max="
+                + getMaxUs() + "us";
+    }
+}
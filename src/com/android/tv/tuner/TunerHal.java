@@ -17,6 +17,7 @@
 package com.android.tv.tuner;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.IntDef;
 import android.support.annotation.StringDef;
 import android.util.Log;
@@ -24,9 +25,14 @@ import android.util.Pair;
 
 import com.android.tv.Features;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A base class to handle a hardware tuner device.
@@ -62,6 +68,16 @@ public abstract class TunerHal implements AutoCloseable {
     private int mFrequency;
     private String mModulation;
 
+    // The number of operations which are waiting for a blocking readTsStream() to return.
+    private final AtomicInteger mPendingOperations = new AtomicInteger();
+    private final Object mPendingOperationsLock = new Object();
+    // A pipe to wake up a blocking readTsStream(). The native side polls the read end together
+    // with the DVR device.
+    private volatile ParcelFileDescriptor[] mWakeUpPipe;
+    private FileOutputStream mWakeUpOutputStream;
+    // Keeps at most one byte pending in the wake-up pipe.
+    private final AtomicBoolean mWakeUpPending = new AtomicBoolean();
+
     static {
         System.loadLibrary("tunertvinput_jni");
     }
@@ -149,7 +165,16 @@ public abstract class TunerHal implements AutoCloseable {
      *        may use channelNumber instead of frequency for tune.
      * @return {@code true} if the operation was successful, {@code false} otherwise
      */
-    public synchronized boolean tune(int frequency, @ModulationType String modulation,
+    public boolean tune(int frequency, @ModulationType String modulation, String channelNumber) {
+        beginOperation();
+        try {
+            return doTune(frequency, modulation, channelNumber);
+        } finally {
+            endOperation();
+        }
+    }
+
+    private synchronized boolean doTune(int frequency, @ModulationType String modulation,
             String channelNumber) {
         if (!isDeviceOpen()) {
             Log.e(TAG, "There's no available device");
@@ -191,7 +216,16 @@ public abstract class TunerHal implements AutoCloseable {
      * @param filterType a type of pid. Must be one of (FILTER_TYPE_XXX)
      * @return {@code true} if the operation was successful, {@code false} otherwise
      */
-    public synchronized boolean addPidFilter(int pid, @FilterType int filterType) {
+    public boolean addPidFilter(int pid, @FilterType int filterType) {
+        beginOperation();
+        try {
+            return doAddPidFilter(pid, filterType);
+        } finally {
+            endOperation();
+        }
+    }
+
+    private synchronized boolean doAddPidFilter(int pid, @FilterType int filterType) {
         if (!isDeviceOpen()) {
             Log.e(TAG, "There's no available device");
             return false;
@@ -211,7 +245,16 @@ public abstract class TunerHal implements AutoCloseable {
      * Stops current tuning. The tuner device and pid filters will be reset by this call and make
      * the tuner ready to accept another tune request.
      */
-    public synchronized void stopTune() {
+    public void stopTune() {
+        beginOperation();
+        try {
+            doStopTune();
+        } finally {
+            endOperation();
+        }
+    }
+
+    private synchronized void doStopTune() {
         if (isDeviceOpen()) {
             if (mIsStreaming) {
                 nativeCloseAllPidFilters(getDeviceId());
@@ -250,6 +293,173 @@ public abstract class TunerHal implements AutoCloseable {
 
     protected native int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * Blocking version of {@link #readTsStream(byte[], int)}. Waits until TS frames are
+     * available from the tuner device instead of returning after a short fixed timeout, so that
+     * the caller does not need to sleep and retry when nothing has been read. The wait can be
+     * cut short by {@link #interruptReadTsStream}, which {@link #tune}, {@link #addPidFilter}
+     * and {@link #stopTune} also do implicitly.
+     *
+     * @param javaBuffer a buffer to write the video data in
+     * @param javaBufferSize the max amount of bytes to write in this buffer
+     * @param timeoutMs the max time to wait for TS frames
+     * @return the amount of bytes written in the buffer, {@code 0} if no frames have been
+     *         obtained within {@code timeoutMs} or the wait has been interrupted, or a negative
+     *         value on an error
+     */
+    public int readTsStream(byte[] javaBuffer, int javaBufferSize, int timeoutMs) {
+        waitForPendingOperations(timeoutMs);
+        synchronized (this) {
+            if (!isDeviceOpen()) {
+                return -1;
+            }
+            int wakeUpFd = prepareBlockingRead();
+            return nativeReadTsStream(getDeviceId(), javaBuffer, javaBufferSize,
+                    wakeUpFd >= 0 ? timeoutMs : 0, wakeUpFd);
+        }
+    }
+
+    /**
+     * Same as {@link #readTsStream(byte[], int, int)}, but the native side reads TS frames from
+     * the tuner device straight into {@code buffer} without an intermediate copy. The frames are
+     * written from the position of {@code buffer} up to its limit, and the position is advanced
+     * by the amount of bytes written. {@code buffer} can be a direct buffer, or a buffer backed by
+     * an array such as a slot in a ring buffer.
+     *
+     * @param buffer a buffer to write the video data in
+     * @param timeoutMs the max time to wait for TS frames
+     * @return the amount of bytes written in the buffer, {@code 0} if no frames have been
+     *         obtained within {@code timeoutMs} or the wait has been interrupted, or a negative
+     *         value on an error
+     */
+    public int readTsStream(ByteBuffer buffer, int timeoutMs) {
+        waitForPendingOperations(timeoutMs);
+        synchronized (this) {
+            if (!isDeviceOpen()) {
+                return -1;
+            }
+            int wakeUpFd = prepareBlockingRead();
+            if (wakeUpFd < 0) {
+                timeoutMs = 0;
+            }
+            int position = buffer.position();
+            int ret;
+            if (buffer.isDirect()) {
+                ret = nativeReadTsStreamToBuffer(getDeviceId(), buffer, null, position,
+                        buffer.remaining(), timeoutMs, wakeUpFd);
+            } else {
+                ret = nativeReadTsStreamToBuffer(getDeviceId(), null, buffer.array(),
+                        buffer.arrayOffset() + position, buffer.remaining(), timeoutMs, wakeUpFd);
+            }
+            if (ret > 0) {
+                buffer.position(position + ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Wakes up the thread which is blocked in {@link #readTsStream(byte[], int, int)} or
+     * {@link #readTsStream(ByteBuffer, int)}.
+     */
+    public void interruptReadTsStream() {
+        if (mWakeUpPipe == null || !mWakeUpPending.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (mPendingOperationsLock) {
+            if (mWakeUpOutputStream != null) {
+                try {
+                    mWakeUpOutputStream.write(0);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to wake up readTsStream", e);
+                }
+            }
+        }
+    }
+
+    protected native int nativeReadTsStream(long deviceId, byte[] javaBuffer, int javaBufferSize,
+            int timeoutMs, int wakeUpFd);
+
+    protected native int nativeReadTsStreamToBuffer(long deviceId, ByteBuffer directBuffer,
+            byte[] javaBuffer, int offset, int length, int timeoutMs, int wakeUpFd);
+
+    /**
+     * Releases the resources used by {@link #readTsStream(byte[], int, int)}. Should be called
+     * when the tuner device is closed.
+     */
+    protected void releaseReadTsStream() {
+        synchronized (mPendingOperationsLock) {
+            ParcelFileDescriptor[] wakeUpPipe = mWakeUpPipe;
+            mWakeUpPipe = null;
+            mWakeUpOutputStream = null;
+            if (wakeUpPipe != null) {
+                try {
+                    wakeUpPipe[0].close();
+                    wakeUpPipe[1].close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close wake-up pipe", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the fd to be polled for wake-ups by a blocking read, or {@code -1} if the read
+     * should not block. Should be called with the lock of this object held.
+     */
+    private int prepareBlockingRead() {
+        ParcelFileDescriptor wakeUpFd = getWakeUpFd();
+        if (wakeUpFd == null || mPendingOperations.get() > 0) {
+            // Do not block the pending operations.
+            return -1;
+        }
+        mWakeUpPending.set(false);
+        return wakeUpFd.getFd();
+    }
+
+    private ParcelFileDescriptor getWakeUpFd() {
+        synchronized (mPendingOperationsLock) {
+            if (mWakeUpPipe == null) {
+                try {
+                    ParcelFileDescriptor[] wakeUpPipe = ParcelFileDescriptor.createPipe();
+                    mWakeUpOutputStream = new FileOutputStream(wakeUpPipe[1].getFileDescriptor());
+                    mWakeUpPipe = wakeUpPipe;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to create wake-up pipe", e);
+                    return null;
+                }
+            }
+            return mWakeUpPipe[0];
+        }
+    }
+
+    private void beginOperation() {
+        mPendingOperations.incrementAndGet();
+        interruptReadTsStream();
+    }
+
+    private void endOperation() {
+        if (mPendingOperations.decrementAndGet() == 0) {
+            synchronized (mPendingOperationsLock) {
+                mPendingOperationsLock.notifyAll();
+            }
+        }
+    }
+
+    private void waitForPendingOperations(int timeoutMs) {
+        // Lets the pending operations take the lock first. Otherwise the reading thread can
+        // take the lock again right after it is woken up.
+        synchronized (mPendingOperationsLock) {
+            if (timeoutMs > 0 && mPendingOperations.get() > 0) {
+                try {
+                    mPendingOperationsLock.wait(timeoutMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
     /**
      * Opens Linux DVB frontend device. This method is called from native JNI and used only for
      * UsbTunerHal.
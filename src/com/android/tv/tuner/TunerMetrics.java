@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of the runtime metrics of the tuner pipeline, e.g. the errors in the TS stream, the
+ * parse rates of the PSIP sections and the latencies of the sample I/O.
+ *
+ * <p>Metrics are counters, gauges and latency histograms, which are looked up by name once and
+ * then recorded without locking, so they can be kept in the streaming and the I/O threads.
+ * The registry is dumped by {@code adb shell dumpsys activity service TunerTvInputService}.
+ */
+public final class TunerMetrics {
+    // TS streams
+    public static final String TUNER_BYTES_READ = "tuner.bytes_read";
+    public static final String RING_BUFFER_OVERRUNS = "ring_buffer.overruns";
+    public static final String RING_BUFFER_SKIPPED_BYTES = "ring_buffer.skipped_bytes";
+    public static final String TS_INVALID_PACKETS = "ts.invalid_packets";
+    public static final String TS_TEI_PACKETS = "ts.tei_packets";
+    public static final String TS_CONTINUITY_ERRORS = "ts.continuity_errors";
+    public static final String PSIP_PARSED_SECTIONS = "psip.parsed_sections";
+    public static final String PSIP_SKIPPED_SECTIONS = "psip.skipped_sections";
+
+    // Sample I/O
+    public static final String SAMPLE_IO_READ_LATENCY = "sample_io.read_latency";
+    public static final String SAMPLE_IO_PENDING_WRITE_BYTES = "sample_io.pending_write_bytes";
+    public static final String SAMPLE_IO_PENDING_WRITE_SAMPLES = "sample_io.pending_write_samples";
+    public static final String SAMPLE_IO_READ_AHEAD_SAMPLES = "sample_io.read_ahead_samples";
+    public static final String SAMPLE_IO_BLOCKED_WRITES = "sample_io.blocked_writes";
+
+    // Playback
+    public static final String TUNE_LATENCY = "tune.first_frame_latency";
+    public static final String TUNE_LATENCY_ZAP_AHEAD = "tune.first_frame_latency.zap_ahead";
+    public static final String PLAYER_ERRORS = "player.errors";
+    public static final String PLAYER_DROPPED_FRAMES = "player.dropped_frames";
+    public static final String PLAYER_AUDIO_UNDERRUNS = "player.audio_underruns";
+
+    private static final ConcurrentMap<String, Counter> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> sGauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> sHistograms =
+            new ConcurrentHashMap<>();
+    private static volatile long sResetTimeMs = SystemClock.elapsedRealtime();
+
+    /**
+     * A monotonically increasing count of events.
+     */
+    public static class Counter {
+        private final AtomicLong mCount = new AtomicLong();
+
+        public void increment() {
+            mCount.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mCount.addAndGet(delta);
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * A current value, e.g. the depth of a queue. A gauge which is shared by several sources, e.g.
+     * the queues of all the sessions, is kept by {@link #add} so that it holds the sum of them.
+     */
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    private TunerMetrics() { }
+
+    /**
+     * Returns the counter of the name, which is created if it doesn't exist.
+     */
+    public static Counter getCounter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            sCounters.putIfAbsent(name, new Counter());
+            counter = sCounters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the gauge of the name, which is created if it doesn't exist.
+     */
+    public static Gauge getGauge(String name) {
+        Gauge gauge = sGauges.get(name);
+        if (gauge == null) {
+            sGauges.putIfAbsent(name, new Gauge());
+            gauge = sGauges.get(name);
+        }
+        return gauge;
+    }
+
+    /**
+     * Returns the latency histogram of the name, which is created if it doesn't exist.
+     */
+    public static LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            sHistograms.putIfAbsent(name, new LatencyHistogram());
+            histogram = sHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Clears the counters and the histograms. The gauges are kept, since they hold the current
+     * values. The metrics which are already looked up remain valid.
+     */
+    public static void reset() {
+        for (Counter counter : sCounters.values()) {
+            counter.mCount.set(0);
+        }
+        for (LatencyHistogram histogram : sHistograms.values()) {
+            histogram.reset();
+        }
+        sResetTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Prints all the metrics in the order of their names. Counters are printed with their rates
+     * per second since the last {@link #reset}.
+     */
+    public static void dump(PrintWriter writer) {
+        long elapsedMs = Math.max(SystemClock.elapsedRealtime() - sResetTimeMs, 1);
+        writer.println("Tuner metrics (for " + elapsedMs / 1000 + "s):");
+        for (String name : sortedNames(sCounters.keySet())) {
+            long count = sCounters.get(name).get();
+            writer.println("  " + name + ": " + count + " ("
+                    + String.format("%.2f", count * 1000.0 / elapsedMs) + "/s)");
+        }
+        for (String name : sortedNames(sGauges.keySet())) {
+            writer.println("  " + name + ": " + sGauges.get(name).get());
+        }
+        for (String name : sortedNames(sHistograms.keySet())) {
+            writer.println("  " + name + ": " + sHistograms.get(name));
+        }
+    }
+
+    private static List<String> sortedNames(Iterable<String> names) {
+        List<String> sortedNames = new ArrayList<>();
+        for (String name : names) {
+            sortedNames.add(name);
+        }
+        Collections.sort(sortedNames);
+        return sortedNames;
+    }
+}
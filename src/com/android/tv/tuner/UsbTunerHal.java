@@ -109,6 +109,7 @@ public class UsbTunerHal extends TunerHal {
                 stopTune();
             }
             nativeFinalize(mDvbDeviceInfo.getId());
+            releaseReadTsStream();
             synchronized (sLock) {
                 sUsedDvbDevices.remove(mDvbDeviceInfo);
             }
@@ -23,6 +23,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.util.Pair;
 
 import com.google.android.exoplayer.MediaFormat;
@@ -68,6 +69,16 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
     private static final String TAG = "ExoPlayerSampleExtracto";
 
     private static final int INVALID_TRACK_INDEX = -1;
+    // Samples are fetched again after this when nothing is fetched, unless the loader requests
+    // to continue loading earlier.
+    private static final long RETRY_INTERVAL_MS = 50;
+    // A fetch of a track stops after this number of samples or this duration of samples, so that
+    // the other tracks are fetched in turn.
+    @VisibleForTesting
+    static final int MAX_SAMPLES_PER_FETCH = 32;
+    @VisibleForTesting
+    static final long MAX_DURATION_PER_FETCH_US = 200 * 1000;
+
     private final HandlerThread mSourceReaderThread;
     private final long mId;
 
@@ -136,7 +147,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                 },
                 new DefaultExtractorsFactory(),
                 // Do not create a handler if we not on a looper. e.g. test.
-                Looper.myLooper() != null ? new Handler() : null, eventListener));
+                Looper.myLooper() != null ? new Handler() : null, eventListener),
+                RETRY_INTERVAL_MS);
         if (isRecording) {
             mSampleBuffer = new RecordingSampleBuffer(bufferManager, bufferListener, false,
                     RecordingSampleBuffer.BUFFER_REASON_RECORDING);
@@ -150,6 +162,15 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         }
     }
 
+    @VisibleForTesting
+    ExoPlayerSampleExtractor(MediaSource sampleSource, BufferManager.SampleBuffer sampleBuffer,
+            long retryIntervalMs) {
+        mId = System.currentTimeMillis();
+        mSourceReaderThread = new HandlerThread("SourceReaderThread");
+        mSourceReaderWorker = new SourceReaderWorker(sampleSource, retryIntervalMs);
+        mSampleBuffer = sampleBuffer;
+    }
+
     @Override
     public void setOnCompletionListener(OnCompletionListener listener, Handler handler) {
         mOnCompletionListener = listener;
@@ -160,9 +181,9 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         public static final int MSG_PREPARE = 1;
         public static final int MSG_FETCH_SAMPLES = 2;
         public static final int MSG_RELEASE = 3;
-        private static final int RETRY_INTERVAL_MS = 50;
 
         private final MediaSource mSampleSource;
+        private final long mRetryIntervalMs;
         private MediaPeriod mMediaPeriod;
         private SampleStream[] mStreams;
         private boolean[] mTrackMetEos;
@@ -170,10 +191,15 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         private long mCurrentPosition;
         private DecoderInputBuffer mDecoderInputBuffer;
         private SampleHolder mSampleHolder;
+        // Reused for all the fetches, since they are done in the source reader thread.
+        private final FormatHolder mFormatHolder = new FormatHolder();
+        private final ConditionVariable mConditionVariable = new ConditionVariable();
         private boolean mPrepareRequested;
+        private boolean mWaitingForSamples;
 
-        public SourceReaderWorker(MediaSource sampleSource) {
+        public SourceReaderWorker(MediaSource sampleSource, long retryIntervalMs) {
             mSampleSource = sampleSource;
+            mRetryIntervalMs = retryIntervalMs;
             mSampleSource.prepareSource(null, false, new MediaSource.Listener() {
                 @Override
                 public void onSourceInfoRefreshed(Timeline timeline, Object manifest) {
@@ -266,6 +292,13 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         @Override
         public void onContinueLoadingRequested(MediaPeriod source) {
             source.continueLoading(mCurrentPosition);
+            if (mWaitingForSamples && mMediaPeriod != null) {
+                // New samples are extracted by the loader. Fetches them without waiting for the
+                // retry.
+                mWaitingForSamples = false;
+                mSourceReaderHandler.removeMessages(MSG_FETCH_SAMPLES);
+                mSourceReaderHandler.sendEmptyMessage(MSG_FETCH_SAMPLES);
+            }
         }
 
         @Override
@@ -285,27 +318,27 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                     }
                     return true;
                 case MSG_FETCH_SAMPLES:
+                    mWaitingForSamples = false;
                     boolean didSomething = false;
-                    ConditionVariable conditionVariable = new ConditionVariable();
                     int trackCount = mStreams.length;
                     for (int i = 0; i < trackCount; ++i) {
-                        if (!mTrackMetEos[i] && C.RESULT_NOTHING_READ
-                                != fetchSample(i, mSampleHolder, conditionVariable)) {
-                            if (mMetEos) {
-                                // If mMetEos was on during fetchSample() due to an error,
-                                // fetching from other tracks is not necessary.
-                                break;
-                            }
+                        if (!mTrackMetEos[i] && fetchSamples(i)) {
                             didSomething = true;
                         }
+                        if (mMetEos) {
+                            // If mMetEos was on during fetchSamples() due to an error,
+                            // fetching from other tracks is not necessary.
+                            break;
+                        }
                     }
                     mMediaPeriod.continueLoading(mCurrentPosition);
                     if (!mMetEos) {
                         if (didSomething) {
                             mSourceReaderHandler.sendEmptyMessage(MSG_FETCH_SAMPLES);
                         } else {
+                            mWaitingForSamples = true;
                             mSourceReaderHandler.sendEmptyMessageDelayed(MSG_FETCH_SAMPLES,
-                                    RETRY_INTERVAL_MS);
+                                    mRetryIntervalMs);
                         }
                     } else {
                         notifyCompletionIfNeeded(false);
@@ -324,11 +357,33 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
             return false;
         }
 
-        private int fetchSample(int track, SampleHolder sample,
-                ConditionVariable conditionVariable) {
-            FormatHolder dummyFormatHolder = new FormatHolder();
+        // Fetches the samples of the track which are extracted already, up to
+        // MAX_SAMPLES_PER_FETCH samples or MAX_DURATION_PER_FETCH_US. Returns whether anything
+        // is read.
+        private boolean fetchSamples(int track) {
+            boolean didSomething = false;
+            long startTimeUs = C.TIME_UNSET;
+            for (int i = 0; i < MAX_SAMPLES_PER_FETCH && !mTrackMetEos[track] && !mMetEos; ++i) {
+                int ret = fetchSample(track);
+                if (ret == C.RESULT_NOTHING_READ) {
+                    break;
+                }
+                didSomething = true;
+                if (ret == C.RESULT_BUFFER_READ) {
+                    if (startTimeUs == C.TIME_UNSET) {
+                        startTimeUs = mDecoderInputBuffer.timeUs;
+                    } else if (mDecoderInputBuffer.timeUs - startTimeUs
+                            >= MAX_DURATION_PER_FETCH_US) {
+                        break;
+                    }
+                }
+            }
+            return didSomething;
+        }
+
+        private int fetchSample(int track) {
             mDecoderInputBuffer.clear();
-            int ret = mStreams[track].readData(dummyFormatHolder, mDecoderInputBuffer);
+            int ret = mStreams[track].readData(mFormatHolder, mDecoderInputBuffer);
             if (ret == C.RESULT_BUFFER_READ
                     // Double-check if the extractor provided the data to prevent NPE. b/33758354
                     && mDecoderInputBuffer.data != null) {
@@ -343,7 +398,7 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                         mLastExtractedPositionUsMap.put(track,
                                 Math.max(lastExtractedPositionUs, mDecoderInputBuffer.timeUs));
                     }
-                    queueSample(track, conditionVariable);
+                    queueSample(track, mConditionVariable);
                 } catch (IOException e) {
                     mLastExtractedPositionUsMap.clear();
                     mMetEos = true;
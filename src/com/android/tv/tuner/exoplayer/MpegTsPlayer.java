@@ -36,6 +36,7 @@ import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.audio.AudioTrack;
 import com.google.android.exoplayer.upstream.DataSource;
 import com.android.tv.common.SoftPreconditions;
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.data.Cea708Data;
 import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
 import com.android.tv.tuner.data.TunerChannel;
@@ -541,6 +542,7 @@ public class MpegTsPlayer
 
     @Override
     public void onPlayerError(ExoPlaybackException exception) {
+        TunerMetrics.getCounter(TunerMetrics.PLAYER_ERRORS).increment();
         mRendererBuildingState = RENDERER_BUILDING_STATE_IDLE;
         if (mListener != null) {
             mListener.onError(exception);
@@ -581,7 +583,7 @@ public class MpegTsPlayer
     @Override
     public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs,
             long elapsedSinceLastFeedMs) {
-        // Do nothing.
+        TunerMetrics.getCounter(TunerMetrics.PLAYER_AUDIO_UNDERRUNS).increment();
     }
 
     @Override
@@ -603,6 +605,7 @@ public class MpegTsPlayer
 
     @Override
     public void onDroppedFrames(int count, long elapsed) {
+        TunerMetrics.getCounter(TunerMetrics.PLAYER_DROPPED_FRAMES).add(count);
         if (mTrickplayRunning && mListener != null) {
             mListener.onSmoothTrickplayForceStopped();
         }
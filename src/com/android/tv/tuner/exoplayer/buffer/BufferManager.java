@@ -46,6 +46,9 @@ import java.util.TreeMap;
  * The buffer manager can be disabled, while running, if the write throughput to the associated
  * external storage is detected to be lower than a threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}".
  * This leads to restarting playback flow.
+ * <p>
+ * The methods which access {@link SampleChunk} collections are synchronized, since
+ * {@link SampleChunk}s are written and read by different I/O threads.
  */
 public class BufferManager {
     private static final String TAG = "BufferManager";
@@ -63,6 +66,9 @@ public class BufferManager {
     private final Map<String, SortedMap<Long, Pair<SampleChunk, Integer>>> mChunkMap =
             new ArrayMap<>();
     private final Map<String, Long> mStartPositionMap = new ArrayMap<>();
+    // Maps from track name to the index which is searched in place instead of mChunkMap. For
+    // the tracks loaded from SampleIndexFile, mChunkMap has only the starts of SampleChunks.
+    private final Map<String, SampleIndexFile.Reader> mIndexMap = new ArrayMap<>();
     private final Map<String, ChunkEvictedListener> mEvictListeners = new ArrayMap<>();
     private final StorageManager mStorageManager;
     private long mBufferSize = 0;
@@ -70,12 +76,16 @@ public class BufferManager {
     private final SampleChunk.ChunkCallback mChunkCallback = new SampleChunk.ChunkCallback() {
         @Override
         public void onChunkWrite(SampleChunk chunk) {
-            mBufferSize += chunk.getSize();
+            synchronized (BufferManager.this) {
+                mBufferSize += chunk.getSize();
+            }
         }
 
         @Override
         public void onChunkDelete(SampleChunk chunk) {
-            mBufferSize -= chunk.getSize();
+            synchronized (BufferManager.this) {
+                mBufferSize -= chunk.getSize();
+            }
         }
     };
 
@@ -84,6 +94,7 @@ public class BufferManager {
     private long mTotalWriteTimeNs;
     private float mWriteBandwidth = 0.0f;
     private volatile int mSpeedCheckCount;
+    private volatile boolean mKeyFrameOnlyRead;
 
     public interface ChunkEvictedListener {
         void onChunkEvicted(String id, long createdTimeMs);
@@ -120,7 +131,7 @@ public class BufferManager {
          *
          * @param index track index
          * @param sample sample to write at storage
-         * @param conditionVariable notifies the completion of writing sample.
+         * @param conditionVariable notifies when {@code sample} can be reused by the caller.
          * @throws IOException
          */
         void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
@@ -307,6 +318,41 @@ public class BufferManager {
          */
         void writeIndexFile(String trackName, SortedMap<Long, Pair<SampleChunk, Integer>> index)
                 throws IOException;
+
+        /**
+         * Appends an index entry to storage as soon as a key sample position is indexed, so that
+         * the index is kept even when {@link #writeIndexFile} is not called.
+         *
+         * @param trackName track name
+         * @param positionUs the position of the key sample
+         * @param basePositionUs the start position of the {@link SampleChunk} of the sample
+         * @param offset the offset of the sample in the {@link SampleChunk}
+         * @throws IOException
+         */
+        void appendIndexEntry(String trackName, long positionUs, long basePositionUs, int offset)
+                throws IOException;
+
+        /**
+         * Opens the index which is written by {@link #appendIndexEntry} to search it in place.
+         *
+         * @param trackId track name
+         * @return the index of the specified track, or {@code null} if there is no such index
+         * @throws IOException
+         */
+        SampleIndexFile.Reader openIndexFile(String trackId) throws IOException;
+
+        /**
+         * Provides the creator of the {@link SampleChunk}s which are written to storage, so that
+         * the storage can decide where samples are stored.
+         *
+         * @return a {@link SampleChunk.SampleChunkCreator} for new {@link SampleChunk}s
+         */
+        SampleChunk.SampleChunkCreator getSampleChunkCreator();
+
+        /**
+         * Releases the resources of storage after all the {@link SampleChunk}s are released.
+         */
+        void release();
     }
 
     private static class EvictChunkQueueMap {
@@ -337,6 +383,28 @@ public class BufferManager {
             return null;
         }
 
+        // Reclaims the earliest SampleChunk which can be reclaimed while it is being read, e.g. a
+        // SampleChunk in a TimeshiftRing. Returns false if there is no such SampleChunk.
+        private boolean reclaimEarliest() {
+            LinkedList<SampleChunk> earliestQueue = null;
+            SampleChunk earliestChunk = null;
+            for (LinkedList<SampleChunk> queue : mEvictMap.values()) {
+                SampleChunk chunk = queue.peek();
+                if (chunk != null && chunk.isReclaimable() && (earliestChunk == null
+                        || chunk.getCreatedTimeMs() < earliestChunk.getCreatedTimeMs())) {
+                    earliestQueue = queue;
+                    earliestChunk = chunk;
+                }
+            }
+            if (earliestChunk == null) {
+                return false;
+            }
+            earliestQueue.poll();
+            mSize -= earliestChunk.getSize();
+            earliestChunk.reclaim();
+            return true;
+        }
+
         private long getSize() {
             return mSize;
         }
@@ -353,7 +421,7 @@ public class BufferManager {
     }
 
     public BufferManager(StorageManager storageManager) {
-        this(storageManager, new SampleChunk.SampleChunkCreator());
+        this(storageManager, storageManager.getSampleChunkCreator());
     }
 
     public BufferManager(StorageManager storageManager,
@@ -362,11 +430,12 @@ public class BufferManager {
         mSampleChunkCreator = sampleChunkCreator;
     }
 
-    public void registerChunkEvictedListener(String id, ChunkEvictedListener listener) {
+    public synchronized void registerChunkEvictedListener(String id,
+            ChunkEvictedListener listener) {
         mEvictListeners.put(id, listener);
     }
 
-    public void unregisterChunkEvictedListener(String id) {
+    public synchronized void unregisterChunkEvictedListener(String id) {
         mEvictListeners.remove(id);
     }
 
@@ -386,8 +455,9 @@ public class BufferManager {
      * @return returns the created {@link SampleChunk}.
      * @throws IOException
      */
-    public SampleChunk createNewWriteFileIfNeeded(String id, long positionUs, SamplePool samplePool,
-            SampleChunk currentChunk, int currentOffset) throws IOException {
+    public synchronized SampleChunk createNewWriteFileIfNeeded(String id, long positionUs,
+            SamplePool samplePool, SampleChunk currentChunk, int currentOffset)
+            throws IOException {
         if (!maybeEvictChunk()) {
             throw new IOException("Not enough storage space");
         }
@@ -403,9 +473,12 @@ public class BufferManager {
             SampleChunk sampleChunk = mSampleChunkCreator
                     .createSampleChunk(samplePool, file, positionUs, mChunkCallback);
             map.put(positionUs, new Pair(sampleChunk, 0));
+            mStorageManager.appendIndexEntry(id, positionUs, positionUs, 0);
             return sampleChunk;
         } else {
             map.put(positionUs, new Pair(currentChunk, currentOffset));
+            mStorageManager.appendIndexEntry(id, positionUs, currentChunk.getStartPositionUs(),
+                    currentOffset);
             return null;
         }
     }
@@ -417,7 +490,13 @@ public class BufferManager {
      * @param samplePool {@link SamplePool} for the fast creation of samples.
      * @throws IOException
      */
-    public void loadTrackFromStorage(String trackId, SamplePool samplePool) throws IOException {
+    public synchronized void loadTrackFromStorage(String trackId, SamplePool samplePool)
+            throws IOException {
+        SampleIndexFile.Reader index = mStorageManager.openIndexFile(trackId);
+        if (index != null) {
+            loadTrackFromIndex(trackId, index, samplePool);
+            return;
+        }
         ArrayList<PositionHolder> keyPositions = mStorageManager.readIndexFile(trackId);
         long startPositionUs = keyPositions.size() > 0 ? keyPositions.get(0).positionUs : 0;
 
@@ -441,6 +520,49 @@ public class BufferManager {
         }
     }
 
+    private void loadTrackFromIndex(String trackId, SampleIndexFile.Reader index,
+            SamplePool samplePool) throws IOException {
+        long startPositionUs = index.size() > 0 ? index.getPositionUs(0) : 0;
+        SortedMap<Long, Pair<SampleChunk, Integer>> map = mChunkMap.get(trackId);
+        if (map == null) {
+            map = new TreeMap<>();
+            mChunkMap.put(trackId, map);
+            mStartPositionMap.put(trackId, startPositionUs);
+            mPendingDelete.init(trackId);
+        }
+        // Only the SampleChunks are loaded here. The entries are searched in the index later.
+        SampleChunk chunk = null;
+        long basePositionUs = -1;
+        long lastPositionUs = Long.MIN_VALUE;
+        int size = index.size();
+        for (int i = 0; i < size; ++i) {
+            long positionUs = index.getPositionUs(i);
+            long entryBasePositionUs = index.getBasePositionUs(i);
+            if (positionUs < lastPositionUs) {
+                // A recording which didn't finish gracefully can have a broken tail.
+                Log.w(TAG, "Index of " + trackId + " is broken at " + i + "/" + size);
+                index.truncate(i);
+                break;
+            }
+            if (entryBasePositionUs != basePositionUs) {
+                String fileName = getFileName(trackId, positionUs);
+                if (entryBasePositionUs != positionUs
+                        || !new File(mStorageManager.getBufferDir(), fileName).exists()) {
+                    Log.w(TAG, "Index of " + trackId + " is broken at " + i + "/" + size);
+                    index.truncate(i);
+                    break;
+                }
+                chunk = mSampleChunkCreator.loadSampleChunkFromFile(samplePool,
+                        mStorageManager.getBufferDir(), fileName, positionUs, mChunkCallback,
+                        chunk);
+                basePositionUs = entryBasePositionUs;
+                map.put(positionUs, new Pair(chunk, 0));
+            }
+            lastPositionUs = positionUs;
+        }
+        mIndexMap.put(trackId, index);
+    }
+
     /**
      * Finds a {@link SampleChunk} for the specified track name and the position.
      *
@@ -448,11 +570,20 @@ public class BufferManager {
      * @param positionUs the position.
      * @return returns the found {@link SampleChunk}.
      */
-    public Pair<SampleChunk, Integer> getReadFile(String id, long positionUs) {
+    public synchronized Pair<SampleChunk, Integer> getReadFile(String id, long positionUs) {
         SortedMap<Long, Pair<SampleChunk, Integer>> map = mChunkMap.get(id);
         if (map == null) {
             return null;
         }
+        SampleIndexFile.Reader index = mIndexMap.get(id);
+        if (index != null) {
+            if (index.size() == 0) {
+                return null;
+            }
+            int i = Math.max(index.floorIndex(positionUs), 0);
+            Pair<SampleChunk, Integer> chunk = map.get(index.getBasePositionUs(i));
+            return chunk == null ? null : new Pair<>(chunk.first, index.getOffset(i));
+        }
         Pair<SampleChunk, Integer> ret;
         SortedMap<Long, Pair<SampleChunk, Integer>> headMap = map.headMap(positionUs + 1);
         if (!headMap.isEmpty()) {
@@ -470,7 +601,7 @@ public class BufferManager {
      * @param earlierThanPositionUs the start position of the {@link SampleChunk}
      *                   should be earlier than
      */
-    public void evictChunks(String id, long earlierThanPositionUs) {
+    public synchronized void evictChunks(String id, long earlierThanPositionUs) {
         SampleChunk chunk = null;
         while ((chunk = mPendingDelete.poll(id, earlierThanPositionUs)) != null) {
             SampleChunk.IoState.release(chunk, !mStorageManager.isPersistent())  ;
@@ -482,7 +613,7 @@ public class BufferManager {
      *
      * @param id the specified track
      */
-    public long getStartPositionUs(String id) {
+    public synchronized long getStartPositionUs(String id) {
         Long ret = mStartPositionMap.get(id);
         return ret == null ? 0 : ret;
     }
@@ -495,6 +626,13 @@ public class BufferManager {
                 // Since chunks are persistent, we cannot evict chunks.
                 return false;
             }
+            if (!mStorageManager.hasEnoughBuffer(pendingDelete)
+                    && mPendingDelete.reclaimEarliest()) {
+                // The evicted chunks can keep their space until they are read. Reclaims it
+                // before more chunks are evicted.
+                pendingDelete = mPendingDelete.getSize();
+                continue;
+            }
             SortedMap<Long, Pair<SampleChunk, Integer>> earliestChunkMap = null;
             SampleChunk earliestChunk = null;
             String earliestChunkId = null;
@@ -558,19 +696,37 @@ public class BufferManager {
     }
 
     /**
-     * Writes track information and index information for all tracks.
+     * Writes track information for all tracks. This is done when the indexes of the tracks are
+     * created, so that the tracks can be loaded even when {@link #writeMetaFiles} is not called.
      *
      * @param audios list of audio track information
-     * @param videos list of audio track information
+     * @param videos list of video track information
      * @throws IOException
      */
-    public void writeMetaFiles(List<TrackFormat> audios, List<TrackFormat> videos)
-            throws IOException {
+    public synchronized void writeTrackInfoFiles(List<TrackFormat> audios,
+            List<TrackFormat> videos) throws IOException {
         if (audios.isEmpty() && videos.isEmpty()) {
             throw new IOException("No track information to save");
         }
         if (!audios.isEmpty()) {
             mStorageManager.writeTrackInfoFiles(audios, true);
+        }
+        if (!videos.isEmpty()) {
+            mStorageManager.writeTrackInfoFiles(videos, false);
+        }
+    }
+
+    /**
+     * Writes track information and index information for all tracks.
+     *
+     * @param audios list of audio track information
+     * @param videos list of video track information
+     * @throws IOException
+     */
+    public synchronized void writeMetaFiles(List<TrackFormat> audios, List<TrackFormat> videos)
+            throws IOException {
+        writeTrackInfoFiles(audios, videos);
+        if (!audios.isEmpty()) {
             for (TrackFormat trackFormat : audios) {
                 SortedMap<Long, Pair<SampleChunk, Integer>> map =
                         mChunkMap.get(trackFormat.trackId);
@@ -581,7 +737,6 @@ public class BufferManager {
             }
         }
         if (!videos.isEmpty()) {
-            mStorageManager.writeTrackInfoFiles(videos, false);
             for (TrackFormat trackFormat : videos) {
                 SortedMap<Long, Pair<SampleChunk, Integer>> map =
                         mChunkMap.get(trackFormat.trackId);
@@ -596,7 +751,7 @@ public class BufferManager {
     /**
      * Releases all the resources.
      */
-    public void release() {
+    public synchronized void release() {
         try {
             mPendingDelete.release();
             for (Map.Entry<String, SortedMap<Long, Pair<SampleChunk, Integer>>> entry :
@@ -610,12 +765,30 @@ public class BufferManager {
                 }
             }
             mChunkMap.clear();
+            mIndexMap.clear();
         } catch (ConcurrentModificationException | NullPointerException e) {
             // TODO: remove this after it it confirmed that race condition issues are resolved.
             // b/32492258, b/32373376
             SoftPreconditions.checkState(false, "Exception on BufferManager#release: ",
                     e.toString());
         }
+        mStorageManager.release();
+    }
+
+    /**
+     * Sets whether only the key frames of video tracks are read, e.g. while trickplay is done by
+     * seeking. The samples of the other tracks are not read meanwhile. The reads should be
+     * restarted by a seek when this is turned off.
+     */
+    public void setKeyFrameOnlyRead(boolean keyFrameOnlyRead) {
+        mKeyFrameOnlyRead = keyFrameOnlyRead;
+    }
+
+    /**
+     * Returns whether only the key frames of video tracks are read.
+     */
+    public boolean isKeyFrameOnlyRead() {
+        return mKeyFrameOnlyRead;
     }
 
     private void resetWriteStat(float writeBandwidth) {
@@ -627,7 +800,7 @@ public class BufferManager {
     /**
      * Adds a disk write sample size to calculate the average disk write bandwidth.
      */
-    public void addWriteStat(long size, long timeNs) {
+    public synchronized void addWriteStat(long size, long timeNs) {
         if (size >= mMinSampleSizeForSpeedCheck) {
             mTotalWriteSize += size;
             mTotalWriteTimeNs += timeNs;
@@ -638,7 +811,7 @@ public class BufferManager {
      * Returns if the average disk write bandwidth is slower than
      * threshold {@code MINIMUM_DISK_WRITE_SPEED_MBPS}.
      */
-    public boolean isWriteSlow() {
+    public synchronized boolean isWriteSlow() {
         if (mTotalWriteSize < MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK) {
             return false;
         }
@@ -17,6 +17,7 @@
 package com.android.tv.tuner.exoplayer.buffer;
 
 import android.media.MediaFormat;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Pair;
 
@@ -63,6 +64,9 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     // {@code true} when this is for recording, {@code false} when this is for replaying.
     private final boolean mIsRecording;
 
+    // Index files which are being written incrementally while recording.
+    private final Map<String, SampleIndexFile.Writer> mIndexWriters = new ArrayMap<>();
+
     public DvrStorageManager(File file, boolean isRecording) {
         mBufferDir = file;
         mBufferDir.mkdirs();
@@ -379,6 +383,12 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     @Override
     public void writeIndexFile(String trackName, SortedMap<Long, Pair<SampleChunk, Integer>> index)
             throws IOException {
+        SampleIndexFile.Writer writer = mIndexWriters.remove(trackName);
+        if (writer != null) {
+            // The index has been written already while recording.
+            writer.close();
+            return;
+        }
         File indexFile  = new File(getBufferDir(), trackName + IDX_FILE_SUFFIX_V2);
         try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
             out.writeLong(index.size());
@@ -389,4 +399,47 @@ public class DvrStorageManager implements BufferManager.StorageManager {
             }
         }
     }
+
+    @Override
+    public void appendIndexEntry(String trackName, long positionUs, long basePositionUs,
+            int offset) throws IOException {
+        if (!mIsRecording) {
+            return;
+        }
+        SampleIndexFile.Writer writer = mIndexWriters.get(trackName);
+        if (writer == null) {
+            writer = new SampleIndexFile.Writer(
+                    new File(getBufferDir(), trackName + SampleIndexFile.FILE_SUFFIX));
+            mIndexWriters.put(trackName, writer);
+        }
+        writer.append(positionUs, basePositionUs, offset);
+    }
+
+    @Override
+    public SampleIndexFile.Reader openIndexFile(String trackId) throws IOException {
+        File file = new File(getBufferDir(), trackId + SampleIndexFile.FILE_SUFFIX);
+        if (!file.exists()) {
+            // Recordings made before the index is written incrementally.
+            return null;
+        }
+        return SampleIndexFile.Reader.open(file);
+    }
+
+    @Override
+    public SampleChunk.SampleChunkCreator getSampleChunkCreator() {
+        return new SampleChunk.SampleChunkCreator();
+    }
+
+    @Override
+    public void release() {
+        // Closes the index files of a recording which is not finished gracefully.
+        for (SampleIndexFile.Writer writer : mIndexWriters.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close an index file", e);
+            }
+        }
+        mIndexWriters.clear();
+    }
 }
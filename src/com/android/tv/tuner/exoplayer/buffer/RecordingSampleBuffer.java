@@ -26,6 +26,7 @@ import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.SampleSource;
 import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.MimeTypes;
 import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.tvinput.PlaybackBufferListener;
 import com.android.tv.tuner.exoplayer.SampleExtractor;
@@ -84,6 +85,7 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
 
     private int mTrackCount;
     private boolean[] mTrackSelected;
+    private boolean[] mIsVideoTrack;
     private List<SampleQueue> mReadSampleQueues;
     private final SamplePool mSamplePool = new SamplePool();
     private long mLastBufferedPositionUs = C.UNKNOWN_TIME_US;
@@ -135,6 +137,10 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
             throw new IOException("No tracks to initialize");
         }
         mTrackSelected = new boolean[mTrackCount];
+        mIsVideoTrack = new boolean[mTrackCount];
+        for (int i = 0; i < mTrackCount; ++i) {
+            mIsVideoTrack[i] = MimeTypes.isVideo(mediaFormats.get(i).mimeType);
+        }
         mReadSampleQueues = new ArrayList<>();
         mSampleChunkIoHelper = new SampleChunkIoHelper(ids, mediaFormats, mBufferReason,
                 mBufferManager, mSamplePool, mIoCallback);
@@ -181,7 +187,8 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
         if (mBufferReason == BUFFER_REASON_RECORDED_PLAYBACK) {
             return false;
         }
-        mBufferManager.addWriteStat(sampleSize, writeDurationNs);
+        // Since samples are written asynchronously in batches, the write bandwidth is measured
+        // by SampleChunkIoHelper when the samples are actually written to the storage.
         return mBufferManager.isWriteSlow();
     }
 
@@ -277,6 +284,10 @@ public class RecordingSampleBuffer implements BufferManager.SampleBuffer,
             if (!mTrackSelected[i]) {
                 continue;
             }
+            if (!mIsVideoTrack[i] && mBufferManager.isKeyFrameOnlyRead()) {
+                // The track is not read meanwhile.
+                continue;
+            }
             SampleQueue queue = mReadSampleQueues.get(i);
             maybeReadSample(queue, i);
             if (queue.getLastQueuedPositionUs() == null
@@ -16,6 +16,8 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.media.MediaCodec;
+import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
@@ -25,32 +27,83 @@ import com.google.android.exoplayer.SampleHolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * {@link SampleChunk} stores samples into file and makes them available for read.
  * Stored file = { Header, Sample } * N
  * Header = sample size : int, sample flag : int, sample PTS in micro second : long
+ * A SampleChunk which is created by {@link TimeshiftRing} stores samples into the extents of the
+ * shared ring file instead of its own file.
  */
 public class SampleChunk {
     private static final String TAG = "SampleChunk";
     private static final boolean DEBUG = false;
 
+    @IntDef({READ_MODE_MAP_PER_SAMPLE, READ_MODE_MAPPED_WINDOW})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ReadMode {}
+
+    /**
+     * A read mode which seeks and reads the header of each sample, and maps the payload of each
+     * sample separately.
+     */
+    public static final int READ_MODE_MAP_PER_SAMPLE = 0;
+
+    /**
+     * A read mode which decodes headers and payloads from a large read-only mapping of the file.
+     * The mapping is shared by subsequent reads and is re-mapped only when a sample is not inside
+     * of the current mapping.
+     */
+    public static final int READ_MODE_MAPPED_WINDOW = 1;
+
+    // The maximum size of a mapping for READ_MODE_MAPPED_WINDOW.
+    private static final long READ_WINDOW_SIZE = 8L * 1024 * 1024;
+
+    // The maximum number of samples which are written by a single gathering write.
+    private static final int MAX_PENDING_WRITE_SAMPLES = 64;
+
+    private static final int INITIAL_KEY_FRAME_CAPACITY = 16;
+
     private final long mCreatedTimeMs;
     private final long mStartPositionUs;
-    private SampleChunk mNextChunk;
+    // The fields which are written by the writer and read by the reader are volatile, since the
+    // reader and the writer of a SampleChunk can be in different threads. The writer publishes
+    // samples by updating mWriteOffset after they are written completely.
+    private volatile SampleChunk mNextChunk;
 
     // Header = sample size : int, sample flag : int, sample PTS in micro second : long
     private static final int SAMPLE_HEADER_LENGTH = 16;
 
     private final File mFile;
+    // The space of the SampleChunk in a shared file, or null if the SampleChunk has its own file.
+    private final TimeshiftRing.Allocation mAllocation;
     private final ChunkCallback mChunkCallback;
     private final SamplePool mSamplePool;
-    private RandomAccessFile mAccessFile;
-    private long mWriteOffset;
-    private boolean mWriteFinished;
+    // The reader and the writer have their own files, so that their file pointers don't interfere.
+    private RandomAccessFile mReadFile;
+    private RandomAccessFile mWriteFile;
+    private volatile long mWriteOffset;
+    private volatile boolean mWriteFinished;
     private boolean mIsReading;
     private boolean mIsWriting;
+    private MappedByteBuffer mReadWindow;
+    private long mReadWindowOffset;
+    // The offsets of the key frames which are written to the SampleChunk, or null if the
+    // SampleChunk is loaded from a file and the key frames are found by reading headers.
+    private volatile long[] mKeyFrameOffsets;
+    private volatile int mKeyFrameCount;
+    // Set when the space of the SampleChunk in a TimeshiftRing is reclaimed while the SampleChunk
+    // can still be being read. The space can be overwritten afterwards.
+    private volatile boolean mReclaimed;
+    // Written by the reader after reading a sample so that the read is ordered before the
+    // following read of mReclaimed. See IoState#read().
+    private volatile long mReadFence;
 
     /**
      * A callback for chunks being committed to permanent storage.
@@ -125,8 +178,15 @@ public class SampleChunk {
      * Maintains current SampleChunk and the current offset for next I/O operation.
      */
     static class IoState {
-        private SampleChunk mChunk;
+        // Volatile, since whether the read is finished can be checked from other threads.
+        private volatile SampleChunk mChunk;
         private long mCurrentOffset;
+        private @ReadMode int mReadMode = READ_MODE_MAP_PER_SAMPLE;
+
+        // Samples which are queued by queueWrite() and not written to the file yet.
+        private SampleHolder[] mPendingSamples;
+        private ByteBuffer[] mGatherBuffers;
+        private int mPendingCount;
 
         private boolean equals(SampleChunk chunk, long offset) {
             return chunk == mChunk && mCurrentOffset == offset;
@@ -139,6 +199,15 @@ public class SampleChunk {
             return mChunk == null;
         }
 
+        /**
+         * Sets the read mode for the subsequent read I/O operations.
+         *
+         * @param readMode {@link #READ_MODE_MAP_PER_SAMPLE} or {@link #READ_MODE_MAPPED_WINDOW}
+         */
+        void setReadMode(@ReadMode int readMode) {
+            mReadMode = readMode;
+        }
+
         /**
          * Returns the start position of the current SampleChunk
          */
@@ -191,6 +260,7 @@ public class SampleChunk {
          * @throws IOException
          */
         SampleHolder read() throws IOException {
+            skipReclaimedChunks();
             if (mChunk != null && mChunk.isReadFinished(this)) {
                 SampleChunk next = mChunk.mNextChunk;
                 mChunk.closeRead();
@@ -200,18 +270,70 @@ public class SampleChunk {
                 reset(next);
             }
             if (mChunk != null) {
+                SampleHolder sample;
                 try {
-                    return mChunk.read(this);
+                    sample = mChunk.read(this);
                 } catch (IllegalStateException e) {
+                    if (mChunk.isReclaimedAfterRead()) {
+                        // The sample was overwritten while it was read.
+                        return read();
+                    }
                     // Write is finished and there is no additional buffer to read.
                     Log.w(TAG, "Tried to read sample over EOS.");
                     return null;
                 }
+                if (sample != null && mChunk.isReclaimedAfterRead()) {
+                    mChunk.mSamplePool.releaseSample(sample);
+                    return read();
+                }
+                return sample;
             } else {
                 return null;
             }
         }
 
+        // Moves to the first SampleChunk which is not reclaimed. The samples of the reclaimed
+        // SampleChunks are skipped.
+        private void skipReclaimedChunks() throws IOException {
+            while (mChunk != null && mChunk.mReclaimed) {
+                // A reclaimed SampleChunk is written completely, so the next one is known.
+                SampleChunk next = mChunk.mNextChunk;
+                if (DEBUG) Log.d(TAG, "Skipped a reclaimed chunk: " + mChunk.mStartPositionUs);
+                mChunk.closeRead();
+                if (next != null) {
+                    next.openRead();
+                }
+                reset(next);
+            }
+        }
+
+        /**
+         * Reads the next key frame, skipping the other samples. The payloads of the skipped
+         * samples are not read.
+         *
+         * @return Returns a key frame if it is available, null otherwise.
+         * @throws IOException
+         */
+        SampleHolder readKeyFrame() throws IOException {
+            skipReclaimedChunks();
+            while (mChunk != null) {
+                if (mChunk.seekToKeyFrame(this)) {
+                    return read();
+                }
+                if (!mChunk.isReadFinished(this)) {
+                    // No key frame is written yet after the current offset.
+                    return null;
+                }
+                SampleChunk next = mChunk.mNextChunk;
+                mChunk.closeRead();
+                if (next != null) {
+                    next.openRead();
+                }
+                reset(next);
+            }
+            return null;
+        }
+
         /**
          * Writes a sample.
          *
@@ -222,18 +344,80 @@ public class SampleChunk {
          */
         void write(SampleHolder sample, SampleChunk nextChunk)
                 throws IOException {
+            flushWrite();
             if (nextChunk != null) {
-                if (mChunk == null || mChunk.mNextChunk != null) {
-                    throw new IllegalStateException("Requested write for wrong SampleChunk");
-                }
-                mChunk.closeWrite(nextChunk);
-                mChunk.mChunkCallback.onChunkWrite(mChunk);
-                nextChunk.openWrite();
-                reset(nextChunk);
+                switchWrite(nextChunk);
             }
             mChunk.write(sample, this);
         }
 
+        /**
+         * Queues a sample to be written with the other queued samples by a single gathering
+         * write. The sample will be released to the {@link SamplePool} of the SampleChunk after
+         * it is written, so the caller should not use the sample afterwards.
+         *
+         * @param sample to write
+         * @param nextChunk if this is {@code null} writes at the current SampleChunk,
+         *             otherwise flushes and closes current SampleChunk and writes at this
+         * @throws IOException
+         */
+        void queueWrite(SampleHolder sample, SampleChunk nextChunk) throws IOException {
+            if (nextChunk != null) {
+                flushWrite();
+                switchWrite(nextChunk);
+            }
+            if (mChunk == null || mChunk.mNextChunk != null) {
+                throw new IllegalStateException("Requested write for wrong SampleChunk");
+            }
+            if (mPendingSamples == null) {
+                mPendingSamples = new SampleHolder[MAX_PENDING_WRITE_SAMPLES];
+                mGatherBuffers = new ByteBuffer[MAX_PENDING_WRITE_SAMPLES * 2];
+                ByteBuffer headers = ByteBuffer.allocateDirect(
+                        MAX_PENDING_WRITE_SAMPLES * SAMPLE_HEADER_LENGTH);
+                for (int i = 0; i < MAX_PENDING_WRITE_SAMPLES; ++i) {
+                    headers.limit((i + 1) * SAMPLE_HEADER_LENGTH).position(
+                            i * SAMPLE_HEADER_LENGTH);
+                    mGatherBuffers[i * 2] = headers.slice();
+                }
+            } else if (mPendingCount == MAX_PENDING_WRITE_SAMPLES) {
+                flushWrite();
+            }
+            mPendingSamples[mPendingCount++] = sample;
+            mCurrentOffset += sample.size + SAMPLE_HEADER_LENGTH;
+        }
+
+        /**
+         * Writes all the queued samples to the current SampleChunk.
+         *
+         * @return the number of bytes which are written
+         * @throws IOException
+         */
+        long flushWrite() throws IOException {
+            if (mPendingCount == 0) {
+                return 0;
+            }
+            try {
+                return mChunk.write(mPendingSamples, mGatherBuffers, mPendingCount);
+            } finally {
+                for (int i = 0; i < mPendingCount; ++i) {
+                    mChunk.mSamplePool.releaseSample(mPendingSamples[i]);
+                    mPendingSamples[i] = null;
+                    mGatherBuffers[i * 2 + 1] = null;
+                }
+                mPendingCount = 0;
+            }
+        }
+
+        private void switchWrite(SampleChunk nextChunk) throws IOException {
+            if (mChunk == null || mChunk.mNextChunk != null) {
+                throw new IllegalStateException("Requested write for wrong SampleChunk");
+            }
+            mChunk.closeWrite(nextChunk);
+            mChunk.mChunkCallback.onChunkWrite(mChunk);
+            nextChunk.openWrite();
+            reset(nextChunk);
+        }
+
         /**
          * Finishes write I/O operation.
          *
@@ -241,6 +425,7 @@ public class SampleChunk {
          */
         void closeWrite() throws IOException {
             if (mChunk != null) {
+                flushWrite();
                 mChunk.closeWrite(null);
             }
         }
@@ -278,7 +463,21 @@ public class SampleChunk {
         mCreatedTimeMs = createdTimeMs;
         mSamplePool = samplePool;
         mFile = file;
+        mAllocation = null;
+        mChunkCallback = chunkCallback;
+        mKeyFrameOffsets = new long[INITIAL_KEY_FRAME_CAPACITY];
+    }
+
+    // Constructor of SampleChunk which is stored in a TimeshiftRing.
+    SampleChunk(SamplePool samplePool, TimeshiftRing.Allocation allocation,
+            long startPositionUs, long createdTimeMs, ChunkCallback chunkCallback) {
+        mStartPositionUs = startPositionUs;
+        mCreatedTimeMs = createdTimeMs;
+        mSamplePool = samplePool;
+        mFile = allocation.getFile();
+        mAllocation = allocation;
         mChunkCallback = chunkCallback;
+        mKeyFrameOffsets = new long[INITIAL_KEY_FRAME_CAPACITY];
     }
 
     // Constructor of SampleChunk which is backed by the given existing file.
@@ -288,64 +487,77 @@ public class SampleChunk {
         mCreatedTimeMs = mStartPositionUs / 1000;
         mSamplePool = samplePool;
         mFile = file;
+        mAllocation = null;
         mChunkCallback = chunkCallback;
         mWriteFinished = true;
     }
 
     private void openRead() throws IOException {
         if (!mIsReading) {
-            if (mAccessFile == null) {
-                mAccessFile = new RandomAccessFile(mFile, "r");
-            }
-            if (mWriteFinished && mWriteOffset == 0) {
+            if (mWriteFinished && mWriteOffset == 0 && mAllocation == null) {
                 // Lazy loading of write offset, in order not to load
                 // all SampleChunk's write offset at start time of recorded playback.
-                mWriteOffset = mAccessFile.length();
+                mWriteOffset = getReadFile().length();
             }
             mIsReading = true;
         }
     }
 
+    // Opens the file for read when it is accessed first. The reader can open the SampleChunk
+    // before the writer creates the file, but nothing is read before a sample is written.
+    private RandomAccessFile getReadFile() throws IOException {
+        if (mReadFile == null) {
+            mReadFile = new RandomAccessFile(mFile, "r");
+        }
+        return mReadFile;
+    }
+
     private void openWrite() throws IOException {
         if (mWriteFinished) {
             throw new IllegalStateException("Opened for write though write is already finished");
         }
         if (!mIsWriting) {
-            if (mIsReading) {
-                throw new IllegalStateException("Write is requested for "
-                        + "an already opened SampleChunk");
-            }
-            mAccessFile = new RandomAccessFile(mFile, "rw");
+            mWriteFile = new RandomAccessFile(mFile, "rw");
             mIsWriting = true;
         }
     }
 
-    private void CloseAccessFileIfNeeded() throws IOException {
-        if (!mIsReading && !mIsWriting) {
-            try {
-                if (mAccessFile != null) {
-                    mAccessFile.close();
-                }
-            } finally {
-                mAccessFile = null;
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            if (file != null) {
+                file.close();
             }
+        } catch (IOException e) {
+            // Since the file will not be reused, ignore exception.
         }
     }
 
     private void closeRead() throws IOException{
         if (mIsReading) {
             mIsReading = false;
-            CloseAccessFileIfNeeded();
+            mReadWindow = null;
+            try {
+                if (mReadFile != null) {
+                    mReadFile.close();
+                }
+            } finally {
+                mReadFile = null;
+            }
         }
     }
 
     private void closeWrite(SampleChunk nextChunk)
             throws IOException {
         if (mIsWriting) {
+            // mWriteFinished is set last, since the reader checks it before the others.
             mNextChunk = nextChunk;
             mIsWriting = false;
-            mWriteFinished = true;
-            CloseAccessFileIfNeeded();
+            try {
+                mWriteFile.close();
+            } finally {
+                mWriteFile = null;
+                mWriteFinished = true;
+            }
         }
     }
 
@@ -354,63 +566,248 @@ public class SampleChunk {
     }
 
     private SampleHolder read(IoState state) throws IOException {
-        if (mAccessFile == null || state.mChunk != this) {
+        if (!mIsReading || state.mChunk != this) {
             throw new IllegalStateException("Requested read for wrong SampleChunk");
         }
         long offset = state.mCurrentOffset;
-        if (offset >= mWriteOffset) {
-            if (mWriteFinished) {
+        // The write offset is final if the write is finished.
+        boolean writeFinished = mWriteFinished;
+        long writeOffset = mWriteOffset;
+        if (offset >= writeOffset) {
+            if (writeFinished) {
                 throw new IllegalStateException("Requested read for wrong range");
             } else {
-                if (offset != mWriteOffset) {
+                if (offset != writeOffset) {
                     Log.e(TAG, "This should not happen!");
                 }
                 return null;
             }
         }
-        mAccessFile.seek(offset);
-        int size = mAccessFile.readInt();
+        SampleHolder sample;
+        if (state.mReadMode == READ_MODE_MAPPED_WINDOW) {
+            sample = readFromWindow(offset);
+        } else {
+            long fileOffset = getFileOffset(offset);
+            RandomAccessFile file = getReadFile();
+            file.seek(fileOffset);
+            int size = file.readInt();
+            checkSampleSize(offset, size, writeOffset);
+            sample = mSamplePool.acquireSample(size);
+            sample.size = size;
+            sample.flags = file.readInt();
+            sample.timeUs = file.readLong();
+            sample.clearData();
+            sample.data.put(file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    fileOffset + SAMPLE_HEADER_LENGTH, sample.size));
+        }
+        offset += sample.size + SAMPLE_HEADER_LENGTH;
+        state.mCurrentOffset = offset;
+        return sample;
+    }
+
+    private SampleHolder readFromWindow(long offset) throws IOException {
+        MappedByteBuffer window = getReadWindow(offset, SAMPLE_HEADER_LENGTH);
+        int pos = (int) (offset - mReadWindowOffset);
+        int size = window.getInt(pos);
+        checkSampleSize(offset, size, mWriteOffset);
+        int flags = window.getInt(pos + 4);
+        long timeUs = window.getLong(pos + 8);
+        window = getReadWindow(offset, SAMPLE_HEADER_LENGTH + size);
+        pos = (int) (offset - mReadWindowOffset) + SAMPLE_HEADER_LENGTH;
         SampleHolder sample = mSamplePool.acquireSample(size);
         sample.size = size;
-        sample.flags = mAccessFile.readInt();
-        sample.timeUs = mAccessFile.readLong();
+        sample.flags = flags;
+        sample.timeUs = timeUs;
         sample.clearData();
-        sample.data.put(mAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                offset + SAMPLE_HEADER_LENGTH, sample.size));
-        offset += sample.size + SAMPLE_HEADER_LENGTH;
-        state.mCurrentOffset = offset;
+        window.limit(pos + size);
+        window.position(pos);
+        sample.data.put(window);
+        window.clear();
         return sample;
     }
 
+    private MappedByteBuffer getReadWindow(long offset, int length) throws IOException {
+        if (mReadWindow == null || offset < mReadWindowOffset
+                || offset + length > mReadWindowOffset + mReadWindow.capacity()) {
+            // Only the written part of the file can be mapped. Since the write offset is updated
+            // after samples are written, the sample at the offset is written completely.
+            long windowSize = Math.min(Math.max(READ_WINDOW_SIZE, length), mWriteOffset - offset);
+            if (mAllocation != null) {
+                // A mapping can't go over the end of the extent in the TimeshiftRing.
+                windowSize = Math.min(windowSize, mAllocation.getContiguousLength(offset));
+            }
+            if (windowSize < length) {
+                throw new IllegalStateException("Requested read for wrong range");
+            }
+            mReadWindow = getReadFile().getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    getFileOffset(offset), windowSize);
+            mReadWindowOffset = offset;
+        }
+        return mReadWindow;
+    }
+
+    // The header of a sample in a reclaimed SampleChunk can be overwritten by the other samples,
+    // so the size is checked before it is used.
+    private static void checkSampleSize(long offset, int size, long writeOffset) {
+        if (size < 0 || offset + SAMPLE_HEADER_LENGTH + size > writeOffset) {
+            throw new IllegalStateException("Requested read for wrong range");
+        }
+    }
+
     @VisibleForTesting
     protected void write(SampleHolder sample, IoState state)
             throws IOException {
-        if (mAccessFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+        if (mWriteFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
             throw new IllegalStateException("Requested write for wrong SampleChunk");
         }
 
-        mAccessFile.seek(mWriteOffset);
-        mAccessFile.writeInt(sample.size);
-        mAccessFile.writeInt(sample.flags);
-        mAccessFile.writeLong(sample.timeUs);
+        long fileOffset = allocate(sample.size + SAMPLE_HEADER_LENGTH);
+        addKeyFrameIfNeeded(sample, mWriteOffset);
+        mWriteFile.seek(fileOffset);
+        mWriteFile.writeInt(sample.size);
+        mWriteFile.writeInt(sample.flags);
+        mWriteFile.writeLong(sample.timeUs);
         sample.data.position(0).limit(sample.size);
-        mAccessFile.getChannel().position(mWriteOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
+        mWriteFile.getChannel().position(fileOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
         mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
         state.mCurrentOffset = mWriteOffset;
     }
 
+    // Writes samples and their headers by a single gathering write. Even indexed buffers of
+    // gatherBuffers are reusable header buffers, and odd indexed ones are filled here.
+    private long write(SampleHolder[] samples, ByteBuffer[] gatherBuffers, int count)
+            throws IOException {
+        if (mWriteFile == null || mNextChunk != null) {
+            throw new IllegalStateException("Requested write for wrong SampleChunk");
+        }
+        long size = 0;
+        for (int i = 0; i < count; ++i) {
+            SampleHolder sample = samples[i];
+            ByteBuffer header = gatherBuffers[i * 2];
+            header.clear();
+            header.putInt(sample.size).putInt(sample.flags).putLong(sample.timeUs).flip();
+            sample.data.position(0).limit(sample.size);
+            gatherBuffers[i * 2 + 1] = sample.data;
+            addKeyFrameIfNeeded(sample, mWriteOffset + size);
+            size += sample.size + SAMPLE_HEADER_LENGTH;
+        }
+        FileChannel channel = mWriteFile.getChannel().position(allocate(size));
+        long remaining = size;
+        while (remaining > 0) {
+            remaining -= channel.write(gatherBuffers, 0, count * 2);
+        }
+        mWriteOffset += size;
+        return size;
+    }
+
+    private void addKeyFrameIfNeeded(SampleHolder sample, long offset) {
+        if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            return;
+        }
+        // The array is replaced before the count is increased, so that the reader which reads
+        // the count first always finds the offsets in the array.
+        long[] keyFrameOffsets = mKeyFrameOffsets;
+        int count = mKeyFrameCount;
+        if (count == keyFrameOffsets.length) {
+            keyFrameOffsets = Arrays.copyOf(keyFrameOffsets, count * 2);
+        }
+        keyFrameOffsets[count] = offset;
+        mKeyFrameOffsets = keyFrameOffsets;
+        mKeyFrameCount = count + 1;
+    }
+
+    // Moves the read offset of the state to the next key frame in the SampleChunk. Returns
+    // false and moves the read offset to the end of the written samples if there is no key
+    // frame after the read offset.
+    private boolean seekToKeyFrame(IoState state) throws IOException {
+        if (!mIsReading || state.mChunk != this) {
+            throw new IllegalStateException("Requested read for wrong SampleChunk");
+        }
+        long offset = state.mCurrentOffset;
+        long writeOffset = mWriteOffset;
+        // Reads the count before the array. See addKeyFrameIfNeeded().
+        int keyFrameCount = mKeyFrameCount;
+        long[] keyFrameOffsets = mKeyFrameOffsets;
+        if (keyFrameOffsets != null) {
+            int index = Arrays.binarySearch(keyFrameOffsets, 0, keyFrameCount, offset);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            // A key frame can be indexed before it is written by a gathering write.
+            if (index < keyFrameCount && keyFrameOffsets[index] < writeOffset) {
+                state.mCurrentOffset = keyFrameOffsets[index];
+                return true;
+            }
+        } else {
+            // Reads only the headers of the samples.
+            RandomAccessFile file = getReadFile();
+            while (offset < writeOffset) {
+                file.seek(getFileOffset(offset));
+                int size = file.readInt();
+                int flags = file.readInt();
+                if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    state.mCurrentOffset = offset;
+                    return true;
+                }
+                offset += size + SAMPLE_HEADER_LENGTH;
+            }
+        }
+        state.mCurrentOffset = Math.max(offset, writeOffset);
+        return false;
+    }
+
+    // Returns the offset in the file where the given length of data is written at the end of the
+    // SampleChunk.
+    private long allocate(long length) throws IOException {
+        return mAllocation == null ? mWriteOffset : mAllocation.allocate(mWriteOffset, length);
+    }
+
+    private long getFileOffset(long offset) {
+        return mAllocation == null ? offset : mAllocation.getFileOffset(offset);
+    }
+
+    /**
+     * Returns whether the SampleChunk can be reclaimed by {@link #reclaim}.
+     */
+    boolean isReclaimable() {
+        return mAllocation != null && mWriteFinished && !mReclaimed;
+    }
+
+    /**
+     * Returns the space of a SampleChunk in a {@link TimeshiftRing} to the ring, even if the
+     * SampleChunk is being read. The reader skips the rest of the SampleChunk afterwards. Unlike
+     * {@link IoState#release}, the file is kept open for the reader.
+     */
+    void reclaim() {
+        if (!isReclaimable()) {
+            throw new IllegalStateException("Requested reclaim for wrong SampleChunk");
+        }
+        mReclaimed = true;
+        mAllocation.release();
+        mChunkCallback.onChunkDelete(this);
+    }
+
+    // Returns whether the SampleChunk is reclaimed, after the reads from it. A volatile read
+    // alone doesn't keep the plain reads of a sample from being reordered after it, so a volatile
+    // write comes first.
+    private boolean isReclaimedAfterRead() {
+        mReadFence = mWriteOffset;
+        return mReclaimed;
+    }
+
     private void release(boolean delete) {
         mWriteFinished = true;
         mIsReading = mIsWriting = false;
-        try {
-            if (mAccessFile != null) {
-                mAccessFile.close();
+        mReadWindow = null;
+        closeQuietly(mReadFile);
+        closeQuietly(mWriteFile);
+        mReadFile = mWriteFile = null;
+        if (delete && !mReclaimed) {
+            if (mAllocation != null) {
+                mAllocation.release();
+            } else {
+                mFile.delete();
             }
-        } catch (IOException e) {
-            // Since the SampleChunk will not be reused, ignore exception.
-        }
-        if (delete) {
-            mFile.delete();
             mChunkCallback.onChunkDelete(this);
         }
     }
@@ -21,34 +21,92 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
-import android.util.ArraySet;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.util.MimeTypes;
 import com.android.tv.common.SoftPreconditions;
+import com.android.tv.tuner.LatencyHistogram;
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer.BufferReason;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Handles all {@link SampleChunk} I/O operations.
- * An I/O dedicated thread handles all I/O operations for synchronization.
+ *
+ * <p>I/O operations are handled by dedicated threads, which are called lanes. Writes of all the
+ * tracks are handled by the write lane in order, and so are the creation and the eviction of
+ * {@link SampleChunk}s. Reads of each track are handled by the read lane of the track, so that a
+ * large write or a slow read of a track doesn't delay the reads of the other tracks. The read
+ * lanes of audio tracks run in a higher priority, since an audio underrun is more noticeable than
+ * a late video frame.
+ *
+ * <p>Samples of the selected tracks are read ahead of the playback by a time window, so that a
+ * short stall of the storage doesn't make the player rebuffer. The window grows when a slow read
+ * is observed, and shrinks back gradually while reads are fast.
  */
 public class SampleChunkIoHelper implements Handler.Callback {
     private static final String TAG = "SampleChunkIoHelper";
 
+    /**
+     * The default read mode for {@link SampleChunk}s.
+     */
+    public static final int DEFAULT_READ_MODE = SampleChunk.READ_MODE_MAPPED_WINDOW;
+
     private static final int MAX_READ_BUFFER_SAMPLES = 3;
     private static final int READ_RESCHEDULING_DELAY_MS = 10;
 
+    /**
+     * The default minimum duration of the samples which are read ahead for each track.
+     */
+    public static final long DEFAULT_MIN_READ_AHEAD_US = 2 * C.MICROS_PER_SECOND;
+
+    /**
+     * The default maximum duration of the samples which are read ahead for each track.
+     */
+    public static final long DEFAULT_MAX_READ_AHEAD_US = 5 * C.MICROS_PER_SECOND;
+
+    // The read-ahead window is kept this times larger than the slowest recent read.
+    private static final int READ_AHEAD_LATENCY_RATIO = 10;
+    // The read-ahead window is updated for every this number of reads.
+    private static final int READ_AHEAD_UPDATE_INTERVAL = 256;
+    // The read-ahead window shrinks by this at most for each update.
+    private static final long READ_AHEAD_SHRINK_STEP_US = 100 * 1000;
+    // Bounds the memory of the samples read ahead, e.g. for a video of a high frame rate.
+    private static final int MAX_READ_AHEAD_SAMPLES = 512;
+    // Other messages are handled after this number of samples are read for a track.
+    private static final int MAX_READS_PER_MESSAGE = 16;
+
+    // Writers are blocked until queued samples are written, if queued samples exceed this.
+    private static final long MAX_PENDING_WRITE_BYTES = 8L * 1024 * 1024;
+
+    private static final LatencyHistogram sReadLatency =
+            TunerMetrics.getHistogram(TunerMetrics.SAMPLE_IO_READ_LATENCY);
+    // The gauges are the sums over all the helpers.
+    private static final TunerMetrics.Gauge sPendingWriteBytes =
+            TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_PENDING_WRITE_BYTES);
+    private static final TunerMetrics.Gauge sPendingWriteSamples =
+            TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_PENDING_WRITE_SAMPLES);
+    private static final TunerMetrics.Gauge sReadAheadSamples =
+            TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_READ_AHEAD_SAMPLES);
+    private static final TunerMetrics.Counter sBlockedWrites =
+            TunerMetrics.getCounter(TunerMetrics.SAMPLE_IO_BLOCKED_WRITES);
+
     private static final int MSG_OPEN_READ = 1;
-    private static final int MSG_OPEN_WRITE = 2;
     private static final int MSG_CLOSE_READ = 3;
     private static final int MSG_CLOSE_WRITE = 4;
     private static final int MSG_READ = 5;
@@ -64,18 +122,40 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private final SamplePool mSamplePool;
     private final IoCallback mIoCallback;
 
+    // The write lane. Write operations and chunk eviction are handled here.
     private Handler mIoHandler;
+    // The read lane of each track, which is started when the track is selected for the first
+    // time. Created lanes are guarded by mReadHandlers.
+    private Handler[] mReadHandlers;
     private final ConcurrentLinkedQueue<SampleHolder> mReadSampleBuffers[];
     private final ConcurrentLinkedQueue<SampleHolder> mHandlerReadSampleBuffers[];
     private final long[] mWriteIndexEndPositionUs;
     private final long[] mWriteChunkEndPositionUs;
     private final SampleChunk.IoState[] mReadIoStates;
     private final SampleChunk.IoState[] mWriteIoStates;
-    private final Set<Integer> mSelectedTracks = new ArraySet<>();
+    // The start position of the SampleChunk which is being read, or Long.MAX_VALUE if the track
+    // is not selected, for each track. Chunks earlier than these can be evicted.
+    private final AtomicLongArray mReadStartPositionUs;
+    private final ConcurrentLinkedQueue<IoParams> mPendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong mPendingWriteBytes = new AtomicLong();
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+    private final List<ConditionVariable> mBlockedWriters = new ArrayList<>();
+    // The position of the last sample which is read by the I/O thread, and the position of the
+    // last sample which is taken by the reader, for each track.
+    private final long[] mLastReadPositionUs;
+    private final AtomicLongArray mLastTakenPositionUs;
+    private final LatencyHistogram mReadLatency = new LatencyHistogram();
+    private volatile long mMinReadAheadUs = DEFAULT_MIN_READ_AHEAD_US;
+    private volatile long mMaxReadAheadUs = DEFAULT_MAX_READ_AHEAD_US;
+    // The read-ahead window of each track, which is accessed only by its read lane.
+    private final long[] mReadAheadUs;
+    private final long[] mRecentMaxReadLatencyUs;
+    private final int[] mRecentReadCount;
     private long mBufferDurationUs = 0;
     private boolean mWriteEnded;
-    private boolean mErrorNotified;
-    private boolean mFinished;
+    private volatile boolean mErrorNotified;
+    private final AtomicBoolean mEosNotified = new AtomicBoolean();
+    private volatile boolean mFinished;
 
     /**
      * A Callback for I/O events.
@@ -126,6 +206,24 @@ public class SampleChunkIoHelper implements Handler.Callback {
     public SampleChunkIoHelper(List<String> ids, List<MediaFormat> mediaFormats,
             @BufferReason int bufferReason, BufferManager bufferManager, SamplePool samplePool,
             IoCallback ioCallback) {
+        this(ids, mediaFormats, bufferReason, bufferManager, samplePool, ioCallback,
+                DEFAULT_READ_MODE);
+    }
+
+    /**
+     * Creates {@link SampleChunk} I/O handler.
+     *
+     * @param ids track names
+     * @param mediaFormats {@link android.media.MediaFormat} for each track
+     * @param bufferReason reason to be buffered
+     * @param bufferManager manager of {@link SampleChunk} collections
+     * @param samplePool allocator for a sample
+     * @param ioCallback listeners for I/O events
+     * @param readMode how samples are read from {@link SampleChunk}
+     */
+    public SampleChunkIoHelper(List<String> ids, List<MediaFormat> mediaFormats,
+            @BufferReason int bufferReason, BufferManager bufferManager, SamplePool samplePool,
+            IoCallback ioCallback, @SampleChunk.ReadMode int readMode) {
         mTrackCount = ids.size();
         mIds = ids;
         mMediaFormats = mediaFormats;
@@ -140,6 +238,12 @@ public class SampleChunkIoHelper implements Handler.Callback {
         mWriteChunkEndPositionUs = new long[mTrackCount];
         mReadIoStates = new SampleChunk.IoState[mTrackCount];
         mWriteIoStates = new SampleChunk.IoState[mTrackCount];
+        mLastReadPositionUs = new long[mTrackCount];
+        mLastTakenPositionUs = new AtomicLongArray(mTrackCount);
+        mReadStartPositionUs = new AtomicLongArray(mTrackCount);
+        mReadAheadUs = new long[mTrackCount];
+        mRecentMaxReadLatencyUs = new long[mTrackCount];
+        mRecentReadCount = new int[mTrackCount];
 
         // Small chunk duration for live playback will give more fine grained storage usage
         // and eviction handling for trickplay.
@@ -151,7 +255,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
             mWriteIndexEndPositionUs[i] = RecordingSampleBuffer.MIN_SEEK_DURATION_US;
             mWriteChunkEndPositionUs[i] = mSampleChunkDurationUs;
             mReadIoStates[i] = new SampleChunk.IoState();
+            mReadIoStates[i].setReadMode(readMode);
             mWriteIoStates[i] = new SampleChunk.IoState();
+            mReadStartPositionUs.set(i, Long.MAX_VALUE);
+            mReadAheadUs[i] = DEFAULT_MIN_READ_AHEAD_US;
         }
     }
 
@@ -161,17 +268,29 @@ public class SampleChunkIoHelper implements Handler.Callback {
      * @throws IOException
      */
     public void init() throws IOException {
-        HandlerThread handlerThread = new HandlerThread(TAG);
+        HandlerThread handlerThread = new HandlerThread(TAG + "-write");
         handlerThread.start();
         mIoHandler = new Handler(handlerThread.getLooper(), this);
+        mReadHandlers = new Handler[mTrackCount];
         if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDED_PLAYBACK) {
             for (int i = 0; i < mTrackCount; ++i) {
                 mBufferManager.loadTrackFromStorage(mIds.get(i), mSamplePool);
             }
             mWriteEnded = true;
         } else {
+            // The first chunks are created before any read is opened by the read lanes. The write
+            // lane accesses the write states only after this.
             for (int i = 0; i < mTrackCount; ++i) {
-                mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_OPEN_WRITE, i));
+                doOpenWrite(i);
+            }
+            if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDING
+                    && mTrackCount > 0) {
+                // Saves track information along with the index files, so that a recording
+                // which is not finished gracefully can be played.
+                List<BufferManager.TrackFormat> audios = new LinkedList<>();
+                List<BufferManager.TrackFormat> videos = new LinkedList<>();
+                getTrackFormats(audios, videos, C.UNKNOWN_TIME_US);
+                mBufferManager.writeTrackInfoFiles(audios, videos);
             }
         }
     }
@@ -184,15 +303,64 @@ public class SampleChunkIoHelper implements Handler.Callback {
      */
     public SampleHolder readSample(int index) {
         SampleHolder sample = mReadSampleBuffers[index].poll();
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        if (sample != null) {
+            sReadAheadSamples.add(-1);
+            mLastTakenPositionUs.set(index, sample.timeUs);
+        }
+        // The lane is started by openRead(), which is called from this thread.
+        Handler handler = mReadHandlers[index];
+        handler.sendMessage(handler.obtainMessage(MSG_READ, index));
         return sample;
     }
 
     /**
-     * Writes a sample.
+     * Sets the range of the duration of the samples which are read ahead for each track. The
+     * duration adapts to the read latency in the range.
+     *
+     * @param minReadAheadUs the duration which is read ahead while reads are fast
+     * @param maxReadAheadUs the duration which is read ahead at most
+     */
+    public void setReadAheadRange(final long minReadAheadUs, final long maxReadAheadUs) {
+        SoftPreconditions.checkArgument(minReadAheadUs <= maxReadAheadUs);
+        mMinReadAheadUs = minReadAheadUs;
+        mMaxReadAheadUs = maxReadAheadUs;
+        for (int i = 0; i < mTrackCount; ++i) {
+            final int index = i;
+            Handler handler = getReadHandler(index);
+            if (handler == null) {
+                // The window is clamped when the lane is started.
+                continue;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mReadAheadUs[index] = Math.max(minReadAheadUs,
+                            Math.min(mReadAheadUs[index], maxReadAheadUs));
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the latencies of the sample reads from storage, e.g. to find the cause of
+     * rebuffering.
+     */
+    public LatencyHistogram getReadLatency() {
+        return mReadLatency;
+    }
+
+    /**
+     * Writes a sample. The sample is queued, and queued samples are written in a batch by the I/O
+     * thread. {@code conditionVariable} is opened as soon as the sample is queued, unless too many
+     * samples are queued already. In that case, it is opened after the queued samples are written.
+     *
+     * <p>The payload is not copied. The buffer of {@code sample} is taken over by the queued
+     * sample, and {@code sample} gets a buffer from the {@link SamplePool} which is large enough
+     * for a sample of the same size. So the caller can reuse {@code sample} once
+     * {@code conditionVariable} is opened, but should not keep a reference to its old buffer.
      *
      * @param index track index
-     * @param sample to write
+     * @param sample to write, whose buffer is exchanged
      * @param conditionVariable which will be wait until the write is finished
      * @throws IOException
      */
@@ -201,9 +369,30 @@ public class SampleChunkIoHelper implements Handler.Callback {
         if (mErrorNotified) {
             throw new IOException("Storage I/O error happened");
         }
+        SampleHolder queuedSample = mSamplePool.acquireSample(sample.size);
+        queuedSample.size = sample.size;
+        queuedSample.flags = sample.flags;
+        queuedSample.timeUs = sample.timeUs;
+        ByteBuffer data = queuedSample.data;
+        data.clear();
+        queuedSample.data = sample.data;
+        sample.data = data;
+        long pendingWriteBytes = mPendingWriteBytes.addAndGet(sample.size);
+        sPendingWriteBytes.add(sample.size);
+        sPendingWriteSamples.add(1);
+        boolean blocked = pendingWriteBytes > MAX_PENDING_WRITE_BYTES;
+        if (blocked) {
+            sBlockedWrites.increment();
+        }
         conditionVariable.close();
-        IoParams params = new IoParams(index, 0, sample, conditionVariable, null);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_WRITE, params));
+        mPendingWrites.offer(
+                new IoParams(index, 0, queuedSample, blocked ? conditionVariable : null, null));
+        if (!mWriteScheduled.getAndSet(true)) {
+            mIoHandler.sendEmptyMessage(MSG_WRITE);
+        }
+        if (!blocked) {
+            conditionVariable.open();
+        }
     }
 
     /**
@@ -216,7 +405,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
         // Old mReadSampleBuffers may have a pending read.
         mReadSampleBuffers[index] = new ConcurrentLinkedQueue<>();
         IoParams params = new IoParams(index, positionUs, null, null, mReadSampleBuffers[index]);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_OPEN_READ, params));
+        Handler handler = getOrStartReadHandler(index);
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_OPEN_READ, params));
+        }
     }
 
     /**
@@ -225,7 +417,45 @@ public class SampleChunkIoHelper implements Handler.Callback {
      * @param index track index
      */
     public void closeRead(int index) {
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_CLOSE_READ, index));
+        Handler handler = getReadHandler(index);
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(MSG_CLOSE_READ, index));
+        }
+    }
+
+    private Handler getReadHandler(int index) {
+        synchronized (mReadHandlers) {
+            return mReadHandlers[index];
+        }
+    }
+
+    // Returns null if the I/O is already released.
+    private Handler getOrStartReadHandler(int index) {
+        synchronized (mReadHandlers) {
+            if (mReadHandlers[index] == null && !mFinished) {
+                HandlerThread readThread = new HandlerThread(TAG + "-read-" + index,
+                        MimeTypes.isAudio(mMediaFormats.get(index).mimeType)
+                                ? Process.THREAD_PRIORITY_AUDIO
+                                : Process.THREAD_PRIORITY_DEFAULT);
+                readThread.start();
+                mReadAheadUs[index] = Math.max(mMinReadAheadUs,
+                        Math.min(mReadAheadUs[index], mMaxReadAheadUs));
+                mReadHandlers[index] = new Handler(readThread.getLooper(), this);
+            }
+            return mReadHandlers[index];
+        }
+    }
+
+    private List<Handler> getStartedReadHandlers() {
+        List<Handler> handlers = new ArrayList<>();
+        synchronized (mReadHandlers) {
+            for (Handler handler : mReadHandlers) {
+                if (handler != null) {
+                    handlers.add(handler);
+                }
+            }
+        }
+        return handlers;
     }
 
     /**
@@ -243,10 +473,29 @@ public class SampleChunkIoHelper implements Handler.Callback {
         if (mIoHandler == null) {
             return;
         }
-        // Finishes all I/O operations.
-        ConditionVariable conditionVariable = new ConditionVariable();
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_RELEASE, conditionVariable));
-        conditionVariable.block();
+        // Finishes all I/O operations. The write lane is finished first, so that the read lanes
+        // don't wait for samples any more.
+        finishLane(mIoHandler);
+        List<Handler> readHandlers;
+        synchronized (mReadHandlers) {
+            // No read lane is started after this.
+            mFinished = true;
+            readHandlers = getStartedReadHandlers();
+        }
+        for (Handler handler : readHandlers) {
+            finishLane(handler);
+        }
+        for (ConcurrentLinkedQueue<SampleHolder> readSampleBuffer : mHandlerReadSampleBuffers) {
+            if (readSampleBuffer == null) {
+                continue;
+            }
+            // The samples which are left are not taken any more.
+            SampleHolder sample;
+            while ((sample = readSampleBuffer.poll()) != null) {
+                sReadAheadSamples.add(-1);
+                mSamplePool.releaseSample(sample);
+            }
+        }
 
         for (int i = 0; i < mTrackCount; ++i) {
             mBufferManager.unregisterChunkEvictedListener(mIds.get(i));
@@ -256,38 +505,60 @@ public class SampleChunkIoHelper implements Handler.Callback {
                 // Saves meta information for recording.
                 List<BufferManager.TrackFormat> audios = new LinkedList<>();
                 List<BufferManager.TrackFormat> videos = new LinkedList<>();
-                for (int i = 0; i < mTrackCount; ++i) {
-                    android.media.MediaFormat format =
-                            mMediaFormats.get(i).getFrameworkMediaFormatV16();
-                    format.setLong(android.media.MediaFormat.KEY_DURATION, mBufferDurationUs);
-                    if (MimeTypes.isAudio(mMediaFormats.get(i).mimeType)) {
-                        audios.add(new BufferManager.TrackFormat(mIds.get(i), format));
-                    } else if (MimeTypes.isVideo(mMediaFormats.get(i).mimeType)) {
-                        videos.add(new BufferManager.TrackFormat(mIds.get(i), format));
-                    }
-                }
+                getTrackFormats(audios, videos, mBufferDurationUs);
                 mBufferManager.writeMetaFiles(audios, videos);
             }
         } finally {
             mBufferManager.release();
             mIoHandler.getLooper().quitSafely();
+            for (Handler handler : readHandlers) {
+                handler.getLooper().quitSafely();
+            }
+        }
+        if (mReadLatency.getCount() > 0) {
+            Log.i(TAG, "Read latency: " + mReadLatency);
+        }
+    }
+
+    private void getTrackFormats(List<BufferManager.TrackFormat> audios,
+            List<BufferManager.TrackFormat> videos, long durationUs) {
+        for (int i = 0; i < mTrackCount; ++i) {
+            android.media.MediaFormat format = mMediaFormats.get(i).getFrameworkMediaFormatV16();
+            if (durationUs != C.UNKNOWN_TIME_US) {
+                format.setLong(android.media.MediaFormat.KEY_DURATION, durationUs);
+            }
+            if (MimeTypes.isAudio(mMediaFormats.get(i).mimeType)) {
+                audios.add(new BufferManager.TrackFormat(mIds.get(i), format));
+            } else if (MimeTypes.isVideo(mMediaFormats.get(i).mimeType)) {
+                videos.add(new BufferManager.TrackFormat(mIds.get(i), format));
+            }
         }
     }
 
+    private static void finishLane(Handler handler) {
+        ConditionVariable conditionVariable = new ConditionVariable();
+        handler.sendMessage(handler.obtainMessage(MSG_RELEASE, conditionVariable));
+        conditionVariable.block();
+    }
+
     @Override
     public boolean handleMessage(Message message) {
+        if (message.what == MSG_RELEASE) {
+            doRelease(message.getTarget(), (ConditionVariable) message.obj);
+            return true;
+        }
         if (mFinished) {
             return true;
         }
-        releaseEvictedChunks();
+        if (message.getTarget() == mIoHandler) {
+            // Since only write will increase storage, eviction will be handled in the write lane.
+            releaseEvictedChunks();
+        }
         try {
             switch (message.what) {
                 case MSG_OPEN_READ:
                     doOpenRead((IoParams) message.obj);
                     return true;
-                case MSG_OPEN_WRITE:
-                    doOpenWrite((int) message.obj);
-                    return true;
                 case MSG_CLOSE_READ:
                     doCloseRead((int) message.obj);
                     return true;
@@ -298,11 +569,7 @@ public class SampleChunkIoHelper implements Handler.Callback {
                     doRead((int) message.obj);
                     return true;
                 case MSG_WRITE:
-                    doWrite((IoParams) message.obj);
-                    // Since only write will increase storage, eviction will be handled here.
-                    return true;
-                case MSG_RELEASE:
-                    doRelease((ConditionVariable) message.obj);
+                    doWrite();
                     return true;
             }
         } catch (IOException e) {
@@ -316,25 +583,31 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private void doOpenRead(IoParams params) throws IOException {
         int index = params.index;
-        mIoHandler.removeMessages(MSG_READ, index);
-        Pair<SampleChunk, Integer> readPosition =
-                mBufferManager.getReadFile(mIds.get(index), params.positionUs);
-        if (readPosition == null) {
-            String errorMessage = "Chunk ID:" + mIds.get(index) + " pos:" + params.positionUs
-                    + "is not found";
-            SoftPreconditions.checkNotNull(readPosition, TAG, errorMessage);
-            throw new IOException(errorMessage);
-        }
-        mSelectedTracks.add(index);
-        mReadIoStates[index].openRead(readPosition.first, (long) readPosition.second);
+        mReadHandlers[index].removeMessages(MSG_READ, index);
+        // The found chunk is marked as being read before the write lane can evict it.
+        synchronized (mBufferManager) {
+            Pair<SampleChunk, Integer> readPosition =
+                    mBufferManager.getReadFile(mIds.get(index), params.positionUs);
+            if (readPosition == null) {
+                String errorMessage = "Chunk ID:" + mIds.get(index) + " pos:" + params.positionUs
+                        + "is not found";
+                SoftPreconditions.checkNotNull(readPosition, TAG, errorMessage);
+                throw new IOException(errorMessage);
+            }
+            mReadIoStates[index].openRead(readPosition.first, (long) readPosition.second);
+            mReadStartPositionUs.set(index, mReadIoStates[index].getStartPositionUs());
+        }
+        mLastReadPositionUs[index] = C.UNKNOWN_TIME_US;
+        mLastTakenPositionUs.set(index, C.UNKNOWN_TIME_US);
         if (mHandlerReadSampleBuffers[index] != null) {
             SampleHolder sample;
             while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
+                sReadAheadSamples.add(-1);
                 mSamplePool.releaseSample(sample);
             }
         }
         mHandlerReadSampleBuffers[index] = params.readSampleBuffer;
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        mReadHandlers[index].sendMessage(mReadHandlers[index].obtainMessage(MSG_READ, index));
     }
 
     private void doOpenWrite(int index) throws IOException {
@@ -344,118 +617,244 @@ public class SampleChunkIoHelper implements Handler.Callback {
     }
 
     private void doCloseRead(int index) {
-        mSelectedTracks.remove(index);
+        mReadStartPositionUs.set(index, Long.MAX_VALUE);
         if (mHandlerReadSampleBuffers[index] != null) {
             SampleHolder sample;
             while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
+                sReadAheadSamples.add(-1);
                 mSamplePool.releaseSample(sample);
             }
         }
-        mIoHandler.removeMessages(MSG_READ, index);
+        mReadHandlers[index].removeMessages(MSG_READ, index);
     }
 
     private void doRead(int index) throws IOException {
-        mIoHandler.removeMessages(MSG_READ, index);
-        if (mHandlerReadSampleBuffers[index].size() >= MAX_READ_BUFFER_SAMPLES) {
+        Handler handler = mReadHandlers[index];
+        handler.removeMessages(MSG_READ, index);
+        if (isReadAheadFull(index)) {
             // If enough samples are buffered, try again few moments later hoping that
             // buffered samples are consumed.
-            mIoHandler.sendMessageDelayed(
-                    mIoHandler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
-        } else {
-            if (mReadIoStates[index].isReadFinished()) {
-                for (int i = 0; i < mTrackCount; ++i) {
-                    if (!mReadIoStates[i].isReadFinished()) {
-                        return;
-                    }
-                }
-                mIoCallback.onIoReachedEos();
-                return;
-            }
-            SampleHolder sample = mReadIoStates[index].read();
-            if (sample != null) {
-                mHandlerReadSampleBuffers[index].offer(sample);
+            handler.sendMessageDelayed(
+                    handler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
+            return;
+        }
+        if (mReadIoStates[index].isReadFinished()) {
+            notifyEosIfReadFinished();
+            return;
+        }
+        for (int i = 0; i < MAX_READS_PER_MESSAGE; ++i) {
+            long readStartTimeNs = SystemClock.elapsedRealtimeNanos();
+            SampleHolder sample;
+            if (!mBufferManager.isKeyFrameOnlyRead()) {
+                sample = mReadIoStates[index].read();
+            } else if (MimeTypes.isVideo(mMediaFormats.get(index).mimeType)) {
+                sample = mReadIoStates[index].readKeyFrame();
             } else {
+                // The other tracks are not read until key frame only reads are finished.
+                sample = null;
+            }
+            if (sample == null) {
                 // Read reached write but write is not finished yet --- wait a few moments to
                 // see if another sample is written.
-                mIoHandler.sendMessageDelayed(
-                        mIoHandler.obtainMessage(MSG_READ, index),
-                        READ_RESCHEDULING_DELAY_MS);
+                mReadStartPositionUs.set(index, mReadIoStates[index].getStartPositionUs());
+                handler.sendMessageDelayed(
+                        handler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
+                return;
+            }
+            addReadLatency(index, (SystemClock.elapsedRealtimeNanos() - readStartTimeNs) / 1000);
+            mHandlerReadSampleBuffers[index].offer(sample);
+            sReadAheadSamples.add(1);
+            mLastReadPositionUs[index] = sample.timeUs;
+            if (isReadAheadFull(index) || mReadIoStates[index].isReadFinished()) {
+                break;
             }
         }
+        // The read can move to the next chunk, which allows the previous chunks to be evicted.
+        mReadStartPositionUs.set(index, mReadIoStates[index].getStartPositionUs());
+        // Keeps reading ahead after the other pending messages are handled.
+        handler.sendMessage(handler.obtainMessage(MSG_READ, index));
     }
 
-    private void doWrite(IoParams params) throws IOException {
+    private boolean isReadAheadFull(int index) {
+        int size = mHandlerReadSampleBuffers[index].size();
+        if (mBufferManager.isKeyFrameOnlyRead()) {
+            // A few key frames are enough, since the read position is moved by frequent seeks.
+            return size >= MAX_READ_BUFFER_SAMPLES;
+        }
+        if (size >= MAX_READ_AHEAD_SAMPLES) {
+            return true;
+        }
+        long takenPositionUs = mLastTakenPositionUs.get(index);
+        if (takenPositionUs == C.UNKNOWN_TIME_US) {
+            // Nothing is taken since the read is opened, e.g. right after a seek. Reads only a few
+            // samples until the playback starts.
+            return size >= MAX_READ_BUFFER_SAMPLES;
+        }
+        return mLastReadPositionUs[index] - takenPositionUs >= mReadAheadUs[index];
+    }
+
+    // Adapts the read-ahead window of the track to the slowest read of its recent reads.
+    private void addReadLatency(int index, long latencyUs) {
+        mReadLatency.add(latencyUs);
+        sReadLatency.add(latencyUs);
+        mRecentMaxReadLatencyUs[index] = Math.max(mRecentMaxReadLatencyUs[index], latencyUs);
+        if (++mRecentReadCount[index] < READ_AHEAD_UPDATE_INTERVAL
+                && mRecentMaxReadLatencyUs[index] * READ_AHEAD_LATENCY_RATIO
+                        <= mReadAheadUs[index]) {
+            return;
+        }
+        long targetUs = mRecentMaxReadLatencyUs[index] * READ_AHEAD_LATENCY_RATIO;
+        long readAheadUs = Math.max(targetUs, mReadAheadUs[index] - READ_AHEAD_SHRINK_STEP_US);
+        readAheadUs = Math.max(mMinReadAheadUs, Math.min(readAheadUs, mMaxReadAheadUs));
+        if (readAheadUs != mReadAheadUs[index]) {
+            Log.i(TAG, "Read-ahead window of " + mIds.get(index) + ": "
+                    + mReadAheadUs[index] / 1000 + "ms -> " + readAheadUs / 1000
+                    + "ms, read latency: " + mReadLatency);
+            mReadAheadUs[index] = readAheadUs;
+        }
+        mRecentMaxReadLatencyUs[index] = 0;
+        mRecentReadCount[index] = 0;
+    }
+
+    private void doWrite() throws IOException {
+        mWriteScheduled.set(false);
         try {
-            if (mWriteEnded) {
-                SoftPreconditions.checkState(false);
-                return;
-            }
-            int index = params.index;
-            SampleHolder sample = params.sample;
-            SampleChunk nextChunk = null;
-            if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
-                if (sample.timeUs > mBufferDurationUs) {
-                    mBufferDurationUs = sample.timeUs;
-                }
-                if (sample.timeUs >= mWriteIndexEndPositionUs[index]) {
-                    SampleChunk currentChunk = sample.timeUs >= mWriteChunkEndPositionUs[index] ?
-                            null : mWriteIoStates[params.index].getChunk();
-                    int currentOffset = (int) mWriteIoStates[params.index].getOffset();
-                    nextChunk = mBufferManager.createNewWriteFileIfNeeded(
-                            mIds.get(index), mWriteIndexEndPositionUs[index], mSamplePool,
-                            currentChunk, currentOffset);
-                    mWriteIndexEndPositionUs[index] =
-                            ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1) *
-                                    RecordingSampleBuffer.MIN_SEEK_DURATION_US;
-                    if (nextChunk != null) {
-                        mWriteChunkEndPositionUs[index] =
-                                ((sample.timeUs / mSampleChunkDurationUs) + 1)
-                                        * mSampleChunkDurationUs;
-                    }
+            IoParams params;
+            while ((params = mPendingWrites.poll()) != null) {
+                removePendingWrite(params);
+                if (params.conditionVariable != null) {
+                    mBlockedWriters.add(params.conditionVariable);
                 }
+                queueWrite(params);
+            }
+            for (int i = 0; i < mTrackCount; ++i) {
+                flushWrite(i);
             }
-            mWriteIoStates[params.index].write(params.sample, nextChunk);
         } finally {
-            params.conditionVariable.open();
+            releaseBlockedWriters();
+        }
+    }
+
+    private void removePendingWrite(IoParams params) {
+        mPendingWriteBytes.addAndGet(-params.sample.size);
+        sPendingWriteBytes.add(-params.sample.size);
+        sPendingWriteSamples.add(-1);
+    }
+
+    private void flushWrite(int index) throws IOException {
+        long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
+        long size = mWriteIoStates[index].flushWrite();
+        if (size > 0) {
+            mBufferManager.addWriteStat(size,
+                    SystemClock.elapsedRealtimeNanos() - writeStartTimeNs);
         }
     }
 
+    private void releaseBlockedWriters() {
+        for (ConditionVariable conditionVariable : mBlockedWriters) {
+            conditionVariable.open();
+        }
+        mBlockedWriters.clear();
+    }
+
+    private void queueWrite(IoParams params) throws IOException {
+        if (mWriteEnded) {
+            SoftPreconditions.checkState(false);
+            mSamplePool.releaseSample(params.sample);
+            return;
+        }
+        int index = params.index;
+        SampleHolder sample = params.sample;
+        SampleChunk nextChunk = null;
+        if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            if (sample.timeUs > mBufferDurationUs) {
+                mBufferDurationUs = sample.timeUs;
+            }
+            if (sample.timeUs >= mWriteIndexEndPositionUs[index]) {
+                // A reader can open the new index entry or the next SampleChunk as soon as they
+                // are added, so the samples before them are written first.
+                flushWrite(index);
+                SampleChunk currentChunk = sample.timeUs >= mWriteChunkEndPositionUs[index] ?
+                        null : mWriteIoStates[index].getChunk();
+                int currentOffset = (int) mWriteIoStates[index].getOffset();
+                nextChunk = mBufferManager.createNewWriteFileIfNeeded(
+                        mIds.get(index), mWriteIndexEndPositionUs[index], mSamplePool,
+                        currentChunk, currentOffset);
+                mWriteIndexEndPositionUs[index] =
+                        ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1) *
+                                RecordingSampleBuffer.MIN_SEEK_DURATION_US;
+                if (nextChunk != null) {
+                    mWriteChunkEndPositionUs[index] =
+                            ((sample.timeUs / mSampleChunkDurationUs) + 1)
+                                    * mSampleChunkDurationUs;
+                }
+            }
+        }
+        mWriteIoStates[index].queueWrite(sample, nextChunk);
+    }
+
     private void doCloseWrite() throws IOException {
         if (mWriteEnded) {
             return;
         }
+        // Writes the samples which are queued before the write is closed.
+        doWrite();
         mWriteEnded = true;
-        boolean readFinished = true;
         for (int i = 0; i < mTrackCount; ++i) {
-            readFinished = readFinished && mReadIoStates[i].isReadFinished();
             mWriteIoStates[i].closeWrite();
         }
-        if (readFinished) {
+        notifyEosIfReadFinished();
+    }
+
+    // Called from any lane. The lanes can see all the reads finished at the same time, so EOS is
+    // notified only by the first of them.
+    private void notifyEosIfReadFinished() {
+        for (int i = 0; i < mTrackCount; ++i) {
+            if (!mReadIoStates[i].isReadFinished()) {
+                return;
+            }
+        }
+        if (mEosNotified.compareAndSet(false, true)) {
             mIoCallback.onIoReachedEos();
         }
     }
 
-    private void doRelease(ConditionVariable conditionVariable) {
-        mIoHandler.removeCallbacksAndMessages(null);
+    private void doRelease(Handler handler, ConditionVariable conditionVariable) {
+        handler.removeCallbacksAndMessages(null);
         mFinished = true;
+        if (handler == mIoHandler) {
+            IoParams params;
+            while ((params = mPendingWrites.poll()) != null) {
+                removePendingWrite(params);
+                mSamplePool.releaseSample(params.sample);
+                if (params.conditionVariable != null) {
+                    params.conditionVariable.open();
+                }
+            }
+        }
         conditionVariable.open();
-        mSelectedTracks.clear();
     }
 
     private void releaseEvictedChunks() {
-        if (mBufferReason != RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK
-                || mSelectedTracks.isEmpty()) {
+        if (mBufferReason != RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK) {
             return;
         }
         long currentStartPositionUs = Long.MAX_VALUE;
-        for (int trackIndex : mSelectedTracks) {
-            currentStartPositionUs = Math.min(currentStartPositionUs,
-                    mReadIoStates[trackIndex].getStartPositionUs());
-        }
         for (int i = 0; i < mTrackCount; ++i) {
-            long evictEndPositionUs = Math.min(mBufferManager.getStartPositionUs(mIds.get(i)),
-                    currentStartPositionUs);
-            mBufferManager.evictChunks(mIds.get(i), evictEndPositionUs);
+            currentStartPositionUs =
+                    Math.min(currentStartPositionUs, mReadStartPositionUs.get(i));
+        }
+        if (currentStartPositionUs == Long.MAX_VALUE) {
+            // No track is selected.
+            return;
+        }
+        // The read lanes can't open the chunks which are being evicted. See doOpenRead().
+        synchronized (mBufferManager) {
+            for (int i = 0; i < mTrackCount; ++i) {
+                long evictEndPositionUs = Math.min(
+                        mBufferManager.getStartPositionUs(mIds.get(i)), currentStartPositionUs);
+                mBufferManager.evictChunks(mIds.get(i), evictEndPositionUs);
+            }
         }
     }
 }
\ No newline at end of file
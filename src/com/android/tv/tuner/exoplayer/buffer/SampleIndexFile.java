@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An index file of the key sample positions of a recorded track.
+ *
+ * <p>The file consists of a header and fixed-size records of the index entries which are
+ * appended by {@link Writer} while recording, so the index of a recording survives even when the
+ * recording is not finished gracefully. {@link Reader} maps the file into memory and searches the
+ * entries in place, so opening a long recording doesn't need to load the whole index.
+ *
+ * <p>The header consists of the magic number, the version of the format, the size of a record
+ * and a reserved field, which are 4-byte big-endian integers. A record consists of the position
+ * of a key sample in microseconds, the start position of the {@link SampleChunk} which holds the
+ * sample, and the offset of the sample in the {@link SampleChunk}.
+ */
+public class SampleIndexFile {
+    /**
+     * The suffix of the name of an index file. The legacy index files which are written at the
+     * end of a recording have {@code .idx} or {@code .idx2} suffixes.
+     */
+    public static final String FILE_SUFFIX = ".idx3";
+
+    private static final int MAGIC = 0x54564958; // "TVIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 8 + 8 + 4;
+
+    private SampleIndexFile() { }
+
+    /**
+     * Appends index entries to an index file.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel mChannel;
+        private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+        private int mCount;
+
+        /**
+         * Creates an empty index file, replacing the existing one.
+         */
+        public Writer(File file) throws IOException {
+            mChannel = new FileOutputStream(file).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).flip();
+            try {
+                writeFully(header);
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Appends an index entry. Entries should be appended in the order of their positions.
+         * A single record is written at once, so it is not left in a buffer when the process
+         * dies.
+         *
+         * @param positionUs the position of the key sample
+         * @param basePositionUs the start position of the {@link SampleChunk} of the sample
+         * @param offset the offset of the sample in the {@link SampleChunk}
+         */
+        public void append(long positionUs, long basePositionUs, int offset) throws IOException {
+            mRecord.clear();
+            mRecord.putLong(positionUs).putLong(basePositionUs).putInt(offset).flip();
+            writeFully(mRecord);
+            ++mCount;
+        }
+
+        /**
+         * Returns the number of the appended entries.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Flushes the index file to the storage device and closes it.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                mChannel.force(false);
+            } finally {
+                mChannel.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads index entries from a memory-mapped index file.
+     */
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private int mSize;
+
+        /**
+         * Maps an index file into memory. A partially written record at the end of the file is
+         * ignored.
+         *
+         * @throws IOException if the file can't be read or it is not a valid index file
+         */
+        public static Reader open(File file) throws IOException {
+            try (RandomAccessFile accessFile = new RandomAccessFile(file, "r");
+                    FileChannel channel = accessFile.getChannel()) {
+                long length = channel.size();
+                if (length < HEADER_SIZE) {
+                    throw new IOException("Index file is too short: " + file);
+                }
+                // The mapping stays valid after the channel is closed.
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != RECORD_SIZE) {
+                    throw new IOException("Invalid index file: " + file);
+                }
+                long size = (length - HEADER_SIZE) / RECORD_SIZE;
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Index file is too long: " + file);
+                }
+                return new Reader(buffer, (int) size);
+            }
+        }
+
+        private Reader(ByteBuffer buffer, int size) {
+            mBuffer = buffer;
+            mSize = size;
+        }
+
+        /**
+         * Returns the number of the entries.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Ignores the entries from {@code size}, e.g. when the entries are found to refer to the
+         * data which was not written by a recording which did not finish gracefully.
+         */
+        public void truncate(int size) {
+            if (size < 0 || size > mSize) {
+                throw new IndexOutOfBoundsException("Invalid size: " + size);
+            }
+            mSize = size;
+        }
+
+        /**
+         * Returns the position of the key sample of the {@code index}-th entry.
+         */
+        public long getPositionUs(int index) {
+            return mBuffer.getLong(getRecordOffset(index));
+        }
+
+        /**
+         * Returns the start position of the {@link SampleChunk} of the {@code index}-th entry.
+         */
+        public long getBasePositionUs(int index) {
+            return mBuffer.getLong(getRecordOffset(index) + 8);
+        }
+
+        /**
+         * Returns the offset in the {@link SampleChunk} of the {@code index}-th entry.
+         */
+        public int getOffset(int index) {
+            return mBuffer.getInt(getRecordOffset(index) + 16);
+        }
+
+        /**
+         * Returns the index of the last entry whose position is not greater than
+         * {@code positionUs}, or {@code -1} if there is no such entry.
+         */
+        public int floorIndex(long positionUs) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (getPositionUs(mid) <= positionUs) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        private int getRecordOffset(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Invalid index: " + index);
+            }
+            return HEADER_SIZE + index * RECORD_SIZE;
+        }
+    }
+}
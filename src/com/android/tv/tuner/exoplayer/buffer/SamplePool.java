@@ -18,54 +18,232 @@ package com.android.tv.tuner.exoplayer.buffer;
 
 import com.google.android.exoplayer.SampleHolder;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Pool of samples to recycle ByteBuffers as much as possible.
+ *
+ * <p>Samples are segregated by the capacity of their buffers into power-of-two size classes, and
+ * each class keeps its samples in a lock-free stack. A sample is acquired from the class of the
+ * requested size, or from the nearest larger class which is not empty and at most
+ * {@link #MAX_BORROW_DISTANCE} classes above, and the buffer of a newly
+ * allocated sample is rounded up to the size of its class so that it can be reused for any sample
+ * of the class.
+ *
+ * <p>The total capacity of the retained samples is bounded. A sample released over the bound is
+ * dropped and left to the garbage collector.
  */
 public class SamplePool {
-    private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+    /**
+     * The default bound of the total capacity of the retained samples.
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 32L * 1024 * 1024;
+
+    // Size classes range from 256B to 8MB. Larger samples are allocated with their exact sizes and
+    // are not retained.
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 23;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int MAX_SAMPLES_PER_CLASS = 64;
+    // A sample is borrowed from a class up to four times the requested size, so that a large
+    // buffer is not held by small samples, e.g. audio samples.
+    private static final int MAX_BORROW_DISTANCE = 2;
+
+    private final SampleStack[] mStacks = new SampleStack[CLASS_COUNT];
+    private final int mBufferReplacementMode;
+    private final long mMaxRetainedBytes;
+    private final AtomicLong mRetainedBytes = new AtomicLong();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBorrowCount = new AtomicLong();
+    private final AtomicLong mDropCount = new AtomicLong();
 
     /**
-     * Acquires a sample with a buffer larger than size from the pool. Allocate new one or resize
-     * an existing buffer if necessary.
+     * A bounded lock-free stack of samples. Samples are held in slots instead of linked nodes, so
+     * that pushing a sample doesn't allocate anything.
      */
-    public synchronized SampleHolder acquireSample(int size) {
-        if (mSamplePool.isEmpty()) {
-            SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-            sample.ensureSpaceForWrite(size);
-            return sample;
+    private static class SampleStack {
+        private final AtomicReferenceArray<SampleHolder> mSlots =
+                new AtomicReferenceArray<>(MAX_SAMPLES_PER_CLASS);
+        // An estimate of the number of samples, which is used as the top of the stack.
+        private final AtomicInteger mSize = new AtomicInteger();
+
+        private boolean push(SampleHolder sample) {
+            if (mSize.get() >= MAX_SAMPLES_PER_CLASS) {
+                return false;
+            }
+            for (int i = 0; i < MAX_SAMPLES_PER_CLASS; ++i) {
+                if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, sample)) {
+                    mSize.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
         }
-        SampleHolder smallestSufficientSample = null;
-        SampleHolder maxSample = mSamplePool.getFirst();
-        for (SampleHolder sample : mSamplePool) {
-            // Grab the smallest sufficient sample.
-            if (sample.data.capacity() >= size && (smallestSufficientSample == null
-                    || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
-                smallestSufficientSample = sample;
+
+        private SampleHolder pop() {
+            int size = mSize.get();
+            if (size <= 0) {
+                return null;
+            }
+            int top = Math.min(size, MAX_SAMPLES_PER_CLASS) - 1;
+            for (int i = top; i >= 0; --i) {
+                SampleHolder sample = take(i);
+                if (sample != null) {
+                    return sample;
+                }
             }
+            for (int i = top + 1; i < MAX_SAMPLES_PER_CLASS; ++i) {
+                SampleHolder sample = take(i);
+                if (sample != null) {
+                    return sample;
+                }
+            }
+            return null;
+        }
 
-            // Grab the max size sample.
-            if (maxSample.data.capacity() < sample.data.capacity()) {
-                maxSample = sample;
+        private SampleHolder take(int index) {
+            SampleHolder sample = mSlots.get(index);
+            if (sample != null && mSlots.compareAndSet(index, sample, null)) {
+                mSize.decrementAndGet();
+                return sample;
             }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a pool of samples backed by heap buffers which retains up to
+     * {@link #DEFAULT_MAX_RETAINED_BYTES}.
+     */
+    public SamplePool() {
+        this(false, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Creates a pool of samples.
+     *
+     * @param useDirectBuffers {@code true} to back samples by direct buffers, e.g. when samples
+     *        are read from or written to channels
+     * @param maxRetainedBytes the bound of the total capacity of the retained samples
+     */
+    public SamplePool(boolean useDirectBuffers, long maxRetainedBytes) {
+        mBufferReplacementMode = useDirectBuffers ? SampleHolder.BUFFER_REPLACEMENT_MODE_DIRECT
+                : SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL;
+        mMaxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            mStacks[i] = new SampleStack();
         }
-        SampleHolder sampleFromPool = smallestSufficientSample;
+    }
 
-        // If there's no sufficient sample, grab the maximum sample and resize it to size.
-        if (sampleFromPool == null) {
-            sampleFromPool = maxSample;
-            sampleFromPool.ensureSpaceForWrite(size);
+    /**
+     * Acquires a sample with a buffer larger than size from the pool. A retained sample of a
+     * larger class is borrowed if the class of the size is empty, and a new one is allocated only
+     * if no retained sample close enough in size is found.
+     */
+    public SampleHolder acquireSample(int size) {
+        int classIndex = getClassIndex(size);
+        if (classIndex >= CLASS_COUNT) {
+            mMissCount.incrementAndGet();
+            return createSample(size);
         }
-        mSamplePool.remove(sampleFromPool);
-        return sampleFromPool;
+        int maxClassIndex = Math.min(classIndex + MAX_BORROW_DISTANCE, CLASS_COUNT - 1);
+        for (int i = classIndex; i <= maxClassIndex; ++i) {
+            SampleHolder sample = mStacks[i].pop();
+            if (sample != null) {
+                mRetainedBytes.addAndGet(-sample.data.capacity());
+                mHitCount.incrementAndGet();
+                if (i > classIndex) {
+                    mBorrowCount.incrementAndGet();
+                }
+                return sample;
+            }
+        }
+        mMissCount.incrementAndGet();
+        return createSample(getClassSize(classIndex));
     }
 
     /**
      * Releases the sample back to the pool.
      */
-    public synchronized void releaseSample(SampleHolder sample) {
+    public void releaseSample(SampleHolder sample) {
         sample.clearData();
-        mSamplePool.offerLast(sample);
+        int capacity = sample.data == null ? 0 : sample.data.capacity();
+        // The largest class whose size is not greater than the capacity, since a sample whose
+        // buffer is grown by the user is not a power of two in size.
+        int classIndex = 31 - Integer.numberOfLeadingZeros(capacity) - MIN_CLASS_SHIFT;
+        if (classIndex < 0 || capacity > getClassSize(CLASS_COUNT - 1)) {
+            // Too small to be useful, or too large to be retained.
+            mDropCount.incrementAndGet();
+            return;
+        }
+        if (mRetainedBytes.addAndGet(capacity) > mMaxRetainedBytes
+                || !mStacks[classIndex].push(sample)) {
+            mRetainedBytes.addAndGet(-capacity);
+            mDropCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of the samples which are acquired from the pool without allocation.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of the samples which are newly allocated.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the number of the samples which are acquired from the pool without allocation, but
+     * from a class larger than the requested size. They are also counted as hits.
+     */
+    public long getBorrowCount() {
+        return mBorrowCount.get();
+    }
+
+    /**
+     * Returns the number of the released samples which are not retained.
+     */
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+
+    /**
+     * Returns the total capacity of the retained samples.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SamplePool{hit=" + getHitCount() + ", miss=" + getMissCount() + ", borrow="
+                + getBorrowCount() + ", drop=" + getDropCount() + ", retainedBytes="
+                + getRetainedBytes() + "}";
+    }
+
+    private SampleHolder createSample(int capacity) {
+        SampleHolder sample = new SampleHolder(mBufferReplacementMode);
+        sample.ensureSpaceForWrite(capacity);
+        return sample;
+    }
+
+    private static int getClassIndex(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+
+    private static int getClassSize(int classIndex) {
+        return 1 << (classIndex + MIN_CLASS_SHIFT);
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A preallocated file which is used as an on-disk ring of {@link SampleChunk}s for time-shifting.
+ *
+ * <p>Instead of creating and deleting a file for each {@link SampleChunk}, the samples of all the
+ * tracks are written to a single file which is allocated once. Space is handed out by extents, and
+ * an {@link Allocation} keeps the extents of a {@link SampleChunk} to map offsets in the chunk to
+ * offsets in the file. Since the chunks of a slowly written track, e.g. a text track, can live much
+ * longer than the chunks of the video track, the space of a released chunk is returned to a list
+ * of free ranges and reused, rather than waiting for all the older chunks to be released.
+ *
+ * <p>New extents are taken next to the last allocated one, so the file is mostly written
+ * sequentially and wraps around to its beginning. An extent is contiguous in the file, so a sample
+ * never wraps around.
+ */
+public class TimeshiftRing {
+    private static final String TAG = "TimeshiftRing";
+
+    private final File mFile;
+    private final long mCapacity;
+    // Free ranges of the file, keyed by their offsets. Adjacent ranges are merged.
+    private final TreeMap<Long, Long> mFreeRanges = new TreeMap<>();
+    // The offset in the file where the next new extent is searched from.
+    private long mNextOffset;
+    private long mUsedBytes;
+    private boolean mClosed;
+
+    private static class Extent {
+        private final long mFileOffset;
+        private final long mChunkOffset;
+        private long mLength;
+
+        private Extent(long fileOffset, long chunkOffset, long length) {
+            mFileOffset = fileOffset;
+            mChunkOffset = chunkOffset;
+            mLength = length;
+        }
+    }
+
+    /**
+     * The space of a {@link SampleChunk} in the ring. Space is allocated as the chunk is written,
+     * so the extents of chunks of different tracks are interleaved in the file.
+     */
+    public class Allocation {
+        private final ArrayList<Extent> mChunkExtents = new ArrayList<>();
+        // The index of the extent which is found last, since reads are mostly sequential.
+        private int mLastIndex;
+        private boolean mReleased;
+
+        private Allocation() { }
+
+        /**
+         * Returns the file which holds the samples.
+         */
+        File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Allocates a contiguous space at the end of the chunk.
+         *
+         * @param chunkOffset the offset in the chunk, which should be the end of the allocated
+         *        space of the chunk
+         * @param length the length of the space
+         * @return the offset of the space in the file
+         * @throws IOException if the ring is full or closed
+         */
+        long allocate(long chunkOffset, long length) throws IOException {
+            synchronized (TimeshiftRing.this) {
+                if (mClosed || mReleased) {
+                    throw new IOException("Allocation from a released ring: " + mFile);
+                }
+                Extent last = mChunkExtents.isEmpty() ? null
+                        : mChunkExtents.get(mChunkExtents.size() - 1);
+                long end = last == null ? 0 : last.mChunkOffset + last.mLength;
+                if (chunkOffset != end) {
+                    throw new IllegalStateException("Requested allocation for wrong range");
+                }
+                if (length > mCapacity) {
+                    throw new IOException("Too large allocation: " + length);
+                }
+                if (last != null) {
+                    long lastEnd = last.mFileOffset + last.mLength;
+                    Long freeLength = mFreeRanges.get(lastEnd);
+                    if (freeLength != null && freeLength >= length) {
+                        // The space right after the last extent of the chunk is free.
+                        takeFreeRange(lastEnd, freeLength, lastEnd, length);
+                        last.mLength += length;
+                        return lastEnd;
+                    }
+                }
+                long fileOffset = findFreeRange(length);
+                if (fileOffset < 0) {
+                    throw new IOException("Timeshift ring is full");
+                }
+                Extent extent = new Extent(fileOffset, chunkOffset, length);
+                mChunkExtents.add(extent);
+                return fileOffset;
+            }
+        }
+
+        /**
+         * Returns the offset in the file of the given offset in the chunk.
+         */
+        long getFileOffset(long chunkOffset) {
+            synchronized (TimeshiftRing.this) {
+                Extent extent = findExtent(chunkOffset);
+                return extent.mFileOffset + chunkOffset - extent.mChunkOffset;
+            }
+        }
+
+        /**
+         * Returns the length of the contiguous space in the file from the given offset in the
+         * chunk.
+         */
+        long getContiguousLength(long chunkOffset) {
+            synchronized (TimeshiftRing.this) {
+                Extent extent = findExtent(chunkOffset);
+                return extent.mChunkOffset + extent.mLength - chunkOffset;
+            }
+        }
+
+        /**
+         * Returns the space of the chunk to the ring.
+         */
+        void release() {
+            synchronized (TimeshiftRing.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                for (Extent extent : mChunkExtents) {
+                    addFreeRange(extent.mFileOffset, extent.mLength);
+                }
+                mChunkExtents.clear();
+            }
+        }
+
+        private Extent findExtent(long chunkOffset) {
+            if (mLastIndex < mChunkExtents.size()) {
+                Extent extent = mChunkExtents.get(mLastIndex);
+                if (extent.mChunkOffset <= chunkOffset
+                        && chunkOffset < extent.mChunkOffset + extent.mLength) {
+                    return extent;
+                }
+            }
+            int low = 0;
+            int high = mChunkExtents.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                Extent extent = mChunkExtents.get(mid);
+                if (chunkOffset < extent.mChunkOffset) {
+                    high = mid - 1;
+                } else if (chunkOffset >= extent.mChunkOffset + extent.mLength) {
+                    low = mid + 1;
+                } else {
+                    mLastIndex = mid;
+                    return extent;
+                }
+            }
+            throw new IllegalStateException("Requested read for wrong range");
+        }
+    }
+
+    /**
+     * Creates a ring by allocating a file of the given capacity. If the file system doesn't
+     * support preallocation, the file is extended without allocating its blocks.
+     *
+     * @param file the file to create, which replaces the existing one
+     * @param capacity the size of the file in bytes
+     * @throws IOException if the file can't be created or there is not enough space
+     */
+    public static TimeshiftRing create(File file, long capacity) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            accessFile.setLength(0);
+            try {
+                Os.posix_fallocate(accessFile.getFD(), 0, capacity);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new IOException("Not enough storage space", e);
+                }
+                Log.w(TAG, "Failed to preallocate " + file, e);
+                accessFile.setLength(capacity);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return new TimeshiftRing(file, capacity);
+    }
+
+    private TimeshiftRing(File file, long capacity) {
+        mFile = file;
+        mCapacity = capacity;
+        mFreeRanges.put(0L, capacity);
+    }
+
+    /**
+     * Returns a new empty allocation for a {@link SampleChunk}.
+     */
+    public Allocation newAllocation() {
+        return new Allocation();
+    }
+
+    /**
+     * Returns a {@link SampleChunk.SampleChunkCreator} which creates {@link SampleChunk}s in the
+     * ring.
+     */
+    public SampleChunk.SampleChunkCreator getSampleChunkCreator() {
+        return new SampleChunk.SampleChunkCreator() {
+            @Override
+            SampleChunk createSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+                    SampleChunk.ChunkCallback chunkCallback) {
+                return new SampleChunk(samplePool, newAllocation(), startPositionUs,
+                        System.currentTimeMillis(), chunkCallback);
+            }
+        };
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     */
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of bytes which are allocated to the chunks that are not released yet.
+     */
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    // Returns the offset of a free range of the given length, which is searched from the offset
+    // next to the last allocation first, or -1 if there is no such range.
+    // @GuardedBy("this")
+    private long findFreeRange(long length) {
+        Map.Entry<Long, Long> entry = mFreeRanges.floorEntry(mNextOffset);
+        if (entry != null && entry.getKey() + entry.getValue() >= mNextOffset + length) {
+            return takeFreeRange(entry.getKey(), entry.getValue(), mNextOffset, length);
+        }
+        for (Map.Entry<Long, Long> range : mFreeRanges.tailMap(mNextOffset, false).entrySet()) {
+            if (range.getValue() >= length) {
+                return takeFreeRange(range.getKey(), range.getValue(), range.getKey(), length);
+            }
+        }
+        // Wraps around to the beginning of the file.
+        for (Map.Entry<Long, Long> range : mFreeRanges.headMap(mNextOffset, true).entrySet()) {
+            if (range.getValue() >= length) {
+                return takeFreeRange(range.getKey(), range.getValue(), range.getKey(), length);
+            }
+        }
+        return -1;
+    }
+
+    // Takes the given space out of the free range which contains it, and returns the offset of
+    // the space.
+    // @GuardedBy("this")
+    private long takeFreeRange(long rangeOffset, long rangeLength, long offset, long length) {
+        mFreeRanges.remove(rangeOffset);
+        if (offset > rangeOffset) {
+            mFreeRanges.put(rangeOffset, offset - rangeOffset);
+        }
+        long rangeEnd = rangeOffset + rangeLength;
+        if (offset + length < rangeEnd) {
+            mFreeRanges.put(offset + length, rangeEnd - offset - length);
+        }
+        mNextOffset = offset + length;
+        mUsedBytes += length;
+        return offset;
+    }
+
+    // Returns the given space to the free ranges, merging it with the adjacent ranges.
+    // @GuardedBy("this")
+    private void addFreeRange(long offset, long length) {
+        mUsedBytes -= length;
+        Long nextLength = mFreeRanges.remove(offset + length);
+        if (nextLength != null) {
+            length += nextLength;
+        }
+        Map.Entry<Long, Long> previous = mFreeRanges.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            mFreeRanges.put(previous.getKey(), previous.getValue() + length);
+        } else {
+            mFreeRanges.put(offset, length);
+        }
+    }
+
+    /**
+     * Deletes the file. Allocations from the ring fail afterwards.
+     */
+    public synchronized void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mFile.delete();
+        }
+    }
+}
@@ -20,21 +20,46 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import android.util.Pair;
 
 import com.android.tv.common.SoftPreconditions;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
 
 /**
  * Manages Trickplay storage.
+ *
+ * <p>Each instance stores its buffer in its own directory under the time-shift directory, so that
+ * several sessions, e.g. the main and the PIP sessions, can buffer at the same time. The
+ * directories which are not used by any instance are deleted when a new instance is created.
+ *
+ * <p>Samples are stored in a {@link TimeshiftRing} which is preallocated when the first
+ * {@link SampleChunk} is created, so that chunks don't create and delete files while playing.
+ * The first {@link SampleChunk} is created by the I/O thread of the buffer, so the caller of
+ * {@link BufferManager#BufferManager(BufferManager.StorageManager)} isn't blocked by the
+ * preallocation. If there isn't enough space for the ring, each {@link SampleChunk} is stored in
+ * its own file.
  */
 public class TrickplayStorageManager implements BufferManager.StorageManager {
-    // TODO: Support multi-sessions.
+    private static final String TAG = "TrickplayStorageManager";
+
     private static final String BUFFER_DIR = "timeshift";
+    private static final String SESSION_DIR_PREFIX = "session_";
+    private static final String RING_FILE_NAME = "ring";
+
+    // The ring is larger than the max buffer size, since the chunks which are being written and
+    // the evicted chunks which are still being read are not counted in the buffer size. The
+    // evicted chunks are reclaimed when they use more than half of the headroom, so that the
+    // rest is left for the chunks which are being written.
+    private static final long MIN_RING_HEADROOM_BYTES = 64L * 1024 * 1024;
+    private static final int RING_HEADROOM_DIVISOR = 8;
 
     // Copied from android.provider.Settings.Global (hidden fields)
     private static final String
@@ -47,19 +72,27 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     private static final long DEFAULT_THRESHOLD_MAX_BYTES = 500L * 1024 * 1024;
 
     private static AsyncTask<Void, Void, Void> sLastCacheCleanUpTask;
-    private static File sBufferDir;
+    private static File sBaseBufferDir;
     private static long sStorageBufferBytes;
+    private static int sSessionCount;
+    // The buffer directories of the instances which are not released yet.
+    private static final Set<File> sActiveBufferDirs = new HashSet<>();
 
+    private final File mBufferDir;
     private final long mMaxBufferSize;
+    private final long mRingHeadroom;
+    // @GuardedBy("this")
+    private TimeshiftRing mRing;
+    // @GuardedBy("this")
+    private boolean mRingCreationTried;
 
     private static void initParamsIfNeeded(Context context, @NonNull File path) {
-        // TODO: Support multi-sessions.
         SoftPreconditions.checkState(
-                sBufferDir == null || sBufferDir.equals(path));
-        if (path.equals(sBufferDir)) {
+                sBaseBufferDir == null || sBaseBufferDir.equals(path));
+        if (path.equals(sBaseBufferDir)) {
             return;
         }
-        sBufferDir = path;
+        sBaseBufferDir = path;
         long lowPercentage = Settings.Global.getInt(context.getContentResolver(),
                 SYS_STORAGE_THRESHOLD_PERCENTAGE, DEFAULT_THRESHOLD_PERCENTAGE);
         long lowPercentageToBytes = path.getTotalSpace() * lowPercentage / 100;
@@ -69,14 +102,20 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     }
 
     public TrickplayStorageManager(Context context, @NonNull File baseDir, long maxBufferSize) {
-        initParamsIfNeeded(context, new File(baseDir, BUFFER_DIR));
-        sBufferDir.mkdirs();
+        synchronized (sActiveBufferDirs) {
+            initParamsIfNeeded(context, new File(baseDir, BUFFER_DIR));
+            mBufferDir = new File(sBaseBufferDir, SESSION_DIR_PREFIX
+                    + System.currentTimeMillis() + "_" + sSessionCount++);
+            sActiveBufferDirs.add(mBufferDir);
+            clearStorageLocked();
+        }
+        mBufferDir.mkdirs();
         mMaxBufferSize = maxBufferSize;
-        clearStorage();
+        mRingHeadroom = Math.max(maxBufferSize / RING_HEADROOM_DIVISOR, MIN_RING_HEADROOM_BYTES);
     }
 
-    private void clearStorage() {
-        long now = System.currentTimeMillis();
+    // @GuardedBy("sActiveBufferDirs")
+    private static void clearStorageLocked() {
         if (sLastCacheCleanUpTask != null) {
             sLastCacheCleanUpTask.cancel(true);
         }
@@ -86,7 +125,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
                 if (isCancelled()) {
                     return null;
                 }
-                File files[] = sBufferDir.listFiles();
+                File files[] = sBaseBufferDir.listFiles();
                 if (files == null || files.length == 0) {
                     return null;
                 }
@@ -94,10 +133,14 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
                     if (isCancelled()) {
                         break;
                     }
-                    long lastModified = file.lastModified();
-                    if (lastModified != 0 && lastModified < now) {
-                        file.delete();
+                    synchronized (sActiveBufferDirs) {
+                        if (sActiveBufferDirs.contains(file)) {
+                            continue;
+                        }
                     }
+                    // The buffer of a session which is not released properly, or a chunk file
+                    // of an old version which keeps the buffers of all the sessions together.
+                    deleteRecursively(file);
                 }
                 return null;
             }
@@ -105,9 +148,19 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
         sLastCacheCleanUpTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    private static void deleteRecursively(File file) {
+        File files[] = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
     @Override
     public File getBufferDir() {
-        return sBufferDir;
+        return mBufferDir;
     }
 
     @Override
@@ -121,8 +174,13 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     }
 
     @Override
-    public boolean hasEnoughBuffer(long pendingDelete) {
-        return sBufferDir.getUsableSpace() + pendingDelete >= sStorageBufferBytes;
+    public synchronized boolean hasEnoughBuffer(long pendingDelete) {
+        if (mRing != null) {
+            // The evicted chunks keep their extents until they are released, so they are not
+            // subtracted.
+            return mRing.getUsedBytes() + mRingHeadroom / 2 <= mRing.getCapacity();
+        }
+        return mBufferDir.getUsableSpace() + pendingDelete >= sStorageBufferBytes;
     }
 
     @Override
@@ -144,4 +202,57 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
             SortedMap<Long, Pair<SampleChunk, Integer>> index) {
     }
 
+    @Override
+    public void appendIndexEntry(String trackName, long positionUs, long basePositionUs,
+            int offset) {
+    }
+
+    @Override
+    public SampleIndexFile.Reader openIndexFile(String trackId) {
+        return null;
+    }
+
+    @Override
+    public SampleChunk.SampleChunkCreator getSampleChunkCreator() {
+        return new SampleChunk.SampleChunkCreator() {
+            @Override
+            SampleChunk createSampleChunk(SamplePool samplePool, File file, long startPositionUs,
+                    SampleChunk.ChunkCallback chunkCallback) {
+                return getRingChunkCreator().createSampleChunk(
+                        samplePool, file, startPositionUs, chunkCallback);
+            }
+        };
+    }
+
+    // Creates the ring when it is used first. Returns a creator of the chunks which have their
+    // own files if the ring can't be created.
+    private synchronized SampleChunk.SampleChunkCreator getRingChunkCreator() {
+        if (mRing == null && !mRingCreationTried) {
+            mRingCreationTried = true;
+            long capacity = mMaxBufferSize + mRingHeadroom;
+            if (mBufferDir.getUsableSpace() - capacity < sStorageBufferBytes) {
+                Log.w(TAG, "Not enough space for the timeshift ring");
+            } else {
+                try {
+                    mRing = TimeshiftRing.create(new File(mBufferDir, RING_FILE_NAME), capacity);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to create the timeshift ring", e);
+                }
+            }
+        }
+        return mRing != null ? mRing.getSampleChunkCreator() : new SampleChunk.SampleChunkCreator();
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mRing != null) {
+            mRing.close();
+            mRing = null;
+        }
+        deleteRecursively(mBufferDir);
+        synchronized (sActiveBufferDirs) {
+            sActiveBufferDirs.remove(mBufferDir);
+        }
+    }
+
 }
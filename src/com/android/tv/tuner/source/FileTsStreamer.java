@@ -17,6 +17,8 @@
 package com.android.tv.tuner.source;
 
 import android.os.Environment;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.SparseBooleanArray;
 
@@ -33,6 +35,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -50,21 +53,18 @@ public class FileTsStreamer implements TsStreamer {
     private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 4000; // ~ 8MB
     private static final int PADDING_SIZE = MIN_READ_UNIT * 1000; // ~2MB
     private static final int READ_TIMEOUT_MS = 10000; // 10 secs.
-    private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
+    private static final int READ_TS_STREAM_TIMEOUT_MS = 100;
+    private static final int READ_ERROR_SLEEP_MS = 10;
     private static final String FILE_DIR =
             new File(Environment.getExternalStorageDirectory(), "Streams").getAbsolutePath();
 
     // Virtual frequency base used for file-based source
     public static final int FREQ_BASE = 100;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
+    private final TsRingBuffer mCircularBuffer =
+            new TsRingBuffer(CIRCULAR_BUFFER_SIZE, READ_BUFFER_SIZE);
     private final FileSourceEventDetector mEventDetector;
 
-    private long mBytesFetched;
-    private long mLastReadPosition;
-    private boolean mStreaming;
-
     private Thread mStreamingThread;
     private StreamProvider mSource;
 
@@ -134,11 +134,8 @@ public class FileTsStreamer implements TsStreamer {
         mEventDetector.start(mSource, FileSourceEventDetector.ALL_PROGRAM_NUMBERS);
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
-            if (mStreaming) {
-                return true;
-            }
-            mStreaming = true;
+        if (!mCircularBuffer.open()) {
+            return true;
         }
 
         mStreamingThread = new StreamingThread();
@@ -162,11 +159,8 @@ public class FileTsStreamer implements TsStreamer {
         mSource.addPidFilter(channel.getPcrPid());
         mSource.addPidFilter(TsParser.ATSC_SI_BASE_PID);
         mSource.addPidFilter(TsParser.PAT_PID);
-        synchronized (mCircularBufferMonitor) {
-            if (mStreaming) {
-                return true;
-            }
-            mStreaming = true;
+        if (!mCircularBuffer.open()) {
+            return true;
         }
 
         mStreamingThread = new StreamingThread();
@@ -181,10 +175,7 @@ public class FileTsStreamer implements TsStreamer {
      */
     @Override
     public void stopStream() {
-        synchronized (mCircularBufferMonitor) {
-            mStreaming = false;
-            mCircularBufferMonitor.notify();
-        }
+        mCircularBuffer.close();
 
         try {
             if (mStreamingThread != null) {
@@ -205,9 +196,7 @@ public class FileTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     /**
@@ -220,7 +209,8 @@ public class FileTsStreamer implements TsStreamer {
 
         private BufferedInputStream mInputStream;
 
-        private StreamProvider(String filepath) {
+        @VisibleForTesting
+        StreamProvider(String filepath) {
             mFilepath = filepath;
             open(filepath);
         }
@@ -275,13 +265,50 @@ public class FileTsStreamer implements TsStreamer {
         }
 
         /**
-         * Reads from the MPEG-2 TS file to buffer.
+         * Reads from the MPEG-2 TS file to buffer. Emulates
+         * {@link com.android.tv.tuner.TunerHal#readTsStream(ByteBuffer, int)}, which waits until
+         * TS frames are available, by reading until some packets pass the pid filter. The
+         * packets are written from the position of {@code buffer} up to its limit, and the
+         * position is advanced by the amount of bytes written.
          *
-         * @param inputBuffer to read
-         * @return the number of read bytes
+         * @param buffer to read
+         * @param timeoutMs the max time to wait for TS frames
+         * @return the number of read bytes, {@code 0} if nothing has been read within
+         *         {@code timeoutMs}, or {@code -1} on an error
          */
-        private int read(byte[] inputBuffer) {
-            int readSize = readInternal();
+        @VisibleForTesting
+        int read(ByteBuffer buffer, int timeoutMs) {
+            if (buffer.remaining() < TS_PACKET_SIZE) {
+                // Waiting doesn't help since no packet fits in the buffer.
+                return 0;
+            }
+            long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+            long sleepMs = 1;
+            while (true) {
+                int readSize = read(buffer);
+                long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                if (readSize != 0 || remainingMs <= 0) {
+                    return readSize;
+                }
+                // No packet has passed the pid filter. Back off rather than spinning over the
+                // file until the deadline.
+                try {
+                    Thread.sleep(Math.min(sleepMs, remainingMs));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+                sleepMs = Math.min(sleepMs * 2, READ_ERROR_SLEEP_MS);
+            }
+        }
+
+        private int read(ByteBuffer buffer) {
+            int maxReadSize = Math.min(mPreBuffer.length,
+                    buffer.remaining() / TS_PACKET_SIZE * TS_PACKET_SIZE);
+            if (maxReadSize == 0) {
+                return 0;
+            }
+            int readSize = readInternal(maxReadSize);
             if (readSize <= 0) {
                 // Reached the end of stream. Restart from the beginning.
                 close();
@@ -289,7 +316,7 @@ public class FileTsStreamer implements TsStreamer {
                 if (mInputStream == null) {
                     return -1;
                 }
-                readSize = readInternal();
+                readSize = readInternal(maxReadSize);
             }
 
             if (mPreBuffer[0] != TS_SYNC_BYTE) {
@@ -297,12 +324,11 @@ public class FileTsStreamer implements TsStreamer {
                 return -1;
             }
             int filteredSize = 0;
-            for (int i = 0, destPos = 0; i < readSize; i += TS_PACKET_SIZE) {
+            for (int i = 0; i < readSize; i += TS_PACKET_SIZE) {
                 if (mPreBuffer[i] == TS_SYNC_BYTE) {
                     int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
                     if (mPids.get(pid)) {
-                        System.arraycopy(mPreBuffer, i, inputBuffer, destPos, TS_PACKET_SIZE);
-                        destPos += TS_PACKET_SIZE;
+                        buffer.put(mPreBuffer, i, TS_PACKET_SIZE);
                         filteredSize += TS_PACKET_SIZE;
                     }
                 }
@@ -310,10 +336,10 @@ public class FileTsStreamer implements TsStreamer {
             return filteredSize;
         }
 
-        private int readInternal() {
+        private int readInternal(int maxReadSize) {
             int readSize;
             try {
-                readSize = mInputStream.read(mPreBuffer, 0, mPreBuffer.length);
+                readSize = mInputStream.read(mPreBuffer, 0, maxReadSize);
             } catch (IOException e) {
                 Log.e(TAG, "Error reading input stream", e);
                 return -1;
@@ -341,44 +367,28 @@ public class FileTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        synchronized (mCircularBufferMonitor) {
-            long initialBytesFetched = mBytesFetched;
-            while (mBytesFetched < pos + amount && mStreaming) {
-                try {
-                    mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                } catch (InterruptedException e) {
-                    // Wait again.
-                    Thread.currentThread().interrupt();
-                }
-                if (initialBytesFetched == mBytesFetched) {
+        while (true) {
+            long initialBytesFetched = mCircularBuffer.getWritePosition();
+            int ret = mCircularBuffer.readAt(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+            if (ret == 0 && amount > 0) {
+                if (initialBytesFetched == mCircularBuffer.getWritePosition()) {
                     Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
 
                     // Returning -1 will make demux report EOS so that the input service can retry
                     // the playback.
                     return -1;
                 }
+                continue;
             }
-            if (!mStreaming) {
+            if (ret == TsRingBuffer.READ_ERROR_STREAMING_ENDED) {
                 Log.w(TAG, "Stream is already stopped.");
                 return -1;
             }
-            if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
+            if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
                 Log.e(TAG, "Demux is requesting the data which is already overwritten.");
                 return -1;
             }
-            int posInBuffer = (int) (pos % CIRCULAR_BUFFER_SIZE);
-            int bytesToCopyInFirstPass = amount;
-            if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-            }
-            System.arraycopy(mCircularBuffer, posInBuffer, buffer, offset, bytesToCopyInFirstPass);
-            if (bytesToCopyInFirstPass < amount) {
-                System.arraycopy(mCircularBuffer, 0, buffer, offset + bytesToCopyInFirstPass,
-                        amount - bytesToCopyInFirstPass);
-            }
-            mLastReadPosition = pos + amount;
-            mCircularBufferMonitor.notify();
-            return amount;
+            return ret;
         }
     }
 
@@ -409,58 +419,28 @@ public class FileTsStreamer implements TsStreamer {
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            synchronized (mCircularBufferMonitor) {
-                mBytesFetched = 0;
-                mLastReadPosition = 0;
-            }
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    while ((mBytesFetched - mLastReadPosition + PADDING_SIZE) > CIRCULAR_BUFFER_SIZE
-                            && mStreaming) {
-                        try {
-                            mCircularBufferMonitor.wait();
-                        } catch (InterruptedException e) {
-                            // Wait again.
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                    if (!mStreaming) {
-                        break;
-                    }
+            while (mCircularBuffer.awaitSpace(PADDING_SIZE)) {
+                // The packets are filtered straight into the circular buffer.
+                ByteBuffer slot = mCircularBuffer.getWriteSlot();
+                int offset = slot.arrayOffset() + slot.position();
+                int bytesWritten = mSource.read(slot, READ_TS_STREAM_TIMEOUT_MS);
+                if (bytesWritten == 0) {
+                    continue;
                 }
-
-                int bytesWritten = mSource.read(dataBuffer);
-                if (bytesWritten <= 0) {
+                if (bytesWritten < 0) {
                     try {
-                        // When buffer is underrun, we sleep for short time to prevent
+                        // When the file is not readable, we sleep for short time to prevent
                         // unnecessary CPU draining.
-                        sleep(BUFFER_UNDERRUN_SLEEP_MS);
+                        sleep(READ_ERROR_SLEEP_MS);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
                     continue;
                 }
 
-                mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
+                mEventDetector.feedTSStream(slot.array(), offset, bytesWritten);
 
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notify();
-                }
+                mCircularBuffer.commitWrite(bytesWritten);
             }
 
             Log.i(TAG, "Streaming stopped");
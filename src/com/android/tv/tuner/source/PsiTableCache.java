@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An on-disk cache of the last seen PAT and PMT of each program, keyed by the frequency and the
+ * program number. A tune feeds the cached tables to the demuxer ahead of the stream, so that
+ * the demuxer doesn't need to wait for the tables on the air. The cached tables are validated
+ * against the live ones by {@link TunerTsStreamer}.
+ *
+ * <p>The tables are stored as the TS packets collected by {@link PsiTableCollector}. An entry
+ * is a small file, which is also kept in memory once it is read.
+ */
+class PsiTableCache {
+    private static final String TAG = "PsiTableCache";
+
+    /**
+     * A version number of the file format. Entries of other versions are ignored and
+     * overwritten.
+     */
+    private static final int VERSION = 1;
+    private static final String DIR_NAME = "psi_tables";
+    private static final byte[] NO_ENTRY = new byte[0];
+
+    private static PsiTableCache sInstance;
+
+    private final File mDir;
+    private final Map<String, byte[]> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the singleton instance for the class.
+     */
+    static synchronized PsiTableCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PsiTableCache(new File(context.getCacheDir(), DIR_NAME));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    PsiTableCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the cached TS packets of the PAT and the PMT, or {@code null} if there is no entry.
+     */
+    byte[] get(int frequency, int programNumber) {
+        String key = getKey(frequency, programNumber);
+        byte[] packets = mEntries.get(key);
+        if (packets == null) {
+            packets = read(frequency, programNumber);
+            mEntries.put(key, packets != null ? packets : NO_ENTRY);
+        }
+        return packets != null && packets.length > 0 ? packets : null;
+    }
+
+    /**
+     * Stores the TS packets of the PAT and the PMT, if they are different from the cached ones.
+     */
+    void put(int frequency, int programNumber, byte[] packets) {
+        String key = getKey(frequency, programNumber);
+        if (Arrays.equals(packets, get(frequency, programNumber))) {
+            return;
+        }
+        mEntries.put(key, packets);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + mDir);
+            return;
+        }
+        // Writes to a temporary file first not to leave a broken entry.
+        File file = new File(mDir, key);
+        File tempFile = new File(mDir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+            out.writeInt(VERSION);
+            out.writeInt(frequency);
+            out.writeInt(programNumber);
+            out.writeInt(packets.length);
+            out.write(packets);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write PSI tables of " + key, e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Failed to write PSI tables of " + key);
+            tempFile.delete();
+        }
+    }
+
+    private byte[] read(int frequency, int programNumber) {
+        File file = new File(mDir, getKey(frequency, programNumber));
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION || in.readInt() != frequency
+                    || in.readInt() != programNumber) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length <= 0 || length % PsiTableCollector.TS_PACKET_SIZE != 0
+                    || length > file.length()) {
+                return null;
+            }
+            byte[] packets = new byte[length];
+            in.readFully(packets);
+            return packets;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    private static String getKey(int frequency, int programNumber) {
+        return frequency + "_" + programNumber;
+    }
+}
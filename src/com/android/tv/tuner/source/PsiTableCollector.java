@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import java.util.Arrays;
+
+/**
+ * Collects the TS packets of the PAT and the PMT of a program from an MPEG-2 TS stream, so that
+ * they can be fed to a demuxer before the stream to let it know the elementary streams at once.
+ *
+ * <p>Only the tables which fit in a single TS packet are collected, which is the usual case for
+ * broadcast streams. The continuity counters of the collected packets are cleared, so that the
+ * packets of the same tables are identical.
+ */
+class PsiTableCollector {
+    static final int TS_PACKET_SIZE = 188;
+
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+    private static final int PAT_TABLE_ID = 0x00;
+    private static final int PMT_TABLE_ID = 0x02;
+    private static final int CRC_SIZE = 4;
+
+    private final int mProgramNumber;
+    private int mPmtPid = -1;
+    private byte[] mPatPacket;
+    private byte[] mPmtPacket;
+
+    /**
+     * Creates a collector.
+     *
+     * @param programNumber the program number whose PMT is collected
+     */
+    PsiTableCollector(int programNumber) {
+        mProgramNumber = programNumber;
+    }
+
+    /**
+     * Feeds a TS packet.
+     *
+     * @param data the buffer which holds the packet
+     * @param offset the start offset of the packet
+     * @return {@code true} if both of the PAT and the PMT are collected
+     */
+    boolean feed(byte[] data, int offset) {
+        if (isCollected() || (data[offset] & 0xff) != TS_SYNC_BYTE
+                || (data[offset + 1] & 0x40) == 0) {
+            // Sections are collected only when they start in the packet.
+            return isCollected();
+        }
+        int pid = ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
+        if (pid != PAT_PID && pid != mPmtPid) {
+            return false;
+        }
+        int section = getSectionOffset(data, offset);
+        if (section < 0) {
+            return false;
+        }
+        if (pid == PAT_PID && (data[section] & 0xff) == PAT_TABLE_ID) {
+            int pmtPid = findPmtPid(data, section);
+            if (pmtPid >= 0) {
+                if (pmtPid != mPmtPid) {
+                    mPmtPacket = null;
+                }
+                mPmtPid = pmtPid;
+                mPatPacket = copyPacket(data, offset);
+            }
+        } else if (pid == mPmtPid && (data[section] & 0xff) == PMT_TABLE_ID
+                && getTableIdExtension(data, section) == mProgramNumber) {
+            mPmtPacket = copyPacket(data, offset);
+        }
+        return isCollected();
+    }
+
+    /**
+     * Returns whether both of the PAT and the PMT are collected.
+     */
+    boolean isCollected() {
+        return mPatPacket != null && mPmtPacket != null;
+    }
+
+    /**
+     * Returns the TS packets of the PAT and the PMT in the order, or {@code null} if they are not
+     * collected yet.
+     */
+    byte[] getPackets() {
+        if (!isCollected()) {
+            return null;
+        }
+        byte[] packets = Arrays.copyOf(mPatPacket, TS_PACKET_SIZE * 2);
+        System.arraycopy(mPmtPacket, 0, packets, TS_PACKET_SIZE, TS_PACKET_SIZE);
+        return packets;
+    }
+
+    /**
+     * Returns whether the PSI tables of {@link #getPackets} describe the same elementary streams,
+     * i.e. the same PMT PID, and the same PIDs and stream types of the elementary streams in the
+     * order. The other fields, e.g. the version numbers and the descriptors, don't change how a
+     * demuxer reads the stream.
+     */
+    static boolean hasSameStreams(byte[] packets, byte[] otherPackets) {
+        long[] streams = getStreams(packets);
+        return streams != null && Arrays.equals(streams, getStreams(otherPackets));
+    }
+
+    // Returns the PMT PID followed by the stream type and the PID of each elementary stream, or
+    // null if the packets are not the PSI tables of getPackets().
+    private static long[] getStreams(byte[] packets) {
+        if (packets == null || packets.length != TS_PACKET_SIZE * 2) {
+            return null;
+        }
+        int offset = TS_PACKET_SIZE;
+        int section = getSectionOffset(packets, offset);
+        if (section < 0 || (packets[section] & 0xff) != PMT_TABLE_ID) {
+            return null;
+        }
+        int sectionLength = ((packets[section + 1] & 0x0f) << 8) | (packets[section + 2] & 0xff);
+        int streamsEnd = section + 3 + sectionLength - CRC_SIZE;
+        int programInfoLength =
+                ((packets[section + 10] & 0x0f) << 8) | (packets[section + 11] & 0xff);
+        long[] streams = new long[1 + (sectionLength / 5)];
+        int count = 0;
+        streams[count++] = ((packets[offset + 1] & 0x1f) << 8) | (packets[offset + 2] & 0xff);
+        for (int i = section + 12 + programInfoLength; i + 5 <= streamsEnd; ) {
+            int streamType = packets[i] & 0xff;
+            int pid = ((packets[i + 1] & 0x1f) << 8) | (packets[i + 2] & 0xff);
+            streams[count++] = ((long) streamType << 16) | pid;
+            int esInfoLength = ((packets[i + 3] & 0x0f) << 8) | (packets[i + 4] & 0xff);
+            i += 5 + esInfoLength;
+        }
+        return Arrays.copyOf(streams, count);
+    }
+
+    // Returns the offset of the section which starts in the packet and ends in it, or -1.
+    private static int getSectionOffset(byte[] data, int offset) {
+        int end = offset + TS_PACKET_SIZE;
+        int payload = offset + 4;
+        if ((data[offset + 3] & 0x20) != 0) {
+            // Skips the adaptation field.
+            payload += 1 + (data[payload] & 0xff);
+        }
+        if ((data[offset + 3] & 0x10) == 0 || payload >= end) {
+            return -1;
+        }
+        int section = payload + 1 + (data[payload] & 0xff);
+        if (section + 3 > end) {
+            return -1;
+        }
+        int sectionLength = ((data[section + 1] & 0x0f) << 8) | (data[section + 2] & 0xff);
+        return section + 3 + sectionLength <= end ? section : -1;
+    }
+
+    private static int getTableIdExtension(byte[] data, int section) {
+        return ((data[section + 3] & 0xff) << 8) | (data[section + 4] & 0xff);
+    }
+
+    private int findPmtPid(byte[] data, int section) {
+        int sectionLength = ((data[section + 1] & 0x0f) << 8) | (data[section + 2] & 0xff);
+        int programsEnd = section + 3 + sectionLength - CRC_SIZE;
+        for (int i = section + 8; i + 4 <= programsEnd; i += 4) {
+            int programNumber = ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+            if (programNumber == mProgramNumber) {
+                return ((data[i + 2] & 0x1f) << 8) | (data[i + 3] & 0xff);
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] copyPacket(byte[] data, int offset) {
+        byte[] packet = Arrays.copyOfRange(data, offset, offset + TS_PACKET_SIZE);
+        packet[3] &= 0xf0;
+        return packet;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+/**
+ * Finds the last random access point of an MPEG-2 TS stream, from which a demuxer can start.
+ *
+ * <p>A random access point is the position of the PAT packet which precedes a video packet whose
+ * adaptation field has the random_access_indicator set. Starting from there, a demuxer finds the
+ * PAT and the PMT before the key frame. A key frame which isn't preceded by any PAT is not a
+ * random access point.
+ */
+class RandomAccessPointFinder {
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+
+    private final int mVideoPid;
+    // The position of the last PAT packet.
+    private long mLastPatPosition = -1;
+    // Volatile, since it is read by the threads which create data sources.
+    private volatile long mRandomAccessPosition = -1;
+
+    /**
+     * Creates a finder.
+     *
+     * @param videoPid the PID of the video stream whose key frames are found
+     */
+    RandomAccessPointFinder(int videoPid) {
+        mVideoPid = videoPid;
+    }
+
+    /**
+     * Feeds a TS packet.
+     *
+     * @param data the buffer which holds the packet
+     * @param offset the start offset of the packet
+     * @param position the position of the packet in the stream
+     */
+    void feed(byte[] data, int offset, long position) {
+        if ((data[offset] & 0xff) != TS_SYNC_BYTE || (data[offset + 1] & 0x40) == 0) {
+            // Both of a PAT section and a key frame start where a payload unit starts.
+            return;
+        }
+        int pid = ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
+        if (pid == PAT_PID) {
+            mLastPatPosition = position;
+        } else if (pid == mVideoPid && mLastPatPosition >= 0
+                && (data[offset + 3] & 0x20) != 0 && (data[offset + 4] & 0xff) > 0
+                && (data[offset + 5] & 0x40) != 0) {
+            // The adaptation field has the random_access_indicator set.
+            mRandomAccessPosition = mLastPatPosition;
+        }
+    }
+
+    /**
+     * Returns the position of the last random access point, or {@code -1} if none is found yet.
+     */
+    long getRandomAccessPosition() {
+        return mRandomAccessPosition;
+    }
+}
@@ -47,4 +47,15 @@ public abstract class TsDataSource implements DataSource {
      * @param offset 0 <= offset <= buffered position
      */
     public void shiftStartPosition(long offset) { }
+
+    /**
+     * Returns whether the cached PSI tables which were provided ahead of the stream turned out to
+     * be different from the live ones. The demuxer may have been configured wrongly in that case,
+     * and the playback should be restarted.
+     *
+     * @return {@code true} if the stream started with outdated PSI tables
+     */
+    public boolean hasStalePsiTables() {
+        return false;
+    }
 }
\ No newline at end of file
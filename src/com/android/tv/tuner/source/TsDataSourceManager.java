@@ -43,6 +43,7 @@ public class TsDataSourceManager {
 
     private final int mId;
     private final boolean mIsRecording;
+    private final boolean mIsStandby;
     private final TunerTsStreamerManager mTunerStreamerManager =
             TunerTsStreamerManager.getInstance();
 
@@ -59,12 +60,27 @@ public class TsDataSourceManager {
         synchronized (sLock) {
             id = ++sSequenceId;
         }
-        return new TsDataSourceManager(id, isRecording);
+        return new TsDataSourceManager(id, isRecording, false);
     }
 
-    private TsDataSourceManager(int id, boolean isRecording) {
+    /**
+     * Creates TsDataSourceManager for the standby {@link DataSource}s of zap-ahead tuning.
+     * A session which shares a stream with the standby data sources starts from the buffered
+     * random access point of the stream.
+     * @return {@link TsDataSourceManager}
+     */
+    static TsDataSourceManager createStandbySourceManager() {
+        int id;
+        synchronized (sLock) {
+            id = ++sSequenceId;
+        }
+        return new TsDataSourceManager(id, false, true);
+    }
+
+    private TsDataSourceManager(int id, boolean isRecording, boolean isStandby) {
         mId = id;
         mIsRecording = isRecording;
+        mIsStandby = isStandby;
         mKeepTuneStatus = true;
     }
 
@@ -90,8 +106,13 @@ public class TsDataSourceManager {
             }
             return null;
         }
-        return mTunerStreamerManager.createDataSource(context, channel, eventListener,
-                mId, !mIsRecording && mKeepTuneStatus);
+        TsDataSource source = mTunerStreamerManager.createDataSource(context, channel,
+                eventListener, mId, !mIsRecording && mKeepTuneStatus, mIsStandby);
+        if (mIsRecording && source instanceof TunerTsStreamer.TunerDataSource) {
+            // Outdated cached PSI tables would be recorded, since recordings don't re-tune.
+            ((TunerTsStreamer.TunerDataSource) source).skipCachedPsiTables();
+        }
+        return source;
     }
 
     /**
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free circular buffer which holds MPEG-2 TS stream data between a streaming thread and
+ * {@link TsDataSource}s.
+ *
+ * <p>There is a single producer which appends data by {@link #write}. Readers read at absolute
+ * positions of the stream, so several readers can share a buffer. Progress is published through
+ * sequence counters, and threads waiting for data or space are parked and unparked directly
+ * instead of waiting on a shared monitor.
+ *
+ * <p>The producer can also fill the buffer in place through {@link #getWriteSlot} and
+ * {@link #commitWrite}, e.g. by reading from the tuner device directly into the slot.
+ *
+ * <p>The producer does not wait for readers unless {@link #awaitSpace} is called, so data which
+ * is not read in time is overwritten. A read from an overwritten position fails with
+ * {@link #READ_ERROR_BUFFER_OVERWRITTEN}.
+ */
+public class TsRingBuffer {
+    public static final int READ_ERROR_STREAMING_ENDED = -1;
+    public static final int READ_ERROR_BUFFER_OVERWRITTEN = -2;
+
+    // Readers beyond this number fall back to timed polling while waiting for data.
+    private static final int MAX_PARKED_READERS = 8;
+    private static final long POLLING_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final byte[] mBuffer;
+    private final ByteBuffer mWriteSlot;
+    private final int mMaxWriteSize;
+
+    // Total number of bytes written so far. Only the producer updates it.
+    private final AtomicLong mWritePosition = new AtomicLong();
+    // The end position of the most recent read.
+    private final AtomicLong mLastReadPosition = new AtomicLong();
+    private final AtomicReferenceArray<Thread> mParkedReaders =
+            new AtomicReferenceArray<>(MAX_PARKED_READERS);
+    private final AtomicInteger mParkedReaderCount = new AtomicInteger();
+    private volatile Thread mParkedWriter;
+    private volatile boolean mOpened;
+    // Written by readers after copying data so that the copy is ordered before the following
+    // read of mWritePosition. See readAt().
+    private volatile long mCopyFence;
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity the size of the buffer in bytes
+     * @param maxWriteSize the maximum size of a single write. A write is split by this size, and
+     *        a reader cannot read the oldest {@code maxWriteSize} bytes since they can be
+     *        overwritten while the reader is copying them.
+     */
+    public TsRingBuffer(int capacity, int maxWriteSize) {
+        if (maxWriteSize <= 0 || maxWriteSize >= capacity) {
+            throw new IllegalArgumentException("Invalid max write size: " + maxWriteSize);
+        }
+        mBuffer = new byte[capacity];
+        mWriteSlot = ByteBuffer.wrap(mBuffer);
+        mMaxWriteSize = maxWriteSize;
+    }
+
+    /**
+     * Opens the buffer for streaming and resets positions.
+     *
+     * @return {@code false} if the buffer is already opened
+     */
+    public boolean open() {
+        if (mOpened) {
+            return false;
+        }
+        mWritePosition.set(0);
+        mLastReadPosition.set(0);
+        mOpened = true;
+        return true;
+    }
+
+    /**
+     * Closes the buffer. Threads waiting in {@link #readAt} or {@link #awaitSpace} return
+     * immediately.
+     */
+    public void close() {
+        mOpened = false;
+        for (int i = 0; i < MAX_PARKED_READERS; ++i) {
+            Thread reader = mParkedReaders.get(i);
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+        Thread writer = mParkedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Returns whether the buffer is opened or not.
+     */
+    public boolean isOpened() {
+        return mOpened;
+    }
+
+    /**
+     * Returns the capacity of the buffer in bytes.
+     */
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Returns the total number of bytes written since the buffer is opened.
+     */
+    public long getWritePosition() {
+        return mWritePosition.get();
+    }
+
+    /**
+     * Returns the end position of the most recent successful read.
+     */
+    public long getLastReadPosition() {
+        return mLastReadPosition.get();
+    }
+
+    /**
+     * Appends data to the buffer and wakes up readers waiting for it. Should be called only from
+     * the producer thread.
+     *
+     * @param data the data to write
+     * @param offset the start offset of the data
+     * @param length the number of bytes to write
+     */
+    public void write(byte[] data, int offset, int length) {
+        int capacity = mBuffer.length;
+        while (length > 0) {
+            int size = Math.min(length, mMaxWriteSize);
+            long writePosition = mWritePosition.get();
+            int posInBuffer = (int) (writePosition % capacity);
+            int firstLength = Math.min(size, capacity - posInBuffer);
+            System.arraycopy(data, offset, mBuffer, posInBuffer, firstLength);
+            if (firstLength < size) {
+                System.arraycopy(data, offset + firstLength, mBuffer, 0, size - firstLength);
+            }
+            mWritePosition.set(writePosition + size);
+            offset += size;
+            length -= size;
+        }
+        wakeUpReaders();
+    }
+
+    /**
+     * Returns a buffer for the producer to put data in place at the write position. The position
+     * of the returned buffer is the write position in {@link ByteBuffer#array()}, and its
+     * remaining space is contiguous and no larger than the max write size. The data is not
+     * visible to readers until {@link #commitWrite} is called. Should be called only from the
+     * producer thread, and the returned buffer is reused by the next call.
+     */
+    public ByteBuffer getWriteSlot() {
+        int capacity = mBuffer.length;
+        int posInBuffer = (int) (mWritePosition.get() % capacity);
+        mWriteSlot.limit(posInBuffer + Math.min(mMaxWriteSize, capacity - posInBuffer));
+        mWriteSlot.position(posInBuffer);
+        return mWriteSlot;
+    }
+
+    /**
+     * Publishes the data put in the buffer returned by {@link #getWriteSlot} and wakes up readers
+     * waiting for it. Should be called only from the producer thread.
+     *
+     * @param length the number of bytes put in the write slot
+     */
+    public void commitWrite(int length) {
+        long writePosition = mWritePosition.get();
+        int posInBuffer = (int) (writePosition % mBuffer.length);
+        if (length < 0 || length > mMaxWriteSize || posInBuffer + length > mBuffer.length) {
+            throw new IllegalArgumentException("Invalid write length: " + length);
+        }
+        mWritePosition.set(writePosition + length);
+        wakeUpReaders();
+    }
+
+    private void wakeUpReaders() {
+        if (mParkedReaderCount.get() > 0) {
+            for (int i = 0; i < MAX_PARKED_READERS; ++i) {
+                Thread reader = mParkedReaders.get(i);
+                if (reader != null) {
+                    LockSupport.unpark(reader);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks the producer until the unread data is small enough to keep {@code padding} bytes
+     * of the buffer free. Should be called only from the producer thread.
+     *
+     * @param padding the number of bytes to keep free
+     * @return {@code false} if the buffer is closed
+     */
+    public boolean awaitSpace(int padding) {
+        mParkedWriter = Thread.currentThread();
+        try {
+            while (mOpened && mWritePosition.get() - mLastReadPosition.get() + padding
+                    > mBuffer.length) {
+                LockSupport.park(this);
+            }
+        } finally {
+            mParkedWriter = null;
+        }
+        return mOpened;
+    }
+
+    /**
+     * Reads data at the specified position. Blocks until the data is available.
+     *
+     * @param pos the position to read from
+     * @param buffer to read
+     * @param offset start position of the read buffer
+     * @param amount number of bytes to read
+     * @param timeoutMs the maximum time to wait for the data
+     * @return {@code amount} when successful, {@code 0} if the data is not available within
+     *         {@code timeoutMs}, {@link #READ_ERROR_STREAMING_ENDED} if the buffer is closed, or
+     *         {@link #READ_ERROR_BUFFER_OVERWRITTEN} if the data is already overwritten
+     */
+    public int readAt(long pos, byte[] buffer, int offset, int amount, long timeoutMs) {
+        int capacity = mBuffer.length;
+        long endPos = pos + amount;
+        long deadlineNs = 0;
+        while (true) {
+            if (!mOpened) {
+                return READ_ERROR_STREAMING_ENDED;
+            }
+            long writePosition = mWritePosition.get();
+            if (isOverwritten(pos, writePosition)) {
+                return READ_ERROR_BUFFER_OVERWRITTEN;
+            }
+            if (writePosition >= endPos) {
+                break;
+            }
+            long nowNs = System.nanoTime();
+            if (deadlineNs == 0) {
+                deadlineNs = nowNs + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            } else if (nowNs >= deadlineNs) {
+                return 0;
+            }
+            parkReader(endPos, deadlineNs - nowNs);
+        }
+        int startPos = (int) (pos % capacity);
+        int firstLength = Math.min(amount, capacity - startPos);
+        System.arraycopy(mBuffer, startPos, buffer, offset, firstLength);
+        if (firstLength < amount) {
+            System.arraycopy(mBuffer, 0, buffer, offset + firstLength, amount - firstLength);
+        }
+        // The producer might have lapped the reader during the copy. A volatile read alone
+        // doesn't keep the plain reads of the copy from being reordered after it, so a volatile
+        // write comes first: the copy can't move below the write, and the write can't move below
+        // the following volatile read of the write position.
+        mCopyFence = endPos;
+        if (isOverwritten(pos, mWritePosition.get())) {
+            return READ_ERROR_BUFFER_OVERWRITTEN;
+        }
+        mLastReadPosition.set(endPos);
+        Thread writer = mParkedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return amount;
+    }
+
+    private boolean isOverwritten(long pos, long writePosition) {
+        return writePosition - mBuffer.length + mMaxWriteSize > pos;
+    }
+
+    private void parkReader(long endPos, long timeoutNs) {
+        Thread current = Thread.currentThread();
+        int slot = -1;
+        for (int i = 0; i < MAX_PARKED_READERS; ++i) {
+            if (mParkedReaders.compareAndSet(i, null, current)) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            LockSupport.parkNanos(this, Math.min(timeoutNs, POLLING_INTERVAL_NS));
+            return;
+        }
+        mParkedReaderCount.incrementAndGet();
+        try {
+            // Check again after registering not to miss the wake-up from the producer.
+            if (mOpened && mWritePosition.get() < endPos) {
+                LockSupport.parkNanos(this, timeoutNs);
+            }
+        } finally {
+            mParkedReaderCount.decrementAndGet();
+            mParkedReaders.set(slot, null);
+        }
+    }
+}
@@ -124,6 +124,17 @@ public class TsStreamWriter {
      * @param bytesWritten number of bytes written
      */
     public void writeToFile(byte[] buffer, int bytesWritten) {
+        writeToFile(buffer, 0, bytesWritten);
+    }
+
+    /**
+     * Writes the data to the file.
+     *
+     * @param buffer the data to be written
+     * @param offset the start offset of the data in {@code buffer}
+     * @param bytesWritten number of bytes written
+     */
+    public void writeToFile(byte[] buffer, int offset, int bytesWritten) {
         if (mFileOutputStream == null) {
             return;
         }
@@ -132,7 +143,7 @@ public class TsStreamWriter {
             openFile();
         }
         try {
-            mFileOutputStream.write(buffer, 0, bytesWritten);
+            mFileOutputStream.write(buffer, offset, bytesWritten);
         } catch (IOException e) {
             Log.w(TAG, "Error on writing TS stream.", e);
         }
@@ -24,12 +24,14 @@ import com.google.android.exoplayer.upstream.DataSpec;
 import com.android.tv.common.SoftPreconditions;
 import com.android.tv.tuner.ChannelScanFileParser;
 import com.android.tv.tuner.TunerHal;
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.TunerPreferences;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.tvinput.EventDetector;
 import com.android.tv.tuner.tvinput.EventDetector.EventListener;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -39,21 +41,32 @@ import java.util.concurrent.atomic.AtomicLong;
 public class TunerTsStreamer implements TsStreamer {
     private static final String TAG = "TunerTsStreamer";
 
-    private static final int MIN_READ_UNIT = 1500;
+    private static final int TS_PACKET_SIZE = 188;
+    // The sizes are multiples of TS_PACKET_SIZE, so that every slot of the circular buffer can
+    // hold whole TS packets read from the tuner.
+    private static final int MIN_READ_UNIT = TS_PACKET_SIZE * 8; // ~1.5KB
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~15KB
     private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 20000;  // ~ 30MB
-    private static final int TS_PACKET_SIZE = 188;
 
     private static final int READ_TIMEOUT_MS = 5000; // 5 secs.
-    private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
-    private static final int READ_ERROR_STREAMING_ENDED = -1;
-    private static final int READ_ERROR_BUFFER_OVERWRITTEN = -2;
+    private static final int READ_TS_STREAM_TIMEOUT_MS = 1000;
+    private static final int READ_ERROR_SLEEP_MS = 10;
+
+    // A data source which joins the stream can start from a random access point at most this far
+    // behind the live position. This is about 1.5 secs of a full rate ATSC stream, which covers
+    // the usual key frame interval.
+    private static final int MAX_RANDOM_ACCESS_DISTANCE = MIN_READ_UNIT * 2500; // ~3.6MB
+    private static final int TS_SYNC_BYTE = 0x47;
+
+    private static final TunerMetrics.Counter sBytesRead =
+            TunerMetrics.getCounter(TunerMetrics.TUNER_BYTES_READ);
+    private static final TunerMetrics.Counter sOverruns =
+            TunerMetrics.getCounter(TunerMetrics.RING_BUFFER_OVERRUNS);
+    private static final TunerMetrics.Counter sSkippedBytes =
+            TunerMetrics.getCounter(TunerMetrics.RING_BUFFER_SKIPPED_BYTES);
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
-    private long mBytesFetched;
-    private final AtomicLong mLastReadPosition = new AtomicLong();
-    private boolean mStreaming;
+    private final TsRingBuffer mCircularBuffer =
+            new TsRingBuffer(CIRCULAR_BUFFER_SIZE, READ_BUFFER_SIZE);
 
     private final TunerHal mTunerHal;
     private TunerChannel mChannel;
@@ -63,14 +76,30 @@ public class TunerTsStreamer implements TsStreamer {
     private final TsStreamWriter mTsStreamWriter;
     private String mChannelNumber;
 
+    // Finds the PAT packet which precedes the last video key frame. Starting from there, a demuxer
+    // can find the PAT and the PMT before the key frame. Fed only by the streaming thread.
+    private volatile RandomAccessPointFinder mRandomAccessPointFinder;
+
+    private final PsiTableCache mPsiTableCache;
+    // Collects the live PAT and PMT to validate the cached ones. Accessed only by the streaming
+    // thread once the streaming starts.
+    private PsiTableCollector mPsiTableCollector;
+    // The TS packets of the PAT and the PMT which data sources feed to demuxers ahead of the
+    // stream. They are replaced with the live ones when the cached ones turn out to be outdated.
+    private volatile byte[] mPsiTablePackets;
+
     public static class TunerDataSource extends TsDataSource {
         private final TunerTsStreamer mTsStreamer;
         private final AtomicLong mLastReadPosition = new AtomicLong(0);
         private long mStartBufferedPosition;
+        // The cached PSI tables which are read before the stream, or null.
+        private byte[] mPsiTablePackets;
+        private int mPsiTableReadPosition;
 
         private TunerDataSource(TunerTsStreamer tsStreamer) {
             mTsStreamer = tsStreamer;
             mStartBufferedPosition = tsStreamer.getBufferedPosition();
+            mPsiTablePackets = tsStreamer.mPsiTablePackets;
         }
 
         @Override
@@ -90,9 +119,27 @@ public class TunerTsStreamer implements TsStreamer {
             mStartBufferedPosition += offset;
         }
 
+        /**
+         * Makes the data source read the stream only, without the cached PSI tables ahead of it.
+         * This should be called before the first read, for the sessions which can't re-tune when
+         * the cached tables turn out to be outdated, e.g. recordings.
+         */
+        void skipCachedPsiTables() {
+            SoftPreconditions.checkState(mLastReadPosition.get() == 0);
+            mPsiTablePackets = null;
+        }
+
+        // The tables of the streamer are replaced only when their elementary streams differ from
+        // the cached ones. See PsiTableCollector#hasSameStreams.
+        @Override
+        public boolean hasStalePsiTables() {
+            return mPsiTablePackets != null && mPsiTablePackets != mTsStreamer.mPsiTablePackets;
+        }
+
         @Override
         public long open(DataSpec dataSpec) throws IOException {
             mLastReadPosition.set(0);
+            mPsiTableReadPosition = 0;
             return C.LENGTH_UNBOUNDED;
         }
 
@@ -102,16 +149,26 @@ public class TunerTsStreamer implements TsStreamer {
 
         @Override
         public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (mPsiTablePackets != null && mPsiTableReadPosition < mPsiTablePackets.length) {
+                // Lets the demuxer know the elementary streams before the live tables arrive.
+                int length = Math.min(readLength,
+                        mPsiTablePackets.length - mPsiTableReadPosition);
+                System.arraycopy(mPsiTablePackets, mPsiTableReadPosition, buffer, offset, length);
+                mPsiTableReadPosition += length;
+                return length;
+            }
             int ret = mTsStreamer.readAt(mStartBufferedPosition + mLastReadPosition.get(), buffer,
                     offset, readLength);
             if (ret > 0) {
                 mLastReadPosition.addAndGet(ret);
-            } else if (ret == READ_ERROR_BUFFER_OVERWRITTEN) {
+            } else if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
                 long currentPosition = mStartBufferedPosition + mLastReadPosition.get();
                 long endPosition = mTsStreamer.getBufferedPosition();
                 long diff = ((endPosition - currentPosition + TS_PACKET_SIZE - 1) / TS_PACKET_SIZE)
                         * TS_PACKET_SIZE;
                 Log.w(TAG, "Demux position jump by overwritten buffer: " + diff);
+                sOverruns.increment();
+                sSkippedBytes.add(diff);
                 mStartBufferedPosition = currentPosition + diff;
                 mLastReadPosition.set(0);
                 return 0;
@@ -132,6 +189,7 @@ public class TunerTsStreamer implements TsStreamer {
         }
         mTsStreamWriter = context != null && TunerPreferences.getStoreTsStream(context) ?
                 new TsStreamWriter(context) : null;
+        mPsiTableCache = context != null ? PsiTableCache.getInstance(context) : null;
     }
 
     public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener) {
@@ -165,14 +223,16 @@ public class TunerTsStreamer implements TsStreamer {
             }
             mChannel = channel;
             mChannelNumber = channel.getDisplayNumber();
-            synchronized (mCircularBufferMonitor) {
-                if (mStreaming) {
-                    Log.w(TAG, "Streaming should be stopped before start streaming");
-                    return true;
-                }
-                mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+            mRandomAccessPointFinder = channel.hasVideo()
+                    ? new RandomAccessPointFinder(channel.getVideoPid()) : null;
+            if (mPsiTableCache != null) {
+                mPsiTablePackets = mPsiTableCache.get(channel.getFrequency(),
+                        channel.getProgramNumber());
+                mPsiTableCollector = new PsiTableCollector(channel.getProgramNumber());
+            }
+            if (!mCircularBuffer.open()) {
+                Log.w(TAG, "Streaming should be stopped before start streaming");
+                return true;
             }
             if (mTsStreamWriter != null) {
                 mTsStreamWriter.setChannel(mChannel);
@@ -191,14 +251,9 @@ public class TunerTsStreamer implements TsStreamer {
         if (mTunerHal.tune(channel.frequency, channel.modulation, null)) {
             mEventDetector.startDetecting(
                     channel.frequency, channel.modulation, EventDetector.ALL_PROGRAM_NUMBERS);
-            synchronized (mCircularBufferMonitor) {
-                if (mStreaming) {
-                    Log.w(TAG, "Streaming should be stopped before start streaming");
-                    return true;
-                }
-                mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+            if (!mCircularBuffer.open()) {
+                Log.w(TAG, "Streaming should be stopped before start streaming");
+                return true;
             }
             mStreamingThread = new StreamingThread();
             mStreamingThread.start();
@@ -215,10 +270,8 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         mChannel = null;
-        synchronized (mCircularBufferMonitor) {
-            mStreaming = false;
-            mCircularBufferMonitor.notifyAll();
-        }
+        mCircularBuffer.close();
+        mTunerHal.interruptReadTsStream();
 
         try {
             if (mStreamingThread != null) {
@@ -238,6 +291,25 @@ public class TunerTsStreamer implements TsStreamer {
         return new TunerDataSource(this);
     }
 
+    /**
+     * Creates {@link TsDataSource} which starts from the last random access point of the stream
+     * instead of the live position, if it has been buffered recently. This is used when a data
+     * source joins a stream which is already running, so that the playback can start without
+     * waiting for the next key frame.
+     *
+     * @return {@link TsDataSource}
+     */
+    public TsDataSource createDataSourceFromRandomAccessPoint() {
+        TunerDataSource source = new TunerDataSource(this);
+        RandomAccessPointFinder finder = mRandomAccessPointFinder;
+        long randomAccessPosition = finder != null ? finder.getRandomAccessPosition() : -1;
+        if (randomAccessPosition >= 0 && source.mStartBufferedPosition - randomAccessPosition
+                <= MAX_RANDOM_ACCESS_DISTANCE) {
+            source.mStartBufferedPosition = randomAccessPosition;
+        }
+        return source;
+    }
+
     /**
      * Returns incomplete channel lists which was scanned so far. Incomplete channel means
      * the channel whose channel information is not complete or is not well-formed.
@@ -268,13 +340,11 @@ public class TunerTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     public String getStreamerInfo() {
-        return "Channel: " + mChannelNumber + ", Streaming: " + mStreaming;
+        return "Channel: " + mChannelNumber + ", Streaming: " + mCircularBuffer.isOpened();
     }
 
     public void registerListener(EventListener listener) {
@@ -292,56 +362,82 @@ public class TunerTsStreamer implements TsStreamer {
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            // Buffers for streaming data from the tuner and the internal buffer.
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    if (!mStreaming) {
-                        break;
-                    }
+            while (mCircularBuffer.isOpened()) {
+                // The tuner writes straight into the circular buffer. Blocks until the tuner has
+                // data, so an underrun doesn't need to sleep.
+                ByteBuffer slot = mCircularBuffer.getWriteSlot();
+                int offset = slot.arrayOffset() + slot.position();
+                int bytesWritten = mTunerHal.readTsStream(slot, READ_TS_STREAM_TIMEOUT_MS);
+                if (bytesWritten == 0) {
+                    continue;
                 }
-
-                int bytesWritten = mTunerHal.readTsStream(dataBuffer, dataBuffer.length);
-                if (bytesWritten <= 0) {
+                if (bytesWritten < 0) {
                     try {
-                        // When buffer is underrun, we sleep for short time to prevent
+                        // When the tuner is not ready, we sleep for short time to prevent
                         // unnecessary CPU draining.
-                        sleep(BUFFER_UNDERRUN_SLEEP_MS);
+                        sleep(READ_ERROR_SLEEP_MS);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
                     continue;
                 }
 
+                byte[] data = slot.array();
                 if (mTsStreamWriter != null) {
-                    mTsStreamWriter.writeToFile(dataBuffer, bytesWritten);
+                    mTsStreamWriter.writeToFile(data, offset, bytesWritten);
                 }
 
                 if (mEventDetector != null) {
-                    mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
-                }
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(dataBuffer, 0, mCircularBuffer, posInBuffer,
-                            bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(dataBuffer, bytesToCopyInFirstPass, mCircularBuffer, 0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notifyAll();
+                    mEventDetector.feedTSStream(data, offset, bytesWritten);
                 }
+                scanPackets(data, offset, bytesWritten);
+                mCircularBuffer.commitWrite(bytesWritten);
+                sBytesRead.add(bytesWritten);
             }
 
             Log.i(TAG, "Streaming stopped");
         }
     }
 
+    // Finds the random access point, and collects the PSI tables until they are collected.
+    private void scanPackets(byte[] data, int offset, int length) {
+        TunerChannel channel = mChannel;
+        RandomAccessPointFinder finder = mRandomAccessPointFinder;
+        if (channel == null || (finder == null && mPsiTableCollector == null)) {
+            return;
+        }
+        long position = mCircularBuffer.getWritePosition();
+        for (int i = 0; i + TS_PACKET_SIZE <= length; i += TS_PACKET_SIZE) {
+            int packet = offset + i;
+            if ((data[packet] & 0xff) != TS_SYNC_BYTE) {
+                // Not aligned to TS packets. Waits for the stream to be aligned again.
+                return;
+            }
+            if (mPsiTableCollector != null && mPsiTableCollector.feed(data, packet)) {
+                onPsiTablesCollected(channel, mPsiTableCollector.getPackets());
+                mPsiTableCollector = null;
+            }
+            if (finder != null) {
+                finder.feed(data, packet, position + i);
+            }
+        }
+    }
+
+    private void onPsiTablesCollected(TunerChannel channel, byte[] packets) {
+        byte[] cachedPackets = mPsiTablePackets;
+        if (cachedPackets == null) {
+            mPsiTablePackets = packets;
+        } else if (!PsiTableCollector.hasSameStreams(packets, cachedPackets)) {
+            Log.i(TAG, "Cached PSI tables are outdated: " + mChannelNumber);
+            // Makes the data sources which read the cached ones report stale PSI tables.
+            mPsiTablePackets = packets;
+        }
+        // The live tables are cached even if only e.g. their version numbers are changed, which
+        // doesn't make the data sources re-tune. This happens at most once for a tune, and the
+        // entry is small. So it's written in the streaming thread.
+        mPsiTableCache.put(channel.getFrequency(), channel.getProgramNumber(), packets);
+    }
+
     /**
      * Reads data from internal buffer.
      * @param pos the position to read from
@@ -353,35 +449,15 @@ public class TunerTsStreamer implements TsStreamer {
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
         while (true) {
-            synchronized (mCircularBufferMonitor) {
-                if (!mStreaming) {
-                    return READ_ERROR_STREAMING_ENDED;
-                }
-                if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                    Log.w(TAG, "Demux is requesting the data which is already overwritten.");
-                    return READ_ERROR_BUFFER_OVERWRITTEN;
-                }
-                if (mBytesFetched < pos + amount) {
-                    try {
-                        mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Try again to prevent starvation.
-                    // Give chances to read from other threads.
-                    continue;
-                }
-                int startPos = (int) (pos % CIRCULAR_BUFFER_SIZE);
-                int endPos = (int) ((pos + amount) % CIRCULAR_BUFFER_SIZE);
-                int firstLength = (startPos > endPos ? CIRCULAR_BUFFER_SIZE : endPos) - startPos;
-                System.arraycopy(mCircularBuffer, startPos, buffer, offset, firstLength);
-                if (firstLength < amount) {
-                    System.arraycopy(mCircularBuffer, 0, buffer, offset + firstLength,
-                            amount - firstLength);
-                }
-                mCircularBufferMonitor.notifyAll();
-                return amount;
+            int ret = mCircularBuffer.readAt(pos, buffer, offset, amount, READ_TIMEOUT_MS);
+            if (ret == 0 && amount > 0) {
+                // Try again until the streaming is stopped.
+                continue;
+            }
+            if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
+                Log.w(TAG, "Demux is requesting the data which is already overwritten.");
             }
+            return ret;
         }
     }
 }
@@ -44,6 +44,7 @@ class TunerTsStreamerManager {
     private final Map<Integer, TsStreamerCreator> mCreators = new HashMap<>();
     private final Map<Integer, EventDetector.EventListener> mListeners = new HashMap<>();
     private final Map<TsDataSource, TunerTsStreamer> mSourceToStreamerMap = new HashMap<>();
+    private final Set<Integer> mStandbySessions = new HashSet<>();
     private final TunerHalManager mTunerHalManager = new TunerHalManager();
     private static TunerTsStreamerManager sInstance;
 
@@ -62,13 +63,21 @@ class TunerTsStreamerManager {
 
     synchronized TsDataSource createDataSource(
             Context context, TunerChannel channel, EventDetector.EventListener listener,
-            int sessionId, boolean reuse) {
+            int sessionId, boolean reuse, boolean standby) {
         TsStreamerCreator creator;
         synchronized (mCancelLock) {
+            if (standby) {
+                mStandbySessions.add(sessionId);
+            }
             if (mStreamerFinder.containsLocked(channel)) {
-                mStreamerFinder.appendSessionLocked(channel, sessionId);
                 TunerTsStreamer streamer =  mStreamerFinder.getStreamerLocked(channel);
-                TsDataSource source = streamer.createDataSource();
+                // The stream is already running for a standby of zap-ahead tuning. Starts from
+                // the buffered random access point not to wait for the next key frame.
+                TsDataSource source =
+                        mStreamerFinder.hasAnySessionLocked(channel, mStandbySessions)
+                                ? streamer.createDataSourceFromRandomAccessPoint()
+                                : streamer.createDataSource();
+                mStreamerFinder.appendSessionLocked(channel, sessionId);
                 mListeners.put(sessionId, listener);
                 streamer.registerListener(listener);
                 mSourceToStreamerMap.put(source, streamer);
@@ -140,6 +149,9 @@ class TunerTsStreamerManager {
     }
 
     synchronized void release(int sessionId) {
+        synchronized (mCancelLock) {
+            mStandbySessions.remove(sessionId);
+        }
         mTunerHalManager.releaseCachedHal(sessionId);
     }
 
@@ -172,6 +184,19 @@ class TunerTsStreamerManager {
             }
         }
 
+        // @GuardedBy("mCancelLock")
+        private boolean hasAnySessionLocked(TunerChannel channel, Set<Integer> sessionIds) {
+            Set<Integer> sessions = mSessions.get(channel);
+            if (sessions != null) {
+                for (Integer sessionId : sessions) {
+                    if (sessionIds.contains(sessionId)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
         // @GuardedBy("mCancelLock")
         private boolean containsLocked(TunerChannel channel) {
             return mSessions.containsKey(channel);
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.tv.tuner.TunerHal;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.util.SystemPropertiesProxy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps idle tuners parked on the channels which are likely to be tuned next, e.g. the channel-up
+ * and channel-down neighbours of the current channel.
+ *
+ * <p>A parked channel is streamed by a standby {@link TsDataSource} of its own
+ * {@link TsDataSourceManager}, so the PSIP of the channel is parsed and its stream is buffered
+ * ahead. When a session tunes to a parked channel, {@link TunerTsStreamerManager} shares the
+ * running stream with the session instead of tuning a device, and the new data source starts
+ * from the last buffered key frame.
+ *
+ * <p>Standby streams don't give way to the other sessions, e.g. recordings. So zap-ahead tuning
+ * is enabled only when the system property {@code tv.tuner.zap_ahead} is set.
+ */
+public class ZapAheadTuner implements Handler.Callback {
+    private static final String TAG = "ZapAheadTuner";
+    private static final boolean DEBUG = false;
+
+    private static final String ZAP_AHEAD_KEY = "tv.tuner.zap_ahead";
+    // Only channel-up and channel-down neighbours are parked.
+    private static final int MAX_STANDBY_COUNT = 2;
+
+    private static final int MSG_PARK = 1;
+    private static final int MSG_RELEASE = 2;
+
+    private final Context mContext;
+    private final int mMaxStandbyCount;
+    private final TsDataSourceManager mSourceManager =
+            TsDataSourceManager.createStandbySourceManager();
+    private final Map<TunerChannel, TsDataSource> mStandbySources = new ConcurrentHashMap<>();
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private volatile boolean mSuspended;
+
+    /**
+     * Creates {@link ZapAheadTuner} if zap-ahead tuning is enabled and there are tuners to spare
+     * for it.
+     *
+     * @param context a {@link Context} instance
+     * @return {@link ZapAheadTuner}, or {@code null} if zap-ahead tuning is not available
+     */
+    public static ZapAheadTuner createIfAvailable(Context context) {
+        if (!SystemPropertiesProxy.getBoolean(ZAP_AHEAD_KEY, false)) {
+            return null;
+        }
+        // One tuner is left for the playback.
+        int spareTunerCount = TunerHal.getTunerTypeAndCount(context).second - 1;
+        if (spareTunerCount <= 0) {
+            return null;
+        }
+        return new ZapAheadTuner(context, Math.min(spareTunerCount, MAX_STANDBY_COUNT));
+    }
+
+    private ZapAheadTuner(Context context, int maxStandbyCount) {
+        mContext = context;
+        mMaxStandbyCount = maxStandbyCount;
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper(), this);
+    }
+
+    /**
+     * Parks idle tuners on the given channels asynchronously. The channels which are parked but
+     * not given are released. Channels over the number of the spare tuners are ignored.
+     *
+     * @param channels the channels to park, in the order of the priority
+     */
+    public void park(List<TunerChannel> channels) {
+        mHandler.removeMessages(MSG_PARK);
+        mSuspended = false;
+        mHandler.obtainMessage(MSG_PARK, new ArrayList<>(channels)).sendToTarget();
+    }
+
+    /**
+     * Returns whether the channel is streamed by a standby data source.
+     */
+    public boolean isParked(TunerChannel channel) {
+        return mStandbySources.containsKey(channel);
+    }
+
+    /**
+     * Stops parking tuners until the next {@link #park}, and cancels the parking in progress.
+     * This should be called before a session tunes, so that the session doesn't compete with the
+     * standby data sources for tuners.
+     *
+     * <p>This doesn't wait for the cancellation, since a tuner device may not stop tuning right
+     * away and the session shouldn't be delayed by that. A standby tune which completes after the
+     * suspension gives its tuner back right away, and one tuner is never parked, so it is left
+     * for the session.
+     */
+    public void suspend() {
+        mHandler.removeMessages(MSG_PARK);
+        mSuspended = true;
+        mSourceManager.setHasPendingTune();
+    }
+
+    /**
+     * Releases all the standby data sources and the tuners for them.
+     */
+    public void release() {
+        mHandler.removeCallbacksAndMessages(null);
+        mSuspended = true;
+        mSourceManager.setHasPendingTune();
+        mHandler.sendEmptyMessage(MSG_RELEASE);
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_PARK: {
+                doPark((List<TunerChannel>) msg.obj);
+                return true;
+            }
+            case MSG_RELEASE: {
+                releaseStandbySources(new ArrayList<TunerChannel>());
+                mSourceManager.release();
+                mHandlerThread.quitSafely();
+                return true;
+            }
+            default: {
+                Log.w(TAG, "Unhandled message code: " + msg.what);
+                return false;
+            }
+        }
+    }
+
+    private void doPark(List<TunerChannel> channels) {
+        if (channels.size() > mMaxStandbyCount) {
+            channels = channels.subList(0, mMaxStandbyCount);
+        }
+        // Releases the tuners first, so that they can be used for the new channels.
+        releaseStandbySources(channels);
+        for (TunerChannel channel : channels) {
+            if (mSuspended) {
+                return;
+            }
+            if (mStandbySources.containsKey(channel)) {
+                continue;
+            }
+            TsDataSource source = mSourceManager.createDataSource(mContext, channel, null);
+            if (mSuspended && source != null) {
+                // Suspended after the tuning. Gives the tuner back to the session.
+                mSourceManager.releaseDataSource(source);
+                return;
+            }
+            if (source == null) {
+                Log.w(TAG, "Failed to park a tuner on " + channel);
+                continue;
+            }
+            if (DEBUG) Log.d(TAG, "Parked a tuner on " + channel);
+            mStandbySources.put(channel, source);
+        }
+    }
+
+    private void releaseStandbySources(List<TunerChannel> channelsToKeep) {
+        Iterator<Map.Entry<TunerChannel, TsDataSource>> it =
+                mStandbySources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TunerChannel, TsDataSource> entry = it.next();
+            if (!channelsToKeep.contains(entry.getKey())) {
+                it.remove();
+                mSourceManager.releaseDataSource(entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+/**
+ * Computes CRC-32/MPEG-2, the CRC of MPEG-2 TS sections defined in ISO/IEC 13818-1 Annex A.
+ * The polynomial is 0x04c11db7, the initial value is 0xffffffff, and neither the input nor the
+ * output is reflected. A section with a valid CRC_32 field has a CRC of {@code 0}.
+ */
+public abstract class Crc32Mpeg {
+    public static final int INITIAL_VALUE = 0xffffffff;
+
+    private static final int POLYNOMIAL = 0x04c11db7;
+    private static final int SLICE_COUNT = 8;
+
+    // TABLES[0] is the table for the byte-at-a-time algorithm. TABLES[k] is for a byte which is
+    // followed by k more bytes in a step of the slicing-by-8 algorithm.
+    private static final int[][] TABLES = createTables();
+
+    /**
+     * The table-driven implementation which processes a byte at a time.
+     */
+    public static final Crc32Mpeg TABLE_DRIVEN = new TableDriven();
+
+    /**
+     * The slicing-by-8 implementation which processes 8 bytes at a time with 8 tables. It is
+     * several times faster for long sections such as EIT and ETT.
+     */
+    public static final Crc32Mpeg SLICING_BY_8 = new SlicingBy8();
+
+    /**
+     * Returns the implementation to be used by default.
+     */
+    public static Crc32Mpeg getDefault() {
+        return SLICING_BY_8;
+    }
+
+    /**
+     * Updates {@code crc} with the specified data.
+     *
+     * @param crc the CRC of the preceding data, or {@link #INITIAL_VALUE}
+     * @param data the data
+     * @param offset the start offset of the data
+     * @param length the length of the data
+     * @return the updated CRC
+     */
+    public abstract int update(int crc, byte[] data, int offset, int length);
+
+    /**
+     * Computes the CRC of the specified data.
+     */
+    public int compute(byte[] data, int offset, int length) {
+        return update(INITIAL_VALUE, data, offset, length);
+    }
+
+    /**
+     * Returns {@code true} if the data ends with a valid CRC_32 field.
+     */
+    public boolean isValid(byte[] data, int offset, int length) {
+        return compute(data, offset, length) == 0;
+    }
+
+    private static int[][] createTables() {
+        int[][] tables = new int[SLICE_COUNT][256];
+        for (int n = 0; n < 256; ++n) {
+            int crc = n << 24;
+            for (int i = 0; i < 8; ++i) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            tables[0][n] = crc;
+        }
+        for (int k = 1; k < SLICE_COUNT; ++k) {
+            for (int n = 0; n < 256; ++n) {
+                int crc = tables[k - 1][n];
+                tables[k][n] = (crc << 8) ^ tables[0][crc >>> 24];
+            }
+        }
+        return tables;
+    }
+
+    private static int updateByte(int[] table, int crc, byte b) {
+        return table[(crc >>> 24) ^ (b & 0xff)] ^ (crc << 8);
+    }
+
+    private static class TableDriven extends Crc32Mpeg {
+        @Override
+        public int update(int crc, byte[] data, int offset, int length) {
+            int[] table = TABLES[0];
+            int end = offset + length;
+            for (int i = offset; i < end; ++i) {
+                crc = updateByte(table, crc, data[i]);
+            }
+            return crc;
+        }
+    }
+
+    private static class SlicingBy8 extends Crc32Mpeg {
+        @Override
+        public int update(int crc, byte[] data, int offset, int length) {
+            int[] t0 = TABLES[0];
+            int[] t1 = TABLES[1];
+            int[] t2 = TABLES[2];
+            int[] t3 = TABLES[3];
+            int[] t4 = TABLES[4];
+            int[] t5 = TABLES[5];
+            int[] t6 = TABLES[6];
+            int[] t7 = TABLES[7];
+            int i = offset;
+            int end = offset + length;
+            for (int stepEnd = end - SLICE_COUNT; i <= stepEnd; i += SLICE_COUNT) {
+                int first = crc ^ ((data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16
+                        | (data[i + 2] & 0xff) << 8 | (data[i + 3] & 0xff));
+                int second = (data[i + 4] & 0xff) << 24 | (data[i + 5] & 0xff) << 16
+                        | (data[i + 6] & 0xff) << 8 | (data[i + 7] & 0xff);
+                crc = t7[first >>> 24] ^ t6[(first >>> 16) & 0xff]
+                        ^ t5[(first >>> 8) & 0xff] ^ t4[first & 0xff]
+                        ^ t3[second >>> 24] ^ t2[(second >>> 16) & 0xff]
+                        ^ t1[(second >>> 8) & 0xff] ^ t0[second & 0xff];
+            }
+            for (; i < end; ++i) {
+                crc = updateByte(t0, crc, data[i]);
+            }
+            return crc;
+        }
+    }
+}
@@ -21,7 +21,9 @@ import android.media.tv.TvContract.Programs.Genres;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.data.Channel;
 import com.android.tv.tuner.data.PsiData.PatItem;
 import com.android.tv.tuner.data.PsiData.PmtItem;
@@ -34,7 +36,6 @@ import com.android.tv.tuner.data.PsipData.ExtendedChannelNameDescriptor;
 import com.android.tv.tuner.data.PsipData.GenreDescriptor;
 import com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
 import com.android.tv.tuner.data.PsipData.MgtItem;
-import com.android.tv.tuner.data.PsipData.PsipSection;
 import com.android.tv.tuner.data.PsipData.RatingRegion;
 import com.android.tv.tuner.data.PsipData.RegionalRating;
 import com.android.tv.tuner.data.PsipData.TsDescriptor;
@@ -60,6 +61,11 @@ public class SectionParser {
     private static final String TAG = "SectionParser";
     private static final boolean DEBUG = false;
 
+    private static final TunerMetrics.Counter sParsedSections =
+            TunerMetrics.getCounter(TunerMetrics.PSIP_PARSED_SECTIONS);
+    private static final TunerMetrics.Counter sSkippedSections =
+            TunerMetrics.getCounter(TunerMetrics.PSIP_SKIPPED_SECTIONS);
+
     private static final byte TABLE_ID_PAT = (byte) 0x00;
     private static final byte TABLE_ID_PMT = (byte) 0x02;
     private static final byte TABLE_ID_MGT = (byte) 0xc7;
@@ -103,6 +109,7 @@ public class SectionParser {
      * The following CRC table is from the code generated by the following command.
      * $ python pycrc.py --model crc-32-mpeg --algorithm table-driven --generate c
      * To see the details of pycrc, visit http://www.tty1.net/pycrc/index_en.html
+     * Sections are checked by {@link Crc32Mpeg}, and this table is kept as its reference.
      */
     public static final int[] CRC_TABLE = {
         0x00000000, 0x04c11db7, 0x09823b6e, 0x0d4326d9,
@@ -319,8 +326,12 @@ public class SectionParser {
         ISO_LANGUAGE_CODE_MAP.put("esl", "spa"); // Special entry for channel 9-1 KQED in bay area.
     }
 
-    // Containers to store the last version numbers of the PSIP sections.
-    private final HashMap<PsipSection, Integer> mSectionVersionMap = new HashMap<>();
+    // The minimum length of a section which has the section header with the version number.
+    private static final int MIN_SECTION_LENGTH = 9;
+
+    // Containers to store the last version numbers of the PSIP sections. The key is made from the
+    // table ID, the table ID extension and the section number by makeSectionKey().
+    private final SparseIntArray mSectionVersions = new SparseIntArray();
     private final SparseArray<List<EttItem>> mParsedEttItems = new SparseArray<>();
 
     public interface OutputListener {
@@ -333,9 +344,24 @@ public class SectionParser {
     }
 
     private final OutputListener mListener;
+    private final Crc32Mpeg mCrc;
+
+    private long mParsedSectionCount;
+    private long mSkippedSectionCount;
 
     public SectionParser(OutputListener listener) {
+        this(listener, Crc32Mpeg.getDefault());
+    }
+
+    /**
+     * Creates a section parser.
+     *
+     * @param listener the listener for the parsed tables
+     * @param crc the CRC implementation to check the sections with
+     */
+    public SectionParser(OutputListener listener, Crc32Mpeg crc) {
         mListener = listener;
+        mCrc = crc;
     }
 
     public void parseSections(ByteArrayBuffer data) {
@@ -354,7 +380,16 @@ public class SectionParser {
             if (DEBUG) {
                 Log.d(TAG, "parseSections 0x" + Integer.toHexString(data.byteAt(pos) & 0xff));
             }
-            parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
+            // Tables are repeated constantly on air. Check the version in place to skip the copy
+            // and the CRC check of the sections which have been parsed already.
+            if (isUnchangedSection(data.buffer(), pos, sectionLength)) {
+                ++mSkippedSectionCount;
+                sSkippedSections.increment();
+            } else {
+                ++mParsedSectionCount;
+                sParsedSections.increment();
+                parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
+            }
             pos += sectionLength;
         }
         if (mListener != null) {
@@ -368,31 +403,56 @@ public class SectionParser {
     }
 
     public void resetVersionNumbers() {
-        mSectionVersionMap.clear();
+        mSectionVersions.clear();
     }
 
-    private void parseSection(byte[] data) {
-        if (!checkSanity(data)) {
-            Log.d(TAG, "Bad CRC!");
-            return;
-        }
-        PsipSection section = PsipSection.create(data);
-        if (section == null) {
-            return;
-        }
+    /**
+     * Returns the number of sections which have been checked and parsed.
+     */
+    public long getParsedSectionCount() {
+        return mParsedSectionCount;
+    }
+
+    /**
+     * Returns the number of sections which have been skipped without being copied or checked,
+     * since they are not applicable or the same version has been parsed already.
+     */
+    public long getSkippedSectionCount() {
+        return mSkippedSectionCount;
+    }
 
+    /**
+     * Returns {@code true} if the section at {@code pos} of {@code data} doesn't need to be
+     * parsed. The section header is read in place, so no copy or CRC check is needed.
+     */
+    private boolean isUnchangedSection(byte[] data, int pos, int sectionLength) {
+        if (sectionLength < MIN_SECTION_LENGTH) {
+            return true;
+        }
         // The currentNextIndicator indicates that the section sent is currently applicable.
-        if (!section.getCurrentNextIndicator()) {
-            return;
+        if ((data[pos + 5] & 0x01) == 0) {
+            return true;
         }
-        int versionNumber = (data[5] & 0x3e) >> 1;
-        Integer oldVersionNumber = mSectionVersionMap.get(section);
+        int versionNumber = (data[pos + 5] & 0x3e) >> 1;
 
         // The versionNumber shall be incremented when a change in the information carried within
         // the section occurs.
-        if (oldVersionNumber != null && versionNumber == oldVersionNumber) {
+        return mSectionVersions.get(makeSectionKey(data, pos), -1) == versionNumber;
+    }
+
+    private static int makeSectionKey(byte[] data, int pos) {
+        int tableId = data[pos] & 0xff;
+        int tableIdExtension = (data[pos + 3] & 0xff) << 8 | (data[pos + 4] & 0xff);
+        int sectionNumber = data[pos + 6] & 0xff;
+        return tableId << 24 | tableIdExtension << 8 | sectionNumber;
+    }
+
+    private void parseSection(byte[] data) {
+        if (!checkSanity(data)) {
+            Log.d(TAG, "Bad CRC!");
             return;
         }
+        int versionNumber = (data[5] & 0x3e) >> 1;
         boolean result = false;
         switch (data[0]) {
             case TABLE_ID_PAT:
@@ -418,7 +478,7 @@ public class SectionParser {
                 break;
         }
         if (result) {
-            mSectionVersionMap.put(section, versionNumber);
+            mSectionVersions.put(makeSectionKey(data, 0), versionNumber);
         }
     }
 
@@ -1250,20 +1310,13 @@ public class SectionParser {
         return null;
     }
 
-    private static boolean checkSanity(byte[] data) {
+    private boolean checkSanity(byte[] data) {
         if (data.length <= 1) {
             return false;
         }
         boolean hasCRC = (data[1] & 0x80) != 0; // section_syntax_indicator
-        if (hasCRC) {
-            int crc = 0xffffffff;
-            for(byte b : data) {
-                int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
-                crc = CRC_TABLE[index] ^ (crc << 8);
-            }
-            if(crc != 0){
-                return false;
-            }
+        if (hasCRC && !mCrc.isValid(data, 0, data.length)) {
+            return false;
         }
         return true;
     }
@@ -17,9 +17,11 @@
 package com.android.tv.tuner.ts;
 
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.data.PsiData.PatItem;
 import com.android.tv.tuner.data.PsiData.PmtItem;
 import com.android.tv.tuner.data.PsipData.EitItem;
@@ -31,11 +33,7 @@ import com.android.tv.tuner.ts.SectionParser.OutputListener;
 import com.android.tv.tuner.util.ByteArrayBuffer;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
 
 /**
  * Parses MPEG-2 TS packets.
@@ -44,30 +42,39 @@ public class TsParser {
     private static final String TAG = "TsParser";
     private static final boolean DEBUG = false;
 
+    private static final TunerMetrics.Counter sInvalidPackets =
+            TunerMetrics.getCounter(TunerMetrics.TS_INVALID_PACKETS);
+    private static final TunerMetrics.Counter sTeiPackets =
+            TunerMetrics.getCounter(TunerMetrics.TS_TEI_PACKETS);
+    private static final TunerMetrics.Counter sContinuityErrors =
+            TunerMetrics.getCounter(TunerMetrics.TS_CONTINUITY_ERRORS);
+
     public static final int ATSC_SI_BASE_PID = 0x1ffb;
     public static final int PAT_PID = 0x0000;
     private static final int TS_PACKET_START_CODE = 0x47;
     private static final int TS_PACKET_TEI_MASK = 0x80;
     private static final int TS_PACKET_SIZE = 188;
+    // PID is a 13-bit field.
+    private static final int PID_COUNT = 0x2000;
 
     /*
-     * Using a SparseArray removes the need to auto box the int key for mStreamMap
-     * in feedTdPacket which is called 100 times a second. This greatly reduces the
-     * number of objects created and the frequency of garbage collection.
-     * Other maps might be suitable for a SparseArray, but the performance
-     * trade offs must be considered carefully.
-     * mStreamMap is the only one called at such a high rate.
+     * Every packet of a multiplex is routed by its PID, thousands of times a second. A flat
+     * table indexed by PID looks up the stream without boxing or searching, and the payload is
+     * passed on in place, so that the steady-state parsing doesn't allocate any object per
+     * packet. The other tables are keyed by primitive ints as well, since boxed keys and
+     * composite key objects create garbage whenever a section is handled.
      */
-    private final SparseArray<Stream> mStreamMap = new SparseArray<>();
-    private final Map<Integer, VctItem> mSourceIdToVctItemMap = new HashMap<>();
-    private final Map<Integer, String> mSourceIdToVctItemDescriptionMap = new HashMap<>();
-    private final Map<Integer, VctItem> mProgramNumberToVctItemMap = new HashMap<>();
-    private final Map<Integer, List<PmtItem>> mProgramNumberToPMTMap = new HashMap<>();
-    private final Map<Integer, List<EitItem>> mSourceIdToEitMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EitItem>> mEitMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EttItem>> mETTMap = new HashMap<>();
-    private final TreeSet<Integer> mEITPids = new TreeSet<>();
-    private final TreeSet<Integer> mETTPids = new TreeSet<>();
+    private final Stream[] mStreams = new Stream[PID_COUNT];
+    private final SparseArray<VctItem> mSourceIdToVctItemMap = new SparseArray<>();
+    private final SparseArray<String> mSourceIdToVctItemDescriptionMap = new SparseArray<>();
+    private final SparseArray<VctItem> mProgramNumberToVctItemMap = new SparseArray<>();
+    private final SparseArray<List<PmtItem>> mProgramNumberToPMTMap = new SparseArray<>();
+    private final SparseArray<List<EitItem>> mSourceIdToEitMap = new SparseArray<>();
+    // Keyed by makeEventSourceKey(pid, sourceId).
+    private final LongSparseArray<List<EitItem>> mEitMap = new LongSparseArray<>();
+    private final LongSparseArray<List<EttItem>> mETTMap = new LongSparseArray<>();
+    private final SparseBooleanArray mEITPids = new SparseBooleanArray();
+    private final SparseBooleanArray mETTPids = new SparseBooleanArray();
     private final SparseBooleanArray mProgramNumberHandledStatus = new SparseBooleanArray();
     private final SparseBooleanArray mVctItemHandledStatus = new SparseBooleanArray();
     private final TsOutputListener mListener;
@@ -93,15 +100,20 @@ public class TsParser {
         protected int mContinuityCounter = INVALID_CONTINUITY_COUNTER;
         protected final ByteArrayBuffer mPacket = new ByteArrayBuffer(TS_PACKET_SIZE);
 
-        public void feedData(byte[] data, int continuityCounter, boolean startIndicator) {
+        public void feedData(byte[] data, int offset, int length, int continuityCounter,
+                boolean startIndicator) {
             if ((mContinuityCounter + 1) % NUM_CONTINUITY_COUNTER != continuityCounter) {
+                if (mContinuityCounter != INVALID_CONTINUITY_COUNTER) {
+                    sContinuityErrors.increment();
+                }
                 mPacket.setLength(0);
             }
             mContinuityCounter = continuityCounter;
-            handleData(data, startIndicator);
+            handleData(data, offset, length, startIndicator);
         }
 
-        protected abstract void handleData(byte[] data, boolean startIndicator);
+        protected abstract void handleData(byte[] data, int offset, int length,
+                boolean startIndicator);
         protected abstract void resetDataVersions();
     }
 
@@ -115,11 +127,11 @@ public class TsParser {
         }
 
         @Override
-        protected void handleData(byte[] data, boolean startIndicator) {
+        protected void handleData(byte[] data, int offset, int length, boolean startIndicator) {
             int startPos = 0;
             if (mPacket.length() == 0) {
                 if (startIndicator) {
-                    startPos = (data[0] & 0xff) + 1;
+                    startPos = (data[offset] & 0xff) + 1;
                 } else {
                     // Don't know where the section starts yet. Wait until start indicator is on.
                     return;
@@ -131,11 +143,13 @@ public class TsParser {
             }
 
             // When a broken packet is encountered, parsing will stop and return right away.
-            if (startPos >= data.length) {
+            if (startPos >= length) {
                 mPacket.setLength(0);
                 return;
             }
-            mPacket.append(data, startPos, data.length - startPos);
+            // The section assembly buffer is reused, and it grows only when a section is longer
+            // than any section seen before.
+            mPacket.append(data, offset + startPos, length - startPos);
             mSectionParser.parseSections(mPacket);
         }
 
@@ -144,6 +158,10 @@ public class TsParser {
             mSectionParser.resetVersionNumbers();
         }
 
+        public SectionParser getSectionParser() {
+            return mSectionParser;
+        }
+
         private final OutputListener mSectionListener = new OutputListener() {
             @Override
             public void onPatParsed(List<PatItem> items) {
@@ -185,13 +203,13 @@ public class TsParser {
             @Override
             public void onMgtParsed(List<MgtItem> items) {
                 for (MgtItem i : items) {
-                    if (mStreamMap.get(i.getTableTypePid()) != null) {
+                    if (mStreams[i.getTableTypePid()] != null) {
                         continue;
                     }
                     if (i.getTableType() >= MgtItem.TABLE_TYPE_EIT_RANGE_START
                             && i.getTableType() <= MgtItem.TABLE_TYPE_EIT_RANGE_END) {
                         startListening(i.getTableTypePid());
-                        mEITPids.add(i.getTableTypePid());
+                        mEITPids.put(i.getTableTypePid(), true);
                         if (mListener != null) {
                             mListener.onEitPidDetected(i.getTableTypePid());
                         }
@@ -199,7 +217,7 @@ public class TsParser {
                             (i.getTableType() >= MgtItem.TABLE_TYPE_ETT_RANGE_START
                                     && i.getTableType() <= MgtItem.TABLE_TYPE_ETT_RANGE_END)) {
                         startListening(i.getTableTypePid());
-                        mETTPids.add(i.getTableTypePid());
+                        mETTPids.put(i.getTableTypePid(), true);
                         if (mListener != null) {
                             mListener.onEttPidDetected(i.getTableTypePid());
                         }
@@ -250,8 +268,7 @@ public class TsParser {
             @Override
             public void onEitParsed(int sourceId, List<EitItem> items) {
                 if (DEBUG) Log.d(TAG, "onEITParsed " + sourceId);
-                EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                mEitMap.put(entry, items);
+                mEitMap.put(makeEventSourceKey(mPid, sourceId), items);
                 handleEvents(sourceId);
             }
 
@@ -278,38 +295,14 @@ public class TsParser {
                 }
 
                 // Event Information description
-                EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                mETTMap.put(entry, descriptions);
+                mETTMap.put(makeEventSourceKey(mPid, sourceId), descriptions);
                 handleEvents(sourceId);
             }
         };
     }
 
-    private static class EventSourceEntry {
-        public final int pid;
-        public final int sourceId;
-
-        public EventSourceEntry(int pid, int sourceId) {
-            this.pid = pid;
-            this.sourceId = sourceId;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + pid;
-            result = 31 * result + sourceId;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof EventSourceEntry) {
-                EventSourceEntry another = (EventSourceEntry) obj;
-                return pid == another.pid && sourceId == another.sourceId;
-            }
-            return false;
-        }
+    private static long makeEventSourceKey(int pid, int sourceId) {
+        return ((long) pid << 32) | (sourceId & 0xffffffffL);
     }
 
     private void handleVctItem(VctItem channel, List<PmtItem> pmtItems) {
@@ -342,9 +335,9 @@ public class TsParser {
     }
 
     private void handleEvents(int sourceId) {
-        Map<Integer, EitItem> itemSet = new HashMap<>();
-        for (int pid : mEITPids) {
-            List<EitItem> eitItems = mEitMap.get(new EventSourceEntry(pid, sourceId));
+        SparseArray<EitItem> itemSet = new SparseArray<>();
+        for (int i = 0; i < mEITPids.size(); ++i) {
+            List<EitItem> eitItems = mEitMap.get(makeEventSourceKey(mEITPids.keyAt(i), sourceId));
             if (eitItems != null) {
                 for (EitItem item : eitItems) {
                     item.setDescription(null);
@@ -352,8 +345,8 @@ public class TsParser {
                 }
             }
         }
-        for (int pid : mETTPids) {
-            List<EttItem> ettItems = mETTMap.get(new EventSourceEntry(pid, sourceId));
+        for (int i = 0; i < mETTPids.size(); ++i) {
+            List<EttItem> ettItems = mETTMap.get(makeEventSourceKey(mETTPids.keyAt(i), sourceId));
             if (ettItems != null) {
                 for (EttItem ettItem : ettItems) {
                     if (ettItem.eventId != 0) {
@@ -365,7 +358,10 @@ public class TsParser {
                 }
             }
         }
-        List<EitItem> items = new ArrayList<>(itemSet.values());
+        List<EitItem> items = new ArrayList<>(itemSet.size());
+        for (int i = 0; i < itemSet.size(); ++i) {
+            items.add(itemSet.valueAt(i));
+        }
         mSourceIdToEitMap.put(sourceId, items);
         VctItem channel = mSourceIdToVctItemMap.get(sourceId);
         if (channel != null && mProgramNumberHandledStatus.get(channel.getProgramNumber())) {
@@ -388,7 +384,7 @@ public class TsParser {
     }
 
     private void startListening(int pid) {
-        mStreamMap.put(pid, new SectionStream(pid));
+        mStreams[pid] = new SectionStream(pid);
     }
 
     private boolean feedTSPacket(byte[] tsData, int pos) {
@@ -398,10 +394,12 @@ public class TsParser {
         }
         if (tsData[pos] != TS_PACKET_START_CODE) {
             if (DEBUG) Log.d(TAG, "Invalid ts packet.");
+            sInvalidPackets.increment();
             return false;
         }
         if ((tsData[pos + 1] & TS_PACKET_TEI_MASK) != 0) {
             if (DEBUG) Log.d(TAG, "Erroneous ts packet.");
+            sTeiPackets.increment();
             return false;
         }
 
@@ -411,7 +409,7 @@ public class TsParser {
         boolean hasPayload = (tsData[pos + 3] & 0x10) != 0;
         boolean payloadStartIndicator = (tsData[pos + 1] & 0x40) != 0;
         int continuityCounter = tsData[pos + 3] & 0x0f;
-        Stream stream = mStreamMap.get(pid);
+        Stream stream = mStreams[pid];
         int payloadPos = pos;
         payloadPos += hasAdaptation ? 5 + (tsData[pos + 4] & 0xff) : 4;
         if (!hasPayload || stream == null) {
@@ -422,8 +420,8 @@ public class TsParser {
             if (DEBUG) Log.d(TAG, "Payload should be included in a single TS packet.");
             return false;
         }
-        stream.feedData(Arrays.copyOfRange(tsData, payloadPos, pos + TS_PACKET_SIZE),
-                continuityCounter, payloadStartIndicator);
+        stream.feedData(tsData, payloadPos, pos + TS_PACKET_SIZE - payloadPos, continuityCounter,
+                payloadStartIndicator);
         return true;
     }
 
@@ -434,7 +432,8 @@ public class TsParser {
      * @param length The length of available data
      */
     public void feedTSData(byte[] tsData, int pos, int length) {
-        for (; pos <= length - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
+        int end = pos + length;
+        for (; pos <= end - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
             feedTSPacket(tsData, pos);
         }
     }
@@ -458,12 +457,39 @@ public class TsParser {
         return incompleteChannels;
     }
 
+    /**
+     * Returns the number of PSIP sections which have been checked and parsed so far.
+     */
+    public long getParsedSectionCount() {
+        long count = 0;
+        for (Stream stream : mStreams) {
+            if (stream instanceof SectionStream) {
+                count += ((SectionStream) stream).getSectionParser().getParsedSectionCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of PSIP sections which have been skipped so far, since the same version
+     * has been parsed already.
+     */
+    public long getSkippedSectionCount() {
+        long count = 0;
+        for (Stream stream : mStreams) {
+            if (stream instanceof SectionStream) {
+                count += ((SectionStream) stream).getSectionParser().getSkippedSectionCount();
+            }
+        }
+        return count;
+    }
+
     /**
      * Reset the versions so that data with old version number can be handled.
      */
     public void resetDataVersions() {
-        for (int eitPid : mEITPids) {
-            Stream stream = mStreamMap.get(eitPid);
+        for (int i = 0; i < mEITPids.size(); ++i) {
+            Stream stream = mStreams[mEITPids.keyAt(i)];
             if (stream != null) {
                 stream.resetDataVersions();
             }
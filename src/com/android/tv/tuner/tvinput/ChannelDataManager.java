@@ -30,11 +30,13 @@ import android.os.HandlerThread;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.os.BuildCompat;
 import android.text.format.DateUtils;
 import android.util.Log;
 
 import com.android.tv.tuner.TunerPreferences;
+import com.android.tv.tuner.data.Channel;
 import com.android.tv.tuner.data.PsipData.EitItem;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.util.ConvertUtils;
@@ -228,6 +230,54 @@ public class ChannelDataManager implements Handler.Callback {
         return channel;
     }
 
+    /**
+     * Returns the channels which are tuned by channel-up and channel-down from the given channel,
+     * in that order. The channels are ordered by their display numbers and wrap around as in
+     * the channel list. Returns an empty list if no other tuner channel is known.
+     */
+    public List<TunerChannel> getAdjacentChannels(TunerChannel channel) {
+        List<TunerChannel> channels = new ArrayList<>();
+        for (TunerChannel tunerChannel : mTunerChannelMap.values()) {
+            if (tunerChannel.getType() == Channel.TYPE_TUNER) {
+                channels.add(tunerChannel);
+            }
+        }
+        return getAdjacentChannels(channels, channel);
+    }
+
+    /**
+     * Returns the channels which are adjacent to the given channel among the given channels. See
+     * {@link #getAdjacentChannels(TunerChannel)}.
+     */
+    @VisibleForTesting
+    static List<TunerChannel> getAdjacentChannels(List<TunerChannel> channels,
+            TunerChannel channel) {
+        List<TunerChannel> adjacentChannels = new ArrayList<>();
+        if (channels.size() < 2 || !channels.contains(channel)) {
+            return adjacentChannels;
+        }
+        channels = new ArrayList<>(channels);
+        Collections.sort(channels, new Comparator<TunerChannel>() {
+            @Override
+            public int compare(TunerChannel lhs, TunerChannel rhs) {
+                int ret = lhs.getVirtualMajor() - rhs.getVirtualMajor();
+                if (ret != 0) {
+                    return ret;
+                }
+                ret = lhs.getVirtualMinor() - rhs.getVirtualMinor();
+                return ret != 0 ? ret : lhs.compareTo(rhs);
+            }
+        });
+        int size = channels.size();
+        int index = channels.indexOf(channel);
+        adjacentChannels.add(channels.get((index + 1) % size));
+        TunerChannel previousChannel = channels.get((index + size - 1) % size);
+        if (!adjacentChannels.contains(previousChannel)) {
+            adjacentChannels.add(previousChannel);
+        }
+        return adjacentChannels;
+    }
+
     public void requestProgramsData(TunerChannel channel) {
         mHandler.removeMessages(MSG_REQUEST_PROGRAMS);
         mHandler.obtainMessage(MSG_REQUEST_PROGRAMS, channel).sendToTarget();
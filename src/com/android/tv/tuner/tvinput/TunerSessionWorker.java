@@ -46,6 +46,8 @@ import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.ExoPlayer;
 import com.android.tv.common.SoftPreconditions;
 import com.android.tv.common.TvContentRatingCache;
+import com.android.tv.tuner.LatencyHistogram;
+import com.android.tv.tuner.TunerMetrics;
 import com.android.tv.tuner.TunerPreferences;
 import com.android.tv.tuner.data.Cea708Data;
 import com.android.tv.tuner.data.Channel;
@@ -62,6 +64,7 @@ import com.android.tv.tuner.exoplayer.MpegTsPlayer;
 import com.android.tv.tuner.exoplayer.buffer.TrickplayStorageManager;
 import com.android.tv.tuner.source.TsDataSource;
 import com.android.tv.tuner.source.TsDataSourceManager;
+import com.android.tv.tuner.source.ZapAheadTuner;
 import com.android.tv.tuner.util.StatusTextUtils;
 import com.android.tv.tuner.util.SystemPropertiesProxy;
 
@@ -160,15 +163,24 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     // This is used to guarantee that at most one active TunerSessionWorker exists at any give time.
     private static Semaphore sActiveSessionSemaphore = new Semaphore(1);
 
+    // Tune-to-first-frame latencies of the tunes to the channels parked by zap-ahead tuning, and
+    // of the other tunes.
+    private static final LatencyHistogram sZapAheadTuneLatency =
+            TunerMetrics.getHistogram(TunerMetrics.TUNE_LATENCY_ZAP_AHEAD);
+    private static final LatencyHistogram sTuneLatency =
+            TunerMetrics.getHistogram(TunerMetrics.TUNE_LATENCY);
+
     private final Context mContext;
     private final ChannelDataManager mChannelDataManager;
     private final TsDataSourceManager mSourceManager;
+    private final ZapAheadTuner mZapAheadTuner;
     private final int mMaxTrickplayBufferSizeMb;
     private final File mTrickplayBufferDir;
     private volatile Surface mSurface;
     private volatile float mVolume = 1.0f;
     private volatile boolean mCaptionEnabled;
     private volatile MpegTsPlayer mPlayer;
+    private BufferManager mBufferManager;
     private volatile TunerChannel mChannel;
     private volatile Long mRecordingDuration;
     private volatile long mRecordStartTimeMs;
@@ -199,6 +211,9 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private long mPreparingStartTimeMs;
     private long mBufferingStartTimeMs;
     private long mReadyStartTimeMs;
+    // Measured by SystemClock.uptimeMillis(), which is the time base of Message.getWhen().
+    private long mTuneStartTimeMs;
+    private boolean mTunedToParkedChannel;
     private boolean mIsActiveSession;
     private boolean mReleaseRequested; // Guarded by mReleaseLock
     private final Object mReleaseLock = new Object();
@@ -218,6 +233,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         mChannelDataManager.setListener(this);
         mChannelDataManager.checkDataVersion(mContext);
         mSourceManager = TsDataSourceManager.createSourceManager(false);
+        mZapAheadTuner = ZapAheadTuner.createIfAvailable(context);
         mTvInputManager = (TvInputManager) context.getSystemService(Context.TV_INPUT_SERVICE);
         mTvTracks = new ArrayList<>();
         mAudioTrackMap = new SparseArray<>();
@@ -233,6 +249,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         mPreparingStartTimeMs = INVALID_TIME;
         mBufferingStartTimeMs = INVALID_TIME;
         mReadyStartTimeMs = INVALID_TIME;
+        mTuneStartTimeMs = INVALID_TIME;
     }
 
     // Public methods
@@ -435,6 +452,14 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             }
             notifyVideoAvailable();
             mReportedDrawnToSurface = true;
+            if (mTuneStartTimeMs != INVALID_TIME) {
+                reportTuneLatency(SystemClock.uptimeMillis() - mTuneStartTimeMs);
+                mTuneStartTimeMs = INVALID_TIME;
+            }
+            if (mZapAheadTuner != null && mChannel != null) {
+                // Parks spare tuners on the channels to be tuned by channel-up and channel-down.
+                mZapAheadTuner.park(mChannelDataManager.getAdjacentChannels(mChannel));
+            }
 
             // If surface is drawn successfully, it means that the playback was brought back
             // to normal and therefore, the playback recovery status will be reset through
@@ -618,6 +643,11 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 if (mHandler.hasMessages(MSG_TUNE)) {
                     return true;
                 }
+                mTuneStartTimeMs = msg.getWhen();
+                if (mZapAheadTuner != null) {
+                    // Keeps the standby streams as they are until the tune is done.
+                    mZapAheadTuner.suspend();
+                }
                 notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
                 if (!mIsActiveSession) {
                     // Wait until release is finished if there is a pending release.
@@ -657,6 +687,8 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 }
                 clearCallbacksAndMessagesSafely();
                 mChannelDataManager.removeAllCallbacksAndMessages();
+                mTunedToParkedChannel = mZapAheadTuner != null && channel != null
+                        && mZapAheadTuner.isParked(channel);
                 if (channel != null) {
                     mChannelDataManager.requestProgramsData(channel);
                 }
@@ -685,6 +717,9 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 stopPlayback(true);
                 stopCaptionTrack();
                 mSourceManager.release();
+                if (mZapAheadTuner != null) {
+                    mZapAheadTuner.release();
+                }
                 mHandler.getLooper().quitSafely();
                 if (mIsActiveSession) {
                     sActiveSessionSemaphore.release();
@@ -955,6 +990,12 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 }
                 TsDataSource source = mPlayer.getDataSource();
                 long limitInBytes = source != null ? source.getBufferedPosition() : 0L;
+                if (source != null && source.hasStalePsiTables()
+                        && !mHandler.hasMessages(MSG_RETRY_PLAYBACK)) {
+                    // The extractor was configured with the outdated tables in the cache.
+                    Log.i(TAG, "Restarting the playback with the live PSI tables");
+                    sendMessage(MSG_RETRY_PLAYBACK, System.identityHashCode(mPlayer));
+                }
                 if (TunerDebug.ENABLED) {
                     TunerDebug.calculateDiff();
                     mSession.sendUiMessage(TunerSession.MSG_UI_SET_STATUS_TEXT,
@@ -1077,6 +1118,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         } else {
             Log.w(TAG, "Trickplay is disabled.");
         }
+        mBufferManager = bufferManager;
         MpegTsPlayer player = new MpegTsPlayer(
                 new MpegTsRendererBuilder(mContext, bufferManager, this),
                 mHandler, mSourceManager, capabilities, this);
@@ -1277,6 +1319,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             mPlayer.setPlayWhenReady(false);
             mPlayer.release();
             mPlayer = null;
+            mBufferManager = null;
             mPlayerState = ExoPlayer.STATE_IDLE;
             mPlaybackParams.setSpeed(1.0f);
             mPlayerStarted = false;
@@ -1339,6 +1382,12 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         if (!player.prepare(mContext, mChannel, this)) {
             mSourceManager.setKeepTuneStatus(false);
             player.release();
+            if (mBufferManager != null) {
+                // No renderer is built, so the buffer and its directory are not released by the
+                // player.
+                mBufferManager.release();
+                mBufferManager = null;
+            }
             if (!mHandler.hasMessages(MSG_TUNE)) {
                 // When prepare failed, there may be some errors related to hardware. In that
                 // case, retry playback immediately may not help.
@@ -1390,6 +1439,13 @@ public class TunerSessionWorker implements PlaybackBufferListener,
         mHandler.sendEmptyMessage(MSG_PARENTAL_CONTROLS);
     }
 
+    private void reportTuneLatency(long latencyMs) {
+        LatencyHistogram histogram = mTunedToParkedChannel ? sZapAheadTuneLatency : sTuneLatency;
+        histogram.add(TimeUnit.MILLISECONDS.toMicros(latencyMs));
+        Log.i(TAG, "Tune-to-first-frame: " + latencyMs + "ms"
+                + (mTunedToParkedChannel ? " (zap-ahead)" : "") + " [" + histogram + "]");
+    }
+
     private void doReschedulePrograms() {
         long currentPositionMs = getCurrentPosition();
         long forwardDifference = Math.abs(currentPositionMs - mLastPositionMs
@@ -1430,12 +1486,14 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 // because of chuck evictions.
                 seekPositionMs = (int) (mBufferStartTimeMs - mRecordStartTimeMs);
             } else {
+                clearKeyFrameOnlyReadBeforeSeek();
                 mPlayer.seekTo(mBufferStartTimeMs - mRecordStartTimeMs);
                 mPlaybackParams.setSpeed(1.0f);
                 mPlayer.setAudioTrack(true);
                 return;
             }
         } else if (seekPositionMs > System.currentTimeMillis() - mRecordStartTimeMs) {
+            clearKeyFrameOnlyReadBeforeSeek();
             mPlayer.seekTo(System.currentTimeMillis() - mRecordStartTimeMs);
             mPlaybackParams.setSpeed(1.0f);
             mPlayer.setAudioTrack(true);
@@ -1453,9 +1511,31 @@ public class TunerSessionWorker implements PlaybackBufferListener,
                 MSG_TRICKPLAY_BY_SEEK, seekPositionMs, 0), delayForNextSeek);
     }
 
+    // Reads only key frames while trickplay is done by seeking, since a single frame is shown for
+    // each seek.
+    private void setKeyFrameOnlyRead(boolean keyFrameOnlyRead) {
+        if (mBufferManager == null || mBufferManager.isKeyFrameOnlyRead() == keyFrameOnlyRead) {
+            return;
+        }
+        mBufferManager.setKeyFrameOnlyRead(keyFrameOnlyRead);
+        if (!keyFrameOnlyRead && mPlayer != null) {
+            // Restarts reading all the tracks.
+            mPlayer.seekTo(mPlayer.getCurrentPosition());
+        }
+    }
+
+    // Stops reading only key frames without restarting the reads, since the following seek
+    // restarts reading all the tracks.
+    private void clearKeyFrameOnlyReadBeforeSeek() {
+        if (mBufferManager != null) {
+            mBufferManager.setKeyFrameOnlyRead(false);
+        }
+    }
+
     private void doTimeShiftPause() {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        setKeyFrameOnlyRead(false);
         if (!hasEnoughBackwardBuffer()) {
             return;
         }
@@ -1467,6 +1547,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private void doTimeShiftResume() {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        setKeyFrameOnlyRead(false);
         mPlaybackParams.setSpeed(1.0f);
         mPlayer.setPlayWhenReady(true);
         mPlayer.setAudioTrack(true);
@@ -1475,6 +1556,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
     private void doTimeShiftSeekTo(long timeMs) {
         mHandler.removeMessages(MSG_SMOOTH_TRICKPLAY_MONITOR);
         mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+        clearKeyFrameOnlyReadBeforeSeek();
         mPlayer.seekTo((int) (timeMs - mRecordStartTimeMs));
     }
 
@@ -1490,6 +1572,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             doTimeShiftResume();
         } else if (mPlayer.supportSmoothTrickPlay(speed)) {
             mHandler.removeMessages(MSG_TRICKPLAY_BY_SEEK);
+            setKeyFrameOnlyRead(false);
             mPlayer.setAudioTrack(false);
             mPlayer.startSmoothTrickplay(mPlaybackParams);
             mHandler.sendEmptyMessageDelayed(MSG_SMOOTH_TRICKPLAY_MONITOR,
@@ -1499,6 +1582,7 @@ public class TunerSessionWorker implements PlaybackBufferListener,
             if (!mHandler.hasMessages(MSG_TRICKPLAY_BY_SEEK)) {
                 mPlayer.setAudioTrack(false);
                 mPlayer.setPlayWhenReady(false);
+                setKeyFrameOnlyRead(true);
                 // Initiate trickplay
                 mHandler.sendMessage(mHandler.obtainMessage(MSG_TRICKPLAY_BY_SEEK,
                         (int) (mPlayer.getCurrentPosition()
@@ -28,7 +28,10 @@ import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.audio.AudioCapabilitiesReceiver;
 import com.android.tv.TvApplication;
 import com.android.tv.common.feature.CommonFeatures;
+import com.android.tv.tuner.TunerMetrics;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Set;
 import java.util.WeakHashMap;
@@ -112,6 +115,16 @@ public class TunerTvInputService extends TvInputService
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "--reset-metrics".equals(args[0])) {
+            TunerMetrics.reset();
+            writer.println("Tuner metrics are reset.");
+            return;
+        }
+        TunerMetrics.dump(writer);
+    }
+
     public static String getInputId(Context context) {
         return TvContract.buildInputId(new ComponentName(context, TunerTvInputService.class));
     }
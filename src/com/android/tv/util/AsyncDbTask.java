@@ -22,6 +22,7 @@ import android.media.tv.TvContract;
 import android.media.tv.TvContract.Programs;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.support.annotation.IntDef;
 import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
@@ -33,17 +34,21 @@ import com.android.tv.data.Channel;
 import com.android.tv.data.Program;
 import com.android.tv.dvr.data.RecordedProgram;
 
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
- * {@link AsyncTask} that defaults to executing on its own single threaded Executor Service.
+ * {@link AsyncTask} that defaults to executing on its own Executor Service for the DB tasks.
  *
  * <p>Instances of this class should only be executed this using {@link
- * #executeOnDbThread(Object[])}.
+ * #executeOnDbThread(Object[])}. The tasks are queued in the lanes of their priorities, which
+ * are given by {@link #getPriority()}. The tasks of a lane run one at a time in the order, while
+ * the tasks of different lanes may run in parallel.
  *
  * @param <Params> the type of the parameters sent to the task upon execution.
  * @param <Progress> the type of the progress units published during the background computation.
@@ -54,18 +59,46 @@ public abstract class AsyncDbTask<Params, Progress, Result>
     private static final String TAG = "AsyncDbTask";
     private static final boolean DEBUG = false;
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PRIORITY_INTERACTIVE, PRIORITY_CURRENT_PROGRAM, PRIORITY_PREFETCH,
+            PRIORITY_BACKGROUND})
+    public @interface Priority {}
+    /**
+     * The priority of the tasks whose results the user is waiting for. This is the default.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * The priority of the tasks which load the current programs, e.g. on tune.
+     */
+    public static final int PRIORITY_CURRENT_PROGRAM = 1;
+    /**
+     * The priority of the tasks which load the data ahead of time, e.g. the EPG prefetch.
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+    /**
+     * The priority of the tasks which nobody waits for, e.g. the DVR DB sync.
+     */
+    public static final int PRIORITY_BACKGROUND = 3;
+
     private static final NamedThreadFactory THREAD_FACTORY = new NamedThreadFactory(
             AsyncDbTask.class.getSimpleName());
-    private static final ExecutorService DB_EXECUTOR = Executors
-            .newSingleThreadExecutor(THREAD_FACTORY);
+    private static final DbExecutor DB_EXECUTOR = new DbExecutor(THREAD_FACTORY);
 
     /**
-     * Returns the single tread executor used for DbTasks.
+     * Returns the executor used for DbTasks, which runs the commands in the lane of
+     * {@link #PRIORITY_INTERACTIVE}.
      */
     public static ExecutorService getExecutor() {
         return DB_EXECUTOR;
     }
 
+    /**
+     * Prints the statistics of the lanes of the DB tasks, e.g. the time spent in the queue.
+     */
+    public static void dump(PrintWriter writer) {
+        DB_EXECUTOR.dump(writer);
+    }
+
     /**
      * Executes the given command at some time in the future.
      *
@@ -320,12 +353,20 @@ public abstract class AsyncDbTask<Params, Progress, Result>
     }
 
     /**
-     * Execute the task on the {@link #DB_EXECUTOR} thread.
+     * Returns the priority of the task, which decides the lane where it is queued.
+     */
+    @Priority
+    protected int getPriority() {
+        return PRIORITY_INTERACTIVE;
+    }
+
+    /**
+     * Execute the task on a {@link #DB_EXECUTOR} thread in the lane of {@link #getPriority()}.
      */
     @SafeVarargs
     @MainThread
     public final void executeOnDbThread(Params... params) {
-        executeOnExecutor(DB_EXECUTOR, params);
+        executeOnExecutor(DB_EXECUTOR.getLane(getPriority()), params);
     }
 
     /**
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.tv.util.AsyncDbTask.Priority;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor for the DB tasks, which queues the tasks in the lanes of their priorities.
+ *
+ * <p>A lane runs its tasks one at a time in the order of submission, as the single threaded
+ * executor used to do, so the tasks which depend on the order of each other keep working as long
+ * as they are in the same lane. The lanes run in parallel on a bounded number of threads, and the
+ * lanes of higher priorities take a free thread first. The low priority lanes, i.e.
+ * {@link AsyncDbTask#PRIORITY_PREFETCH} and {@link AsyncDbTask#PRIORITY_BACKGROUND}, share a
+ * single thread, so that a long prefetch or sync never delays the foreground queries.
+ *
+ * <p>The tasks which are canceled while they are queued are dropped without running them.
+ */
+final class DbExecutor extends AbstractExecutorService {
+    private static final String TAG = "DbExecutor";
+    private static final boolean DEBUG = false;
+
+    private static final int LANE_COUNT = AsyncDbTask.PRIORITY_BACKGROUND + 1;
+    private static final String[] LANE_NAMES =
+            {"interactive", "current_program", "prefetch", "background"};
+    private static final int DEFAULT_MAX_PARALLELISM = 3;
+    private static final int MAX_LOW_PRIORITY_PARALLELISM = 1;
+
+    private final ThreadFactory mThreadFactory;
+    private final int mMaxParallelism;
+    private final Executor[] mLanes = new Executor[LANE_COUNT];
+    private final Object mLock = new Object();
+    // @GuardedBy("mLock")
+    private final List<ArrayDeque<Task>> mQueues = new ArrayList<>();
+    // @GuardedBy("mLock")
+    private final boolean[] mLaneRunning = new boolean[LANE_COUNT];
+    // @GuardedBy("mLock")
+    private final LaneStats[] mLaneStats = new LaneStats[LANE_COUNT];
+    // @GuardedBy("mLock")
+    private int mThreadCount;
+    // @GuardedBy("mLock")
+    private int mIdleThreadCount;
+
+    private static class Task {
+        final Runnable command;
+        final int priority;
+        final long enqueuedTimeMs;
+
+        Task(Runnable command, int priority) {
+            this.command = command;
+            this.priority = priority;
+            enqueuedTimeMs = SystemClock.elapsedRealtime();
+        }
+
+        boolean isCancelled() {
+            return command instanceof Future && ((Future) command).isCancelled();
+        }
+    }
+
+    private static class LaneStats {
+        long runCount;
+        long cancelCount;
+        long totalQueueTimeMs;
+        long maxQueueTimeMs;
+    }
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Task task = takeNext();
+                try {
+                    task.command.run();
+                } finally {
+                    finish(task);
+                }
+            }
+        }
+    };
+
+    DbExecutor(ThreadFactory threadFactory) {
+        this(threadFactory, DEFAULT_MAX_PARALLELISM);
+    }
+
+    @VisibleForTesting
+    DbExecutor(ThreadFactory threadFactory, int maxParallelism) {
+        mThreadFactory = threadFactory;
+        mMaxParallelism = maxParallelism;
+        for (int i = 0; i < LANE_COUNT; ++i) {
+            final int priority = i;
+            mQueues.add(new ArrayDeque<Task>());
+            mLaneStats[i] = new LaneStats();
+            mLanes[i] = new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    DbExecutor.this.execute(command, priority);
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns an {@link Executor} which runs the commands in the lane of the priority.
+     */
+    Executor getLane(@Priority int priority) {
+        return mLanes[priority];
+    }
+
+    /**
+     * Runs the command in the lane of {@link AsyncDbTask#PRIORITY_INTERACTIVE}.
+     */
+    @Override
+    public void execute(@NonNull Runnable command) {
+        execute(command, AsyncDbTask.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Runs the command in the lane of the priority.
+     */
+    void execute(@NonNull Runnable command, @Priority int priority) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        synchronized (mLock) {
+            ArrayDeque<Task> queue = mQueues.get(priority);
+            // Drops the canceled tasks not to let the queue grow by them.
+            Iterator<Task> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isCancelled()) {
+                    iterator.remove();
+                    ++mLaneStats[priority].cancelCount;
+                }
+            }
+            queue.add(new Task(command, priority));
+            if (mIdleThreadCount > 0) {
+                mLock.notifyAll();
+            } else {
+                startThreadIfNeededLocked();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next task to run, and marks its lane running.
+     */
+    private Task takeNext() {
+        synchronized (mLock) {
+            int priority;
+            while ((priority = findNextLaneLocked()) < 0) {
+                ++mIdleThreadCount;
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // Keeps working. The threads live as long as the process.
+                } finally {
+                    --mIdleThreadCount;
+                }
+            }
+            Task task = mQueues.get(priority).poll();
+            mLaneRunning[priority] = true;
+            // The other lanes may be able to run as well.
+            startThreadIfNeededLocked();
+            LaneStats stats = mLaneStats[task.priority];
+            long queueTimeMs = SystemClock.elapsedRealtime() - task.enqueuedTimeMs;
+            ++stats.runCount;
+            stats.totalQueueTimeMs += queueTimeMs;
+            stats.maxQueueTimeMs = Math.max(stats.maxQueueTimeMs, queueTimeMs);
+            if (DEBUG) {
+                Log.d(TAG, "Running a task in " + LANE_NAMES[task.priority] + " after "
+                        + queueTimeMs + "ms");
+            }
+            return task;
+        }
+    }
+
+    private void finish(Task task) {
+        synchronized (mLock) {
+            mLaneRunning[task.priority] = false;
+            // An idle worker may be waiting for the lane.
+            mLock.notifyAll();
+        }
+    }
+
+    // @GuardedBy("mLock")
+    private void startThreadIfNeededLocked() {
+        if (mIdleThreadCount == 0 && mThreadCount < mMaxParallelism
+                && findNextLaneLocked() >= 0) {
+            ++mThreadCount;
+            mThreadFactory.newThread(mWorker).start();
+        }
+    }
+
+    /**
+     * Returns the lane whose next task can run now, or -1 if there is none. The canceled tasks at
+     * the heads of the lanes are dropped.
+     */
+    // @GuardedBy("mLock")
+    private int findNextLaneLocked() {
+        int lowPriorityRunningCount = 0;
+        for (int i = AsyncDbTask.PRIORITY_PREFETCH; i < LANE_COUNT; ++i) {
+            if (mLaneRunning[i]) {
+                ++lowPriorityRunningCount;
+            }
+        }
+        for (int priority = 0; priority < LANE_COUNT; ++priority) {
+            if (mLaneRunning[priority]) {
+                continue;
+            }
+            if (priority >= AsyncDbTask.PRIORITY_PREFETCH
+                    && lowPriorityRunningCount >= MAX_LOW_PRIORITY_PARALLELISM) {
+                break;
+            }
+            ArrayDeque<Task> queue = mQueues.get(priority);
+            while (!queue.isEmpty() && queue.peek().isCancelled()) {
+                queue.poll();
+                ++mLaneStats[priority].cancelCount;
+            }
+            if (!queue.isEmpty()) {
+                return priority;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Prints the numbers of the tasks and the times which they spent in the queue for each lane.
+     */
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("DB task lanes (" + mThreadCount + " threads):");
+            for (int i = 0; i < LANE_COUNT; ++i) {
+                LaneStats stats = mLaneStats[i];
+                writer.println("  " + LANE_NAMES[i] + ": queued=" + mQueues.get(i).size()
+                        + ", run=" + stats.runCount + ", canceled=" + stats.cancelCount
+                        + ", avg queue time="
+                        + (stats.runCount == 0 ? 0 : stats.totalQueueTimeMs / stats.runCount)
+                        + "ms, max queue time=" + stats.maxQueueTimeMs + "ms");
+            }
+        }
+    }
+
+    /**
+     * The executor is shared by the whole app, and can't be shut down.
+     */
+    @Override
+    public void shutdown() {
+        throw new UnsupportedOperationException();
+    }
+
+    @NonNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+        return false;
+    }
+}
@@ -0,0 +1,20 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+
+# Include all test java files.
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    android-support-test \
+
+LOCAL_PACKAGE_NAME := TVPerfTests
+
+LOCAL_INSTRUMENTATION_FOR := LiveTv
+
+LOCAL_SDK_VERSION := current
+LOCAL_MIN_SDK_VERSION := 23  # M
+
+include $(BUILD_PACKAGE)
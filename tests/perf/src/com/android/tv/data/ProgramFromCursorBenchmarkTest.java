@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data;
+
+import android.database.MatrixCursor;
+import android.media.tv.TvContract.Programs;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.android.tv.data.Program.CriticScore;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks of {@link Program#fromCursor} over the programs whose internal provider data are in
+ * the legacy format and in the compact format of {@link InternalDataUtils}.
+ */
+@LargeTest
+public class ProgramFromCursorBenchmarkTest extends TestCase {
+    private static final String TAG = "ProgramFromCursorBenchmark";
+
+    private static final String PACKAGE_NAME = "com.android.tv";
+    private static final String SERIES_ID = "com.android.tv/series\u00e9";
+    private static final List<CriticScore> CRITIC_SCORES = Arrays.asList(
+            new CriticScore("source", "4.5", "http://logo"),
+            new CriticScore("other source", "90%", null));
+    private static final int PROGRAM_COUNT = 10000;
+
+    public void testFromCursor() throws IOException {
+        byte[] legacyData = createLegacyData(SERIES_ID, new ArrayList<>(CRITIC_SCORES));
+        byte[] compactData = InternalDataUtils.serializeInternalProviderData(
+                new Program.Builder().setSeriesId(SERIES_ID).setCriticScores(CRITIC_SCORES)
+                        .build());
+        // Warms up.
+        readPrograms(createProgramCursor(legacyData));
+        readPrograms(createProgramCursor(compactData));
+
+        long legacyNs = readPrograms(createProgramCursor(legacyData));
+        long compactNs = readPrograms(createProgramCursor(compactData));
+        Log.i(TAG, "fromCursor of " + PROGRAM_COUNT + " programs: legacy "
+                + legacyNs / 1000000 + "ms, compact " + compactNs / 1000000 + "ms");
+        Log.i(TAG, "Internal provider data size: legacy " + legacyData.length + " bytes, compact "
+                + compactData.length + " bytes");
+    }
+
+    private static long readPrograms(MatrixCursor cursor) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        while (cursor.moveToNext()) {
+            Program program = Program.fromCursor(cursor);
+            assertEquals(SERIES_ID, program.getSeriesId());
+        }
+        return SystemClock.elapsedRealtimeNanos() - startNs;
+    }
+
+    private static MatrixCursor createProgramCursor(byte[] internalProviderData) {
+        MatrixCursor cursor = new MatrixCursor(Program.PROJECTION, PROGRAM_COUNT);
+        for (int i = 0; i < PROGRAM_COUNT; ++i) {
+            Object[] row = new Object[Program.PROJECTION.length];
+            for (int column = 0; column < row.length; ++column) {
+                switch (Program.PROJECTION[column]) {
+                    case Programs._ID:
+                        row[column] = i;
+                        break;
+                    case Programs.COLUMN_PACKAGE_NAME:
+                        row[column] = PACKAGE_NAME;
+                        break;
+                    case Programs.COLUMN_CHANNEL_ID:
+                        row[column] = i % 100;
+                        break;
+                    case Programs.COLUMN_TITLE:
+                        row[column] = "Program " + i;
+                        break;
+                    case Programs.COLUMN_START_TIME_UTC_MILLIS:
+                        row[column] = i * 1800000L;
+                        break;
+                    case Programs.COLUMN_END_TIME_UTC_MILLIS:
+                        row[column] = (i + 1) * 1800000L;
+                        break;
+                    case Programs.COLUMN_INTERNAL_PROVIDER_DATA:
+                        row[column] = internalProviderData;
+                        break;
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static byte[] createLegacyData(String seriesId, ArrayList<CriticScore> criticScores)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(seriesId);
+            out.writeObject(criticScores);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.search;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.android.tv.data.Channel;
+import com.android.tv.data.Program;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks of {@link SearchIndex}, which index channels, apply program updates and log the
+ * update cost and the query latency. It is in the package of {@link SearchIndex}, since the index
+ * is package-private.
+ */
+@LargeTest
+public class SearchIndexBenchmarkTest extends TestCase {
+    private static final String TAG = "SearchIndexBenchmark";
+
+    private static final int CHANNEL_COUNT = 1000;
+    private static final int PROGRAMS_PER_CHANNEL = 50;
+    private static final String[] WORDS = {
+            "news", "sports", "movie", "kids", "music", "weather", "cooking", "travel",
+            "science", "history", "comedy", "drama", "nature", "finance", "game", "talk" };
+    private static final String[] QUERIES = {
+            "n", "new", "sports 1", "mov", "kids music", "2", "12", "history comedy", "xyz" };
+
+    public void testSearch() {
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < CHANNEL_COUNT; ++i) {
+            channels.add(channel(i, (i / 10) + "-" + (i % 10), word(i) + " " + word(i / 3) + " "
+                    + i, "The " + word(i / 7) + " channel"));
+        }
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        SearchIndex index = new SearchIndex();
+        index.updateChannels(channels);
+        long channelsNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+        startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < PROGRAMS_PER_CHANNEL; ++i) {
+            for (int channelId = 0; channelId < CHANNEL_COUNT; ++channelId) {
+                int n = channelId * PROGRAMS_PER_CHANNEL + i;
+                index.updateProgram(channelId, program(channelId,
+                        word(n) + " " + word(n / 5) + " " + n,
+                        "A " + word(n / 11) + " " + word(n / 13) + " program"));
+            }
+        }
+        long programsNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+        int fieldCount = SearchIndex.FIELD_PROGRAM_DESCRIPTION + 1;
+        long[] queryNs = new long[QUERIES.length * fieldCount];
+        int resultCount = 0;
+        for (int i = 0; i < QUERIES.length; ++i) {
+            for (int field = 0; field < fieldCount; ++field) {
+                startNs = SystemClock.elapsedRealtimeNanos();
+                resultCount += index.search(QUERIES[i], field).size();
+                queryNs[i * fieldCount + field] = SystemClock.elapsedRealtimeNanos() - startNs;
+            }
+        }
+        Arrays.sort(queryNs);
+        assertTrue(resultCount > 0);
+        Log.i(TAG, "Indexed " + CHANNEL_COUNT + " channels in " + channelsNs / 1000
+                + "us, " + CHANNEL_COUNT * PROGRAMS_PER_CHANNEL
+                + " program updates in " + programsNs / 1000000 + "ms");
+        Log.i(TAG, queryNs.length + " queries: median " + queryNs[queryNs.length / 2] / 1000
+                + "us, p90 " + queryNs[queryNs.length * 9 / 10] / 1000 + "us, max "
+                + queryNs[queryNs.length - 1] / 1000 + "us");
+    }
+
+    private static String word(int n) {
+        return WORDS[n % WORDS.length];
+    }
+
+    private static Channel channel(long id, String displayNumber, String displayName,
+            String description) {
+        return new Channel.Builder()
+                .setId(id)
+                .setDisplayNumber(displayNumber)
+                .setDisplayName(displayName)
+                .setDescription(description)
+                .build();
+    }
+
+    private static Program program(long channelId, String title, String description) {
+        return new Program.Builder()
+                .setChannelId(channelId)
+                .setTitle(title)
+                .setDescription(description)
+                .build();
+    }
+}
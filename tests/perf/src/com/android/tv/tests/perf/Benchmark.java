@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tests.perf;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.android.tv.tuner.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Runs a benchmark pass repeatedly after warming it up, and reports the throughput, the
+ * allocated bytes per item and the latencies of the operations in the measured passes.
+ *
+ * <p>The numbers of the iterations are given by the instrumentation arguments
+ * {@code warmupIterations} and {@code iterations}, e.g.
+ * {@code adb shell am instrument -w -e iterations 10 com.android.tv.tests.perf/...}.
+ */
+final class Benchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final String ARG_WARMUP_ITERATIONS = "warmupIterations";
+    private static final String ARG_ITERATIONS = "iterations";
+    private static final int DEFAULT_WARMUP_ITERATIONS = 2;
+    private static final int DEFAULT_ITERATIONS = 5;
+    // The total bytes which the runtime has allocated on all the threads.
+    private static final String STAT_BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    /**
+     * A pass of a benchmark, which is run once per iteration. {@link #setUp} and
+     * {@link #tearDown} are not measured.
+     */
+    abstract static class Pass {
+        void setUp() throws Exception { }
+
+        abstract void run(Recorder recorder) throws Exception;
+
+        void tearDown() throws Exception { }
+    }
+
+    /**
+     * Records the operations of the passes.
+     */
+    static final class Recorder {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private long mOperationStartNs;
+        private long mItems;
+        private long mBytes;
+
+        /**
+         * Starts timing an operation.
+         */
+        void startOperation() {
+            mOperationStartNs = SystemClock.elapsedRealtimeNanos();
+        }
+
+        /**
+         * Ends timing the operation which is started by {@link #startOperation}.
+         *
+         * @param items the number of the items which are processed by the operation
+         * @param bytes the number of the bytes which are processed by the operation
+         */
+        void endOperation(int items, long bytes) {
+            mLatency.add((SystemClock.elapsedRealtimeNanos() - mOperationStartNs) / 1000);
+            record(items, bytes);
+        }
+
+        /**
+         * Records the items and the bytes which are processed without being timed.
+         */
+        void record(int items, long bytes) {
+            mItems += items;
+            mBytes += bytes;
+        }
+    }
+
+    /**
+     * The result of a benchmark.
+     */
+    static final class Result {
+        final String name;
+        final String itemName;
+        final long items;
+        final long bytes;
+        final long elapsedNs;
+        final long allocatedBytes;
+        final long p50LatencyUs;
+        final long p99LatencyUs;
+
+        private Result(String name, String itemName, Recorder recorder, long elapsedNs,
+                long allocatedBytes) {
+            this.name = name;
+            this.itemName = itemName;
+            this.items = recorder.mItems;
+            this.bytes = recorder.mBytes;
+            this.elapsedNs = elapsedNs;
+            this.allocatedBytes = allocatedBytes;
+            this.p50LatencyUs = recorder.mLatency.getPercentileUs(50);
+            this.p99LatencyUs = recorder.mLatency.getPercentileUs(99);
+        }
+
+        double getMegabytesPerSecond() {
+            return elapsedNs == 0 ? 0 : bytes * 1000.0 / elapsedNs;
+        }
+
+        double getAllocatedBytesPerItem() {
+            return items == 0 ? 0 : (double) allocatedBytes / items;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.1fMB/s, %.1f allocated bytes/%s, "
+                    + "p50=%dus, p99=%dus (%d %ss)", name, getMegabytesPerSecond(),
+                    getAllocatedBytesPerItem(), itemName, p50LatencyUs, p99LatencyUs, items,
+                    itemName);
+        }
+    }
+
+    private final String mName;
+    private final String mItemName;
+    private final int mWarmupIterations;
+    private final int mIterations;
+
+    /**
+     * Creates a benchmark whose iterations are given by the instrumentation arguments.
+     *
+     * @param name the name of the benchmark
+     * @param itemName the name of the item which the allocated bytes are counted per, e.g.
+     *        "packet"
+     */
+    Benchmark(String name, String itemName) {
+        this(name, itemName, getIntArgument(ARG_WARMUP_ITERATIONS, DEFAULT_WARMUP_ITERATIONS),
+                getIntArgument(ARG_ITERATIONS, DEFAULT_ITERATIONS));
+    }
+
+    Benchmark(String name, String itemName, int warmupIterations, int iterations) {
+        mName = name;
+        mItemName = itemName;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    /**
+     * Runs the pass and logs the result. The allocated bytes are counted on all the threads,
+     * since some of the passes hand the work off to other threads.
+     */
+    Result run(Pass pass) throws Exception {
+        for (int i = 0; i < mWarmupIterations; ++i) {
+            runOnce(pass, new Recorder());
+        }
+        Recorder recorder = new Recorder();
+        long elapsedNs = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < mIterations; ++i) {
+            pass.setUp();
+            Runtime.getRuntime().gc();
+            long startBytes = getBytesAllocated();
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            try {
+                pass.run(recorder);
+            } finally {
+                elapsedNs += SystemClock.elapsedRealtimeNanos() - startNs;
+                allocatedBytes += getBytesAllocated() - startBytes;
+                pass.tearDown();
+            }
+        }
+        Result result = new Result(mName, mItemName, recorder, elapsedNs, allocatedBytes);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private static void runOnce(Pass pass, Recorder recorder) throws Exception {
+        pass.setUp();
+        try {
+            pass.run(recorder);
+        } finally {
+            pass.tearDown();
+        }
+    }
+
+    private static long getBytesAllocated() {
+        String value = Debug.getRuntimeStat(STAT_BYTES_ALLOCATED);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid runtime stat " + STAT_BYTES_ALLOCATED + "=" + value);
+            return 0;
+        }
+    }
+
+    static int getIntArgument(String key, int defaultValue) {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String value = arguments != null ? arguments.getString(key) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid argument " + key + "=" + value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tests.perf;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.extractor.ts.TsExtractor;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A captured ATSC transport stream, which is loaded into memory to be replayed by the benchmarks.
+ *
+ * <p>The captures are given by the instrumentation argument {@code tsFiles}, which is a comma
+ * separated list of files or directories. By default, the {@code .ts} files in
+ * {@code /sdcard/Android/data/com.android.tv/files/benchmark} are used. At most
+ * {@code maxCaptureMb} megabytes of each capture are loaded.
+ */
+final class TsCapture {
+    private static final String TAG = "TsCapture";
+
+    static final int TS_PACKET_SIZE = 188;
+
+    private static final String ARG_TS_FILES = "tsFiles";
+    private static final String ARG_MAX_CAPTURE_MB = "maxCaptureMb";
+    private static final String DEFAULT_DIR_NAME = "benchmark";
+    private static final String TS_FILE_SUFFIX = ".ts";
+    private static final int DEFAULT_MAX_CAPTURE_MB = 32;
+
+    /**
+     * An elementary stream sample which is demuxed from a capture.
+     */
+    static final class Sample {
+        final int trackIndex;
+        final long timeUs;
+        final int flags;
+        final byte[] data;
+
+        private Sample(int trackIndex, long timeUs, int flags, byte[] data) {
+            this.trackIndex = trackIndex;
+            this.timeUs = timeUs;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
+    final String name;
+    final byte[] data;
+    private List<String> mMimeTypes;
+    private List<Sample> mSamples;
+
+    private TsCapture(String name, byte[] data) {
+        this.name = name;
+        this.data = data;
+    }
+
+    /**
+     * Loads the captures which are given by the instrumentation arguments.
+     */
+    static List<TsCapture> loadFromArguments() throws IOException {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String paths = arguments != null ? arguments.getString(ARG_TS_FILES) : null;
+        List<File> files = new ArrayList<>();
+        if (paths == null) {
+            Context context = InstrumentationRegistry.getTargetContext();
+            addFiles(new File(context.getExternalFilesDir(null), DEFAULT_DIR_NAME), files);
+        } else {
+            for (String path : paths.split(",")) {
+                addFiles(new File(path.trim()), files);
+            }
+        }
+        long maxBytes = Benchmark.getIntArgument(ARG_MAX_CAPTURE_MB, DEFAULT_MAX_CAPTURE_MB)
+                * 1024L * 1024;
+        List<TsCapture> captures = new ArrayList<>();
+        for (File file : files) {
+            captures.add(load(file, maxBytes));
+        }
+        if (captures.isEmpty()) {
+            Log.w(TAG, "No captures are found. Push .ts files to "
+                    + new File(InstrumentationRegistry.getTargetContext().getExternalFilesDir(
+                            null), DEFAULT_DIR_NAME) + " or give them by -e " + ARG_TS_FILES);
+        }
+        return captures;
+    }
+
+    private static void addFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isFile() && child.getName().endsWith(TS_FILE_SUFFIX)) {
+                        files.add(child);
+                    }
+                }
+            }
+        } else if (file.isFile()) {
+            files.add(file);
+        }
+    }
+
+    private static TsCapture load(File file, long maxBytes) throws IOException {
+        // Loads whole packets only, which are aligned with the first sync byte.
+        int length = (int) Math.min(file.length(), maxBytes);
+        byte[] data = new byte[length];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < length) {
+                int count = in.read(data, read, length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            length = read;
+        }
+        int start = 0;
+        while (start < length && data[start] != 0x47) {
+            ++start;
+        }
+        int end = start + (length - start) / TS_PACKET_SIZE * TS_PACKET_SIZE;
+        return new TsCapture(file.getName(), Arrays.copyOfRange(data, start, end));
+    }
+
+    /**
+     * Returns the number of the TS packets in the capture.
+     */
+    int getPacketCount() {
+        return data.length / TS_PACKET_SIZE;
+    }
+
+    /**
+     * Returns the MIME types of the demuxed tracks, which are indexed by
+     * {@link Sample#trackIndex}.
+     */
+    List<String> getMimeTypes() throws IOException, InterruptedException {
+        demuxIfNeeded();
+        return mMimeTypes;
+    }
+
+    /**
+     * Returns the samples of the capture in the demuxed order. The capture is demuxed by
+     * {@link TsExtractor} as it is for playback, once for the first call.
+     */
+    List<Sample> getSamples() throws IOException, InterruptedException {
+        demuxIfNeeded();
+        return mSamples;
+    }
+
+    private void demuxIfNeeded() throws IOException, InterruptedException {
+        if (mSamples != null) {
+            return;
+        }
+        final List<String> mimeTypes = new ArrayList<>();
+        final List<Sample> samples = new ArrayList<>();
+        final List<Integer> trackIds = new ArrayList<>();
+        Extractor extractor = new TsExtractor();
+        extractor.init(new ExtractorOutput() {
+            @Override
+            public TrackOutput track(int trackId) {
+                trackIds.add(trackId);
+                mimeTypes.add(null);
+                return new SampleCollector(trackIds.size() - 1, mimeTypes, samples);
+            }
+
+            @Override
+            public void endTracks() { }
+
+            @Override
+            public void seekMap(SeekMap seekMap) { }
+        });
+        ByteArrayDataSource source = new ByteArrayDataSource(data);
+        long length = source.open(new DataSpec(Uri.EMPTY));
+        ExtractorInput input = new DefaultExtractorInput(source, 0, length);
+        PositionHolder positionHolder = new PositionHolder();
+        int result = Extractor.RESULT_CONTINUE;
+        while (result != Extractor.RESULT_END_OF_INPUT) {
+            result = extractor.read(input, positionHolder);
+            if (result == Extractor.RESULT_SEEK) {
+                source.close();
+                source.open(new DataSpec(Uri.EMPTY, positionHolder.position, C.LENGTH_UNSET,
+                        null));
+                input = new DefaultExtractorInput(source, positionHolder.position, length);
+            }
+        }
+        source.close();
+        extractor.release();
+        mMimeTypes = mimeTypes;
+        mSamples = samples;
+    }
+
+    /**
+     * Collects the samples of a track, which are given as the sample data followed by the
+     * metadata of them.
+     */
+    private static class SampleCollector implements TrackOutput {
+        private final int mTrackIndex;
+        private final List<String> mMimeTypes;
+        private final List<Sample> mSamples;
+        private byte[] mPendingData = new byte[64 * 1024];
+        private int mPendingLength;
+
+        SampleCollector(int trackIndex, List<String> mimeTypes, List<Sample> samples) {
+            mTrackIndex = trackIndex;
+            mMimeTypes = mimeTypes;
+            mSamples = samples;
+        }
+
+        @Override
+        public void format(Format format) {
+            mMimeTypes.set(mTrackIndex, format.sampleMimeType);
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput)
+                throws IOException, InterruptedException {
+            ensureCapacity(length);
+            int read = input.read(mPendingData, mPendingLength, length);
+            if (read == C.RESULT_END_OF_INPUT) {
+                if (allowEndOfInput) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                throw new EOFException();
+            }
+            mPendingLength += read;
+            return read;
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            ensureCapacity(length);
+            data.readBytes(mPendingData, mPendingLength, length);
+            mPendingLength += length;
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset,
+                byte[] encryptionKey) {
+            // The sample ends before the last offset bytes, which belong to the next sample.
+            int end = mPendingLength - offset;
+            mSamples.add(new Sample(mTrackIndex, timeUs, flags,
+                    Arrays.copyOfRange(mPendingData, end - size, end)));
+            System.arraycopy(mPendingData, end, mPendingData, 0, offset);
+            mPendingLength = offset;
+        }
+
+        private void ensureCapacity(int length) {
+            if (mPendingLength + length > mPendingData.length) {
+                mPendingData = Arrays.copyOf(mPendingData,
+                        Math.max(mPendingData.length * 2, mPendingLength + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tests.perf;
+
+import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.android.tv.tuner.cc.Cea708Parser;
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.exoplayer.buffer.BufferManager;
+import com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer;
+import com.android.tv.tuner.exoplayer.buffer.SampleChunkIoHelper;
+import com.android.tv.tuner.exoplayer.buffer.SamplePool;
+import com.android.tv.tuner.exoplayer.buffer.TrickplayStorageManager;
+import com.android.tv.tuner.ts.TsParser;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the tuner pipeline from the TS stream to the samples, which replay captured ATSC
+ * transport streams through the PSIP parsing, the closed caption parsing and the sample write and
+ * read-back of time-shifting. See {@link TsCapture} and {@link Benchmark} for the arguments.
+ */
+@LargeTest
+public class TunerPipelineBenchmarkTest extends TestCase {
+    private static final String TAG = "TunerPipelineBenchmark";
+
+    /**
+     * The number of the TS packets which are fed to the parser at once, which is close to what
+     * the TS streamers read from the tuner at once.
+     */
+    private static final int PACKETS_PER_READ = 64;
+    private static final long READ_BACK_TIMEOUT_MS = 60 * 1000;
+
+    // user_data_type_structure of ATSC A/53 Part 4 for cc_data().
+    private static final byte[] ATSC_USER_DATA_IDENTIFIER = {'G', 'A', '9', '4'};
+    private static final int USER_DATA_TYPE_CC = 0x03;
+
+    private static List<TsCapture> sCaptures;
+
+    private static final TsParser.TsOutputListener TS_OUTPUT_LISTENER =
+            new TsParser.TsOutputListener() {
+                @Override
+                public void onPatDetected(List<PatItem> items) { }
+
+                @Override
+                public void onEitPidDetected(int pid) { }
+
+                @Override
+                public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) { }
+
+                @Override
+                public void onEitItemParsed(VctItem channel, List<EitItem> items) { }
+
+                @Override
+                public void onEttPidDetected(int pid) { }
+
+                @Override
+                public void onAllVctItemsParsed() { }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (sCaptures == null) {
+            sCaptures = TsCapture.loadFromArguments();
+        }
+    }
+
+    public void testPsipParsing() throws Exception {
+        for (final TsCapture capture : sCaptures) {
+            Benchmark.Result result = new Benchmark("PSIP parsing of " + capture.name, "packet")
+                    .run(new Benchmark.Pass() {
+                        private TsParser mParser;
+
+                        @Override
+                        void setUp() {
+                            mParser = new TsParser(TS_OUTPUT_LISTENER);
+                        }
+
+                        @Override
+                        void run(Benchmark.Recorder recorder) {
+                            int readSize = PACKETS_PER_READ * TsCapture.TS_PACKET_SIZE;
+                            for (int pos = 0; pos < capture.data.length; pos += readSize) {
+                                int length = Math.min(readSize, capture.data.length - pos);
+                                recorder.startOperation();
+                                mParser.feedTSData(capture.data, pos, length);
+                                recorder.endOperation(length / TsCapture.TS_PACKET_SIZE, length);
+                            }
+                        }
+                    });
+            assertTrue(result.items >= capture.getPacketCount());
+        }
+    }
+
+    public void testClosedCaptionParsing() throws Exception {
+        for (TsCapture capture : sCaptures) {
+            final List<ByteBuffer> ccData = new ArrayList<>();
+            final List<Long> ccTimesUs = new ArrayList<>();
+            List<String> mimeTypes = capture.getMimeTypes();
+            for (TsCapture.Sample sample : capture.getSamples()) {
+                String mimeType = mimeTypes.get(sample.trackIndex);
+                if (mimeType == null || !MimeTypes.isVideo(mimeType)) {
+                    continue;
+                }
+                byte[] data = extractCcData(sample.data);
+                if (data != null) {
+                    ccData.add(ByteBuffer.wrap(data));
+                    ccTimesUs.add(sample.timeUs);
+                }
+            }
+            if (ccData.isEmpty()) {
+                Log.i(TAG, "No closed captions in " + capture.name);
+                continue;
+            }
+            new Benchmark("CC parsing of " + capture.name, "cc_data").run(new Benchmark.Pass() {
+                private Cea708Parser mParser;
+
+                @Override
+                void setUp() {
+                    mParser = new Cea708Parser();
+                }
+
+                @Override
+                void run(Benchmark.Recorder recorder) {
+                    for (int i = 0; i < ccData.size(); ++i) {
+                        ByteBuffer data = ccData.get(i);
+                        long timeUs = ccTimesUs.get(i);
+                        recorder.startOperation();
+                        mParser.parseClosedCaption(data, timeUs);
+                        mParser.processClosedCaptions(timeUs);
+                        recorder.endOperation(1, data.limit());
+                    }
+                }
+            });
+        }
+    }
+
+    public void testSampleWriteAndReadBack() throws Exception {
+        for (TsCapture capture : sCaptures) {
+            List<String> mimeTypes = capture.getMimeTypes();
+            final List<String> ids = new ArrayList<>();
+            final List<MediaFormat> formats = new ArrayList<>();
+            final int[] ioIndexes = new int[mimeTypes.size()];
+            for (int i = 0; i < mimeTypes.size(); ++i) {
+                String mimeType = mimeTypes.get(i);
+                if (mimeType == null
+                        || (!MimeTypes.isAudio(mimeType) && !MimeTypes.isVideo(mimeType))) {
+                    ioIndexes[i] = -1;
+                    continue;
+                }
+                ioIndexes[i] = ids.size();
+                ids.add("track-" + i);
+                formats.add(MediaFormat.createFormatForMimeType(ids.get(ids.size() - 1),
+                        mimeType, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US));
+            }
+            final List<TsCapture.Sample> samples = new ArrayList<>();
+            final int[] sampleCounts = new int[ids.size()];
+            long sampleBytes = 0;
+            for (TsCapture.Sample sample : capture.getSamples()) {
+                if (ioIndexes[sample.trackIndex] >= 0) {
+                    samples.add(sample);
+                    ++sampleCounts[ioIndexes[sample.trackIndex]];
+                    sampleBytes += sample.data.length;
+                }
+            }
+            if (samples.isEmpty()) {
+                Log.i(TAG, "No audio or video samples in " + capture.name);
+                continue;
+            }
+            // Keeps all the samples in the buffer, so that nothing is evicted before read back.
+            final long maxBufferSize = sampleBytes * 2 + 16 * 1024 * 1024;
+            new Benchmark("Sample write and read-back of " + capture.name, "sample")
+                    .run(new Benchmark.Pass() {
+                        private final SamplePool mSamplePool = new SamplePool();
+                        private SampleChunkIoHelper mIoHelper;
+                        private volatile boolean mIoError;
+
+                        @Override
+                        void setUp() throws IOException {
+                            File dir = new File(InstrumentationRegistry.getTargetContext()
+                                    .getCacheDir(), "benchmark");
+                            TrickplayStorageManager storageManager = new TrickplayStorageManager(
+                                    InstrumentationRegistry.getTargetContext(), dir,
+                                    maxBufferSize);
+                            mIoHelper = new SampleChunkIoHelper(ids, formats,
+                                    RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK,
+                                    new BufferManager(storageManager), mSamplePool,
+                                    new SampleChunkIoHelper.IoCallback() {
+                                        @Override
+                                        public void onIoError() {
+                                            mIoError = true;
+                                        }
+                                    });
+                            mIoHelper.init();
+                            for (int i = 0; i < ids.size(); ++i) {
+                                mIoHelper.openRead(i, 0);
+                            }
+                        }
+
+                        @Override
+                        void run(Benchmark.Recorder recorder) throws IOException {
+                            ConditionVariable conditionVariable = new ConditionVariable();
+                            int[] readCounts = new int[ids.size()];
+                            for (TsCapture.Sample sample : samples) {
+                                SampleHolder holder = mSamplePool.acquireSample(
+                                        sample.data.length);
+                                holder.clearData();
+                                holder.data.put(sample.data);
+                                holder.size = sample.data.length;
+                                holder.flags = sample.flags;
+                                holder.timeUs = sample.timeUs;
+                                recorder.startOperation();
+                                mIoHelper.writeSample(ioIndexes[sample.trackIndex], holder,
+                                        conditionVariable);
+                                conditionVariable.block();
+                                recorder.endOperation(1, holder.size);
+                                mSamplePool.releaseSample(holder);
+                                // Reads back as time-shifted playback does while recording.
+                                readAvailableSamples(readCounts, recorder);
+                            }
+                            mIoHelper.closeWrite();
+                            long deadlineMs = SystemClock.elapsedRealtime()
+                                    + READ_BACK_TIMEOUT_MS;
+                            while (!isReadFinished(readCounts)) {
+                                assertFalse("I/O error", mIoError);
+                                assertTrue("Timed out",
+                                        SystemClock.elapsedRealtime() < deadlineMs);
+                                if (!readAvailableSamples(readCounts, recorder)) {
+                                    SystemClock.sleep(1);
+                                }
+                            }
+                        }
+
+                        @Override
+                        void tearDown() throws IOException {
+                            Log.i(TAG, "Read latency: " + mIoHelper.getReadLatency());
+                            // Releases the BufferManager and the storage as well.
+                            mIoHelper.release();
+                        }
+
+                        private boolean readAvailableSamples(int[] readCounts,
+                                Benchmark.Recorder recorder) {
+                            boolean read = false;
+                            for (int i = 0; i < readCounts.length; ++i) {
+                                SampleHolder sample;
+                                while ((sample = mIoHelper.readSample(i)) != null) {
+                                    ++readCounts[i];
+                                    recorder.record(0, sample.size);
+                                    mSamplePool.releaseSample(sample);
+                                    read = true;
+                                }
+                            }
+                            return read;
+                        }
+
+                        private boolean isReadFinished(int[] readCounts) {
+                            for (int i = 0; i < readCounts.length; ++i) {
+                                if (readCounts[i] < sampleCounts[i]) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Returns the cc_data() bytes of a video sample, or {@code null} if there is none. Both of
+     * MPEG-2 user data and H.264 SEI carry the same user_data_type_structure.
+     */
+    private static byte[] extractCcData(byte[] data) {
+        int end = data.length - ATSC_USER_DATA_IDENTIFIER.length - 3;
+        for (int i = 0; i < end; ++i) {
+            if (data[i] != ATSC_USER_DATA_IDENTIFIER[0]
+                    || data[i + 1] != ATSC_USER_DATA_IDENTIFIER[1]
+                    || data[i + 2] != ATSC_USER_DATA_IDENTIFIER[2]
+                    || data[i + 3] != ATSC_USER_DATA_IDENTIFIER[3]
+                    || data[i + 4] != USER_DATA_TYPE_CC) {
+                continue;
+            }
+            // process_cc_data_flag, cc_count and em_data precede the cc_data_pkts.
+            int ccCount = data[i + 5] & 0x1f;
+            int start = i + 7;
+            if ((data[i + 5] & 0x40) == 0 || ccCount == 0 || start + ccCount * 3 > data.length) {
+                return null;
+            }
+            byte[] ccData = new byte[ccCount * 3];
+            System.arraycopy(data, start, ccData, 0, ccData.length);
+            return ccData;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmarks of the read modes of {@link SampleChunk}. It is in the package of
+ * {@link SampleChunk}, since the I/O of a {@link SampleChunk} is package-private.
+ */
+@LargeTest
+public class SampleChunkReadBenchmarkTest extends TestCase {
+    private static final String TAG = "SampleChunkReadBenchmark";
+
+    private static final int SAMPLE_COUNT = 3000;
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024;
+    private static final long SAMPLE_DURATION_US = 33366;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "sample_chunk_read_benchmark.chunk");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReadThroughput() throws IOException {
+        SampleChunk chunk = writeChunk();
+        long perSampleNs = measureRead(chunk, SampleChunk.READ_MODE_MAP_PER_SAMPLE);
+        long windowNs = measureRead(chunk, SampleChunk.READ_MODE_MAPPED_WINDOW);
+        long megabytes = chunk.getSize() / (1024 * 1024);
+        Log.i(TAG, "Read " + megabytes + "MB: map per sample " + perSampleNs / 1000000 + "ms, "
+                + "mapped window " + windowNs / 1000000 + "ms");
+    }
+
+    private SampleChunk writeChunk() throws IOException {
+        SampleChunk chunk = new SampleChunk.SampleChunkCreator().createSampleChunk(mSamplePool,
+                mFile, 0, new SampleChunk.ChunkCallback() {});
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(chunk);
+        Random random = new Random(0);
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            writeState.queueWrite(createSample(i, 1 + random.nextInt(MAX_SAMPLE_SIZE)), null);
+        }
+        writeState.closeWrite();
+        return chunk;
+    }
+
+    private long measureRead(SampleChunk chunk, @SampleChunk.ReadMode int readMode)
+            throws IOException {
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.setReadMode(readMode);
+        readState.openRead(chunk, 0);
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        SampleHolder sample;
+        while ((sample = readState.read()) != null) {
+            mSamplePool.releaseSample(sample);
+        }
+        return SystemClock.elapsedRealtimeNanos() - startNs;
+    }
+
+    private SampleHolder createSample(int index, int size) {
+        SampleHolder sample = mSamplePool.acquireSample(size);
+        sample.clearData();
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.timeUs = index * SAMPLE_DURATION_US;
+        return sample;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.data.Program.CriticScore;
+import com.android.tv.dvr.data.RecordedProgram;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link InternalDataUtils}.
+ */
+@SmallTest
+public class InternalDataUtilsTest extends TestCase {
+    private static final String SERIES_ID = "com.android.tv/series\u00e9";
+    private static final List<CriticScore> CRITIC_SCORES = Arrays.asList(
+            new CriticScore("source", "4.5", "http://logo"),
+            new CriticScore("other source", "90%", null));
+
+    public void testProgram_roundTrip() {
+        Program program = new Program.Builder()
+                .setSeriesId(SERIES_ID)
+                .setCriticScores(CRITIC_SCORES)
+                .build();
+        Program.Builder builder = new Program.Builder();
+        InternalDataUtils.deserializeInternalProviderData(
+                InternalDataUtils.serializeInternalProviderData(program), builder);
+        assertProgram(builder.build(), SERIES_ID, CRITIC_SCORES);
+    }
+
+    public void testProgram_roundTripWithoutCriticScores() {
+        Program program = new Program.Builder().setSeriesId(SERIES_ID).build();
+        Program.Builder builder = new Program.Builder();
+        InternalDataUtils.deserializeInternalProviderData(
+                InternalDataUtils.serializeInternalProviderData(program), builder);
+        assertProgram(builder.build(), SERIES_ID, null);
+    }
+
+    public void testProgram_noData() {
+        assertNull(InternalDataUtils.serializeInternalProviderData(
+                new Program.Builder().build()));
+    }
+
+    public void testProgram_legacyFormat() throws IOException {
+        Program.Builder builder = new Program.Builder();
+        InternalDataUtils.deserializeInternalProviderData(
+                createLegacyData(SERIES_ID, new ArrayList<>(CRITIC_SCORES)), builder);
+        assertProgram(builder.build(), SERIES_ID, CRITIC_SCORES);
+    }
+
+    public void testProgram_truncatedData() {
+        Program program = new Program.Builder()
+                .setSeriesId(SERIES_ID)
+                .setCriticScores(CRITIC_SCORES)
+                .build();
+        byte[] bytes = InternalDataUtils.serializeInternalProviderData(program);
+        for (int length = 1; length < bytes.length; ++length) {
+            // Must not throw.
+            InternalDataUtils.deserializeInternalProviderData(Arrays.copyOf(bytes, length),
+                    new Program.Builder());
+        }
+    }
+
+    public void testProgram_trailingBytes() {
+        byte[] bytes = InternalDataUtils.serializeInternalProviderData(
+                new Program.Builder().setSeriesId(SERIES_ID).build());
+        Program.Builder builder = new Program.Builder();
+        InternalDataUtils.deserializeInternalProviderData(
+                Arrays.copyOf(bytes, bytes.length + 1), builder);
+        assertProgram(builder.build(), null, null);
+    }
+
+    public void testProgram_fieldsAppendedByNewerVersion() {
+        byte[] bytes = InternalDataUtils.serializeInternalProviderData(
+                new Program.Builder().setSeriesId(SERIES_ID).build());
+        byte[] newerBytes = Arrays.copyOf(bytes, bytes.length + 1);
+        // The version follows the 4-byte magic.
+        newerBytes[4]++;
+        Program.Builder builder = new Program.Builder();
+        InternalDataUtils.deserializeInternalProviderData(newerBytes, builder);
+        assertProgram(builder.build(), SERIES_ID, null);
+    }
+
+    public void testProgram_firstMagicByteOnly() {
+        byte[] bytes = InternalDataUtils.serializeInternalProviderData(
+                new Program.Builder().setSeriesId(SERIES_ID).build());
+        bytes[1] = 0;
+        Program.Builder builder = new Program.Builder();
+        // Must not throw.
+        InternalDataUtils.deserializeInternalProviderData(bytes, builder);
+        assertProgram(builder.build(), null, null);
+    }
+
+    public void testRecordedProgram_roundTrip() {
+        RecordedProgram program = RecordedProgram.builder()
+                .setInputId("input")
+                .setSeriesId(SERIES_ID)
+                .build();
+        RecordedProgram.Builder builder = RecordedProgram.builder().setInputId("input");
+        InternalDataUtils.deserializeInternalProviderData(
+                InternalDataUtils.serializeInternalProviderData(program), builder);
+        assertEquals(SERIES_ID, builder.build().getSeriesId());
+    }
+
+    public void testRecordedProgram_trailingBytes() {
+        byte[] bytes = InternalDataUtils.serializeInternalProviderData(
+                RecordedProgram.builder().setInputId("input").setSeriesId(SERIES_ID).build());
+        RecordedProgram.Builder builder = RecordedProgram.builder().setInputId("input");
+        InternalDataUtils.deserializeInternalProviderData(
+                Arrays.copyOf(bytes, bytes.length + 1), builder);
+        assertNull(builder.build().getSeriesId());
+    }
+
+    public void testRecordedProgram_legacyFormat() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(SERIES_ID);
+        }
+        RecordedProgram.Builder builder = RecordedProgram.builder().setInputId("input");
+        InternalDataUtils.deserializeInternalProviderData(bos.toByteArray(), builder);
+        assertEquals(SERIES_ID, builder.build().getSeriesId());
+    }
+
+    private static byte[] createLegacyData(String seriesId, ArrayList<CriticScore> criticScores)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(seriesId);
+            out.writeObject(criticScores);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void assertProgram(Program program, String seriesId,
+            List<CriticScore> criticScores) {
+        assertEquals(seriesId, program.getSeriesId());
+        if (criticScores == null) {
+            assertNull(program.getCriticScores());
+            return;
+        }
+        assertEquals(criticScores.size(), program.getCriticScores().size());
+        for (int i = 0; i < criticScores.size(); ++i) {
+            CriticScore expected = criticScores.get(i);
+            CriticScore actual = program.getCriticScores().get(i);
+            assertEquals(expected.source, actual.source);
+            assertEquals(expected.score, actual.score);
+            assertEquals(expected.logoUrl, actual.logoUrl);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.media.tv.TvContract;
 import android.net.Uri;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.test.filters.SmallTest;
 import android.test.AndroidTestCase;
@@ -208,10 +209,63 @@ public class ProgramDataManagerTest extends AndroidTestCase {
         long lastProgramEndTime = programList.get(programList.size() - 1).getEndTimeUtcMillis();
         // Make change in content provider
         mContentProvider.simulateAppend(testChannelId);
-        assertTrue(mListener.programUpdatedLatch.await(WAIT_TIME_OUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mListener.channelProgramsUpdatedLatch.await(WAIT_TIME_OUT_MS,
+                TimeUnit.MILLISECONDS));
         programList = mProgramDataManager.getPrograms(testChannelId, mClock.currentTimeMillis());
         assertTrue(
                 lastProgramEndTime < programList.get(programList.size() - 1).getEndTimeUtcMillis());
+        // Only the changed channel is notified, instead of all the channels.
+        for (long channelId : mListener.updatedChannelIds) {
+            assertEquals(testChannelId, channelId);
+        }
+        assertEquals(1, mListener.programUpdatedLatch.getCount());
+    }
+
+    /**
+     * Test for {@link ProgramDataManager#setProgramGuideWindow}.
+     */
+    public void testSetProgramGuideWindow() throws Exception {
+        final long testChannelId = 1;
+        startAndWaitForComplete();
+        mListener.reset();
+        final List<Long> channelIds = new ArrayList<>();
+        for (long channelId = 1; channelId <= Constants.UNIT_TEST_CHANNEL_COUNT; channelId++) {
+            channelIds.add(channelId);
+        }
+        final long fromUtcMillis = mClock.currentTimeMillis();
+        new Handler(mHandlerThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mProgramDataManager.setProgramGuideWindow(channelIds, 0, 0, fromUtcMillis,
+                        fromUtcMillis + TimeUnit.HOURS.toMillis(2));
+            }
+        });
+        // The programs which were prefetched for a day are replaced with the loaded slabs.
+        assertTrue(mListener.channelProgramsUpdatedLatch.await(WAIT_TIME_OUT_MS,
+                TimeUnit.MILLISECONDS));
+        List<Program> programs = mProgramDataManager.getPrograms(testChannelId, fromUtcMillis);
+        assertFalse(programs.isEmpty());
+        assertTrue(programs.get(0).getStartTimeUtcMillis() <= fromUtcMillis);
+        assertTrue(programs.get(programs.size() - 1).getStartTimeUtcMillis() < fromUtcMillis
+                + ProgramDataManager.PROGRAM_GUIDE_SLAB_DURATION_MS * 4);
+        assertEquals(1, mListener.programUpdatedLatch.getCount());
+
+        // Clearing the window goes back to prefetching the programs of all the channels.
+        mListener.reset();
+        final CountDownLatch clearedLatch = new CountDownLatch(1);
+        new Handler(mHandlerThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                mProgramDataManager.clearProgramGuideWindow();
+                clearedLatch.countDown();
+            }
+        });
+        assertTrue(clearedLatch.await(WAIT_TIME_OUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mListener.channelProgramsUpdatedLatch.await(WAIT_TIME_OUT_MS,
+                TimeUnit.MILLISECONDS));
+        programs = mProgramDataManager.getPrograms(testChannelId, fromUtcMillis);
+        assertTrue(programs.get(programs.size() - 1).getStartTimeUtcMillis() >= fromUtcMillis
+                + ProgramDataManager.PROGRAM_GUIDE_SLAB_DURATION_MS * 4);
     }
 
     /**
@@ -502,14 +556,25 @@ public class ProgramDataManagerTest extends AndroidTestCase {
 
     private class TestProgramDataManagerListener implements ProgramDataManager.Listener {
         public CountDownLatch programUpdatedLatch = new CountDownLatch(1);
+        public CountDownLatch channelProgramsUpdatedLatch = new CountDownLatch(1);
+        public final List<Long> updatedChannelIds = new ArrayList<>();
 
         @Override
         public void onProgramUpdated() {
             programUpdatedLatch.countDown();
         }
 
+        @Override
+        public void onChannelProgramsUpdated(long channelId, long startUtcMillis,
+                long endUtcMillis) {
+            updatedChannelIds.add(channelId);
+            channelProgramsUpdatedLatch.countDown();
+        }
+
         public void reset() {
             programUpdatedLatch = new CountDownLatch(1);
+            channelProgramsUpdatedLatch = new CountDownLatch(1);
+            updatedChannelIds.clear();
         }
     }
 
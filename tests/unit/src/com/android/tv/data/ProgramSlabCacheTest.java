@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.data.ProgramSlabCache.Slab;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ProgramSlabCache}.
+ */
+@SmallTest
+public class ProgramSlabCacheTest extends TestCase {
+    private static final int CHANNEL_COUNT = 40;
+    private static final int BLOCK_SIZE = 8;
+    private static final long SLAB_DURATION_MS = TimeUnit.HOURS.toMillis(3);
+    private static final long MIN_UTC_MILLIS = SLAB_DURATION_MS * 8;
+    private static final long MAX_UTC_MILLIS = SLAB_DURATION_MS * 24;
+    private static final long FROM_UTC_MILLIS = SLAB_DURATION_MS * 10;
+    private static final long TO_UTC_MILLIS = FROM_UTC_MILLIS + TimeUnit.HOURS.toMillis(2);
+
+    private ProgramSlabCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<Long> channelIds = new ArrayList<>();
+        for (long channelId = 1; channelId <= CHANNEL_COUNT; ++channelId) {
+            channelIds.add(channelId);
+        }
+        mCache = new ProgramSlabCache(channelIds, BLOCK_SIZE, SLAB_DURATION_MS, 2);
+    }
+
+    public void testStartLoadingNextSlab_visibleSlabFirst() {
+        setWindow(16, 23);
+        Slab slab = mCache.startLoadingNextSlab();
+        assertEquals(2, slab.blockIndex);
+        assertEquals(FROM_UTC_MILLIS, slab.startUtcMillis);
+        assertTrue(slab.isVisible());
+        // Only one slab is loaded at a time.
+        assertNull(mCache.startLoadingNextSlab());
+    }
+
+    public void testStartLoadingNextSlab_aheadOfScrollFirst() {
+        setWindow(16, 23);
+        setWindow(24, 31);
+        Slab slab = mCache.startLoadingNextSlab();
+        assertEquals(3, slab.blockIndex);
+        mCache.onSlabLoaded(slab, Collections.<Long, List<Program>>emptyMap());
+        slab = mCache.startLoadingNextSlab();
+        assertFalse(slab.isVisible());
+        assertEquals(4, slab.blockIndex);
+    }
+
+    public void testStartLoadingNextSlab_allLoaded() {
+        setWindow(0, 0);
+        Slab slab;
+        int count = 0;
+        while ((slab = mCache.startLoadingNextSlab()) != null) {
+            mCache.onSlabLoaded(slab, Collections.<Long, List<Program>>emptyMap());
+            ++count;
+        }
+        // Blocks 0 and 1, and the slab before and after the visible one.
+        assertEquals(6, count);
+    }
+
+    public void testOnSlabLoaded_evictsLeastRecentlyUsedOutOfWindow() {
+        setWindow(0, 7);
+        Slab oldSlab = mCache.startLoadingNextSlab();
+        assertTrue(mCache.onSlabLoaded(oldSlab, programs(1, FROM_UTC_MILLIS, 1)).isEmpty());
+
+        setWindow(32, 39);
+        Slab newSlab = mCache.startLoadingNextSlab();
+        assertEquals(4, newSlab.blockIndex);
+        List<Slab> evictedSlabs = mCache.onSlabLoaded(newSlab, programs(33, FROM_UTC_MILLIS, 2));
+        assertEquals(Arrays.asList(oldSlab), evictedSlabs);
+        assertFalse(mCache.hasLoadedSlab(0));
+        assertTrue(mCache.hasLoadedSlab(4));
+        assertEquals(2, mCache.getProgramCount());
+        assertTrue(mCache.getPrograms(1).isEmpty());
+    }
+
+    public void testOnSlabLoaded_keepsSlabsInWindow() {
+        setWindow(0, 7);
+        Slab slab = mCache.startLoadingNextSlab();
+        mCache.onSlabLoaded(slab, programs(1, FROM_UTC_MILLIS, 2));
+        slab = mCache.startLoadingNextSlab();
+        // Exceeds the budget, but the slabs are in the window.
+        assertTrue(mCache.onSlabLoaded(slab, programs(1, slab.startUtcMillis, 2)).isEmpty());
+        assertEquals(4, mCache.getProgramCount());
+    }
+
+    public void testGetPrograms_mergesSlabs() {
+        setWindow(0, 7);
+        Slab first = mCache.startLoadingNextSlab();
+        long boundary = first.endUtcMillis;
+        Program crossing = program(1, boundary - TimeUnit.HOURS.toMillis(1),
+                boundary + TimeUnit.HOURS.toMillis(1));
+        Program before = program(1, boundary - TimeUnit.HOURS.toMillis(2),
+                crossing.getStartTimeUtcMillis());
+        Program after = program(1, crossing.getEndTimeUtcMillis(),
+                crossing.getEndTimeUtcMillis() + TimeUnit.HOURS.toMillis(1));
+        mCache.onSlabLoaded(first, channelPrograms(1, before, crossing));
+
+        setWindow(0, 7);
+        Slab second = null;
+        Slab slab;
+        while ((slab = mCache.startLoadingNextSlab()) != null) {
+            if (slab.blockIndex == 0 && slab.startUtcMillis == boundary) {
+                second = slab;
+                break;
+            }
+            mCache.onSlabLoaded(slab, Collections.<Long, List<Program>>emptyMap());
+        }
+        assertNotNull(second);
+        mCache.onSlabLoaded(second, channelPrograms(1, crossing, after));
+        assertEquals(Arrays.asList(before, crossing, after), mCache.getPrograms(1));
+    }
+
+    public void testInvalidate() {
+        setWindow(0, 7);
+        Slab slab = mCache.startLoadingNextSlab();
+        mCache.onSlabLoaded(slab, programs(1, FROM_UTC_MILLIS, 1));
+        setWindow(32, 39);
+        Slab otherSlab = mCache.startLoadingNextSlab();
+        mCache.onSlabLoaded(otherSlab, programs(33, FROM_UTC_MILLIS, 1));
+
+        assertEquals(Arrays.asList(slab), mCache.invalidate());
+        // The slab in the window is loaded again.
+        assertSame(otherSlab, mCache.startLoadingNextSlab());
+        assertEquals(1, mCache.getProgramCount());
+    }
+
+    private void setWindow(int firstChannelIndex, int lastChannelIndex) {
+        mCache.setWindow(firstChannelIndex, lastChannelIndex, FROM_UTC_MILLIS, TO_UTC_MILLIS,
+                MIN_UTC_MILLIS, MAX_UTC_MILLIS);
+    }
+
+    private static Map<Long, List<Program>> programs(long channelId, long startUtcMillis,
+            int count) {
+        List<Program> programs = new ArrayList<>();
+        long durationMs = TimeUnit.MINUTES.toMillis(30);
+        for (int i = 0; i < count; ++i) {
+            programs.add(program(channelId, startUtcMillis + durationMs * i,
+                    startUtcMillis + durationMs * (i + 1)));
+        }
+        Map<Long, List<Program>> map = new HashMap<>();
+        map.put(channelId, programs);
+        return map;
+    }
+
+    private static Map<Long, List<Program>> channelPrograms(long channelId, Program... programs) {
+        Map<Long, List<Program>> map = new HashMap<>();
+        map.put(channelId, Arrays.asList(programs));
+        return map;
+    }
+
+    private static Program program(long channelId, long startUtcMillis, long endUtcMillis) {
+        return new Program.Builder()
+                .setChannelId(channelId)
+                .setStartTimeUtcMillis(startUtcMillis)
+                .setEndTimeUtcMillis(endUtcMillis)
+                .build();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.guide;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import com.android.tv.data.Channel;
+import com.android.tv.data.ChannelDataManager;
+import com.android.tv.data.Program;
+import com.android.tv.data.ProgramDataManager;
+import com.android.tv.guide.ProgramManager.TableEntry;
+import com.android.tv.parental.ParentalControlSettings;
+import com.android.tv.util.TvInputManagerHelper;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the partial updates of the table entries in {@link ProgramManager}.
+ */
+@SmallTest
+public class ProgramManagerTest extends AndroidTestCase {
+    private static final long CHANNEL_ID = 1;
+    private static final long OTHER_CHANNEL_ID = 2;
+    private static final long START_UTC_MILLIS = TimeUnit.HOURS.toMillis(1000);
+    private static final long DURATION_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int PROGRAM_COUNT = 4;
+    private static final long END_UTC_MILLIS = START_UTC_MILLIS + DURATION_MILLIS * PROGRAM_COUNT;
+
+    @Mock TvInputManagerHelper mTvInputManagerHelper;
+    @Mock ParentalControlSettings mParentalControlSettings;
+    @Mock ChannelDataManager mChannelDataManager;
+    @Mock ProgramDataManager mProgramDataManager;
+
+    private ProgramManager mProgramManager;
+    private ProgramDataManager.Listener mProgramDataManagerListener;
+    private final List<String> mChanges = new ArrayList<>();
+    private int mTableEntriesUpdatedCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(mTvInputManagerHelper.getParentalControlSettings())
+                .thenReturn(mParentalControlSettings);
+        Channel channel = new Channel.Builder().setId(CHANNEL_ID).build();
+        Channel otherChannel = new Channel.Builder().setId(OTHER_CHANNEL_ID).build();
+        Mockito.when(mChannelDataManager.getBrowsableChannelList())
+                .thenReturn(Arrays.asList(channel, otherChannel));
+        Mockito.when(mChannelDataManager.getChannel(CHANNEL_ID)).thenReturn(channel);
+        Mockito.when(mChannelDataManager.getChannel(OTHER_CHANNEL_ID)).thenReturn(otherChannel);
+        setPrograms(CHANNEL_ID, createPrograms(CHANNEL_ID, PROGRAM_COUNT));
+        setPrograms(OTHER_CHANNEL_ID, createPrograms(OTHER_CHANNEL_ID, PROGRAM_COUNT));
+
+        mProgramManager = new ProgramManager(mTvInputManagerHelper, mChannelDataManager,
+                mProgramDataManager, null, null);
+        mProgramManager.addTableEntriesUpdatedListener(
+                new ProgramManager.TableEntriesUpdatedListener() {
+                    @Override
+                    public void onTableEntriesUpdated() {
+                        ++mTableEntriesUpdatedCount;
+                    }
+                });
+        mProgramManager.addTableEntryChangedListener(
+                new ProgramManager.TableEntryChangedListener() {
+                    @Override
+                    public void onTableEntryChanged(TableEntry entry) { }
+
+                    @Override
+                    public void onTableEntriesChanged(long channelId, int positionStart,
+                            int removedCount, int insertedCount) {
+                        mChanges.add(toChangeString(channelId, positionStart, removedCount,
+                                insertedCount));
+                    }
+                });
+        mProgramManager.programGuideVisibilityChanged(true);
+        ArgumentCaptor<ProgramDataManager.Listener> captor =
+                ArgumentCaptor.forClass(ProgramDataManager.Listener.class);
+        Mockito.verify(mProgramDataManager).addListener(captor.capture());
+        mProgramDataManagerListener = captor.getValue();
+        mProgramManager.updateInitialTimeRange(START_UTC_MILLIS, END_UTC_MILLIS);
+        mTableEntriesUpdatedCount = 0;
+    }
+
+    public void testUpdateTableEntries_replace() {
+        List<TableEntry> oldEntries = getTableEntries(CHANNEL_ID);
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        programs.set(1, createProgram(CHANNEL_ID, 1, "Replaced", START_UTC_MILLIS + DURATION_MILLIS,
+                START_UTC_MILLIS + DURATION_MILLIS * 2));
+        setPrograms(CHANNEL_ID, programs);
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        assertEquals(Arrays.asList(toChangeString(CHANNEL_ID, 1, 1, 1)), mChanges);
+        List<TableEntry> entries = getTableEntries(CHANNEL_ID);
+        assertEquals(PROGRAM_COUNT, entries.size());
+        assertEquals("Replaced", entries.get(1).program.getTitle());
+        assertPrefixAndSuffixKept(oldEntries, entries, 1, 1);
+    }
+
+    public void testUpdateTableEntries_insert() {
+        List<TableEntry> oldEntries = getTableEntries(CHANNEL_ID);
+        // Splits the second program into two.
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        long splitUtcMillis = START_UTC_MILLIS + DURATION_MILLIS * 3 / 2;
+        programs.set(1, createProgram(CHANNEL_ID, 1, "First half",
+                START_UTC_MILLIS + DURATION_MILLIS, splitUtcMillis));
+        programs.add(2, createProgram(CHANNEL_ID, 10, "Second half", splitUtcMillis,
+                START_UTC_MILLIS + DURATION_MILLIS * 2));
+        setPrograms(CHANNEL_ID, programs);
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        assertEquals(Arrays.asList(toChangeString(CHANNEL_ID, 1, 1, 2)), mChanges);
+        List<TableEntry> entries = getTableEntries(CHANNEL_ID);
+        assertEquals(PROGRAM_COUNT + 1, entries.size());
+        assertPrefixAndSuffixKept(oldEntries, entries, 1, 2);
+    }
+
+    public void testUpdateTableEntries_remove() {
+        List<TableEntry> oldEntries = getTableEntries(CHANNEL_ID);
+        // Merges the second and the third programs into one.
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        programs.remove(2);
+        programs.set(1, createProgram(CHANNEL_ID, 1, "Merged", START_UTC_MILLIS + DURATION_MILLIS,
+                START_UTC_MILLIS + DURATION_MILLIS * 3));
+        setPrograms(CHANNEL_ID, programs);
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        assertEquals(Arrays.asList(toChangeString(CHANNEL_ID, 1, 2, 1)), mChanges);
+        List<TableEntry> entries = getTableEntries(CHANNEL_ID);
+        assertEquals(PROGRAM_COUNT - 1, entries.size());
+        assertPrefixAndSuffixKept(oldEntries, entries, 1, 1);
+    }
+
+    public void testUpdateTableEntries_removedProgramBecomesGap() {
+        List<TableEntry> oldEntries = getTableEntries(CHANNEL_ID);
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        programs.remove(PROGRAM_COUNT - 1);
+        setPrograms(CHANNEL_ID, programs);
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        // The removed last program is replaced with a gap to the end of the table.
+        assertEquals(Arrays.asList(toChangeString(CHANNEL_ID, PROGRAM_COUNT - 1, 1, 1)),
+                mChanges);
+        List<TableEntry> entries = getTableEntries(CHANNEL_ID);
+        TableEntry gap = entries.get(PROGRAM_COUNT - 1);
+        assertNull(gap.program);
+        assertEquals(START_UTC_MILLIS + DURATION_MILLIS * (PROGRAM_COUNT - 1),
+                gap.entryStartUtcMillis);
+        assertEquals(END_UTC_MILLIS, gap.entryEndUtcMillis);
+        assertPrefixAndSuffixKept(oldEntries, entries, PROGRAM_COUNT - 1, 0);
+    }
+
+    public void testUpdateTableEntries_noChange() {
+        List<TableEntry> oldEntries = getTableEntries(CHANNEL_ID);
+        setPrograms(CHANNEL_ID, createPrograms(CHANNEL_ID, PROGRAM_COUNT));
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        assertTrue(mChanges.isEmpty());
+        assertEquals(0, mTableEntriesUpdatedCount);
+        assertPrefixAndSuffixKept(oldEntries, getTableEntries(CHANNEL_ID), PROGRAM_COUNT, 0);
+    }
+
+    public void testUpdateTableEntries_keepsOtherChannels() {
+        List<TableEntry> otherEntries = getTableEntries(OTHER_CHANNEL_ID);
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        programs.set(0, createProgram(CHANNEL_ID, 0, "Replaced", START_UTC_MILLIS,
+                START_UTC_MILLIS + DURATION_MILLIS));
+        setPrograms(CHANNEL_ID, programs);
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        assertEquals(Arrays.asList(toChangeString(CHANNEL_ID, 0, 1, 1)), mChanges);
+        assertPrefixAndSuffixKept(otherEntries, getTableEntries(OTHER_CHANNEL_ID), PROGRAM_COUNT,
+                0);
+    }
+
+    public void testUpdateTableEntries_endTimeExtended() {
+        // A program which ends after the end of the table is added.
+        setPrograms(CHANNEL_ID, createPrograms(CHANNEL_ID, PROGRAM_COUNT + 1));
+
+        notifyChannelProgramsUpdated(CHANNEL_ID);
+
+        // All the rows are rebuilt instead.
+        assertTrue(mChanges.isEmpty());
+        assertEquals(1, mTableEntriesUpdatedCount);
+        assertEquals(PROGRAM_COUNT + 1, mProgramManager.getTableEntryCount(CHANNEL_ID));
+        // The other channel is filled with a gap to the new end time.
+        List<TableEntry> otherEntries = getTableEntries(OTHER_CHANNEL_ID);
+        assertEquals(PROGRAM_COUNT + 1, otherEntries.size());
+        TableEntry gap = otherEntries.get(PROGRAM_COUNT);
+        assertNull(gap.program);
+        assertEquals(END_UTC_MILLIS, gap.entryStartUtcMillis);
+        assertEquals(END_UTC_MILLIS + DURATION_MILLIS, gap.entryEndUtcMillis);
+    }
+
+    public void testUpdateTableEntries_changeBeforeStartTime() {
+        List<Program> programs = createPrograms(CHANNEL_ID, PROGRAM_COUNT);
+        programs.set(0, createProgram(CHANNEL_ID, 0, "Replaced", START_UTC_MILLIS,
+                START_UTC_MILLIS + DURATION_MILLIS));
+        setPrograms(CHANNEL_ID, programs);
+
+        mProgramDataManagerListener.onChannelProgramsUpdated(CHANNEL_ID,
+                START_UTC_MILLIS - DURATION_MILLIS, START_UTC_MILLIS);
+
+        assertTrue(mChanges.isEmpty());
+        assertEquals(0, mTableEntriesUpdatedCount);
+    }
+
+    public void testUpdateTableEntries_unknownChannel() {
+        mProgramDataManagerListener.onChannelProgramsUpdated(3, START_UTC_MILLIS,
+                END_UTC_MILLIS);
+
+        assertTrue(mChanges.isEmpty());
+        assertEquals(0, mTableEntriesUpdatedCount);
+    }
+
+    private void notifyChannelProgramsUpdated(long channelId) {
+        mProgramDataManagerListener.onChannelProgramsUpdated(channelId, START_UTC_MILLIS,
+                END_UTC_MILLIS);
+    }
+
+    private void setPrograms(long channelId, List<Program> programs) {
+        Mockito.when(mProgramDataManager.getPrograms(channelId, START_UTC_MILLIS))
+                .thenReturn(programs);
+    }
+
+    private List<TableEntry> getTableEntries(long channelId) {
+        List<TableEntry> entries = new ArrayList<>();
+        for (int i = 0; i < mProgramManager.getTableEntryCount(channelId); ++i) {
+            entries.add(mProgramManager.getTableEntry(channelId, i));
+        }
+        return entries;
+    }
+
+    /**
+     * Asserts that the first {@code prefixCount} and the last {@code suffixCount} entries are
+     * the same instances as before, so that their views are not rebound.
+     */
+    private static void assertPrefixAndSuffixKept(List<TableEntry> oldEntries,
+            List<TableEntry> entries, int prefixCount, int suffixCount) {
+        for (int i = 0; i < prefixCount; ++i) {
+            assertSame("entry " + i, oldEntries.get(i), entries.get(i));
+        }
+        for (int i = 1; i <= suffixCount; ++i) {
+            assertSame("entry " + (entries.size() - i), oldEntries.get(oldEntries.size() - i),
+                    entries.get(entries.size() - i));
+        }
+    }
+
+    private static List<Program> createPrograms(long channelId, int count) {
+        List<Program> programs = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            programs.add(createProgram(channelId, i, "Program " + i,
+                    START_UTC_MILLIS + DURATION_MILLIS * i,
+                    START_UTC_MILLIS + DURATION_MILLIS * (i + 1)));
+        }
+        return programs;
+    }
+
+    private static Program createProgram(long channelId, long id, String title,
+            long startUtcMillis, long endUtcMillis) {
+        return new Program.Builder()
+                .setId(id)
+                .setChannelId(channelId)
+                .setTitle(title)
+                .setStartTimeUtcMillis(startUtcMillis)
+                .setEndTimeUtcMillis(endUtcMillis)
+                .build();
+    }
+
+    private static String toChangeString(long channelId, int positionStart, int removedCount,
+            int insertedCount) {
+        return channelId + ":" + positionStart + "-" + removedCount + "+" + insertedCount;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.search;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.data.Channel;
+import com.android.tv.data.Program;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link SearchIndex}.
+ */
+@SmallTest
+public class SearchIndexTest extends TestCase {
+    private SearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new SearchIndex();
+        mIndex.updateChannels(Arrays.asList(
+                channel(1, "7-1", "Channel Seven", "Local news"),
+                channel(2, "9", "Sports Network", null),
+                channel(3, "11", "Kids", "Cartoons all day")));
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList("the", "late", "show"),
+                Arrays.asList(SearchIndex.tokenize("The LATE-show, the")));
+        assertEquals(0, SearchIndex.tokenize(" - ").length);
+        assertEquals(0, SearchIndex.tokenize(null).length);
+    }
+
+    public void testSearch_prefix() {
+        assertChannelIds(Arrays.asList(1L), SearchIndex.FIELD_CHANNEL_NAME, "sev");
+        assertChannelIds(Arrays.asList(1L, 2L), SearchIndex.FIELD_CHANNEL_NAME, "n");
+        // Only prefixes of tokens match.
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_CHANNEL_NAME, "even");
+    }
+
+    public void testSearch_allTokensMatch() {
+        assertChannelIds(Arrays.asList(1L), SearchIndex.FIELD_CHANNEL_NAME, "local chan");
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_CHANNEL_NAME,
+                "local sports");
+    }
+
+    public void testSearch_channelNumber() {
+        assertChannelIds(Arrays.asList(1L), SearchIndex.FIELD_CHANNEL_NUMBER, "71");
+        assertChannelIds(Arrays.asList(1L), SearchIndex.FIELD_CHANNEL_NUMBER, "7-1");
+        assertChannelIds(Arrays.asList(1L, 3L), SearchIndex.FIELD_CHANNEL_NUMBER, "1");
+    }
+
+    public void testSearch_orderedByChannelList() {
+        mIndex.updateChannels(Arrays.asList(
+                channel(3, "11", "Kids", "Cartoons all day"),
+                channel(1, "7-1", "Channel Seven", "Local news")));
+        assertChannelIds(Arrays.asList(3L, 1L), SearchIndex.FIELD_CHANNEL_NUMBER, "1");
+    }
+
+    public void testUpdateChannels_removesOldTokens() {
+        mIndex.updateChannels(Arrays.asList(
+                channel(1, "7-1", "Channel Eight", null),
+                channel(2, "9", "Sports Network", null)));
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_CHANNEL_NAME, "seven");
+        assertChannelIds(Arrays.asList(1L), SearchIndex.FIELD_CHANNEL_NAME, "eight");
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_CHANNEL_NAME, "kids");
+    }
+
+    public void testUpdateChannels_keepsPrograms() {
+        Program program = program(2, "World Cup", "Final");
+        mIndex.updateProgram(2, program);
+        mIndex.updateChannels(Arrays.asList(
+                channel(2, "9", "Sports Network HD", null)));
+        List<SearchIndex.ChannelEntry> entries =
+                mIndex.search("world", SearchIndex.FIELD_PROGRAM_TITLE);
+        assertEquals(1, entries.size());
+        assertSame(program, entries.get(0).program);
+        assertEquals("Sports Network HD", entries.get(0).displayName);
+    }
+
+    public void testUpdateProgram() {
+        mIndex.updateProgram(2, program(2, "World Cup", "Final match"));
+        assertChannelIds(Arrays.asList(2L), SearchIndex.FIELD_PROGRAM_TITLE, "cup");
+        assertChannelIds(Arrays.asList(2L), SearchIndex.FIELD_PROGRAM_DESCRIPTION, "match");
+
+        mIndex.updateProgram(2, program(2, "Post-game", "Final match"));
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_PROGRAM_TITLE, "cup");
+        assertChannelIds(Arrays.asList(2L), SearchIndex.FIELD_PROGRAM_TITLE, "game");
+        assertChannelIds(Arrays.asList(2L), SearchIndex.FIELD_PROGRAM_DESCRIPTION, "match");
+
+        mIndex.updateProgram(2, null);
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_PROGRAM_TITLE, "game");
+
+        // The programs of unknown channels are ignored.
+        mIndex.updateProgram(100, program(100, "World Cup", null));
+        assertChannelIds(Collections.<Long>emptyList(), SearchIndex.FIELD_PROGRAM_TITLE, "cup");
+    }
+
+    private void assertChannelIds(List<Long> expected, int field, String query) {
+        List<Long> channelIds = new ArrayList<>();
+        for (SearchIndex.ChannelEntry entry : mIndex.search(query, field)) {
+            channelIds.add(entry.channelId);
+        }
+        assertEquals(query, expected, channelIds);
+    }
+
+    private static Channel channel(long id, String displayNumber, String displayName,
+            String description) {
+        return new Channel.Builder()
+                .setId(id)
+                .setDisplayNumber(displayNumber)
+                .setDisplayName(displayName)
+                .setDescription(description)
+                .build();
+    }
+
+    private static Program program(long channelId, String title, String description) {
+        return new Program.Builder()
+                .setChannelId(channelId)
+                .setTitle(title)
+                .setDescription(description)
+                .build();
+    }
+}
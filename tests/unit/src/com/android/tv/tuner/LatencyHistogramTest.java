@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+@SmallTest
+public class LatencyHistogramTest extends TestCase {
+
+    public void testGetPercentileUs_empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileUs(50));
+        assertEquals(0, histogram.getMaxUs());
+    }
+
+    public void testGetPercentileUs() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; ++i) {
+            histogram.add(100);
+        }
+        histogram.add(3000);
+        histogram.add(200000);
+        assertEquals(100, histogram.getCount());
+        // 100us is in [64us, 128us).
+        assertEquals(127, histogram.getPercentileUs(50));
+        assertEquals(127, histogram.getPercentileUs(98));
+        // 3000us is in [2048us, 4096us).
+        assertEquals(4095, histogram.getPercentileUs(99));
+        assertEquals(200000, histogram.getPercentileUs(100));
+        assertEquals(200000, histogram.getMaxUs());
+    }
+
+    public void testGetPercentileUs_notLargerThanMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(70);
+        assertEquals(70, histogram.getPercentileUs(50));
+    }
+
+    public void testAdd_zeroAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(0);
+        histogram.add(-5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentileUs(100));
+    }
+
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxUs());
+        assertEquals(0, histogram.getPercentileUs(99));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link TunerMetrics}.
+ */
+@SmallTest
+public class TunerMetricsTest extends TestCase {
+    private static final String COUNTER = "test.counter";
+    private static final String GAUGE = "test.gauge";
+    private static final String HISTOGRAM = "test.histogram";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TunerMetrics.reset();
+    }
+
+    public void testGetReturnsSameMetric() {
+        assertSame(TunerMetrics.getCounter(COUNTER), TunerMetrics.getCounter(COUNTER));
+        assertSame(TunerMetrics.getGauge(GAUGE), TunerMetrics.getGauge(GAUGE));
+        assertSame(TunerMetrics.getHistogram(HISTOGRAM), TunerMetrics.getHistogram(HISTOGRAM));
+    }
+
+    public void testRecordAndReset() {
+        TunerMetrics.Counter counter = TunerMetrics.getCounter(COUNTER);
+        counter.increment();
+        counter.add(10);
+        TunerMetrics.getGauge(GAUGE).set(5);
+        TunerMetrics.getHistogram(HISTOGRAM).add(100);
+        assertEquals(11, counter.get());
+        assertEquals(5, TunerMetrics.getGauge(GAUGE).get());
+        assertEquals(1, TunerMetrics.getHistogram(HISTOGRAM).getCount());
+
+        TunerMetrics.reset();
+        assertEquals(0, counter.get());
+        // Gauges hold the current values.
+        assertEquals(5, TunerMetrics.getGauge(GAUGE).get());
+        assertEquals(0, TunerMetrics.getHistogram(HISTOGRAM).getCount());
+        // The metrics looked up before the reset are still registered.
+        counter.increment();
+        assertEquals(1, TunerMetrics.getCounter(COUNTER).get());
+    }
+
+    public void testGaugeAdd() {
+        TunerMetrics.Gauge gauge = TunerMetrics.getGauge(GAUGE);
+        gauge.set(0);
+        gauge.add(10);
+        gauge.add(5);
+        gauge.add(-10);
+        assertEquals(5, gauge.get());
+    }
+
+    public void testDump() {
+        TunerMetrics.getCounter(COUNTER).add(3);
+        TunerMetrics.getGauge(GAUGE).set(7);
+        TunerMetrics.getHistogram(HISTOGRAM).add(100);
+        StringWriter out = new StringWriter();
+        TunerMetrics.dump(new PrintWriter(out));
+        String dump = out.toString();
+        assertTrue(dump, dump.contains(COUNTER + ": 3"));
+        assertTrue(dump, dump.contains(GAUGE + ": 7"));
+        assertTrue(dump, dump.contains(HISTOGRAM + ": count=1"));
+    }
+}
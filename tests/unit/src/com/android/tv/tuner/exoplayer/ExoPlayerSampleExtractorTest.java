@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer;
+
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.test.filters.MediumTest;
+
+import com.android.tv.tuner.exoplayer.buffer.BufferManager;
+
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the fetches of the samples in {@link ExoPlayerSampleExtractor}.
+ */
+@MediumTest
+public class ExoPlayerSampleExtractorTest extends TestCase {
+    private static final int TRACK_COUNT = 2;
+    private static final int SAMPLE_COUNT = 100;
+    private static final long TIMEOUT_MS = 5000;
+    // Long enough that nothing is fetched by the retries while a test runs.
+    private static final long NO_RETRY_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final FakeMediaPeriod mMediaPeriod = new FakeMediaPeriod();
+    private final FakeSampleBuffer mSampleBuffer = new FakeSampleBuffer();
+    private ExoPlayerSampleExtractor mExtractor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExtractor = new ExoPlayerSampleExtractor(new FakeMediaSource(mMediaPeriod),
+                mSampleBuffer, NO_RETRY_INTERVAL_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExtractor.release();
+        super.tearDown();
+    }
+
+    public void testFetchSamples_maxSamplesPerFetch() throws Exception {
+        // The samples are closer than the duration limit allows per fetch.
+        long sampleDurationUs = ExoPlayerSampleExtractor.MAX_DURATION_PER_FETCH_US / SAMPLE_COUNT;
+        for (int track = 0; track < TRACK_COUNT; ++track) {
+            mMediaPeriod.addSamples(track, 0, SAMPLE_COUNT, sampleDurationUs);
+        }
+        mSampleBuffer.expectSamples(SAMPLE_COUNT * TRACK_COUNT);
+
+        prepare();
+
+        assertTrue(mSampleBuffer.awaitSamples());
+        assertFetchedInTurn(ExoPlayerSampleExtractor.MAX_SAMPLES_PER_FETCH);
+    }
+
+    public void testFetchSamples_maxDurationPerFetch() throws Exception {
+        // The sample which reaches the duration limit is the last one of a fetch, and it is
+        // before the sample count limit.
+        int samplesPerFetch = 11;
+        long sampleDurationUs =
+                ExoPlayerSampleExtractor.MAX_DURATION_PER_FETCH_US / (samplesPerFetch - 1);
+        assertTrue(samplesPerFetch < ExoPlayerSampleExtractor.MAX_SAMPLES_PER_FETCH);
+        for (int track = 0; track < TRACK_COUNT; ++track) {
+            mMediaPeriod.addSamples(track, 0, SAMPLE_COUNT, sampleDurationUs);
+        }
+        mSampleBuffer.expectSamples(SAMPLE_COUNT * TRACK_COUNT);
+
+        prepare();
+
+        assertTrue(mSampleBuffer.awaitSamples());
+        assertFetchedInTurn(samplesPerFetch);
+    }
+
+    public void testFetchSamples_wakesUpOnContinueLoadingRequested() throws Exception {
+        prepare();
+        // Nothing is extracted yet, so the source reader waits for the samples.
+        assertTrue(mMediaPeriod.awaitNothingRead());
+        mSampleBuffer.expectSamples(1);
+        mMediaPeriod.addSamples(0, 0, 1, 0);
+        assertFalse(mSampleBuffer.awaitSamples(100));
+
+        mMediaPeriod.requestContinueLoading();
+
+        // Fetched without waiting for the retry.
+        assertTrue(mSampleBuffer.awaitSamples());
+        assertEquals("0:0", mSampleBuffer.getWrittenSamples().get(0));
+    }
+
+    private void prepare() throws Exception {
+        long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (!mExtractor.prepare()) {
+            assertTrue("prepare timed out", SystemClock.elapsedRealtime() < deadlineMs);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Asserts that the tracks are fetched in turn, {@code samplesPerFetch} samples at a time.
+     */
+    private void assertFetchedInTurn(int samplesPerFetch) {
+        List<String> samples = mSampleBuffer.getWrittenSamples();
+        List<String> expected = new ArrayList<>();
+        int[] nextIndices = new int[TRACK_COUNT];
+        while (expected.size() < samples.size()) {
+            for (int track = 0; track < TRACK_COUNT; ++track) {
+                for (int i = 0; i < samplesPerFetch && nextIndices[track] < SAMPLE_COUNT; ++i) {
+                    expected.add(track + ":" + nextIndices[track]++);
+                }
+            }
+        }
+        assertEquals(expected, samples);
+    }
+
+    private static class FakeMediaSource implements MediaSource {
+        private final MediaPeriod mMediaPeriod;
+
+        FakeMediaSource(MediaPeriod mediaPeriod) {
+            mMediaPeriod = mediaPeriod;
+        }
+
+        @Override
+        public void prepareSource(ExoPlayer player, boolean isTopLevelSource,
+                Listener listener) { }
+
+        @Override
+        public void maybeThrowSourceInfoRefreshError() { }
+
+        @Override
+        public MediaPeriod createPeriod(int index, Allocator allocator, long positionUs) {
+            return mMediaPeriod;
+        }
+
+        @Override
+        public void releasePeriod(MediaPeriod mediaPeriod) { }
+
+        @Override
+        public void releaseSource() { }
+    }
+
+    /**
+     * A media period whose samples are added by the tests. The samples of a track are identified
+     * by their indices, which are put in the sample data.
+     */
+    private static class FakeMediaPeriod implements MediaPeriod {
+        private final FakeSampleStream[] mStreams = new FakeSampleStream[TRACK_COUNT];
+        private final CountDownLatch mNothingReadLatch = new CountDownLatch(1);
+        private Callback mCallback;
+        private Handler mHandler;
+
+        FakeMediaPeriod() {
+            for (int i = 0; i < TRACK_COUNT; ++i) {
+                mStreams[i] = new FakeSampleStream();
+            }
+        }
+
+        void addSamples(int track, int fromIndex, int count, long sampleDurationUs) {
+            mStreams[track].addSamples(fromIndex, count, sampleDurationUs);
+        }
+
+        boolean awaitNothingRead() throws InterruptedException {
+            return mNothingReadLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Requests to continue loading on the thread which prepared this, as the loader does.
+         */
+        void requestContinueLoading() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onContinueLoadingRequested(FakeMediaPeriod.this);
+                }
+            });
+        }
+
+        @Override
+        public void prepare(Callback callback) {
+            mCallback = callback;
+            mHandler = new Handler(Looper.myLooper());
+            callback.onPrepared(this);
+        }
+
+        @Override
+        public void maybeThrowPrepareError() { }
+
+        @Override
+        public TrackGroupArray getTrackGroups() {
+            TrackGroup[] groups = new TrackGroup[TRACK_COUNT];
+            for (int i = 0; i < TRACK_COUNT; ++i) {
+                groups[i] = new TrackGroup(Format.createAudioSampleFormat(
+                        Integer.toString(i), MimeTypes.AUDIO_AC3, null, Format.NO_VALUE,
+                        Format.NO_VALUE, 2, 48000, null, null, 0, null));
+            }
+            return new TrackGroupArray(groups);
+        }
+
+        @Override
+        public long selectTracks(TrackSelection[] selections, boolean[] mayRetainStreamFlags,
+                SampleStream[] streams, boolean[] streamResetFlags, long positionUs) {
+            for (int i = 0; i < selections.length; ++i) {
+                streams[i] = mStreams[i];
+                streamResetFlags[i] = true;
+            }
+            return positionUs;
+        }
+
+        @Override
+        public long readDiscontinuity() {
+            return C.TIME_UNSET;
+        }
+
+        @Override
+        public long getBufferedPositionUs() {
+            return C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public long seekToUs(long positionUs) {
+            return positionUs;
+        }
+
+        @Override
+        public long getNextLoadPositionUs() {
+            return C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public boolean continueLoading(long positionUs) {
+            return false;
+        }
+
+        private class FakeSampleStream implements SampleStream {
+            private final Queue<long[]> mSamples = new LinkedList<>();
+
+            synchronized void addSamples(int fromIndex, int count, long sampleDurationUs) {
+                for (int i = fromIndex; i < fromIndex + count; ++i) {
+                    mSamples.add(new long[] {i, i * sampleDurationUs});
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void maybeThrowError() { }
+
+            @Override
+            public synchronized int readData(FormatHolder formatHolder,
+                    DecoderInputBuffer buffer) {
+                long[] sample = mSamples.poll();
+                if (sample == null) {
+                    mNothingReadLatch.countDown();
+                    return C.RESULT_NOTHING_READ;
+                }
+                buffer.ensureSpaceForWrite(4);
+                buffer.data.putInt((int) sample[0]);
+                buffer.timeUs = sample[1];
+                buffer.setFlags(C.BUFFER_FLAG_KEY_FRAME);
+                return C.RESULT_BUFFER_READ;
+            }
+
+            @Override
+            public void skipToKeyframeBefore(long timeUs) { }
+        }
+    }
+
+    /**
+     * A sample buffer which records the written samples as "track:index".
+     */
+    private static class FakeSampleBuffer implements BufferManager.SampleBuffer {
+        private final List<String> mWrittenSamples = new ArrayList<>();
+        private CountDownLatch mSamplesLatch;
+
+        void expectSamples(int count) {
+            mSamplesLatch = new CountDownLatch(count);
+        }
+
+        boolean awaitSamples() throws InterruptedException {
+            return awaitSamples(TIMEOUT_MS);
+        }
+
+        boolean awaitSamples(long timeoutMs) throws InterruptedException {
+            return mSamplesLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized List<String> getWrittenSamples() {
+            return new ArrayList<>(mWrittenSamples);
+        }
+
+        @Override
+        public void init(@NonNull List<String> ids,
+                @NonNull List<com.google.android.exoplayer.MediaFormat> mediaFormats) { }
+
+        @Override
+        public void selectTrack(int index) { }
+
+        @Override
+        public void deselectTrack(int index) { }
+
+        @Override
+        public void writeSample(int index, SampleHolder sample,
+                ConditionVariable conditionVariable) {
+            synchronized (this) {
+                mWrittenSamples.add(index + ":" + sample.data.getInt(0));
+            }
+            mSamplesLatch.countDown();
+        }
+
+        @Override
+        public boolean isWriteSpeedSlow(int sampleSize, long writeDurationNs) {
+            return false;
+        }
+
+        @Override
+        public void handleWriteSpeedSlow() { }
+
+        @Override
+        public void setEos() { }
+
+        @Override
+        public int readSample(int index, SampleHolder outSample) {
+            return com.google.android.exoplayer.SampleSource.NOTHING_READ;
+        }
+
+        @Override
+        public void seekTo(long positionUs) { }
+
+        @Override
+        public long getBufferedPositionUs() {
+            return 0;
+        }
+
+        @Override
+        public boolean continueBuffering(long positionUs) {
+            return false;
+        }
+
+        @Override
+        public void release() { }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.media.MediaCodec;
+import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.tv.tuner.LatencyHistogram;
+import com.android.tv.tuner.TunerMetrics;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link SampleChunkIoHelper}, which play back the samples while they are recorded,
+ * as time-shifting does.
+ */
+@MediumTest
+public class SampleChunkIoHelperTest extends AndroidTestCase {
+    private static final String TAG = "SampleChunkIoHelperTest";
+
+    private static final int VIDEO_INDEX = 0;
+    private static final int AUDIO_INDEX = 1;
+    private static final int SAMPLE_COUNT = 600;
+    private static final int KEY_FRAME_INTERVAL = 15;
+    private static final int VIDEO_SAMPLE_SIZE = 64 * 1024;
+    private static final int AUDIO_SAMPLE_SIZE = 1536;
+    private static final long SAMPLE_DURATION_US = C.MICROS_PER_SECOND / 30;
+    private static final long MAX_BUFFER_SIZE = 16L * 1024 * 1024;
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private final AtomicBoolean mIoError = new AtomicBoolean();
+    private final AtomicInteger mEosCount = new AtomicInteger();
+    private TrickplayStorageManager mStorageManager;
+    private SampleChunkIoHelper mIoHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageManager = new TrickplayStorageManager(getContext(), getContext().getCacheDir(),
+                MAX_BUFFER_SIZE);
+        List<String> ids = Arrays.asList("video", "audio");
+        List<MediaFormat> formats = Arrays.asList(
+                MediaFormat.createFormatForMimeType(
+                        "video", MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US),
+                MediaFormat.createFormatForMimeType(
+                        "audio", MimeTypes.AUDIO_AC3, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US));
+        mIoHelper = new SampleChunkIoHelper(ids, formats,
+                RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK,
+                new BufferManager(mStorageManager), mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {
+                    @Override
+                    public void onIoReachedEos() {
+                        mEosCount.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onIoError() {
+                        mIoError.set(true);
+                    }
+                });
+        mIoHelper.init();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Releases the BufferManager and the storage as well.
+        mIoHelper.release();
+        super.tearDown();
+    }
+
+    public void testReadWhileWriting() throws Exception {
+        mIoHelper.openRead(VIDEO_INDEX, 0);
+        mIoHelper.openRead(AUDIO_INDEX, 0);
+        final AtomicBoolean writeFailed = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                ConditionVariable conditionVariable = new ConditionVariable();
+                try {
+                    for (int i = 0; i < SAMPLE_COUNT; ++i) {
+                        write(VIDEO_INDEX, createSample(i, VIDEO_SAMPLE_SIZE,
+                                i % KEY_FRAME_INTERVAL == 0), conditionVariable);
+                        write(AUDIO_INDEX, createSample(i, AUDIO_SAMPLE_SIZE, true),
+                                conditionVariable);
+                    }
+                } catch (IOException e) {
+                    writeFailed.set(true);
+                }
+                mIoHelper.closeWrite();
+            }
+        };
+        writer.start();
+
+        int[] readCounts = new int[2];
+        long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (readCounts[VIDEO_INDEX] < SAMPLE_COUNT || readCounts[AUDIO_INDEX] < SAMPLE_COUNT) {
+            assertFalse("I/O error", mIoError.get());
+            assertTrue("Timed out", SystemClock.elapsedRealtime() < deadlineMs);
+            boolean read = false;
+            for (int index = 0; index < 2; ++index) {
+                SampleHolder sample = mIoHelper.readSample(index);
+                if (sample == null) {
+                    continue;
+                }
+                read = true;
+                int expectedIndex = readCounts[index]++;
+                assertEquals(expectedIndex * SAMPLE_DURATION_US, sample.timeUs);
+                assertEquals(index == VIDEO_INDEX ? VIDEO_SAMPLE_SIZE : AUDIO_SAMPLE_SIZE,
+                        sample.size);
+                assertEquals((byte) expectedIndex, sample.data.get(0));
+                assertEquals((byte) (expectedIndex + sample.size - 1),
+                        sample.data.get(sample.size - 1));
+                mSamplePool.releaseSample(sample);
+            }
+            if (!read) {
+                SystemClock.sleep(1);
+            }
+        }
+        writer.join();
+        assertFalse(writeFailed.get());
+        assertNull(mIoHelper.readSample(VIDEO_INDEX));
+        assertNull(mIoHelper.readSample(AUDIO_INDEX));
+        // Both read lanes see all the reads finished, but EOS is notified once.
+        while (mEosCount.get() == 0) {
+            assertTrue("Timed out", SystemClock.elapsedRealtime() < deadlineMs);
+            mIoHelper.readSample(VIDEO_INDEX);
+            mIoHelper.readSample(AUDIO_INDEX);
+            SystemClock.sleep(1);
+        }
+        SystemClock.sleep(100);
+        assertEquals(1, mEosCount.get());
+
+        LatencyHistogram readLatency = mIoHelper.getReadLatency();
+        assertEquals(SAMPLE_COUNT * 2, readLatency.getCount());
+        Log.i(TAG, "Read latency while writing: " + readLatency);
+    }
+
+    public void testIndexEntryIsAddedAfterQueuedSamplesAreWritten() throws Exception {
+        final AtomicBoolean readFailed = new AtomicBoolean();
+        final AtomicInteger entryCount = new AtomicInteger();
+        TrickplayStorageManager storageManager = new TrickplayStorageManager(getContext(),
+                getContext().getCacheDir(), MAX_BUFFER_SIZE);
+        BufferManager bufferManager = new BufferManager(storageManager) {
+            private SampleChunk mLastChunk;
+            private int mLastOffset;
+
+            @Override
+            public synchronized SampleChunk createNewWriteFileIfNeeded(String id,
+                    long positionUs, SamplePool samplePool, SampleChunk currentChunk,
+                    int currentOffset) throws IOException {
+                if (currentChunk != null && currentChunk == mLastChunk) {
+                    // Opens a read at the previous entry as soon as the new entry is added, and
+                    // reads up to the new entry, which should be written already.
+                    entryCount.incrementAndGet();
+                    SampleChunk.IoState readState = new SampleChunk.IoState();
+                    readState.openRead(currentChunk, mLastOffset);
+                    while (readState.getOffset() < currentOffset) {
+                        SampleHolder sample = readState.read();
+                        if (sample == null) {
+                            readFailed.set(true);
+                            break;
+                        }
+                        mSamplePool.releaseSample(sample);
+                    }
+                }
+                SampleChunk chunk = super.createNewWriteFileIfNeeded(id, positionUs, samplePool,
+                        currentChunk, currentOffset);
+                mLastChunk = chunk != null ? chunk : currentChunk;
+                mLastOffset = chunk != null ? 0 : currentOffset;
+                return chunk;
+            }
+        };
+        // Recordings keep many index entries in a SampleChunk.
+        SampleChunkIoHelper ioHelper = new SampleChunkIoHelper(
+                Arrays.asList("video"),
+                Arrays.asList(MediaFormat.createFormatForMimeType(
+                        "video", MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US)),
+                RecordingSampleBuffer.BUFFER_REASON_RECORDING, bufferManager, mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {
+                    @Override
+                    public void onIoReachedEos() { }
+
+                    @Override
+                    public void onIoError() {
+                        mIoError.set(true);
+                    }
+                });
+        ioHelper.init();
+        try {
+            // The samples are not blocked, so they are queued and written in batches.
+            ConditionVariable conditionVariable = new ConditionVariable();
+            for (int i = 0; i < SAMPLE_COUNT; ++i) {
+                SampleHolder sample =
+                        createSample(i, AUDIO_SAMPLE_SIZE, i % KEY_FRAME_INTERVAL == 0);
+                ioHelper.writeSample(VIDEO_INDEX, sample, conditionVariable);
+                mSamplePool.releaseSample(sample);
+            }
+            ioHelper.closeWrite();
+            ioHelper.openRead(VIDEO_INDEX, 0);
+            long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            int readCount = 0;
+            while (readCount < SAMPLE_COUNT) {
+                assertFalse("I/O error", mIoError.get());
+                assertTrue("Timed out", SystemClock.elapsedRealtime() < deadlineMs);
+                SampleHolder sample = ioHelper.readSample(VIDEO_INDEX);
+                if (sample == null) {
+                    SystemClock.sleep(1);
+                    continue;
+                }
+                assertEquals(readCount++ * SAMPLE_DURATION_US, sample.timeUs);
+                mSamplePool.releaseSample(sample);
+            }
+            assertTrue(entryCount.get() > 0);
+            assertFalse("An index entry was added before its samples were written",
+                    readFailed.get());
+        } finally {
+            ioHelper.release();
+        }
+    }
+
+    public void testQueueDepthGaugesAreRestoredOnRelease() throws Exception {
+        TunerMetrics.Gauge pendingWriteSamples =
+                TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_PENDING_WRITE_SAMPLES);
+        TunerMetrics.Gauge pendingWriteBytes =
+                TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_PENDING_WRITE_BYTES);
+        TunerMetrics.Gauge readAheadSamples =
+                TunerMetrics.getGauge(TunerMetrics.SAMPLE_IO_READ_AHEAD_SAMPLES);
+        long initialPendingWriteSamples = pendingWriteSamples.get();
+        long initialPendingWriteBytes = pendingWriteBytes.get();
+        long initialReadAheadSamples = readAheadSamples.get();
+        SampleChunkIoHelper ioHelper = new SampleChunkIoHelper(
+                Arrays.asList("video"),
+                Arrays.asList(MediaFormat.createFormatForMimeType(
+                        "video", MimeTypes.VIDEO_H264, MediaFormat.NO_VALUE, C.UNKNOWN_TIME_US)),
+                RecordingSampleBuffer.BUFFER_REASON_LIVE_PLAYBACK,
+                new BufferManager(new TrickplayStorageManager(getContext(),
+                        getContext().getCacheDir(), MAX_BUFFER_SIZE)),
+                mSamplePool,
+                new SampleChunkIoHelper.IoCallback() {
+                    @Override
+                    public void onIoReachedEos() { }
+
+                    @Override
+                    public void onIoError() {
+                        mIoError.set(true);
+                    }
+                });
+        ioHelper.init();
+        try {
+            ConditionVariable conditionVariable = new ConditionVariable();
+            for (int i = 0; i < SAMPLE_COUNT; ++i) {
+                SampleHolder sample =
+                        createSample(i, AUDIO_SAMPLE_SIZE, i % KEY_FRAME_INTERVAL == 0);
+                ioHelper.writeSample(VIDEO_INDEX, sample, conditionVariable);
+                mSamplePool.releaseSample(sample);
+            }
+            ioHelper.openRead(VIDEO_INDEX, 0);
+            // Samples are read ahead, but none of them is taken.
+            long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (readAheadSamples.get() == initialReadAheadSamples) {
+                assertFalse("I/O error", mIoError.get());
+                assertTrue("Timed out", SystemClock.elapsedRealtime() < deadlineMs);
+                SystemClock.sleep(1);
+            }
+        } finally {
+            ioHelper.release();
+        }
+        assertEquals(initialPendingWriteSamples, pendingWriteSamples.get());
+        assertEquals(initialPendingWriteBytes, pendingWriteBytes.get());
+        assertEquals(initialReadAheadSamples, readAheadSamples.get());
+    }
+
+    private void write(int index, SampleHolder sample, ConditionVariable conditionVariable)
+            throws IOException {
+        ByteBuffer data = sample.data;
+        mIoHelper.writeSample(index, sample, conditionVariable);
+        // The buffer is taken over by the SampleChunkIoHelper instead of being copied, and the
+        // sample gets another one from the pool.
+        assertNotSame(data, sample.data);
+        conditionVariable.block();
+        mSamplePool.releaseSample(sample);
+    }
+
+    private SampleHolder createSample(int index, int size, boolean keyFrame) {
+        SampleHolder sample = mSamplePool.acquireSample(size);
+        sample.clearData();
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        sample.timeUs = index * SAMPLE_DURATION_US;
+        return sample;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests for {@link SampleChunk}.
+ */
+@MediumTest
+public class SampleChunkTest extends AndroidTestCase {
+    private static final int SAMPLE_COUNT = 3000;
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024;
+    private static final long SAMPLE_DURATION_US = 33366;
+    private static final int KEY_FRAME_INTERVAL = 15;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "sample_chunk_test.chunk");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRead_mapPerSample() throws IOException {
+        SampleChunk chunk = writeChunk();
+        verifyChunk(chunk, SampleChunk.READ_MODE_MAP_PER_SAMPLE);
+    }
+
+    public void testRead_mappedWindow() throws IOException {
+        SampleChunk chunk = writeChunk();
+        verifyChunk(chunk, SampleChunk.READ_MODE_MAPPED_WINDOW);
+    }
+
+    public void testQueueWrite() throws IOException {
+        SampleChunk chunk = writeChunk(true);
+        verifyChunk(chunk, SampleChunk.READ_MODE_MAPPED_WINDOW);
+    }
+
+    public void testReadKeyFrame() throws IOException {
+        SampleChunk chunk = writeChunk(true);
+        verifyKeyFrames(chunk);
+    }
+
+    public void testReadKeyFrame_loadedChunk() throws IOException {
+        writeChunk(true);
+        // The key frames of a chunk loaded from a file are found by reading the headers.
+        SampleChunk chunk = new SampleChunk.SampleChunkCreator().loadSampleChunkFromFile(
+                mSamplePool, mFile.getParentFile(), mFile.getName(), 0,
+                new SampleChunk.ChunkCallback() {}, null);
+        verifyKeyFrames(chunk);
+    }
+
+    private SampleChunk writeChunk() throws IOException {
+        return writeChunk(false);
+    }
+
+    private SampleChunk writeChunk(boolean queueWrite) throws IOException {
+        SampleChunk chunk = new SampleChunk.SampleChunkCreator().createSampleChunk(mSamplePool,
+                mFile, 0, new SampleChunk.ChunkCallback() {});
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(chunk);
+        Random random = new Random(0);
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            SampleHolder sample = createSample(i, 1 + random.nextInt(MAX_SAMPLE_SIZE));
+            if (queueWrite) {
+                writeState.queueWrite(sample, null);
+            } else {
+                writeState.write(sample, null);
+            }
+        }
+        writeState.closeWrite();
+        return chunk;
+    }
+
+    private void verifyChunk(SampleChunk chunk, @SampleChunk.ReadMode int readMode)
+            throws IOException {
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.setReadMode(readMode);
+        readState.openRead(chunk, 0);
+        Random random = new Random(0);
+        for (int i = 0; i < SAMPLE_COUNT; ++i) {
+            SampleHolder expected = createSample(i, 1 + random.nextInt(MAX_SAMPLE_SIZE));
+            SampleHolder sample = readState.read();
+            assertNotNull(sample);
+            assertEquals(expected.size, sample.size);
+            assertEquals(expected.flags, sample.flags);
+            assertEquals(expected.timeUs, sample.timeUs);
+            expected.data.position(0).limit(expected.size);
+            sample.data.flip();
+            assertEquals(expected.data, sample.data);
+            mSamplePool.releaseSample(sample);
+        }
+        assertNull(readState.read());
+        assertTrue(readState.isReadFinished());
+    }
+
+    private void verifyKeyFrames(SampleChunk chunk) throws IOException {
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(chunk, 0);
+        for (int i = 0; i < SAMPLE_COUNT; i += KEY_FRAME_INTERVAL) {
+            SampleHolder sample = readState.readKeyFrame();
+            assertNotNull(sample);
+            assertEquals(i * SAMPLE_DURATION_US, sample.timeUs);
+            mSamplePool.releaseSample(sample);
+        }
+        assertNull(readState.readKeyFrame());
+        assertTrue(readState.isReadFinished());
+    }
+
+    private static SampleHolder createSample(int index, int size) {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(size);
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.flags = index % KEY_FRAME_INTERVAL == 0
+                ? android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        sample.timeUs = index * SAMPLE_DURATION_US;
+        return sample;
+    }
+}
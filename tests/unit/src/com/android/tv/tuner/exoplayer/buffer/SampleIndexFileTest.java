@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link SampleIndexFile}.
+ */
+@SmallTest
+public class SampleIndexFileTest extends AndroidTestCase {
+    private static final int ENTRY_COUNT = 1000;
+    private static final long SEEK_DURATION_US = 1000000;
+    private static final int ENTRIES_PER_CHUNK = 10;
+    private static final int OFFSET_STEP = 4096;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "sample_index_file_test"
+                + SampleIndexFile.FILE_SUFFIX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testReadEntries() throws IOException {
+        writeEntries(ENTRY_COUNT);
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        assertEquals(ENTRY_COUNT, reader.size());
+        for (int i = 0; i < ENTRY_COUNT; ++i) {
+            assertEquals(getPositionUs(i), reader.getPositionUs(i));
+            assertEquals(getBasePositionUs(i), reader.getBasePositionUs(i));
+            assertEquals(getOffset(i), reader.getOffset(i));
+        }
+    }
+
+    public void testFloorIndex() throws IOException {
+        writeEntries(ENTRY_COUNT);
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        assertEquals(-1, reader.floorIndex(-1));
+        assertEquals(0, reader.floorIndex(0));
+        assertEquals(0, reader.floorIndex(SEEK_DURATION_US - 1));
+        assertEquals(1, reader.floorIndex(SEEK_DURATION_US));
+        assertEquals(500, reader.floorIndex(getPositionUs(500) + SEEK_DURATION_US / 2));
+        assertEquals(ENTRY_COUNT - 1, reader.floorIndex(Long.MAX_VALUE));
+    }
+
+    public void testFloorIndex_empty() throws IOException {
+        writeEntries(0);
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        assertEquals(0, reader.size());
+        assertEquals(-1, reader.floorIndex(0));
+    }
+
+    public void testOpen_partialRecord() throws IOException {
+        writeEntries(ENTRY_COUNT);
+        // Emulates a recording which is stopped while an entry is being written.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 7);
+        }
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        assertEquals(ENTRY_COUNT - 1, reader.size());
+        assertEquals(getPositionUs(ENTRY_COUNT - 2), reader.getPositionUs(ENTRY_COUNT - 2));
+    }
+
+    public void testOpen_withoutClose() throws IOException {
+        SampleIndexFile.Writer writer = new SampleIndexFile.Writer(mFile);
+        for (int i = 0; i < ENTRY_COUNT; ++i) {
+            writer.append(getPositionUs(i), getBasePositionUs(i), getOffset(i));
+        }
+        // Entries are readable before the writer is closed.
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        assertEquals(ENTRY_COUNT, reader.size());
+        writer.close();
+    }
+
+    public void testOpen_invalidFile() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[64]);
+        }
+        try {
+            SampleIndexFile.Reader.open(mFile);
+            fail("IOException is expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testTruncate() throws IOException {
+        writeEntries(ENTRY_COUNT);
+        SampleIndexFile.Reader reader = SampleIndexFile.Reader.open(mFile);
+        reader.truncate(100);
+        assertEquals(100, reader.size());
+        assertEquals(99, reader.floorIndex(Long.MAX_VALUE));
+        try {
+            reader.getPositionUs(100);
+            fail("IndexOutOfBoundsException is expected");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    private void writeEntries(int count) throws IOException {
+        try (SampleIndexFile.Writer writer = new SampleIndexFile.Writer(mFile)) {
+            for (int i = 0; i < count; ++i) {
+                writer.append(getPositionUs(i), getBasePositionUs(i), getOffset(i));
+            }
+            assertEquals(count, writer.getCount());
+        }
+    }
+
+    private static long getPositionUs(int i) {
+        return i * SEEK_DURATION_US;
+    }
+
+    private static long getBasePositionUs(int i) {
+        return getPositionUs(i - i % ENTRIES_PER_CHUNK);
+    }
+
+    private static int getOffset(int i) {
+        return (i % ENTRIES_PER_CHUNK) * OFFSET_STEP;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link SamplePool}.
+ */
+@SmallTest
+public class SamplePoolTest extends TestCase {
+    private static final int THREAD_COUNT = 4;
+    private static final int ITERATION_COUNT = 20000;
+    private static final int MAX_SAMPLE_SIZE = 256 * 1024;
+
+    public void testAcquireSample_roundsUpToSizeClass() {
+        SamplePool pool = new SamplePool();
+        assertEquals(256, pool.acquireSample(1).data.capacity());
+        assertEquals(256, pool.acquireSample(256).data.capacity());
+        assertEquals(512, pool.acquireSample(257).data.capacity());
+        assertEquals(64 * 1024, pool.acquireSample(40000).data.capacity());
+        assertEquals(4, pool.getMissCount());
+    }
+
+    public void testAcquireSample_hit() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(3000);
+        pool.releaseSample(sample);
+        assertEquals(4096, pool.getRetainedBytes());
+        assertSame(sample, pool.acquireSample(2049));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getBorrowCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testAcquireSample_largerClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(3000);
+        pool.releaseSample(sample);
+        // A sample of a larger class serves a smaller request without allocation.
+        assertSame(sample, pool.acquireSample(1000));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getBorrowCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testAcquireSample_muchLargerClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(64 * 1024);
+        pool.releaseSample(sample);
+        // A sample of more than four times the requested size is not borrowed.
+        SampleHolder smaller = pool.acquireSample(1000);
+        assertNotSame(sample, smaller);
+        assertEquals(1024, smaller.data.capacity());
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(64 * 1024, pool.getRetainedBytes());
+    }
+
+    public void testAcquireSample_smallerClass() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(1000);
+        pool.releaseSample(sample);
+        // A sample of a smaller class is left in the pool.
+        SampleHolder larger = pool.acquireSample(100000);
+        assertNotSame(sample, larger);
+        assertEquals(128 * 1024, larger.data.capacity());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(1024, pool.getRetainedBytes());
+    }
+
+    public void testAcquireSample_directBuffer() {
+        SamplePool pool = new SamplePool(true, SamplePool.DEFAULT_MAX_RETAINED_BYTES);
+        assertTrue(pool.acquireSample(1000).data.isDirect());
+        assertFalse(new SamplePool().acquireSample(1000).data.isDirect());
+    }
+
+    public void testAcquireSample_tooLarge() {
+        SamplePool pool = new SamplePool();
+        int size = 9 * 1024 * 1024;
+        SampleHolder sample = pool.acquireSample(size);
+        assertEquals(size, sample.data.capacity());
+        pool.releaseSample(sample);
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(1, pool.getDropCount());
+    }
+
+    public void testReleaseSample_retainedBytesBounded() {
+        SamplePool pool = new SamplePool(false, 10 * 1024);
+        List<SampleHolder> samples = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            samples.add(pool.acquireSample(4096));
+        }
+        for (SampleHolder sample : samples) {
+            pool.releaseSample(sample);
+        }
+        assertEquals(8 * 1024, pool.getRetainedBytes());
+        assertEquals(3, pool.getDropCount());
+    }
+
+    public void testReleaseSample_grownBuffer() {
+        SamplePool pool = new SamplePool();
+        SampleHolder sample = pool.acquireSample(1000);
+        sample.clearData();
+        sample.ensureSpaceForWrite(5000);
+        pool.releaseSample(sample);
+        // The sample can serve up to 4KB.
+        assertSame(sample, pool.acquireSample(4096));
+    }
+
+    public void testConcurrentAccess() throws InterruptedException {
+        final SamplePool pool = new SamplePool();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReference<AssertionError> error = new AtomicReference<>();
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; ++t) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        List<SampleHolder> held = new ArrayList<>();
+                        for (int i = 0; i < ITERATION_COUNT; ++i) {
+                            int size = 1 + random.nextInt(MAX_SAMPLE_SIZE);
+                            SampleHolder sample = pool.acquireSample(size);
+                            assertTrue(sample.data.capacity() >= size);
+                            assertTrue(sample.data.position() == 0);
+                            held.add(sample);
+                            if (held.size() > 8 || random.nextBoolean()) {
+                                pool.releaseSample(held.remove(random.nextInt(held.size())));
+                            }
+                        }
+                        for (SampleHolder sample : held) {
+                            pool.releaseSample(sample);
+                        }
+                    } catch (AssertionError e) {
+                        error.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        assertEquals(THREAD_COUNT * ITERATION_COUNT,
+                pool.getHitCount() + pool.getMissCount());
+        assertTrue(pool.getRetainedBytes() <= SamplePool.DEFAULT_MAX_RETAINED_BYTES);
+    }
+}
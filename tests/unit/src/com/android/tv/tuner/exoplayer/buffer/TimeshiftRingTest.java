@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import com.google.android.exoplayer.SampleHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Tests for {@link TimeshiftRing}.
+ */
+@SmallTest
+public class TimeshiftRingTest extends AndroidTestCase {
+    private static final long CAPACITY = 1024 * 1024;
+    private static final int SAMPLE_COUNT = 200;
+    private static final int MAX_SAMPLE_SIZE = 8 * 1024;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private File mFile;
+    private TimeshiftRing mRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "timeshift_ring_test");
+        mRing = TimeshiftRing.create(mFile, CAPACITY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRing.close();
+        super.tearDown();
+    }
+
+    public void testCreate_preallocates() {
+        assertEquals(CAPACITY, mFile.length());
+        assertEquals(0, mRing.getUsedBytes());
+    }
+
+    public void testAllocate_mergesContiguousExtents() throws IOException {
+        TimeshiftRing.Allocation allocation = mRing.newAllocation();
+        assertEquals(0, allocation.allocate(0, 100));
+        assertEquals(100, allocation.allocate(100, 50));
+        assertEquals(150, allocation.getContiguousLength(0));
+        assertEquals(120, allocation.getFileOffset(120));
+    }
+
+    public void testAllocate_interleaved() throws IOException {
+        TimeshiftRing.Allocation first = mRing.newAllocation();
+        TimeshiftRing.Allocation second = mRing.newAllocation();
+        first.allocate(0, 100);
+        second.allocate(0, 100);
+        first.allocate(100, 100);
+        assertEquals(100, first.getContiguousLength(0));
+        assertEquals(250, first.getFileOffset(150));
+        assertEquals(300, mRing.getUsedBytes());
+    }
+
+    public void testAllocate_wrongRange() throws IOException {
+        TimeshiftRing.Allocation allocation = mRing.newAllocation();
+        allocation.allocate(0, 100);
+        try {
+            allocation.allocate(50, 100);
+            fail("IllegalStateException is expected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    public void testRelease_returnsSpaceOutOfOrder() throws IOException {
+        TimeshiftRing.Allocation first = mRing.newAllocation();
+        TimeshiftRing.Allocation second = mRing.newAllocation();
+        first.allocate(0, 1000);
+        second.allocate(0, 1000);
+        // The space of the second allocation is returned while the first one is still used.
+        second.release();
+        assertEquals(1000, mRing.getUsedBytes());
+        first.release();
+        assertEquals(0, mRing.getUsedBytes());
+    }
+
+    public void testAllocate_reusesReleasedGaps() throws IOException {
+        TimeshiftRing.Allocation first = mRing.newAllocation();
+        TimeshiftRing.Allocation second = mRing.newAllocation();
+        TimeshiftRing.Allocation third = mRing.newAllocation();
+        first.allocate(0, CAPACITY / 4);
+        second.allocate(0, CAPACITY / 2);
+        third.allocate(0, CAPACITY / 4);
+        second.release();
+        // The gap which is left by the second allocation is used, although the first allocation
+        // is still used.
+        assertEquals(CAPACITY / 4, mRing.newAllocation().allocate(0, CAPACITY / 2));
+    }
+
+    public void testAllocate_slowTrackInterleavedWithFastTrack() throws IOException {
+        // A slow track, e.g. a text track, keeps a chunk for a long time while the chunks of a
+        // fast track are created and released many times around the ring.
+        final int fastChunkLength = 64 * 1024;
+        final int fastSampleLength = 4 * 1024;
+        final int slowSampleLength = 16;
+        BitSet used = new BitSet((int) CAPACITY);
+        TimeshiftRing.Allocation slow = mRing.newAllocation();
+        long slowLength = 0;
+        ArrayDeque<TimeshiftRing.Allocation> fastChunks = new ArrayDeque<>();
+        ArrayDeque<long[]> fastFileOffsets = new ArrayDeque<>();
+        long written = 0;
+        while (written < 8 * CAPACITY) {
+            TimeshiftRing.Allocation fast = mRing.newAllocation();
+            long[] fileOffsets = new long[fastChunkLength / fastSampleLength];
+            for (int i = 0; i < fileOffsets.length; ++i) {
+                fileOffsets[i] = fast.allocate(i * fastSampleLength, fastSampleLength);
+                markUsed(used, fileOffsets[i], fastSampleLength);
+                long slowFileOffset = slow.allocate(slowLength, slowSampleLength);
+                markUsed(used, slowFileOffset, slowSampleLength);
+                assertEquals(slowFileOffset, slow.getFileOffset(slowLength));
+                slowLength += slowSampleLength;
+                written += fastSampleLength + slowSampleLength;
+            }
+            fastChunks.add(fast);
+            fastFileOffsets.add(fileOffsets);
+            // Keeps about a half of the ring for the fast track.
+            if (fastChunks.size() * fastChunkLength > CAPACITY / 2) {
+                fastChunks.poll().release();
+                for (long fileOffset : fastFileOffsets.poll()) {
+                    used.clear((int) fileOffset, (int) fileOffset + fastSampleLength);
+                }
+            }
+        }
+        assertEquals(used.cardinality(), mRing.getUsedBytes());
+    }
+
+    public void testAllocate_wrapsAround() throws IOException {
+        TimeshiftRing.Allocation first = mRing.newAllocation();
+        first.allocate(0, CAPACITY - 100);
+        first.release();
+        TimeshiftRing.Allocation second = mRing.newAllocation();
+        // The space at the end of the file is too short, so it is skipped.
+        assertEquals(0, second.allocate(0, 200));
+        assertEquals(200, second.allocate(200, 200));
+        assertEquals(400, second.getContiguousLength(0));
+    }
+
+    public void testAllocate_full() throws IOException {
+        TimeshiftRing.Allocation first = mRing.newAllocation();
+        first.allocate(0, CAPACITY / 2);
+        TimeshiftRing.Allocation second = mRing.newAllocation();
+        second.allocate(0, CAPACITY / 2);
+        try {
+            mRing.newAllocation().allocate(0, 1);
+            fail("IOException is expected");
+        } catch (IOException expected) {
+        }
+        first.release();
+        assertEquals(0, mRing.newAllocation().allocate(0, 1));
+    }
+
+    public void testSampleChunk_readAfterWrapAround() throws IOException {
+        SampleChunk.SampleChunkCreator creator = mRing.getSampleChunkCreator();
+        SampleChunk.ChunkCallback callback = new SampleChunk.ChunkCallback() {};
+        Random random = new Random(0);
+        // Writes chunks which wrap around the ring several times, while two tracks are written
+        // at the same time.
+        for (int round = 0; round < 8; ++round) {
+            SampleChunk audio = creator.createSampleChunk(mSamplePool, null, round, callback);
+            SampleChunk video = creator.createSampleChunk(mSamplePool, null, round, callback);
+            SampleChunk.IoState audioState = new SampleChunk.IoState();
+            SampleChunk.IoState videoState = new SampleChunk.IoState();
+            audioState.openWrite(audio);
+            videoState.openWrite(video);
+            long seed = random.nextLong();
+            Random sampleRandom = new Random(seed);
+            for (int i = 0; i < SAMPLE_COUNT; ++i) {
+                SampleChunk.IoState state = i % 2 == 0 ? audioState : videoState;
+                state.queueWrite(createSample(i, 1 + sampleRandom.nextInt(MAX_SAMPLE_SIZE)),
+                        null);
+                if (i % 7 == 0) {
+                    state.flushWrite();
+                }
+            }
+            audioState.closeWrite();
+            videoState.closeWrite();
+
+            sampleRandom = new Random(seed);
+            SampleChunk.IoState audioReadState = new SampleChunk.IoState();
+            SampleChunk.IoState videoReadState = new SampleChunk.IoState();
+            audioReadState.setReadMode(SampleChunk.READ_MODE_MAPPED_WINDOW);
+            audioReadState.openRead(audio, 0);
+            videoReadState.openRead(video, 0);
+            for (int i = 0; i < SAMPLE_COUNT; ++i) {
+                SampleChunk.IoState state = i % 2 == 0 ? audioReadState : videoReadState;
+                SampleHolder expected = createSample(i, 1 + sampleRandom.nextInt(MAX_SAMPLE_SIZE));
+                SampleHolder sample = state.read();
+                assertNotNull(sample);
+                assertEquals(expected.size, sample.size);
+                assertEquals(expected.timeUs, sample.timeUs);
+                expected.data.position(0).limit(expected.size);
+                sample.data.flip();
+                assertEquals(expected.data, sample.data);
+                mSamplePool.releaseSample(sample);
+            }
+            assertNull(audioReadState.read());
+            assertNull(videoReadState.read());
+            SampleChunk.IoState.release(audio, true);
+            SampleChunk.IoState.release(video, true);
+            assertEquals(0, mRing.getUsedBytes());
+        }
+        assertEquals(CAPACITY, mFile.length());
+    }
+
+    public void testSampleChunk_readerSkipsReclaimedChunk() throws IOException {
+        SampleChunk.SampleChunkCreator creator = mRing.getSampleChunkCreator();
+        SampleChunk.ChunkCallback callback = new SampleChunk.ChunkCallback() {};
+        SampleChunk first = creator.createSampleChunk(mSamplePool, null, 0, callback);
+        SampleChunk second = creator.createSampleChunk(mSamplePool, null, 2, callback);
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(first);
+        writeState.queueWrite(createSample(0, 100), null);
+        writeState.queueWrite(createSample(1, 100), null);
+        writeState.queueWrite(createSample(2, 100), second);
+        writeState.flushWrite();
+
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(first, 0);
+        SampleHolder sample = readState.read();
+        assertEquals(0, sample.timeUs);
+        mSamplePool.releaseSample(sample);
+        // The chunk which is being written can't be reclaimed.
+        assertFalse(second.isReclaimable());
+        assertTrue(first.isReclaimable());
+        first.reclaim();
+        assertFalse(first.isReclaimable());
+        assertEquals(116, mRing.getUsedBytes());
+
+        // The rest of the reclaimed chunk is skipped.
+        sample = readState.read();
+        assertEquals(2, sample.timeUs);
+        mSamplePool.releaseSample(sample);
+        assertNull(readState.read());
+        writeState.closeWrite();
+        SampleChunk.IoState.release(first, true);
+        SampleChunk.IoState.release(second, true);
+        assertEquals(0, mRing.getUsedBytes());
+    }
+
+    private static void markUsed(BitSet used, long fileOffset, int length) {
+        assertTrue(fileOffset >= 0 && fileOffset + length <= CAPACITY);
+        int overlap = used.get((int) fileOffset, (int) fileOffset + length).nextSetBit(0);
+        assertEquals("Allocated space overlaps with used space", -1, overlap);
+        used.set((int) fileOffset, (int) fileOffset + length);
+    }
+
+    private static SampleHolder createSample(int index, int size) {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(size);
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.flags = index % 2;
+        sample.timeUs = index;
+        return sample;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.os.SystemClock;
+import android.support.test.filters.MediumTest;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link FileTsStreamer.StreamProvider}.
+ */
+@MediumTest
+public class FileTsStreamerTest extends AndroidTestCase {
+    private static final String TAG = "FileTsStreamerTest";
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int READ_BUFFER_SIZE = TS_PACKET_SIZE * 100;
+    private static final int CIRCULAR_BUFFER_SIZE = READ_BUFFER_SIZE * 400;
+    private static final int PACKET_COUNT = 50000;
+    private static final int VIDEO_PID = 0x31;
+    private static final int AUDIO_PID = 0x34;
+    private static final int OTHER_PID = 0x40;
+    private static final int TIMEOUT_MS = 100;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "file_ts_streamer_test.ts");
+        writeTsFile(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRead_filtersPackets() {
+        FileTsStreamer.StreamProvider provider = createStreamProvider();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        int readSize = provider.read(buffer, TIMEOUT_MS);
+        assertTrue(readSize > 0);
+        assertEquals(readSize, buffer.position());
+        assertEquals(0, readSize % TS_PACKET_SIZE);
+        for (int i = 0; i < readSize; i += TS_PACKET_SIZE) {
+            int pid = getPid(buffer.array(), i);
+            assertTrue(pid == VIDEO_PID || pid == AUDIO_PID);
+        }
+    }
+
+    public void testRead_directBuffer() {
+        FileTsStreamer.StreamProvider provider = createStreamProvider();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        int readSize = provider.read(buffer, TIMEOUT_MS);
+        assertTrue(readSize > 0);
+        assertEquals(readSize, buffer.position());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            assertEquals(0x47, buffer.get() & 0xff);
+            buffer.position(buffer.position() + TS_PACKET_SIZE - 1);
+        }
+    }
+
+    public void testRead_smallBuffer() {
+        FileTsStreamer.StreamProvider provider = createStreamProvider();
+        ByteBuffer buffer = ByteBuffer.allocate(TS_PACKET_SIZE * 2 + 10);
+        int readSize = provider.read(buffer, TIMEOUT_MS);
+        assertTrue(readSize > 0 && readSize <= TS_PACKET_SIZE * 2);
+    }
+
+    /**
+     * Compares reading into an intermediate array which is copied to the circular buffer with
+     * reading straight into a slot of the circular buffer.
+     */
+    public void testCopyBenchmark() {
+        long copyNs = replay(false);
+        long inPlaceNs = replay(true);
+        Log.i(TAG, "Read " + PACKET_COUNT + " packets: with copy " + copyNs / 1000 + "us, "
+                + "in place " + inPlaceNs / 1000 + "us");
+    }
+
+    private long replay(boolean inPlace) {
+        FileTsStreamer.StreamProvider provider = createStreamProvider();
+        TsRingBuffer ringBuffer = new TsRingBuffer(CIRCULAR_BUFFER_SIZE, READ_BUFFER_SIZE);
+        ringBuffer.open();
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long totalBytes = (long) PACKET_COUNT * TS_PACKET_SIZE * 2 / 3;
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        while (ringBuffer.getWritePosition() < totalBytes) {
+            if (inPlace) {
+                int readSize = provider.read(ringBuffer.getWriteSlot(), TIMEOUT_MS);
+                assertTrue(readSize >= 0);
+                ringBuffer.commitWrite(readSize);
+            } else {
+                readBuffer.clear();
+                int readSize = provider.read(readBuffer, TIMEOUT_MS);
+                assertTrue(readSize >= 0);
+                ringBuffer.write(readBuffer.array(), 0, readSize);
+            }
+        }
+        return SystemClock.elapsedRealtimeNanos() - startNs;
+    }
+
+    private FileTsStreamer.StreamProvider createStreamProvider() {
+        FileTsStreamer.StreamProvider provider =
+                new FileTsStreamer.StreamProvider(mFile.getAbsolutePath());
+        provider.addPidFilter(VIDEO_PID);
+        provider.addPidFilter(AUDIO_PID);
+        return provider;
+    }
+
+    private static int getPid(byte[] data, int offset) {
+        return ((data[offset + 1] & 0x1f) << 8) + (data[offset + 2] & 0xff);
+    }
+
+    private static void writeTsFile(File file) throws IOException {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < PACKET_COUNT; ++i) {
+                int pid = i % 3 == 0 ? VIDEO_PID : i % 3 == 1 ? AUDIO_PID : OTHER_PID;
+                packet[0] = 0x47;
+                packet[1] = (byte) ((pid >> 8) & 0x1f);
+                packet[2] = (byte) (pid & 0xff);
+                packet[3] = (byte) (0x10 | (i & 0x0f));
+                for (int j = 4; j < TS_PACKET_SIZE; ++j) {
+                    packet[j] = (byte) (i + j);
+                }
+                out.write(packet);
+            }
+        }
+    }
+}
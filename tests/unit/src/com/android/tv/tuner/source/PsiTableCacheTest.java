@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PsiTableCollector} and {@link PsiTableCache}.
+ */
+@SmallTest
+public class PsiTableCacheTest extends AndroidTestCase {
+    private static final int TS_PACKET_SIZE = PsiTableCollector.TS_PACKET_SIZE;
+    private static final int FREQUENCY = 473000000;
+    private static final int PROGRAM_NUMBER = 3;
+    private static final int PMT_PID = 0x30;
+    private static final int VIDEO_PID = 0x31;
+    private static final int STREAM_TYPE_MPEG2_VIDEO = 0x02;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "PsiTableCacheTest");
+        deleteCacheDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteCacheDir();
+        super.tearDown();
+    }
+
+    public void testCollect() {
+        PsiTableCollector collector = new PsiTableCollector(PROGRAM_NUMBER);
+        byte[] pmt = createPmtPacket(PROGRAM_NUMBER, 7);
+        // A PMT before the PAT is not collected, since its PID is not known yet.
+        assertFalse(collector.feed(pmt, 0));
+        assertFalse(collector.feed(createPatPacket(5), 0));
+        assertFalse(collector.feed(createPmtPacket(PROGRAM_NUMBER + 1, 8), 0));
+        assertTrue(collector.feed(pmt, 0));
+
+        byte[] packets = collector.getPackets();
+        assertEquals(TS_PACKET_SIZE * 2, packets.length);
+        assertEquals(0, packets[1] & 0x1f);
+        assertEquals(PMT_PID, packets[TS_PACKET_SIZE + 2] & 0xff);
+        // The continuity counters are cleared.
+        assertEquals(0, packets[3] & 0x0f);
+        assertEquals(0, packets[TS_PACKET_SIZE + 3] & 0x0f);
+    }
+
+    public void testCollect_sameTables() {
+        PsiTableCollector collector = new PsiTableCollector(PROGRAM_NUMBER);
+        collector.feed(createPatPacket(1), 0);
+        collector.feed(createPmtPacket(PROGRAM_NUMBER, 2), 0);
+        PsiTableCollector otherCollector = new PsiTableCollector(PROGRAM_NUMBER);
+        otherCollector.feed(createPatPacket(9), 0);
+        otherCollector.feed(createPmtPacket(PROGRAM_NUMBER, 10), 0);
+        assertTrue(Arrays.equals(collector.getPackets(), otherCollector.getPackets()));
+    }
+
+    public void testHasSameStreams() {
+        byte[] packets = collect(PMT_PID, 0, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID);
+        assertTrue(PsiTableCollector.hasSameStreams(packets,
+                collect(PMT_PID, 0, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID)));
+        // The version number doesn't matter.
+        assertTrue(PsiTableCollector.hasSameStreams(packets,
+                collect(PMT_PID, 1, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID)));
+        assertFalse(PsiTableCollector.hasSameStreams(packets,
+                collect(PMT_PID + 0x10, 0, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID)));
+        assertFalse(PsiTableCollector.hasSameStreams(packets,
+                collect(PMT_PID, 0, STREAM_TYPE_H264, VIDEO_PID)));
+        assertFalse(PsiTableCollector.hasSameStreams(packets,
+                collect(PMT_PID, 0, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID + 1)));
+        assertFalse(PsiTableCollector.hasSameStreams(packets, null));
+    }
+
+    public void testPutAndGet() {
+        PsiTableCache cache = new PsiTableCache(mCacheDir);
+        assertNull(cache.get(FREQUENCY, PROGRAM_NUMBER));
+        byte[] packets = collect();
+        cache.put(FREQUENCY, PROGRAM_NUMBER, packets);
+        assertTrue(Arrays.equals(packets, cache.get(FREQUENCY, PROGRAM_NUMBER)));
+        assertNull(cache.get(FREQUENCY, PROGRAM_NUMBER + 1));
+
+        // A new instance reads the entry from the disk.
+        PsiTableCache newCache = new PsiTableCache(mCacheDir);
+        assertTrue(Arrays.equals(packets, newCache.get(FREQUENCY, PROGRAM_NUMBER)));
+        assertNull(newCache.get(FREQUENCY + 1, PROGRAM_NUMBER));
+    }
+
+    private byte[] collect() {
+        return collect(PMT_PID, 0, STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID);
+    }
+
+    private byte[] collect(int pmtPid, int version, int streamType, int videoPid) {
+        PsiTableCollector collector = new PsiTableCollector(PROGRAM_NUMBER);
+        collector.feed(createPatPacket(0, pmtPid), 0);
+        collector.feed(createPmtPacket(PROGRAM_NUMBER, 0, pmtPid, version, streamType, videoPid),
+                0);
+        return collector.getPackets();
+    }
+
+    private static byte[] createPatPacket(int continuityCounter) {
+        return createPatPacket(continuityCounter, PMT_PID);
+    }
+
+    private static byte[] createPatPacket(int continuityCounter, int pmtPid) {
+        byte[] section = {
+            0x00, // table_id
+            (byte) 0xb0, 0x11, // section_length = 17
+            0x00, 0x01, // transport_stream_id
+            (byte) 0xc1, 0x00, 0x00,
+            0x00, 0x01, (byte) 0xe0, 0x20, // program 1 -> PID 0x20
+            0x00, PROGRAM_NUMBER, (byte) 0xe0, (byte) pmtPid,
+            0x00, 0x00, 0x00, 0x00 // CRC, which is not checked
+        };
+        return createPacket(0, continuityCounter, section);
+    }
+
+    private static byte[] createPmtPacket(int programNumber, int continuityCounter) {
+        return createPmtPacket(programNumber, continuityCounter, PMT_PID, 0,
+                STREAM_TYPE_MPEG2_VIDEO, VIDEO_PID);
+    }
+
+    private static byte[] createPmtPacket(int programNumber, int continuityCounter, int pmtPid,
+            int version, int streamType, int videoPid) {
+        byte[] section = {
+            0x02, // table_id
+            (byte) 0xb0, 0x12, // section_length = 18
+            0x00, (byte) programNumber,
+            (byte) (0xc1 | (version << 1)), 0x00, 0x00,
+            (byte) 0xe0, (byte) videoPid, // PCR_PID
+            (byte) 0xf0, 0x00, // program_info_length
+            (byte) streamType, (byte) 0xe0, (byte) videoPid, (byte) 0xf0, 0x00,
+            0x00, 0x00, 0x00, 0x00 // CRC, which is not checked
+        };
+        return createPacket(pmtPid, continuityCounter, section);
+    }
+
+    private static byte[] createPacket(int pid, int continuityCounter, byte[] section) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        packet[1] = (byte) (0x40 | (pid >> 8));
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | continuityCounter);
+        packet[4] = 0; // pointer_field
+        System.arraycopy(section, 0, packet, 5, section.length);
+        return packet;
+    }
+
+    private void deleteCacheDir() {
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDir.delete();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RandomAccessPointFinder}.
+ */
+@SmallTest
+public class RandomAccessPointFinderTest extends TestCase {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int PAT_PID = 0;
+    private static final int VIDEO_PID = 0x31;
+    private static final int AUDIO_PID = 0x34;
+
+    public void testFind() {
+        RandomAccessPointFinder finder = new RandomAccessPointFinder(VIDEO_PID);
+        assertEquals(-1, finder.getRandomAccessPosition());
+        finder.feed(createPacket(PAT_PID, true, false), 0, 0);
+        finder.feed(createPacket(AUDIO_PID, true, false), 0, TS_PACKET_SIZE);
+        assertEquals(-1, finder.getRandomAccessPosition());
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, TS_PACKET_SIZE * 2);
+        assertEquals(0, finder.getRandomAccessPosition());
+    }
+
+    public void testFind_noPatBeforeRandomAccessIndicator() {
+        RandomAccessPointFinder finder = new RandomAccessPointFinder(VIDEO_PID);
+        // The key frame is not a random access point, since no PAT precedes it.
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, 0);
+        assertEquals(-1, finder.getRandomAccessPosition());
+        finder.feed(createPacket(PAT_PID, true, false), 0, TS_PACKET_SIZE);
+        // Neither is a video packet which is not a key frame.
+        finder.feed(createPacket(VIDEO_PID, true, false), 0, TS_PACKET_SIZE * 2);
+        assertEquals(-1, finder.getRandomAccessPosition());
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, TS_PACKET_SIZE * 3);
+        assertEquals(TS_PACKET_SIZE, finder.getRandomAccessPosition());
+    }
+
+    public void testFind_lastPat() {
+        RandomAccessPointFinder finder = new RandomAccessPointFinder(VIDEO_PID);
+        finder.feed(createPacket(PAT_PID, true, false), 0, 0);
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, TS_PACKET_SIZE);
+        finder.feed(createPacket(PAT_PID, true, false), 0, TS_PACKET_SIZE * 2);
+        // The random access point doesn't move until the next key frame.
+        assertEquals(0, finder.getRandomAccessPosition());
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, TS_PACKET_SIZE * 3);
+        assertEquals(TS_PACKET_SIZE * 2, finder.getRandomAccessPosition());
+    }
+
+    public void testFind_ignoresPacketsWithoutPayloadUnitStart() {
+        RandomAccessPointFinder finder = new RandomAccessPointFinder(VIDEO_PID);
+        finder.feed(createPacket(PAT_PID, false, false), 0, 0);
+        finder.feed(createPacket(VIDEO_PID, true, true), 0, TS_PACKET_SIZE);
+        assertEquals(-1, finder.getRandomAccessPosition());
+        finder.feed(createPacket(PAT_PID, true, false), 0, TS_PACKET_SIZE * 2);
+        finder.feed(createPacket(VIDEO_PID, false, true), 0, TS_PACKET_SIZE * 3);
+        assertEquals(-1, finder.getRandomAccessPosition());
+    }
+
+    public void testFind_otherPidWithRandomAccessIndicator() {
+        RandomAccessPointFinder finder = new RandomAccessPointFinder(VIDEO_PID);
+        finder.feed(createPacket(PAT_PID, true, false), 0, 0);
+        finder.feed(createPacket(AUDIO_PID, true, true), 0, TS_PACKET_SIZE);
+        assertEquals(-1, finder.getRandomAccessPosition());
+    }
+
+    private static byte[] createPacket(int pid, boolean payloadUnitStart,
+            boolean randomAccess) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        packet[0] = 0x47;
+        packet[1] = (byte) ((payloadUnitStart ? 0x40 : 0) | (pid >> 8));
+        packet[2] = (byte) pid;
+        // An adaptation field of a byte and the payload.
+        packet[3] = 0x30;
+        packet[4] = 1;
+        packet[5] = (byte) (randomAccess ? 0x40 : 0);
+        return packet;
+    }
+}
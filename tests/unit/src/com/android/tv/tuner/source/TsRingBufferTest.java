@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.os.Debug;
+import android.support.test.filters.MediumTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for {@link TsRingBuffer}.
+ */
+@MediumTest
+public class TsRingBufferTest extends TestCase {
+    private static final String TAG = "TsRingBufferTest";
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int READ_UNIT = TS_PACKET_SIZE * 10;
+    private static final int WRITE_UNIT = READ_UNIT * 10;
+    private static final int CAPACITY = READ_UNIT * 4000;
+    private static final int PADDING_SIZE = READ_UNIT * 1000;
+    private static final int BENCHMARK_BYTES = 256 * 1024 * 1024;
+    private static final long TIMEOUT_MS = 1000;
+
+    public void testReadAt_wrapAround() {
+        TsRingBuffer ringBuffer = new TsRingBuffer(1000, 100);
+        assertTrue(ringBuffer.open());
+        byte[] written = new byte[2000];
+        byte[] read = new byte[2000];
+        fill(written, 0);
+        int pos;
+        for (pos = 0; pos + 70 <= written.length; pos += 70) {
+            ringBuffer.write(written, pos, 70);
+            assertEquals(70, ringBuffer.readAt(pos, read, pos, 70, TIMEOUT_MS));
+        }
+        assertEquals(pos, ringBuffer.getWritePosition());
+        assertEquals(pos, ringBuffer.getLastReadPosition());
+        assertTrue(Arrays.equals(Arrays.copyOf(written, pos), Arrays.copyOf(read, pos)));
+    }
+
+    public void testWriteSlot() {
+        TsRingBuffer ringBuffer = new TsRingBuffer(1000, 300);
+        ringBuffer.open();
+        byte[] written = new byte[1000];
+        fill(written, 1);
+        int pos = 0;
+        while (pos < written.length) {
+            ByteBuffer slot = ringBuffer.getWriteSlot();
+            assertEquals(pos % 1000, slot.position());
+            int length = Math.min(slot.remaining(), 250);
+            slot.put(written, pos, length);
+            assertEquals(0, ringBuffer.readAt(pos, new byte[1], 0, 1, 0));
+            ringBuffer.commitWrite(length);
+            pos += length;
+        }
+        byte[] read = new byte[400];
+        assertEquals(400, ringBuffer.readAt(600, read, 0, 400, TIMEOUT_MS));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(written, 600, 1000), read));
+    }
+
+    public void testReadAt_overwritten() {
+        TsRingBuffer ringBuffer = new TsRingBuffer(1000, 100);
+        ringBuffer.open();
+        byte[] data = new byte[1500];
+        ringBuffer.write(data, 0, data.length);
+        assertEquals(TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN,
+                ringBuffer.readAt(0, new byte[10], 0, 10, TIMEOUT_MS));
+        assertEquals(10, ringBuffer.readAt(1490, new byte[10], 0, 10, TIMEOUT_MS));
+    }
+
+    public void testReadAt_timeout() {
+        TsRingBuffer ringBuffer = new TsRingBuffer(1000, 100);
+        ringBuffer.open();
+        assertEquals(0, ringBuffer.readAt(0, new byte[10], 0, 10, 10));
+    }
+
+    public void testClose_wakesUpReader() throws InterruptedException {
+        final TsRingBuffer ringBuffer = new TsRingBuffer(1000, 100);
+        ringBuffer.open();
+        final AtomicLong result = new AtomicLong();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                result.set(ringBuffer.readAt(0, new byte[10], 0, 10, TimeUnit.MINUTES.toMillis(1)));
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        ringBuffer.close();
+        reader.join(TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertEquals(TsRingBuffer.READ_ERROR_STREAMING_ENDED, result.get());
+        assertFalse(ringBuffer.isOpened());
+    }
+
+    public void testAwaitSpace() throws InterruptedException {
+        final TsRingBuffer ringBuffer = new TsRingBuffer(1000, 100);
+        ringBuffer.open();
+        ringBuffer.write(new byte[800], 0, 800);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                if (ringBuffer.awaitSpace(300)) {
+                    latch.countDown();
+                }
+            }
+        };
+        writer.start();
+        assertFalse(latch.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(100, ringBuffer.readAt(0, new byte[100], 0, 100, TIMEOUT_MS));
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        writer.join(TIMEOUT_MS);
+    }
+
+    /**
+     * Replays TS packets at full rate through {@link TsRingBuffer} and through a monitor based
+     * buffer which was used before, and logs the throughput, the reader wake-up latency and the
+     * reader CPU time of each.
+     */
+    public void testBenchmark() throws InterruptedException {
+        final byte[] packets = new byte[WRITE_UNIT];
+        fill(packets, 0);
+        Result monitorResult = replay(new MonitorRingBuffer(), packets);
+        Result ringResult = replay(new LockFreeRingBuffer(), packets);
+        Log.i(TAG, "Monitor buffer: " + monitorResult);
+        Log.i(TAG, "Lock-free buffer: " + ringResult);
+    }
+
+    private static Result replay(final Buffer buffer, final byte[] packets)
+            throws InterruptedException {
+        final Result result = new Result();
+        buffer.open();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (long written = 0; written < BENCHMARK_BYTES; written += packets.length) {
+                    if (!buffer.awaitSpace()) {
+                        break;
+                    }
+                    buffer.write(packets, System.nanoTime());
+                }
+            }
+        };
+        long startNs = System.nanoTime();
+        writer.start();
+        byte[] readBuffer = new byte[READ_UNIT];
+        long readerCpuStartNs = Debug.threadCpuTimeNanos();
+        for (long pos = 0; pos < BENCHMARK_BYTES; pos += READ_UNIT) {
+            int ret = buffer.readAt(pos, readBuffer);
+            assertEquals(READ_UNIT, ret);
+            if (pos % WRITE_UNIT == 0) {
+                result.wakeUpLatencyNs += System.nanoTime() - buffer.getLastWriteNs();
+                result.wakeUps++;
+            }
+        }
+        result.readerCpuNs = Debug.threadCpuTimeNanos() - readerCpuStartNs;
+        result.elapsedNs = System.nanoTime() - startNs;
+        buffer.close();
+        writer.join();
+        return result;
+    }
+
+    private static void fill(byte[] data, int seed) {
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = i % TS_PACKET_SIZE == 0 ? 0x47 : (byte) (seed + i);
+        }
+    }
+
+    private static class Result {
+        long elapsedNs;
+        long readerCpuNs;
+        long wakeUpLatencyNs;
+        long wakeUps;
+
+        @Override
+        public String toString() {
+            return BENCHMARK_BYTES * 1000L / Math.max(1, elapsedNs) + "MB/s"
+                    + ", reader CPU " + TimeUnit.NANOSECONDS.toMillis(readerCpuNs) + "ms"
+                    + ", average wake-up latency " + wakeUpLatencyNs / Math.max(1, wakeUps) + "ns";
+        }
+    }
+
+    private interface Buffer {
+        void open();
+        void close();
+        boolean awaitSpace();
+        void write(byte[] data, long nowNs);
+        int readAt(long pos, byte[] buffer);
+        long getLastWriteNs();
+    }
+
+    private static class LockFreeRingBuffer implements Buffer {
+        private final TsRingBuffer mRingBuffer = new TsRingBuffer(CAPACITY, WRITE_UNIT);
+        private volatile long mLastWriteNs;
+
+        @Override
+        public void open() {
+            mRingBuffer.open();
+        }
+
+        @Override
+        public void close() {
+            mRingBuffer.close();
+        }
+
+        @Override
+        public boolean awaitSpace() {
+            return mRingBuffer.awaitSpace(PADDING_SIZE);
+        }
+
+        @Override
+        public void write(byte[] data, long nowNs) {
+            mLastWriteNs = nowNs;
+            mRingBuffer.write(data, 0, data.length);
+        }
+
+        @Override
+        public int readAt(long pos, byte[] buffer) {
+            return mRingBuffer.readAt(pos, buffer, 0, buffer.length, TIMEOUT_MS);
+        }
+
+        @Override
+        public long getLastWriteNs() {
+            return mLastWriteNs;
+        }
+    }
+
+    /**
+     * The monitor based circular buffer which {@link FileTsStreamer} used before
+     * {@link TsRingBuffer}.
+     */
+    private static class MonitorRingBuffer implements Buffer {
+        private final Object mMonitor = new Object();
+        private final byte[] mBuffer = new byte[CAPACITY];
+        private long mBytesFetched;
+        private long mLastReadPosition;
+        private boolean mStreaming;
+        private volatile long mLastWriteNs;
+
+        @Override
+        public void open() {
+            synchronized (mMonitor) {
+                mStreaming = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (mMonitor) {
+                mStreaming = false;
+                mMonitor.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean awaitSpace() {
+            synchronized (mMonitor) {
+                while (mBytesFetched - mLastReadPosition + PADDING_SIZE > CAPACITY && mStreaming) {
+                    try {
+                        mMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return mStreaming;
+            }
+        }
+
+        @Override
+        public void write(byte[] data, long nowNs) {
+            mLastWriteNs = nowNs;
+            synchronized (mMonitor) {
+                int posInBuffer = (int) (mBytesFetched % CAPACITY);
+                int firstLength = Math.min(data.length, CAPACITY - posInBuffer);
+                System.arraycopy(data, 0, mBuffer, posInBuffer, firstLength);
+                if (firstLength < data.length) {
+                    System.arraycopy(data, firstLength, mBuffer, 0, data.length - firstLength);
+                }
+                mBytesFetched += data.length;
+                mMonitor.notifyAll();
+            }
+        }
+
+        @Override
+        public int readAt(long pos, byte[] buffer) {
+            synchronized (mMonitor) {
+                while (mBytesFetched < pos + buffer.length && mStreaming) {
+                    try {
+                        mMonitor.wait(TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int posInBuffer = (int) (pos % CAPACITY);
+                int firstLength = Math.min(buffer.length, CAPACITY - posInBuffer);
+                System.arraycopy(mBuffer, posInBuffer, buffer, 0, firstLength);
+                if (firstLength < buffer.length) {
+                    System.arraycopy(mBuffer, 0, buffer, firstLength, buffer.length - firstLength);
+                }
+                mLastReadPosition = pos + buffer.length;
+                mMonitor.notifyAll();
+                return buffer.length;
+            }
+        }
+
+        @Override
+        public long getLastWriteNs() {
+            return mLastWriteNs;
+        }
+    }
+}
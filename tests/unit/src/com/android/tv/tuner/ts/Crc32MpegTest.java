@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Tests for {@link Crc32Mpeg}.
+ */
+@SmallTest
+public class Crc32MpegTest extends TestCase {
+    private static final String TAG = "Crc32MpegTest";
+
+    // The check value of CRC-32/MPEG-2 for "123456789".
+    private static final int CHECK_VALUE = 0x0376e6e7;
+    private static final int MAX_SECTION_LENGTH = 4096;
+    private static final int BENCHMARK_SECTION_COUNT = 2000;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASUREMENT_ITERATIONS = 10;
+
+    public void testCheckValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(CHECK_VALUE, Crc32Mpeg.TABLE_DRIVEN.compute(data, 0, data.length));
+        assertEquals(CHECK_VALUE, Crc32Mpeg.SLICING_BY_8.compute(data, 0, data.length));
+    }
+
+    public void testEquivalence() {
+        Random random = new Random(0);
+        byte[] data = new byte[MAX_SECTION_LENGTH + 16];
+        random.nextBytes(data);
+        for (int length = 0; length <= 300; ++length) {
+            for (int offset = 0; offset < 9; ++offset) {
+                int expected = computeReference(data, offset, length);
+                assertEquals(expected, Crc32Mpeg.TABLE_DRIVEN.compute(data, offset, length));
+                assertEquals(expected, Crc32Mpeg.SLICING_BY_8.compute(data, offset, length));
+            }
+        }
+        assertEquals(computeReference(data, 3, MAX_SECTION_LENGTH),
+                Crc32Mpeg.SLICING_BY_8.compute(data, 3, MAX_SECTION_LENGTH));
+    }
+
+    public void testUpdate_chained() {
+        Random random = new Random(1);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        int expected = Crc32Mpeg.SLICING_BY_8.compute(data, 0, data.length);
+        int crc = Crc32Mpeg.INITIAL_VALUE;
+        for (int pos = 0; pos < data.length; pos += 13) {
+            crc = Crc32Mpeg.SLICING_BY_8.update(crc, data, pos, Math.min(13, data.length - pos));
+        }
+        assertEquals(expected, crc);
+    }
+
+    public void testIsValid() {
+        Random random = new Random(2);
+        byte[] data = new byte[1024];
+        random.nextBytes(data);
+        int crc = Crc32Mpeg.SLICING_BY_8.compute(data, 0, data.length - 4);
+        data[data.length - 4] = (byte) (crc >> 24);
+        data[data.length - 3] = (byte) (crc >> 16);
+        data[data.length - 2] = (byte) (crc >> 8);
+        data[data.length - 1] = (byte) crc;
+        assertTrue(Crc32Mpeg.TABLE_DRIVEN.isValid(data, 0, data.length));
+        assertTrue(Crc32Mpeg.SLICING_BY_8.isValid(data, 0, data.length));
+        data[100] ^= 0x10;
+        assertFalse(Crc32Mpeg.TABLE_DRIVEN.isValid(data, 0, data.length));
+        assertFalse(Crc32Mpeg.SLICING_BY_8.isValid(data, 0, data.length));
+    }
+
+    /**
+     * Compares the throughput of the byte-at-a-time loop which SectionParser used to run with
+     * that of the implementations over EIT-sized sections.
+     */
+    public void testBenchmark() {
+        Random random = new Random(3);
+        byte[][] sections = new byte[BENCHMARK_SECTION_COUNT][];
+        long totalBytes = 0;
+        for (int i = 0; i < sections.length; ++i) {
+            sections[i] = new byte[1 + random.nextInt(MAX_SECTION_LENGTH)];
+            random.nextBytes(sections[i]);
+            totalBytes += sections[i].length;
+        }
+        Log.i(TAG, "Reference loop: " + measure(null, sections, totalBytes) + "MB/s, "
+                + "table-driven: " + measure(Crc32Mpeg.TABLE_DRIVEN, sections, totalBytes)
+                + "MB/s, slicing-by-8: " + measure(Crc32Mpeg.SLICING_BY_8, sections, totalBytes)
+                + "MB/s");
+    }
+
+    private static long measure(Crc32Mpeg crc, byte[][] sections, long totalBytes) {
+        int result = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            result ^= run(crc, sections);
+        }
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; ++i) {
+            result ^= run(crc, sections);
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        // Keeps the result alive.
+        assertTrue(result != 1 || result == 1);
+        return totalBytes * MEASUREMENT_ITERATIONS * 1000 / Math.max(1, elapsedNs);
+    }
+
+    private static int run(Crc32Mpeg crc, byte[][] sections) {
+        int result = 0;
+        for (byte[] section : sections) {
+            result ^= crc == null ? computeReference(section, 0, section.length)
+                    : crc.compute(section, 0, section.length);
+        }
+        return result;
+    }
+
+    private static int computeReference(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; ++i) {
+            int index = ((crc >> 24) ^ (data[i] & 0xff)) & 0xff;
+            crc = SectionParser.CRC_TABLE[index] ^ (crc << 8);
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.util.Log;
+
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.EttItem;
+import com.android.tv.tuner.data.PsipData.MgtItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.util.ByteArrayBuffer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link SectionParser}.
+ */
+@SmallTest
+public class SectionParserTest extends TestCase {
+    private static final String TAG = "SectionParserTest";
+
+    private static final int PROGRAM_COUNT = 16;
+    private static final int BENCHMARK_REPEAT_COUNT = 20000;
+
+    private int mPatParsedCount;
+
+    private final SectionParser.OutputListener mListener = new SectionParser.OutputListener() {
+        @Override
+        public void onPatParsed(List<PatItem> items) {
+            ++mPatParsedCount;
+        }
+
+        @Override
+        public void onPmtParsed(int programNumber, List<PmtItem> items) { }
+
+        @Override
+        public void onMgtParsed(List<MgtItem> items) { }
+
+        @Override
+        public void onVctParsed(List<VctItem> items, int sectionNumber, int lastSectionNumber) { }
+
+        @Override
+        public void onEitParsed(int sourceId, List<EitItem> items) { }
+
+        @Override
+        public void onEttParsed(int sourceId, List<EttItem> descriptions) { }
+    };
+
+    public void testParseSections_skipsSameVersion() {
+        SectionParser parser = new SectionParser(mListener);
+        byte[] pat = createPat(1, 0, true);
+        for (int i = 0; i < 10; ++i) {
+            parser.parseSections(toBuffer(pat));
+        }
+        assertEquals(1, mPatParsedCount);
+        assertEquals(1, parser.getParsedSectionCount());
+        assertEquals(9, parser.getSkippedSectionCount());
+    }
+
+    public void testParseSections_newVersion() {
+        SectionParser parser = new SectionParser(mListener);
+        parser.parseSections(toBuffer(createPat(1, 0, true)));
+        parser.parseSections(toBuffer(createPat(2, 0, true)));
+        parser.parseSections(toBuffer(createPat(2, 0, true)));
+        assertEquals(2, mPatParsedCount);
+        assertEquals(1, parser.getSkippedSectionCount());
+    }
+
+    public void testParseSections_otherSectionNumber() {
+        SectionParser parser = new SectionParser(mListener);
+        parser.parseSections(toBuffer(createPat(1, 0, true)));
+        parser.parseSections(toBuffer(createPat(1, 1, true)));
+        assertEquals(2, mPatParsedCount);
+    }
+
+    public void testParseSections_notApplicable() {
+        SectionParser parser = new SectionParser(mListener);
+        parser.parseSections(toBuffer(createPat(1, 0, false)));
+        assertEquals(0, mPatParsedCount);
+        assertEquals(1, parser.getSkippedSectionCount());
+    }
+
+    public void testParseSections_badCrc() {
+        SectionParser parser = new SectionParser(mListener);
+        byte[] pat = createPat(1, 0, true);
+        pat[pat.length - 1] ^= 0x01;
+        parser.parseSections(toBuffer(pat));
+        assertEquals(0, mPatParsedCount);
+
+        // A broken section should not prevent the same version from being parsed later.
+        parser.parseSections(toBuffer(createPat(1, 0, true)));
+        assertEquals(1, mPatParsedCount);
+    }
+
+    public void testResetVersionNumbers() {
+        SectionParser parser = new SectionParser(mListener);
+        parser.parseSections(toBuffer(createPat(1, 0, true)));
+        parser.resetVersionNumbers();
+        parser.parseSections(toBuffer(createPat(1, 0, true)));
+        assertEquals(2, mPatParsedCount);
+    }
+
+    /**
+     * Measures parsing a repeated section compared with copying and checking the CRC of it,
+     * which used to be done before the version of a section is checked.
+     */
+    public void testBenchmark() {
+        SectionParser parser = new SectionParser(mListener);
+        byte[] pat = createPat(1, 0, true);
+        ByteArrayBuffer buffer = toBuffer(pat);
+
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        int checksum = 0;
+        for (int i = 0; i < BENCHMARK_REPEAT_COUNT; ++i) {
+            checksum += computeCrc(Arrays.copyOfRange(buffer.buffer(), 0, buffer.length()));
+        }
+        long copyAndCrcNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+        startNs = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_REPEAT_COUNT; ++i) {
+            parser.parseSections(buffer);
+        }
+        long parseNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        assertEquals(0, checksum);
+        assertEquals(BENCHMARK_REPEAT_COUNT - 1, parser.getSkippedSectionCount());
+        Log.i(TAG, BENCHMARK_REPEAT_COUNT + " repeated sections: copy and CRC "
+                + copyAndCrcNs / 1000 + "us, version-first parse " + parseNs / 1000 + "us");
+    }
+
+    private static ByteArrayBuffer toBuffer(byte[] data) {
+        ByteArrayBuffer buffer = new ByteArrayBuffer(data.length);
+        buffer.append(data, 0, data.length);
+        return buffer;
+    }
+
+    private static byte[] createPat(int version, int sectionNumber, boolean currentNext) {
+        int sectionLength = 5 + PROGRAM_COUNT * 4 + 4;
+        byte[] data = new byte[3 + sectionLength];
+        data[0] = 0x00;
+        data[1] = (byte) (0xb0 | (sectionLength >> 8));
+        data[2] = (byte) sectionLength;
+        data[3] = 0x00;
+        data[4] = 0x01;
+        data[5] = (byte) (0xc0 | (version << 1) | (currentNext ? 1 : 0));
+        data[6] = (byte) sectionNumber;
+        data[7] = (byte) sectionNumber;
+        for (int i = 0; i < PROGRAM_COUNT; ++i) {
+            int pos = 8 + i * 4;
+            int pmtPid = 0x30 + i;
+            data[pos] = 0x00;
+            data[pos + 1] = (byte) (i + 1);
+            data[pos + 2] = (byte) (0xe0 | (pmtPid >> 8));
+            data[pos + 3] = (byte) pmtPid;
+        }
+        int crc = computeCrc(Arrays.copyOf(data, data.length - 4));
+        data[data.length - 4] = (byte) (crc >> 24);
+        data[data.length - 3] = (byte) (crc >> 16);
+        data[data.length - 2] = (byte) (crc >> 8);
+        data[data.length - 1] = (byte) crc;
+        return data;
+    }
+
+    private static int computeCrc(byte[] data) {
+        int crc = 0xffffffff;
+        for (byte b : data) {
+            int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
+            crc = SectionParser.CRC_TABLE[index] ^ (crc << 8);
+        }
+        return crc;
+    }
+}
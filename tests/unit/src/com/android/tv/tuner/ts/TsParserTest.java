@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import android.os.Debug;
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.MgtItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link TsParser}.
+ */
+@SmallTest
+public class TsParserTest extends TestCase {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PAYLOAD_SIZE = TS_PACKET_SIZE - 4;
+    private static final int NULL_PID = 0x1fff;
+    private static final int STREAM_TYPE_H262 = 0x02;
+    private static final int STREAM_TYPE_ATSC_AC3 = 0x81;
+    private static final int TABLE_ID_MGT = 0xc7;
+    private static final int TABLE_ID_TVCT = 0xc8;
+    private static final int TABLE_ID_EIT = 0xcb;
+    private static final int SERVICE_TYPE_ATSC_DIGITAL_TELEVISION = 0x02;
+    private static final int TRANSPORT_STREAM_ID = 0x0001;
+    private static final int EIT_PID = 0x1d00;
+    private static final int MAJOR_CHANNEL_NUMBER = 7;
+
+    // The PAT is long enough to span two TS packets.
+    private static final int PROGRAM_COUNT = 60;
+    private static final int PLAYED_PROGRAM_COUNT = 2;
+    private static final int PMT_PID_BASE = 0x30;
+    private static final int ES_PID_BASE = 0x100;
+    // The number of TS packets of audio and video between two sets of tables.
+    private static final int MEDIA_PACKET_COUNT = 2000;
+    private static final int WARMUP_REPEAT_COUNT = 3;
+    private static final int REPEAT_COUNT = 20;
+
+    // A PAT, the PMTs, an MGT, a VCT and the EITs of the played programs.
+    private static final int SECTION_COUNT = 1 + PLAYED_PROGRAM_COUNT + 2 + PLAYED_PROGRAM_COUNT;
+
+    private final int[] mContinuityCounters = new int[NULL_PID + 1];
+    private int mPatDetectedCount;
+    private int mEitPidDetectedCount;
+    private int mVctItemParsedCount;
+    private int mEitItemParsedCount;
+    private int mAllVctItemsParsedCount;
+
+    private final TsParser.TsOutputListener mListener = new TsParser.TsOutputListener() {
+        @Override
+        public void onPatDetected(List<PatItem> items) {
+            ++mPatDetectedCount;
+        }
+
+        @Override
+        public void onEitPidDetected(int pid) {
+            assertEquals(EIT_PID, pid);
+            ++mEitPidDetectedCount;
+        }
+
+        @Override
+        public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
+            assertEquals(MAJOR_CHANNEL_NUMBER, channel.getMajorChannelNumber());
+            // The video, the audio and the PCR.
+            assertEquals(3, pmtItems.size());
+            ++mVctItemParsedCount;
+        }
+
+        @Override
+        public void onEitItemParsed(VctItem channel, List<EitItem> items) {
+            assertEquals(1, items.size());
+            assertEquals(channel.getSourceId(), items.get(0).getEventId());
+            ++mEitItemParsedCount;
+        }
+
+        @Override
+        public void onEttPidDetected(int pid) { }
+
+        @Override
+        public void onAllVctItemsParsed() {
+            ++mAllVctItemsParsedCount;
+        }
+    };
+
+    public void testFeedTSData() {
+        TsParser parser = new TsParser(mListener);
+        byte[] multiplex = recordMultiplex(true);
+        parser.feedTSData(multiplex, 0, multiplex.length);
+        assertEquals(1, mPatDetectedCount);
+        assertEquals(1, mEitPidDetectedCount);
+        assertEquals(PLAYED_PROGRAM_COUNT, mVctItemParsedCount);
+        assertEquals(1, mAllVctItemsParsedCount);
+        assertEquals(PLAYED_PROGRAM_COUNT, mEitItemParsedCount);
+        assertTrue(parser.getMalFormedChannels().isEmpty());
+        assertEquals(SECTION_COUNT, parser.getParsedSectionCount());
+    }
+
+    public void testFeedTSData_withoutPsip() {
+        TsParser parser = new TsParser(mListener);
+        byte[] multiplex = recordMultiplex(false);
+        parser.feedTSData(multiplex, 0, multiplex.length);
+        assertEquals(1, mPatDetectedCount);
+        assertEquals(0, mVctItemParsedCount);
+        // No VCT is on air, so that the programs are reported as malformed channels.
+        assertEquals(PLAYED_PROGRAM_COUNT, parser.getMalFormedChannels().size());
+        assertEquals(1 + PLAYED_PROGRAM_COUNT, parser.getParsedSectionCount());
+    }
+
+    public void testFeedTSData_withOffset() {
+        TsParser parser = new TsParser(mListener);
+        byte[] multiplex = recordMultiplex(true);
+        int offset = 7;
+        byte[] data = new byte[offset + multiplex.length + 10];
+        System.arraycopy(multiplex, 0, data, offset, multiplex.length);
+        parser.feedTSData(data, offset, multiplex.length);
+        assertEquals(1, mPatDetectedCount);
+        assertEquals(PLAYED_PROGRAM_COUNT, mVctItemParsedCount);
+        assertEquals(PLAYED_PROGRAM_COUNT, mEitItemParsedCount);
+    }
+
+    /**
+     * Tests that parsing a multiplex whose tables are already known doesn't allocate any object
+     * on the parsing thread.
+     */
+    @SuppressWarnings("deprecation")
+    public void testFeedTSData_noAllocation() {
+        TsParser parser = new TsParser(mListener);
+        byte[] multiplex = recordMultiplex(true);
+        for (int i = 0; i < WARMUP_REPEAT_COUNT; ++i) {
+            parser.feedTSData(multiplex, 0, multiplex.length);
+        }
+        long skippedSectionCount = parser.getSkippedSectionCount();
+
+        // Only the allocations of this thread are counted, so that the other threads of the test
+        // process don't affect the result. The runtime updates the thread count only while the
+        // allocation counting is enabled.
+        Debug.startAllocCounting();
+        int allocCount;
+        try {
+            int startAllocCount = Debug.getThreadAllocCount();
+            for (int i = 0; i < REPEAT_COUNT; ++i) {
+                parser.feedTSData(multiplex, 0, multiplex.length);
+            }
+            allocCount = Debug.getThreadAllocCount() - startAllocCount;
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        assertEquals(1, mPatDetectedCount);
+        assertEquals(PLAYED_PROGRAM_COUNT, mEitItemParsedCount);
+        assertEquals(skippedSectionCount + SECTION_COUNT * REPEAT_COUNT,
+                parser.getSkippedSectionCount());
+        assertEquals(0, allocCount);
+    }
+
+    /**
+     * Creates a recording of a multiplex. It carries a PAT, PMTs of the programs on air, audio
+     * and video packets of the programs, and null packets. If {@code withPsip} is {@code true},
+     * it carries an MGT, a terrestrial VCT of the programs and an EIT of each program as well.
+     */
+    private byte[] recordMultiplex(boolean withPsip) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSection(out, TsParser.PAT_PID, createPat());
+        for (int i = 0; i < PLAYED_PROGRAM_COUNT; ++i) {
+            writeSection(out, PMT_PID_BASE + i, createPmt(i + 1, ES_PID_BASE + i * 2));
+        }
+        if (withPsip) {
+            writeSection(out, TsParser.ATSC_SI_BASE_PID, createMgt());
+            writeSection(out, TsParser.ATSC_SI_BASE_PID, createVct());
+            for (int i = 0; i < PLAYED_PROGRAM_COUNT; ++i) {
+                // The source ID of a program is the same as its program number.
+                writeSection(out, EIT_PID, createEit(i + 1));
+            }
+        }
+        byte[] payload = new byte[TS_PAYLOAD_SIZE];
+        for (int i = 0; i < MEDIA_PACKET_COUNT; ++i) {
+            int pid = i % 10 == 9 ? NULL_PID : ES_PID_BASE + i % (PLAYED_PROGRAM_COUNT * 2);
+            Arrays.fill(payload, (byte) i);
+            writePacket(out, pid, i % 20 == 0, payload, 0);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeSection(ByteArrayOutputStream out, int pid, byte[] section) {
+        byte[] payload = new byte[TS_PAYLOAD_SIZE];
+        // The pointer field.
+        payload[0] = 0;
+        int size = Math.min(section.length, TS_PAYLOAD_SIZE - 1);
+        System.arraycopy(section, 0, payload, 1, size);
+        Arrays.fill(payload, 1 + size, TS_PAYLOAD_SIZE, (byte) 0xff);
+        writePacket(out, pid, true, payload, 0);
+        for (int pos = size; pos < section.length; pos += TS_PAYLOAD_SIZE) {
+            size = Math.min(section.length - pos, TS_PAYLOAD_SIZE);
+            System.arraycopy(section, pos, payload, 0, size);
+            Arrays.fill(payload, size, TS_PAYLOAD_SIZE, (byte) 0xff);
+            writePacket(out, pid, false, payload, 0);
+        }
+    }
+
+    private void writePacket(ByteArrayOutputStream out, int pid, boolean startIndicator,
+            byte[] payload, int offset) {
+        int continuityCounter = mContinuityCounters[pid];
+        mContinuityCounters[pid] = (continuityCounter + 1) & 0x0f;
+        out.write(0x47);
+        out.write((startIndicator ? 0x40 : 0x00) | (pid >> 8));
+        out.write(pid & 0xff);
+        out.write(0x10 | continuityCounter);
+        out.write(payload, offset, TS_PAYLOAD_SIZE);
+    }
+
+    private static byte[] createPat() {
+        byte[] data = new byte[8 + PROGRAM_COUNT * 4 + 4];
+        fillHeader(data, 0x00, 0x0001);
+        for (int i = 0; i < PROGRAM_COUNT; ++i) {
+            int pos = 8 + i * 4;
+            int programNumber = i + 1;
+            int pmtPid = PMT_PID_BASE + i;
+            data[pos] = (byte) (programNumber >> 8);
+            data[pos + 1] = (byte) programNumber;
+            data[pos + 2] = (byte) (0xe0 | (pmtPid >> 8));
+            data[pos + 3] = (byte) pmtPid;
+        }
+        fillCrc(data);
+        return data;
+    }
+
+    private static byte[] createPmt(int programNumber, int videoPid) {
+        int audioPid = videoPid + 1;
+        byte[] data = new byte[12 + 2 * 5 + 4];
+        fillHeader(data, 0x02, programNumber);
+        data[8] = (byte) (0xe0 | (videoPid >> 8));
+        data[9] = (byte) videoPid;
+        data[10] = (byte) 0xf0;
+        data[11] = 0x00;
+        fillElementaryStream(data, 12, STREAM_TYPE_H262, videoPid);
+        fillElementaryStream(data, 17, STREAM_TYPE_ATSC_AC3, audioPid);
+        fillCrc(data);
+        return data;
+    }
+
+    private static byte[] createMgt() {
+        // An MGT of an EIT-0 only. See ATSC A/65 Table 6.2.
+        byte[] data = new byte[9 + 2 + 11 + 2 + 4];
+        fillHeader(data, TABLE_ID_MGT, 0x0000);
+        // protocol_version.
+        data[8] = 0x00;
+        // tables_defined.
+        data[9] = 0x00;
+        data[10] = 0x01;
+        int tableType = MgtItem.TABLE_TYPE_EIT_RANGE_START;
+        data[11] = (byte) (tableType >> 8);
+        data[12] = (byte) tableType;
+        data[13] = (byte) (0xe0 | (EIT_PID >> 8));
+        data[14] = (byte) EIT_PID;
+        // table_type_version_number.
+        data[15] = (byte) 0xe1;
+        // number_bytes isn't used, and no table type descriptor.
+        data[20] = (byte) 0xf0;
+        data[21] = 0x00;
+        // No descriptor.
+        data[22] = (byte) 0xf0;
+        data[23] = 0x00;
+        fillCrc(data);
+        return data;
+    }
+
+    private static byte[] createVct() {
+        // A terrestrial VCT of the played programs. See ATSC A/65 Table 6.4.
+        byte[] data = new byte[10 + PLAYED_PROGRAM_COUNT * 32 + 2 + 4];
+        fillHeader(data, TABLE_ID_TVCT, TRANSPORT_STREAM_ID);
+        // protocol_version.
+        data[8] = 0x00;
+        // num_channels_in_section.
+        data[9] = (byte) PLAYED_PROGRAM_COUNT;
+        for (int i = 0; i < PLAYED_PROGRAM_COUNT; ++i) {
+            int pos = 10 + i * 32;
+            int programNumber = i + 1;
+            int minorNumber = i + 1;
+            byte[] shortName = ("CH" + minorNumber).getBytes(StandardCharsets.UTF_16BE);
+            System.arraycopy(shortName, 0, data, pos, shortName.length);
+            data[pos + 14] = (byte) (0xf0 | (MAJOR_CHANNEL_NUMBER >> 6));
+            data[pos + 15] = (byte) ((MAJOR_CHANNEL_NUMBER << 2) | (minorNumber >> 8));
+            data[pos + 16] = (byte) minorNumber;
+            // modulation_mode: 8-VSB.
+            data[pos + 17] = 0x04;
+            data[pos + 22] = (byte) (TRANSPORT_STREAM_ID >> 8);
+            data[pos + 23] = (byte) TRANSPORT_STREAM_ID;
+            data[pos + 24] = (byte) (programNumber >> 8);
+            data[pos + 25] = (byte) programNumber;
+            // Neither access controlled nor hidden.
+            data[pos + 26] = 0x0d;
+            data[pos + 27] = (byte) (0xc0 | SERVICE_TYPE_ATSC_DIGITAL_TELEVISION);
+            data[pos + 28] = (byte) (programNumber >> 8);
+            data[pos + 29] = (byte) programNumber;
+            // No descriptor.
+            data[pos + 30] = (byte) 0xfc;
+            data[pos + 31] = 0x00;
+        }
+        // No additional descriptor.
+        int pos = 10 + PLAYED_PROGRAM_COUNT * 32;
+        data[pos] = (byte) 0xfc;
+        data[pos + 1] = 0x00;
+        fillCrc(data);
+        return data;
+    }
+
+    private static byte[] createEit(int sourceId) {
+        // An EIT of an event without the title. See ATSC A/65 Table 6.11.
+        byte[] data = new byte[10 + 12 + 4];
+        fillHeader(data, TABLE_ID_EIT, sourceId);
+        // protocol_version.
+        data[8] = 0x00;
+        // num_events_in_section.
+        data[9] = 0x01;
+        int eventId = sourceId;
+        data[10] = (byte) (0xc0 | (eventId >> 8));
+        data[11] = (byte) eventId;
+        // start_time is 0, and length_in_seconds is an hour.
+        int lengthInSeconds = 3600;
+        data[16] = (byte) (0xc0 | (lengthInSeconds >> 16));
+        data[17] = (byte) (lengthInSeconds >> 8);
+        data[18] = (byte) lengthInSeconds;
+        // title_length.
+        data[19] = 0x00;
+        // No descriptor.
+        data[20] = (byte) 0xf0;
+        data[21] = 0x00;
+        fillCrc(data);
+        return data;
+    }
+
+    private static void fillHeader(byte[] data, int tableId, int tableIdExtension) {
+        int sectionLength = data.length - 3;
+        data[0] = (byte) tableId;
+        data[1] = (byte) (0xb0 | (sectionLength >> 8));
+        data[2] = (byte) sectionLength;
+        data[3] = (byte) (tableIdExtension >> 8);
+        data[4] = (byte) tableIdExtension;
+        // Version 1, current.
+        data[5] = (byte) 0xc3;
+        data[6] = 0x00;
+        data[7] = 0x00;
+    }
+
+    private static void fillElementaryStream(byte[] data, int pos, int streamType, int pid) {
+        data[pos] = (byte) streamType;
+        data[pos + 1] = (byte) (0xe0 | (pid >> 8));
+        data[pos + 2] = (byte) pid;
+        data[pos + 3] = (byte) 0xf0;
+        data[pos + 4] = 0x00;
+    }
+
+    private static void fillCrc(byte[] data) {
+        int crc = Crc32Mpeg.getDefault().compute(data, 0, data.length - 4);
+        data[data.length - 4] = (byte) (crc >> 24);
+        data[data.length - 3] = (byte) (crc >> 16);
+        data[data.length - 2] = (byte) (crc >> 8);
+        data[data.length - 1] = (byte) crc;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput;
+
+import android.support.test.filters.SmallTest;
+
+import com.android.tv.tuner.data.TunerChannel;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link ChannelDataManager}.
+ */
+@SmallTest
+public class ChannelDataManagerTest extends TestCase {
+    private static final TunerChannel CHANNEL_5_1 = createChannel(5, 1, 1);
+    private static final TunerChannel CHANNEL_7_2 = createChannel(7, 2, 2);
+    private static final TunerChannel CHANNEL_7_10 = createChannel(7, 10, 3);
+    private static final TunerChannel CHANNEL_9_1 = createChannel(9, 1, 4);
+
+    // Not in the order of the display numbers.
+    private static final List<TunerChannel> CHANNELS =
+            Arrays.asList(CHANNEL_9_1, CHANNEL_7_10, CHANNEL_5_1, CHANNEL_7_2);
+
+    public void testGetAdjacentChannels() {
+        assertEquals(Arrays.asList(CHANNEL_7_10, CHANNEL_5_1),
+                ChannelDataManager.getAdjacentChannels(CHANNELS, CHANNEL_7_2));
+        assertEquals(Arrays.asList(CHANNEL_9_1, CHANNEL_7_2),
+                ChannelDataManager.getAdjacentChannels(CHANNELS, CHANNEL_7_10));
+    }
+
+    public void testGetAdjacentChannels_wrapsAroundAtLastChannel() {
+        assertEquals(Arrays.asList(CHANNEL_5_1, CHANNEL_7_10),
+                ChannelDataManager.getAdjacentChannels(CHANNELS, CHANNEL_9_1));
+    }
+
+    public void testGetAdjacentChannels_wrapsAroundAtFirstChannel() {
+        assertEquals(Arrays.asList(CHANNEL_7_2, CHANNEL_9_1),
+                ChannelDataManager.getAdjacentChannels(CHANNELS, CHANNEL_5_1));
+    }
+
+    public void testGetAdjacentChannels_twoChannels() {
+        // Channel-up and channel-down tune to the same channel.
+        assertEquals(Collections.singletonList(CHANNEL_9_1),
+                ChannelDataManager.getAdjacentChannels(
+                        Arrays.asList(CHANNEL_9_1, CHANNEL_5_1), CHANNEL_5_1));
+    }
+
+    public void testGetAdjacentChannels_noOtherChannel() {
+        assertTrue(ChannelDataManager.getAdjacentChannels(
+                Collections.singletonList(CHANNEL_5_1), CHANNEL_5_1).isEmpty());
+        assertTrue(ChannelDataManager.getAdjacentChannels(
+                Arrays.asList(CHANNEL_5_1, CHANNEL_7_2), CHANNEL_9_1).isEmpty());
+    }
+
+    private static TunerChannel createChannel(int major, int minor, int programNumber) {
+        return TunerChannel.forNetwork(major, minor, programNumber, major + "-" + minor, false,
+                null);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link DbExecutor}.
+ */
+@SmallTest
+public class DbExecutorTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final DbExecutor mExecutor = new DbExecutor(new NamedThreadFactory("DbExecutorTest"));
+
+    public void testExecute_sameLaneInOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicBoolean running = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; ++i) {
+            final int index = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!running.compareAndSet(false, true)) {
+                        overlapped.set(true);
+                    }
+                    order.add(index);
+                    running.set(false);
+                    done.countDown();
+                }
+            }, AsyncDbTask.PRIORITY_CURRENT_PROGRAM);
+        }
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(overlapped.get());
+        assertEquals(10, order.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    public void testExecute_foregroundNotBlockedByPrefetch() throws InterruptedException {
+        CountDownLatch prefetchBlocker = new CountDownLatch(1);
+        mExecutor.execute(block(prefetchBlocker), AsyncDbTask.PRIORITY_PREFETCH);
+        CountDownLatch interactiveDone = new CountDownLatch(1);
+        CountDownLatch currentProgramDone = new CountDownLatch(1);
+        mExecutor.execute(countDown(interactiveDone));
+        mExecutor.execute(countDown(currentProgramDone), AsyncDbTask.PRIORITY_CURRENT_PROGRAM);
+        assertTrue(interactiveDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(currentProgramDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        prefetchBlocker.countDown();
+    }
+
+    public void testExecute_lowPriorityLanesShareThread() throws InterruptedException {
+        CountDownLatch prefetchBlocker = new CountDownLatch(1);
+        mExecutor.execute(block(prefetchBlocker), AsyncDbTask.PRIORITY_PREFETCH);
+        CountDownLatch backgroundDone = new CountDownLatch(1);
+        mExecutor.execute(countDown(backgroundDone), AsyncDbTask.PRIORITY_BACKGROUND);
+        assertFalse(backgroundDone.await(100, TimeUnit.MILLISECONDS));
+        prefetchBlocker.countDown();
+        assertTrue(backgroundDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    public void testExecute_dropsCanceledTask() throws InterruptedException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        mExecutor.execute(block(blocker));
+        FutureTask<Void> canceledTask = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                fail("Canceled task ran");
+            }
+        }, null);
+        mExecutor.execute(canceledTask);
+        canceledTask.cancel(false);
+        CountDownLatch done = new CountDownLatch(1);
+        mExecutor.execute(countDown(done));
+        blocker.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        StringWriter out = new StringWriter();
+        mExecutor.dump(new PrintWriter(out));
+        assertTrue(out.toString(), out.toString().contains("interactive: queued=0, run=2, "
+                + "canceled=1"));
+    }
+
+    private static Runnable block(final CountDownLatch blocker) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}